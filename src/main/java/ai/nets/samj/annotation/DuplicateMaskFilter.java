@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Non-maximum suppression of the masks produced by a batch of prompts, used to remove the objects
+ * that are found several times, for example by a point prompt and by an object of a mask prompt.
+ *
+ * The masks can be given in several groups, as they are produced. Every mask is compared with the masks
+ * kept so far, found with a {@link MaskIndex}, and it is discarded if its intersection over union with
+ * any of them reaches the threshold. Optionally, it is also discarded if the fraction of the smallest of
+ * both covered by the other reaches a containment threshold.
+ * Inside each group the biggest masks are kept first.
+ *
+ * @author Carlos Garcia
+ */
+public class DuplicateMaskFilter {
+
+	/**
+	 * Default minimum IoU for two masks to be considered the same object
+	 */
+	public static final double DEFAULT_IOU_THRESHOLD = 0.7;
+	/**
+	 * Containment threshold that disables the comparison of the containment, so only the IoU is looked at
+	 */
+	public static final double NO_CONTAINMENT = Double.POSITIVE_INFINITY;
+	/**
+	 * Default minimum fraction of the smallest mask covered by the other for both to be considered the same object.
+	 * The containment is not compared by default, so the objects nested inside bigger ones are kept
+	 */
+	public static final double DEFAULT_CONTAINMENT_THRESHOLD = NO_CONTAINMENT;
+	/**
+	 * Minimum number of masks to be compared with a mask to do the comparisons in parallel
+	 */
+	private static final int PARALLEL_CANDIDATES = 16;
+
+	private final double iouThreshold;
+
+	private final double containmentThreshold;
+
+	private final MaskIndex kept = new MaskIndex();
+
+	private int suppressed = 0;
+
+	/**
+	 * Create a filter with the default thresholds
+	 */
+	public DuplicateMaskFilter() {
+		this(DEFAULT_IOU_THRESHOLD, DEFAULT_CONTAINMENT_THRESHOLD);
+	}
+
+	/**
+	 * Create a filter
+	 * @param iouThreshold
+	 * 	minimum IoU for two masks to be considered the same object, between 0 and 1
+	 * @param containmentThreshold
+	 * 	minimum fraction of the smallest mask covered by the other one for both masks to be considered
+	 * 	the same object, between 0 and 1. Use {@link #NO_CONTAINMENT} to only look at the IoU
+	 */
+	public DuplicateMaskFilter(double iouThreshold, double containmentThreshold) {
+		checkThresholds(iouThreshold, containmentThreshold);
+		this.iouThreshold = iouThreshold;
+		this.containmentThreshold = containmentThreshold;
+	}
+
+	/**
+	 * Check that the thresholds of a filter are valid
+	 * @param iouThreshold
+	 * 	minimum IoU for two masks to be considered the same object
+	 * @param containmentThreshold
+	 * 	minimum fraction of the smallest mask covered by the other one for both masks to be considered the same object
+	 * @throws IllegalArgumentException if any of the thresholds is not valid
+	 */
+	public static void checkThresholds(double iouThreshold, double containmentThreshold) {
+		if (iouThreshold <= 0 || iouThreshold > 1)
+			throw new IllegalArgumentException("The IoU threshold needs to be in (0, 1]: " + iouThreshold);
+		else if (containmentThreshold <= 0)
+			throw new IllegalArgumentException("The containment threshold needs to be positive: " + containmentThreshold);
+	}
+
+	/**
+	 * Remove the masks that are duplicates of the masks kept before or of bigger masks of the same group
+	 * @param masks
+	 * 	new group of masks
+	 * @return the masks of the group that are not duplicates, in the same order as they were given
+	 */
+	public synchronized List<Mask> filter(List<Mask> masks) {
+		final long[] areas = new long[masks.size()];
+		IntStream.range(0, masks.size()).parallel().forEach(i -> areas[i] = masks.get(i).getRle().area());
+		Integer[] order = new Integer[masks.size()];
+		for (int i = 0; i < order.length; i ++)
+			order[i] = i;
+		Arrays.sort(order, Comparator.comparingLong((Integer i) -> areas[i]).reversed());
+		boolean[] keep = new boolean[masks.size()];
+		for (int i : order) {
+			if (areas[i] == 0 || isDuplicate(masks.get(i), areas[i])) {
+				suppressed ++;
+				continue;
+			}
+			keep[i] = true;
+			kept.add(masks.get(i));
+		}
+		List<Mask> filtered = new ArrayList<Mask>(masks.size());
+		for (int i = 0; i < keep.length; i ++) {
+			if (keep[i])
+				filtered.add(masks.get(i));
+		}
+		return filtered;
+	}
+
+	/**
+	 *
+	 * @return number of masks discarded so far
+	 */
+	public synchronized int getSuppressedCount() {
+		return suppressed;
+	}
+
+	private boolean isDuplicate(Mask mask, long area) {
+		List<Mask> candidates = kept.queryCandidates(mask);
+		if (candidates.size() >= PARALLEL_CANDIDATES)
+			return candidates.parallelStream().anyMatch(other -> overlaps(mask.getRle(), area, other.getRle()));
+		for (Mask other : candidates) {
+			if (overlaps(mask.getRle(), area, other.getRle()))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean overlaps(RleMask rle, long area, RleMask other) {
+		long otherArea = other.area();
+		long inter = rle.intersectionArea(other);
+		if (inter == 0)
+			return false;
+		return inter / (double) (area + otherArea - inter) >= iouThreshold
+				|| inter / (double) Math.min(area, otherArea) >= containmentThreshold;
+	}
+}
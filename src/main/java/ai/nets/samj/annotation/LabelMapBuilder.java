@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Class that rasterizes the masks of several objects into a label image, where the pixels of
+ * the n-th mask have the value n and the background is 0. If two masks overlap, the pixels
+ * shared get the label of the last one.
+ *
+ * The image is filled in parallel by bands of rows. Images of up to 2^31 pixels are backed by a
+ * primitive array, bigger ones by a cell image. The labels are 16-bit when there are less than
+ * 65536 masks and 32-bit otherwise. For images too big to be kept in memory, the label image can
+ * also be produced tile by tile with {@link #streamTiles(long, long, List, int, int, NativeType, TileConsumer)}.
+ *
+ * @author Carlos Garcia
+ */
+public class LabelMapBuilder {
+
+	/**
+	 * Biggest number of pixels of an image backed by a single primitive array
+	 */
+	private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	/**
+	 * Number of rows filled by each of the parallel tasks
+	 */
+	private static final int BAND_HEIGHT = 64;
+	/**
+	 * Side of the cells of the images that are too big to be backed by a single array
+	 */
+	private static final int CELL_SIDE = 2048;
+
+	private LabelMapBuilder() {
+	}
+
+	/**
+	 * Consumer of the tiles of a label image produced with {@link LabelMapBuilder#streamTiles(long, long, List, int, int, NativeType, TileConsumer)}
+	 * @param <T>
+	 * 	type of the labels
+	 */
+	public interface TileConsumer<T> {
+		/**
+		 * Receive a tile of the label image. The tile is translated to its position in the whole image and
+		 * its memory is reused for the next tile once this method returns, so it must be copied to keep it
+		 * @param tile
+		 * 	tile of the label image
+		 */
+		void accept(RandomAccessibleInterval<T> tile);
+	}
+
+	/**
+	 * Create the label image of a list of masks, using 16-bit labels if possible and 32-bit labels otherwise
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	masks of the objects, the n-th mask is labelled with n + 1
+	 * @return the label image
+	 */
+	public static RandomAccessibleInterval<? extends IntegerType<?>> build(long width, long height, List<Mask> masks) {
+		if (masks.size() <= 0xffff)
+			return build(width, height, masks, new UnsignedShortType());
+		return build(width, height, masks, new UnsignedIntType());
+	}
+
+	/**
+	 * Create the label image of a list of masks with the given type
+	 * @param <T>
+	 * 	type of the labels
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	masks of the objects, the n-th mask is labelled with n + 1
+	 * @param type
+	 * 	type of the labels, it needs to be able to hold as many labels as masks
+	 * @return the label image
+	 */
+	public static <T extends NativeType<T> & IntegerType<T>>
+	RandomAccessibleInterval<T> build(long width, long height, List<Mask> masks, T type) {
+		checkCapacity(masks.size(), type);
+		Img<T> img;
+		if (width * height <= MAX_ARRAY_SIZE)
+			img = new ArrayImgFactory<T>(type).create(width, height);
+		else
+			img = new CellImgFactory<T>(type, CELL_SIDE).create(width, height);
+		rasterize(img, 0, 0, width, height, getRles(masks, width));
+		return img;
+	}
+
+	/**
+	 * Produce the label image of a list of masks tile by tile, without ever creating the whole image.
+	 * The tiles are sent to the consumer row by row, each of them filled in parallel
+	 * @param <T>
+	 * 	type of the labels
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	masks of the objects, the n-th mask is labelled with n + 1
+	 * @param tileWidth
+	 * 	width of the tiles, the tiles at the border of the image might be smaller
+	 * @param tileHeight
+	 * 	height of the tiles, the tiles at the border of the image might be smaller
+	 * @param type
+	 * 	type of the labels, it needs to be able to hold as many labels as masks
+	 * @param consumer
+	 * 	consumer that receives each of the tiles
+	 */
+	public static <T extends NativeType<T> & IntegerType<T>>
+	void streamTiles(long width, long height, List<Mask> masks, int tileWidth, int tileHeight, T type, TileConsumer<T> consumer) {
+		checkCapacity(masks.size(), type);
+		List<RleMask> rles = getRles(masks, width);
+		ArrayImg<T, ?> buffer = null;
+		for (long y0 = 0; y0 < height; y0 += tileHeight) {
+			for (long x0 = 0; x0 < width; x0 += tileWidth) {
+				long w = Math.min(tileWidth, width - x0);
+				long h = Math.min(tileHeight, height - y0);
+				if (buffer == null || buffer.dimension(0) != w || buffer.dimension(1) != h)
+					buffer = new ArrayImgFactory<T>(type).create(w, h);
+				else
+					clear(buffer);
+				rasterize(buffer, x0, y0, w, h, rles);
+				consumer.accept(Views.translate(buffer, x0, y0));
+			}
+		}
+	}
+
+	private static List<RleMask> getRles(List<Mask> masks, long width) {
+		List<RleMask> rles = new ArrayList<RleMask>(masks.size());
+		for (Mask mask : masks)
+			rles.add(mask.getRle(width));
+		return rles;
+	}
+
+	private static <T extends IntegerType<T>> void checkCapacity(int nMasks, T type) {
+		if (type.getMaxValue() < nMasks)
+			throw new IllegalArgumentException("The type " + type.getClass().getSimpleName() + " can only hold "
+					+ (long) type.getMaxValue() + " labels, but there are " + nMasks + " masks.");
+	}
+
+	private static <T extends NativeType<T> & IntegerType<T>> void clear(ArrayImg<T, ?> img) {
+		Object storage = img.update(null);
+		if (storage instanceof ShortArray)
+			Arrays.fill(((ShortArray) storage).getCurrentStorageArray(), (short) 0);
+		else if (storage instanceof IntArray)
+			Arrays.fill(((IntArray) storage).getCurrentStorageArray(), 0);
+		else
+			img.forEach(px -> px.setZero());
+	}
+
+	/**
+	 * Fill the label image of the region [x0, x0 + w) x [y0, y0 + h) of the whole image, in parallel by bands of rows
+	 */
+	private static <T extends NativeType<T> & IntegerType<T>>
+	void rasterize(RandomAccessibleInterval<T> img, long x0, long y0, long w, long h, List<RleMask> masks) {
+		final Object storage = img instanceof ArrayImg ? ((ArrayImg<?, ?>) img).update(null) : null;
+		final int nBands = (int) ((h + BAND_HEIGHT - 1) / BAND_HEIGHT);
+		IntStream.range(0, nBands).parallel().forEach(band -> {
+			RunWriter writer = createWriter(img, storage, w);
+			long bandStart = y0 + (long) band * BAND_HEIGHT;
+			long bandEnd = Math.min(bandStart + BAND_HEIGHT, y0 + h);
+			for (int n = 0; n < masks.size(); n ++) {
+				RleMask rle = masks.get(n);
+				if (rle.isEmpty() || rle.getMaxY() < bandStart || rle.getMinY() >= bandEnd
+						|| rle.getMaxX() < x0 || rle.getMinX() >= x0 + w)
+					continue;
+				long first = Math.max(bandStart, rle.getMinY());
+				long last = Math.min(bandEnd - 1, rle.getMaxY());
+				for (long y = first; y <= last; y ++) {
+					for (int i = rle.firstRun((int) y); i < rle.endRun((int) y); i ++) {
+						long start = Math.max(x0, rle.getRunX(i));
+						long end = Math.min(x0 + w, (long) rle.getRunX(i) + rle.getRunLength(i));
+						if (end > start)
+							writer.fill(y - y0, start - x0, end - x0, n + 1);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes a run of pixels of a row of the image with a label
+	 */
+	private interface RunWriter {
+		void fill(long y, long start, long end, long label);
+	}
+
+	private static <T extends NativeType<T> & IntegerType<T>> RunWriter createWriter(RandomAccessibleInterval<T> img, Object storage, long w) {
+		if (storage instanceof ShortArray) {
+			final short[] arr = ((ShortArray) storage).getCurrentStorageArray();
+			return (y, start, end, label) -> Arrays.fill(arr, (int) (y * w + start), (int) (y * w + end), (short) label);
+		} else if (storage instanceof IntArray) {
+			final int[] arr = ((IntArray) storage).getCurrentStorageArray();
+			return (y, start, end, label) -> Arrays.fill(arr, (int) (y * w + start), (int) (y * w + end), (int) label);
+		}
+		final RandomAccess<T> ra = img.randomAccess();
+		final long[] origin = img.minAsLongArray();
+		return (y, start, end, label) -> {
+			ra.setPosition(origin[1] + y, 1);
+			for (long x = start; x < end; x ++) {
+				ra.setPosition(origin[0] + x, 0);
+				ra.get().setInteger(label);
+			}
+		};
+	}
+}
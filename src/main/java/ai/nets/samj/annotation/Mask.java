@@ -20,11 +20,10 @@
 package ai.nets.samj.annotation;
 
 import java.awt.Polygon;
-import java.util.Arrays;
 import java.util.List;
 
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 /**
@@ -34,31 +33,103 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
  * @author Carlos Garcia Lopez de Haro
  */
 public class Mask {
+	
+	/**
+	 * Width given to the masks built from a flat RLE without the width of the image, all their runs are in the first row
+	 */
+	private static final long UNKNOWN_WIDTH = Integer.MAX_VALUE;
 
 	private final Polygon contour;
 	
-	// TODO private final long[] rleEncoding;
-	public long[] rleEncoding;
+	private final RleMask rle;
 	
-	private Mask(Polygon contour, long[] rleEncoding) {
+	private Mask(Polygon contour, RleMask rle) {
 		this.contour = contour;
-		this.rleEncoding = rleEncoding;
+		this.rle = rle;
+	}
+	
+	public static Mask build(Polygon contour, RleMask rle) {
+		return new Mask(contour, rle);
 	}
 	
+	/**
+	 * Build a mask from a flat RLE without knowing the width of the image. The RLE is given back unchanged by 
+	 * {@link #getRLEMask()} and the mask can be drawn with {@link #getMask(long, long, List)}, but the rows of
+	 * {@link #getRle()} are not known, so the mask cannot be used in a {@link MaskIndex} or a {@link DuplicateMaskFilter}
+	 * @param contour
+	 * 	contour of the object
+	 * @param rleEncoding
+	 * 	RLE in the format [start1, length1, start2, length2, ...], the starts being positions in the flattened image
+	 * @return the mask
+	 * @deprecated use {@link #build(Polygon, long[], long)} or {@link #build(Polygon, RleMask)}
+	 */
+	@Deprecated
 	public static Mask build(Polygon contour, long[] rleEncoding) {
-		return new Mask(contour, rleEncoding);
+		return new Mask(contour, RleMask.fromRle(rleEncoding, UNKNOWN_WIDTH));
+	}
+	
+	/**
+	 * Build a mask from a flat RLE
+	 * @param contour
+	 * 	contour of the object
+	 * @param rleEncoding
+	 * 	RLE in the format [start1, length1, start2, length2, ...], the starts being positions in the flattened image
+	 * @param width
+	 * 	width of the image
+	 * @return the mask
+	 */
+	public static Mask build(Polygon contour, long[] rleEncoding, long width) {
+		return new Mask(contour, RleMask.fromRle(rleEncoding, width));
 	}
 	
 	public Polygon getContour() {
 		return this.contour;
 	}
 	
+	/**
+	 * 
+	 * @return the compact RLE of the mask, that can be transformed in place
+	 */
+	public RleMask getRle() {
+		return this.rle;
+	}
+	
+	/**
+	 * Get the mask in the flat RLE format. The array is created at every call, use {@link #getRle()}
+	 * to go through the runs without allocating memory
+	 * @return the RLE in the format [start1, length1, start2, length2, ...], the starts being positions 
+	 * 	in the flattened image
+	 */
 	public long[] getRLEMask() {
-		return this.rleEncoding;
+		return this.rle.toRle();
+	}
+	
+	/**
+	 * 
+	 * @return the RLE in the format [start1, length1, start2, length2, ...], computed from {@link #getRle()} at every call
+	 * @deprecated the flat RLE is not stored anymore, use {@link #getRle()} or {@link #getRLEMask()}
+	 */
+	@Deprecated
+	public long[] getRleEncoding() {
+		return getRLEMask();
+	}
+	
+	/**
+	 * 
+	 * @param width
+	 * 	width of the image
+	 * @return the compact RLE of the mask in an image of the width given, the masks built without the width of the image
+	 * 	are split in rows
+	 */
+	RleMask getRle(long width) {
+		if (rle.getWidth() != UNKNOWN_WIDTH || width == UNKNOWN_WIDTH)
+			return rle;
+		return RleMask.fromRle(rle.toRle(), width);
 	}
 	
 	/**
-	 * Mehtod that creates an annotation mask from several object masks in an efficient manner using RLE algorithm
+	 * Mehtod that creates an annotation mask from several object masks in an efficient manner using RLE algorithm.
+	 * The mask is filled in parallel by {@link LabelMapBuilder}
 	 * @param width
 	 * 	width of the image
 	 * @param height
@@ -66,20 +137,24 @@ public class Mask {
 	 * @param masks
 	 * 	all the masks of the objects image
 	 * @return the whole mask with all the objects
+	 * @throws IllegalArgumentException if there are more than 65535 masks, use {@link #getLabelMap(long, long, List)} instead
 	 */
 	public static RandomAccessibleInterval<UnsignedShortType> getMask(long width, long height, List<Mask> masks) {
-		short[] arr = new short[(int) (width * height)];
-		int n = 1;
-		for (Mask mask : masks) {
-			long[] rle = mask.getRLEMask();
-			for (int i = 0; i < rle.length; i += 2) {
-				int start = (int) mask.getRLEMask()[i];
-				int len = (int) mask.getRLEMask()[i+ 1];
-				Arrays.fill(arr, start, start + len, (short) n);
-			}
-			n ++;
-		}
-		//return Utils.transpose(ArrayImgs.unsignedBytes(arr, new long[] {height, width}));
-		return (ArrayImgs.unsignedShorts(arr, new long[] {width, height}));
+		return LabelMapBuilder.build(width, height, masks, new UnsignedShortType());
+	}
+	
+	/**
+	 * Mehtod that creates an annotation mask from several object masks, with 16-bit labels if there are less
+	 * than 65536 objects and 32-bit labels otherwise
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	all the masks of the objects image
+	 * @return the whole mask with all the objects
+	 */
+	public static RandomAccessibleInterval<? extends IntegerType<?>> getLabelMap(long width, long height, List<Mask> masks) {
+		return LabelMapBuilder.build(width, height, masks);
 	}
 }
@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Spatial index of the masks produced for an image, used to find quickly the objects at a position
+ * or the objects that overlap a region or another object, without going through all the masks.
+ *
+ * The image is divided in a grid of square cells and every mask is registered in the cells touched
+ * by its bounding box, so a query only looks at the masks of the cells it touches. The index can be
+ * filled while the masks are being produced and queried at the same time from other threads.
+ *
+ * @author Carlos Garcia
+ */
+public class MaskIndex {
+
+	/**
+	 * Default side of the cells of the grid, in pixels
+	 */
+	public static final int DEFAULT_CELL_SIZE = 256;
+
+	private final int cellSize;
+
+	private final List<Mask> masks = new ArrayList<Mask>();
+	/**
+	 * Position of each of the masks in {@link #masks}
+	 */
+	private final IdentityHashMap<Mask, Integer> maskIds = new IdentityHashMap<Mask, Integer>();
+	/**
+	 * Bounding boxes of the masks, as [minX, minY, maxX, maxY] with the maximums included
+	 */
+	private int[] boxes = new int[64];
+	/**
+	 * Whether each of the masks has been removed from the index
+	 */
+	private boolean[] removed = new boolean[16];
+	/**
+	 * Identifiers of the masks registered in each cell, the key packs the column and row of the cell
+	 */
+	private final HashMap<Long, IdList> cells = new HashMap<Long, IdList>();
+	/**
+	 * Identifier of the last query that saw each mask, to avoid returning masks that are in several cells twice
+	 */
+	private int[] seen = new int[16];
+
+	private int queryId = 0;
+
+	private int nRemoved = 0;
+
+	/**
+	 * Create an index with cells of {@link #DEFAULT_CELL_SIZE} pixels
+	 */
+	public MaskIndex() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Create an index
+	 * @param cellSize
+	 * 	side of the cells of the grid in pixels, it should be similar to the size of the objects
+	 */
+	public MaskIndex(int cellSize) {
+		if (cellSize < 1)
+			throw new IllegalArgumentException("The size of the cells needs to be at least 1: " + cellSize);
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Add a mask to the index, masks that are already in the index are ignored
+	 * @param mask
+	 * 	the mask, its position is taken from its RLE
+	 */
+	public synchronized void add(Mask mask) {
+		RleMask rle = mask.getRle();
+		if (rle.isEmpty())
+			return;
+		if (maskIds.containsKey(mask))
+			return;
+		int id = masks.size();
+		masks.add(mask);
+		maskIds.put(mask, id);
+		if (boxes.length < 4 * (id + 1)) {
+			boxes = Arrays.copyOf(boxes, boxes.length * 2);
+			removed = Arrays.copyOf(removed, removed.length * 2);
+			seen = Arrays.copyOf(seen, seen.length * 2);
+		}
+		boxes[4 * id] = rle.getMinX();
+		boxes[4 * id + 1] = rle.getMinY();
+		boxes[4 * id + 2] = rle.getMaxX();
+		boxes[4 * id + 3] = rle.getMaxY();
+		for (int cy = cell(rle.getMinY()); cy <= cell(rle.getMaxY()); cy ++) {
+			for (int cx = cell(rle.getMinX()); cx <= cell(rle.getMaxX()); cx ++)
+				cells.computeIfAbsent(key(cx, cy), k -> new IdList()).add(id);
+		}
+	}
+
+	/**
+	 * Add several masks to the index
+	 * @param masks
+	 * 	the masks
+	 */
+	public synchronized void addAll(List<Mask> masks) {
+		for (Mask mask : masks)
+			add(mask);
+	}
+
+	/**
+	 * Remove a mask from the index
+	 * @param mask
+	 * 	the mask
+	 * @return whether the mask was in the index or not
+	 */
+	public synchronized boolean remove(Mask mask) {
+		Integer id = maskIds.get(mask);
+		if (id == null || removed[id])
+			return false;
+		removed[id] = true;
+		nRemoved ++;
+		return true;
+	}
+
+	/**
+	 * Remove all the masks from the index
+	 */
+	public synchronized void clear() {
+		masks.clear();
+		maskIds.clear();
+		cells.clear();
+		Arrays.fill(removed, false);
+		nRemoved = 0;
+	}
+
+	/**
+	 *
+	 * @return number of masks in the index
+	 */
+	public synchronized int size() {
+		return masks.size() - nRemoved;
+	}
+
+	/**
+	 * Find the masks that contain a pixel
+	 * @param x
+	 * 	x position of the pixel
+	 * @param y
+	 * 	y position of the pixel
+	 * @return the masks that contain the pixel, the last ones added first
+	 */
+	public synchronized List<Mask> queryPoint(int x, int y) {
+		List<Mask> found = new ArrayList<Mask>();
+		IdList ids = cells.get(key(cell(x), cell(y)));
+		if (ids == null)
+			return found;
+		for (int i = ids.size - 1; i >= 0; i --) {
+			int id = ids.ids[i];
+			if (!removed[id] && boxContains(id, x, y) && masks.get(id).getRle().contains(x, y))
+				found.add(masks.get(id));
+		}
+		return found;
+	}
+
+	/**
+	 * Find the masks whose bounding box overlaps a region of the image
+	 * @param region
+	 * 	the region of the image
+	 * @return the masks whose bounding box overlaps the region, in the order they were added
+	 */
+	public synchronized List<Mask> queryBox(Rectangle region) {
+		if (region.isEmpty())
+			return new ArrayList<Mask>();
+		return queryBox(region.x, region.y, region.x + region.width - 1, region.y + region.height - 1, null);
+	}
+
+	/**
+	 * Find the masks that might overlap a mask, those whose bounding box overlaps its bounding box
+	 * @param mask
+	 * 	the mask
+	 * @return the masks that might overlap the mask, except the mask itself, in the order they were added
+	 */
+	public synchronized List<Mask> queryCandidates(Mask mask) {
+		RleMask rle = mask.getRle();
+		if (rle.isEmpty())
+			return new ArrayList<Mask>();
+		return queryBox(rle.getMinX(), rle.getMinY(), rle.getMaxX(), rle.getMaxY(), mask);
+	}
+
+	/**
+	 * Find the masks whose intersection over union (IoU) with a mask is at least a threshold
+	 * @param mask
+	 * 	the mask
+	 * @param minIoU
+	 * 	minimum IoU, between 0 and 1
+	 * @return the masks that overlap the mask at least the threshold, except the mask itself
+	 */
+	public synchronized List<Mask> queryOverlapping(Mask mask, double minIoU) {
+		List<Mask> found = new ArrayList<Mask>();
+		long area = mask.getRle().area();
+		for (Mask candidate : queryCandidates(mask)) {
+			long otherArea = candidate.getRle().area();
+			// the IoU can never be bigger than the ratio between the smallest and the biggest area
+			if (Math.min(area, otherArea) < minIoU * Math.max(area, otherArea))
+				continue;
+			if (iou(mask.getRle(), candidate.getRle()) >= minIoU)
+				found.add(candidate);
+		}
+		return found;
+	}
+
+	/**
+	 * Compute the intersection over union of two masks
+	 * @param a
+	 * 	one mask
+	 * @param b
+	 * 	another mask
+	 * @return the IoU of the masks, 0 if both are empty
+	 */
+	public static double iou(RleMask a, RleMask b) {
+		long inter = a.intersectionArea(b);
+		long union = a.area() + b.area() - inter;
+		return union == 0 ? 0 : inter / (double) union;
+	}
+
+	private List<Mask> queryBox(int minX, int minY, int maxX, int maxY, Mask exclude) {
+		IdList found = new IdList();
+		int query = ++ queryId;
+		for (int cy = cell(minY); cy <= cell(maxY); cy ++) {
+			for (int cx = cell(minX); cx <= cell(maxX); cx ++) {
+				IdList ids = cells.get(key(cx, cy));
+				if (ids == null)
+					continue;
+				for (int i = 0; i < ids.size; i ++) {
+					int id = ids.ids[i];
+					if (seen[id] == query || removed[id])
+						continue;
+					seen[id] = query;
+					if (masks.get(id) != exclude && boxOverlaps(id, minX, minY, maxX, maxY))
+						found.add(id);
+				}
+			}
+		}
+		Arrays.sort(found.ids, 0, found.size);
+		List<Mask> list = new ArrayList<Mask>(found.size);
+		for (int i = 0; i < found.size; i ++)
+			list.add(masks.get(found.ids[i]));
+		return list;
+	}
+
+	private boolean boxContains(int id, int x, int y) {
+		return boxes[4 * id] <= x && x <= boxes[4 * id + 2] && boxes[4 * id + 1] <= y && y <= boxes[4 * id + 3];
+	}
+
+	private boolean boxOverlaps(int id, int minX, int minY, int maxX, int maxY) {
+		return boxes[4 * id] <= maxX && minX <= boxes[4 * id + 2] && boxes[4 * id + 1] <= maxY && minY <= boxes[4 * id + 3];
+	}
+
+	private int cell(int coord) {
+		return Math.floorDiv(coord, cellSize);
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	/**
+	 * Growable list of mask identifiers
+	 */
+	private static class IdList {
+
+		private int[] ids = new int[8];
+
+		private int size = 0;
+
+		private void add(int id) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size ++] = id;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class that computes the contour of an object from its RLE mask, so the Python process only needs to
+ * send the RLE of the objects.
+ *
+ * The contour is traced with the same algorithm as the Python method 'trace_contour': the pixels of
+ * the border of the object are followed counter clockwise starting at the first pixel of its upper row.
+ * The mask is expected to contain a single 4-connected object, as the masks produced by SAMJ.
+ *
+ * The RLE sent by Python has the holes of the object filled, while 'trace_contour' traced the object with its
+ * holes. The walk along the outer border is the same, but the number of points is limited by the area of
+ * the filled object instead of the area of the object with its holes, so for objects with holes whose contour
+ * has more points than pixels the Java contour is complete where the Python one was cut.
+ *
+ * @author Carlos Garcia
+ */
+public class RleContourTracer {
+
+	/**
+	 * Number of masks traced sequentially by each of the tasks of the fork-join pool
+	 */
+	private static final int MASKS_PER_TASK = 8;
+
+	/**
+	 * Directions coded as in a numpad, in counter clockwise order
+	 */
+	private static final int[] CCW_DIR = {8, 9, 6, 3, 2, 1, 4, 7};
+	/**
+	 * Position of each direction code in {@link #CCW_DIR}
+	 */
+	private static final int[] DIR_IDX = {0, 5, 4, 3, 6, 0, 2, 7, 0, 1};
+	/**
+	 * Opposite of each direction code plus one in counter clockwise order
+	 */
+	private static final int[] COUNTER_SHIFTED_DIR = {0, 6, 9, 8, 3, 0, 7, 2, 1, 4};
+	/**
+	 * Shift in the x-axis of each direction code
+	 */
+	private static final int[] DIR_DX = {0, -1, 0, 1, -1, 0, 1, -1, 0, 1};
+	/**
+	 * Shift in the y-axis of each direction code
+	 */
+	private static final int[] DIR_DY = {0, 1, 1, 1, 0, 0, 0, -1, -1, -1};
+
+	private RleContourTracer() {
+	}
+
+	/**
+	 * Compute the contour of every mask whose contour is empty, in parallel using the common fork-join pool.
+	 * The contours are written in the {@link Polygon} of each mask
+	 * @param masks
+	 * 	masks whose contours might be missing
+	 */
+	public static void traceMissingContours(List<Mask> masks) {
+		if (masks.size() == 0)
+			return;
+		ForkJoinPool.commonPool().invoke(new TraceTask(masks, 0, masks.size()));
+	}
+
+	/**
+	 * Compute the contour of the object encoded in a RLE mask
+	 * @param rle
+	 * 	RLE mask of the object
+	 * @return the contour of the object, empty if the mask is empty
+	 */
+	public static Polygon trace(RleMask rle) {
+		Polygon polygon = new Polygon();
+		trace(rle, polygon);
+		return polygon;
+	}
+
+	private static void trace(RleMask rle, Polygon target) {
+		if (rle.isEmpty())
+			return;
+		final int minX = rle.getMinX();
+		final int minY = rle.getMinY();
+		// the bitmap of the bounding box is padded with one pixel so the neighbours never need bound checks
+		final int bw = rle.getMaxX() - minX + 3;
+		final int bh = rle.getMaxY() - minY + 3;
+		final boolean[] bitmap = new boolean[bw * bh];
+		long area = 0;
+		for (int y = minY; y <= rle.getMaxY(); y ++) {
+			int offset = (y - minY + 1) * bw - minX + 1;
+			for (int i = rle.firstRun(y); i < rle.endRun(y); i ++) {
+				Arrays.fill(bitmap, rle.getRunX(i) + offset, rle.getRunX(i) + rle.getRunLength(i) + offset, true);
+				area += rle.getRunLength(i);
+			}
+		}
+		int start = bw + 1;
+		while (!bitmap[start])
+			start ++;
+		int[] xpoints = new int[64];
+		int[] ypoints = new int[64];
+		int n = 0;
+		int pos = start;
+		int lastDir = 1;
+		do {
+			if (n == xpoints.length) {
+				xpoints = Arrays.copyOf(xpoints, n * 2);
+				ypoints = Arrays.copyOf(ypoints, n * 2);
+			}
+			xpoints[n] = pos % bw - 1 + minX;
+			ypoints[n ++] = pos / bw - 1 + minY;
+			int testDir = COUNTER_SHIFTED_DIR[lastDir];
+			int next = -1;
+			for (int tries = 0; tries < 8; tries ++) {
+				int candidate = pos + DIR_DY[testDir] * bw + DIR_DX[testDir];
+				if (isEdgePixel(bitmap, candidate, bw)) {
+					next = candidate;
+					break;
+				}
+				testDir = CCW_DIR[(DIR_IDX[testDir] + 1) % 8];
+			}
+			if (next == -1)
+				break;
+			pos = next;
+			lastDir = testDir;
+		} while (pos != start && n < area);
+		target.xpoints = xpoints;
+		target.ypoints = ypoints;
+		target.npoints = n;
+		target.invalidate();
+	}
+
+	private static boolean isEdgePixel(boolean[] bitmap, int pos, int bw) {
+		return bitmap[pos] && !(bitmap[pos - 1] && bitmap[pos + 1] && bitmap[pos - bw] && bitmap[pos + bw]);
+	}
+
+	private static class TraceTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 6453390813262713934L;
+
+		private final List<Mask> masks;
+
+		private final int from;
+
+		private final int to;
+
+		private TraceTask(List<Mask> masks, int from, int to) {
+			this.masks = masks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= MASKS_PER_TASK) {
+				for (int i = from; i < to; i ++) {
+					Mask mask = masks.get(i);
+					if (mask.getContour().npoints == 0)
+						trace(mask.getRle(), mask.getContour());
+				}
+				return;
+			}
+			int middle = (from + to) / 2;
+			invokeAll(new TraceTask(masks, from, middle), new TraceTask(masks, middle, to));
+		}
+	}
+}
@@ -0,0 +1,480 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+/**
+ * Compact run-length encoding of the mask of an object.
+ *
+ * The runs are kept row by row in a single int array as [x, length] pairs, and an index with the
+ * position of the first run of each row gives random access to any row. Rows are only stored once
+ * when the mask is upscaled, every stored row stands for {@link #getRowScale()} consecutive rows of
+ * the image, so translating and scaling a mask never needs to allocate new arrays.
+ *
+ * The width of the image is only needed to convert the mask from and to the flat RLE format
+ * [start1, length1, start2, length2, ...] used by the Python process.
+ *
+ * @author Carlos Garcia
+ */
+public class RleMask {
+
+	/**
+	 * Runs of the mask, as [x, length] pairs sorted by row and by x
+	 */
+	private final int[] runs;
+	/**
+	 * Position in {@link #runs} of the first run of each of the stored rows, with an extra
+	 * element at the end pointing to the end of the runs
+	 */
+	private final int[] rowIndex;
+
+	private long width;
+
+	private int y0;
+
+	private int rowScale = 1;
+
+	private int minX;
+
+	private int maxX;
+
+	private RleMask(int[] runs, int[] rowIndex, int y0, int minX, int maxX, long width) {
+		this.runs = runs;
+		this.rowIndex = rowIndex;
+		this.y0 = y0;
+		this.minX = minX;
+		this.maxX = maxX;
+		this.width = width;
+	}
+
+	/**
+	 * Create a mask from a flat RLE
+	 * @param rle
+	 * 	RLE in the format [start1, length1, start2, length2, ...], where the starts are the positions of the
+	 * 	pixels in the flattened image (row-major)
+	 * @param width
+	 * 	width of the image
+	 * @return the mask
+	 */
+	public static RleMask fromRle(long[] rle, long width) {
+		return fromRle(rle, 0, rle.length, width);
+	}
+
+	/**
+	 * Create a mask from a flat RLE that is a part of a bigger array, avoiding the copy of the RLE
+	 * @param rle
+	 * 	array that contains the RLE in the format [start1, length1, start2, length2, ...]
+	 * @param from
+	 * 	position of the first start of the RLE in the array
+	 * @param to
+	 * 	position after the last length of the RLE in the array
+	 * @param width
+	 * 	width of the image
+	 * @return the mask
+	 */
+	public static RleMask fromRle(long[] rle, int from, int to, long width) {
+		if (to <= from)
+			return new RleMask(new int[0], new int[] {0}, 0, 0, -1, width);
+		// first pass: count the runs once split at the end of the rows and find the rows used
+		int nRuns = 0;
+		long firstRow = Long.MAX_VALUE, lastRow = -1;
+		for (int i = from; i < to; i += 2) {
+			long start = rle[i], end = rle[i] + rle[i + 1] - 1;
+			nRuns += (int) (end / width - start / width) + 1;
+			firstRow = Math.min(firstRow, start / width);
+			lastRow = Math.max(lastRow, end / width);
+		}
+		int[] runs = new int[nRuns * 2];
+		int[] rowIndex = new int[(int) (lastRow - firstRow) + 2];
+		int minX = Integer.MAX_VALUE, maxX = -1;
+		int pos = 0;
+		int row = 0;
+		for (int i = from; i < to; i += 2) {
+			long start = rle[i], end = rle[i] + rle[i + 1];
+			while (start < end) {
+				long y = start / width;
+				long rowEnd = Math.min((y + 1) * width, end);
+				int r = (int) (y - firstRow);
+				while (row < r)
+					rowIndex[++ row] = pos;
+				runs[pos] = (int) (start % width);
+				runs[pos + 1] = (int) (rowEnd - start);
+				minX = Math.min(minX, runs[pos]);
+				maxX = Math.max(maxX, runs[pos] + runs[pos + 1] - 1);
+				pos += 2;
+				start = rowEnd;
+			}
+		}
+		while (row < rowIndex.length - 1)
+			rowIndex[++ row] = pos;
+		return new RleMask(runs, rowIndex, (int) firstRow, minX, maxX, width);
+	}
+
+	/**
+	 *
+	 * @return the mask in the flat RLE format [start1, length1, start2, length2, ...] for the
+	 * 	width of the image of the mask
+	 */
+	public long[] toRle() {
+		long[] rle = new long[getRunCount() * 2];
+		int pos = 0;
+		for (int y = getMinY(); y <= getMaxY(); y ++) {
+			for (int i = firstRun(y); i < endRun(y); i ++) {
+				rle[pos ++] = y * width + getRunX(i);
+				rle[pos ++] = getRunLength(i);
+			}
+		}
+		return rle;
+	}
+
+	/**
+	 *
+	 * @return whether the mask does not contain any pixel
+	 */
+	public boolean isEmpty() {
+		return runs.length == 0;
+	}
+
+	/**
+	 *
+	 * @return width of the image in which the mask is defined
+	 */
+	public long getWidth() {
+		return width;
+	}
+
+	/**
+	 * Set the width of the image in which the mask is defined, for example after translating the mask
+	 * from a crop into the whole image. The runs are not modified
+	 * @param width
+	 * 	width of the image
+	 */
+	public void setWidth(long width) {
+		this.width = width;
+	}
+
+	/**
+	 *
+	 * @return number of image rows represented by each of the stored rows
+	 */
+	public int getRowScale() {
+		return rowScale;
+	}
+
+	/**
+	 *
+	 * @return first row of the image that can contain pixels of the mask
+	 */
+	public int getMinY() {
+		return y0;
+	}
+
+	/**
+	 *
+	 * @return last row of the image that can contain pixels of the mask
+	 */
+	public int getMaxY() {
+		return y0 + (rowIndex.length - 1) * rowScale - 1;
+	}
+
+	/**
+	 *
+	 * @return first column of the image that contains pixels of the mask
+	 */
+	public int getMinX() {
+		return minX;
+	}
+
+	/**
+	 *
+	 * @return last column of the image that contains pixels of the mask
+	 */
+	public int getMaxX() {
+		return maxX;
+	}
+
+	/**
+	 *
+	 * @return number of runs of the mask in the image, counting the upscaled rows
+	 */
+	public int getRunCount() {
+		return runs.length / 2 * rowScale;
+	}
+
+	/**
+	 * Position of the first run of a row, used together with {@link #endRun(int)}, {@link #getRunX(int)}
+	 * and {@link #getRunLength(int)} to go through the runs of the row
+	 * @param y
+	 * 	row of the image
+	 * @return index of the first run of the row
+	 */
+	public int firstRun(int y) {
+		int r = storedRow(y);
+		return r == -1 ? 0 : rowIndex[r] / 2;
+	}
+
+	/**
+	 *
+	 * @param y
+	 * 	row of the image
+	 * @return index after the last run of the row
+	 */
+	public int endRun(int y) {
+		int r = storedRow(y);
+		return r == -1 ? 0 : rowIndex[r + 1] / 2;
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 	index of the run
+	 * @return first column of the run
+	 */
+	public int getRunX(int i) {
+		return runs[2 * i];
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 	index of the run
+	 * @return number of pixels of the run
+	 */
+	public int getRunLength(int i) {
+		return runs[2 * i + 1];
+	}
+
+	private int storedRow(int y) {
+		if (y < y0)
+			return -1;
+		int r = (y - y0) / rowScale;
+		return r < rowIndex.length - 1 ? r : -1;
+	}
+
+	/**
+	 *
+	 * @return number of pixels of the mask
+	 */
+	public long area() {
+		long area = 0;
+		for (int i = 1; i < runs.length; i += 2)
+			area += runs[i];
+		return area * rowScale;
+	}
+
+	/**
+	 *
+	 * @param x
+	 * 	column of the image
+	 * @param y
+	 * 	row of the image
+	 * @return whether the pixel belongs to the mask
+	 */
+	public boolean contains(int x, int y) {
+		for (int i = firstRun(y); i < endRun(y); i ++) {
+			if (runs[2 * i] > x)
+				return false;
+			else if (x < runs[2 * i] + runs[2 * i + 1])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Move the mask, in place
+	 * @param dx
+	 * 	displacement in the x-axis
+	 * @param dy
+	 * 	displacement in the y-axis
+	 */
+	public void translate(int dx, int dy) {
+		for (int i = 0; i < runs.length; i += 2)
+			runs[i] += dx;
+		y0 += dy;
+		minX += dx;
+		maxX += dx;
+	}
+
+	/**
+	 * Upscale the mask by an integer factor in both axes, in place. The origin of the image is kept,
+	 * every pixel of the mask becomes a square of factor x factor pixels
+	 * @param factor
+	 * 	scale factor, at least 1
+	 */
+	public void scale(int factor) {
+		if (factor < 1)
+			throw new IllegalArgumentException("The scale factor needs to be at least 1: " + factor);
+		else if (factor == 1)
+			return;
+		for (int i = 0; i < runs.length; i += 2) {
+			runs[i] *= factor;
+			runs[i + 1] *= factor;
+		}
+		y0 *= factor;
+		rowScale *= factor;
+		minX *= factor;
+		maxX = (maxX + 1) * factor - 1;
+	}
+
+	/**
+	 *
+	 * @param other
+	 * 	another mask in the same image
+	 * @return a new mask with the pixels that are in any of the two masks
+	 */
+	public RleMask union(RleMask other) {
+		return combine(other, true);
+	}
+
+	/**
+	 *
+	 * @param other
+	 * 	another mask in the same image
+	 * @return a new mask with the pixels that are in both masks
+	 */
+	public RleMask intersection(RleMask other) {
+		return combine(other, false);
+	}
+
+	/**
+	 * Number of pixels shared by two masks, computed without building the intersection
+	 * @param other
+	 * 	another mask in the same image
+	 * @return number of pixels in both masks
+	 */
+	public long intersectionArea(RleMask other) {
+		long area = 0;
+		int first = Math.max(getMinY(), other.getMinY());
+		int last = Math.min(getMaxY(), other.getMaxY());
+		for (int y = first; y <= last; y ++) {
+			int i = firstRun(y), iEnd = endRun(y);
+			int j = other.firstRun(y), jEnd = other.endRun(y);
+			while (i < iEnd && j < jEnd) {
+				int start = Math.max(getRunX(i), other.getRunX(j));
+				int endA = getRunX(i) + getRunLength(i), endB = other.getRunX(j) + other.getRunLength(j);
+				int end = Math.min(endA, endB);
+				if (end > start)
+					area += end - start;
+				if (endA < endB)
+					i ++;
+				else
+					j ++;
+			}
+		}
+		return area;
+	}
+
+	private RleMask combine(RleMask other, boolean union) {
+		int first, last;
+		if (union && (isEmpty() || other.isEmpty())) {
+			RleMask nonEmpty = isEmpty() ? other : this;
+			first = nonEmpty.getMinY();
+			last = nonEmpty.getMaxY();
+		} else if (union) {
+			first = Math.min(getMinY(), other.getMinY());
+			last = Math.max(getMaxY(), other.getMaxY());
+		} else {
+			first = Math.max(getMinY(), other.getMinY());
+			last = Math.min(getMaxY(), other.getMaxY());
+		}
+		if ((!union && (isEmpty() || other.isEmpty())) || last < first)
+			return new RleMask(new int[0], new int[] {0}, 0, 0, -1, width);
+		// the result is computed twice, first only counting the runs and then writing them
+		int nInts = 0;
+		for (int y = first; y <= last; y ++)
+			nInts += combineRow(other, y, union, null, 0);
+		int[] newRuns = new int[nInts];
+		int[] newIndex = new int[last - first + 2];
+		int pos = 0;
+		int minX = Integer.MAX_VALUE, maxX = -1;
+		for (int y = first; y <= last; y ++) {
+			newIndex[y - first] = pos;
+			pos += combineRow(other, y, union, newRuns, pos);
+		}
+		newIndex[last - first + 1] = pos;
+		for (int i = 0; i < newRuns.length; i += 2) {
+			minX = Math.min(minX, newRuns[i]);
+			maxX = Math.max(maxX, newRuns[i] + newRuns[i + 1] - 1);
+		}
+		return new RleMask(newRuns, newIndex, first, minX, maxX, width);
+	}
+
+	/**
+	 * Combine the runs of a row of both masks
+	 * @return the number of ints written (or that would be written if out is null)
+	 */
+	private int combineRow(RleMask other, int y, boolean union, int[] out, int outPos) {
+		int i = firstRun(y), iEnd = endRun(y);
+		int j = other.firstRun(y), jEnd = other.endRun(y);
+		int written = 0;
+		if (!union) {
+			while (i < iEnd && j < jEnd) {
+				int start = Math.max(getRunX(i), other.getRunX(j));
+				int endA = getRunX(i) + getRunLength(i), endB = other.getRunX(j) + other.getRunLength(j);
+				int end = Math.min(endA, endB);
+				if (end > start) {
+					if (out != null) {
+						out[outPos + written] = start;
+						out[outPos + written + 1] = end - start;
+					}
+					written += 2;
+				}
+				if (endA < endB)
+					i ++;
+				else
+					j ++;
+			}
+			return written;
+		}
+		boolean open = false;
+		int curStart = 0, curEnd = 0;
+		while (i < iEnd || j < jEnd) {
+			int start, end;
+			if (j >= jEnd || (i < iEnd && getRunX(i) <= other.getRunX(j))) {
+				start = getRunX(i);
+				end = start + getRunLength(i ++);
+			} else {
+				start = other.getRunX(j);
+				end = start + other.getRunLength(j ++);
+			}
+			if (open && curEnd >= start) {
+				curEnd = Math.max(curEnd, end);
+				continue;
+			}
+			if (open) {
+				if (out != null) {
+					out[outPos + written] = curStart;
+					out[outPos + written + 1] = curEnd - curStart;
+				}
+				written += 2;
+			}
+			curStart = start;
+			curEnd = end;
+			open = true;
+		}
+		if (open) {
+			if (out != null) {
+				out[outPos + written] = curStart;
+				out[outPos + written + 1] = curEnd - curStart;
+			}
+			written += 2;
+		}
+		return written;
+	}
+}
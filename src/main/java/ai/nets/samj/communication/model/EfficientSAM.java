@@ -113,15 +113,24 @@ public class EfficientSAM extends SAMModel {
 			this.log.info( text );
 		};
 		if (this.samj == null)
-			samj = EfficientSamJ.initializeSam(manager, filteringLogger, false);
+			samj = startSamJ(filteringLogger);
 		try {
 			this.samj.setImage(Cast.unchecked(image));;
+			setEncodedImage(image);
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(FULL_NAME + " experienced an error: " + e.getMessage());
 			throw e;
 		}
 	}
 
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	protected AbstractSamJ createSamJ(AbstractSamJ.DebugTextPrinter printer) throws IOException, InterruptedException, RuntimeException {
+		return EfficientSamJ.initializeSam(manager, printer, false);
+	}
+
 	@Override
 	/**
 	 * {@inheritDoc}
@@ -116,15 +116,24 @@ public class EfficientViTSAML1 extends SAMModel {
 			this.log.info( text );
 		};
 		if (this.samj == null)
-			this.samj = EfficientViTSamJ.initializeSam(ID, manager, filteringLogger, false);
+			this.samj = startSamJ(filteringLogger);
 		try {
 			this.samj.setImage(Cast.unchecked(image));;
+			setEncodedImage(image);
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(FULL_NAME + " experienced an error: " + e.getMessage());
 			throw e;
 		}
 	}
 
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	protected AbstractSamJ createSamJ(AbstractSamJ.DebugTextPrinter printer) throws IOException, InterruptedException, RuntimeException {
+		return EfficientViTSamJ.initializeSam(ID, manager, printer, false);
+	}
+
 	@Override
 	/**
 	 * {@inheritDoc}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.communication.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.models.AbstractSamJ.Inference;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+
+/**
+ * Scheduler of the prompts of the LIVE mode, where every edit of a ROI produces a new prompt.
+ * Only one prompt is decoded at a time and, while it is being decoded, only the newest prompt of each
+ * image is kept: the prompts it replaces are canceled without being decoded. If a new prompt arrives
+ * for the image whose prompt is being decoded, the decoding is canceled too, and the next prompt is sent
+ * to the model once the canceled decoding actually stops. This way the time until the last edit is
+ * segmented is given by the decoder and not by the number of edits made.
+ *
+ * @author Carlos Garcia
+ */
+public class LivePromptScheduler {
+
+	/**
+	 * Executor shared by the schedulers created without one, its threads only wait for the Python process
+	 */
+	private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "SAMJ live prompts");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final SAMModel model;
+
+	private final Executor executor;
+	/**
+	 * Newest prompt waiting to be decoded for each image, in the order the images received them
+	 */
+	private final LinkedHashMap<Object, Request> pending = new LinkedHashMap<Object, Request>();
+	/**
+	 * Prompt being decoded, null if the model is idle
+	 */
+	private Request running;
+
+	private long nSubmitted = 0;
+
+	private long nSuperseded = 0;
+
+	private long nCanceledRunning = 0;
+
+	/**
+	 * Create a scheduler for the prompts sent to a model
+	 * @param model
+	 * 	the model that decodes the prompts
+	 */
+	public LivePromptScheduler(SAMModel model) {
+		this(model, DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * Create a scheduler for the prompts sent to a model
+	 * @param model
+	 * 	the model that decodes the prompts
+	 * @param executor
+	 * 	executor where the prompts wait for the Python process
+	 */
+	public LivePromptScheduler(SAMModel model, Executor executor) {
+		this.model = Objects.requireNonNull(model, "The model cannot be null.");
+		this.executor = Objects.requireNonNull(executor, "The executor cannot be null.");
+	}
+
+	/**
+	 * Schedule a point prompt, see {@link SAMModel#fetch2dSegmentation(List, List)}
+	 * @param image
+	 * 	the image the prompt belongs to, only the newest prompt of each image is decoded
+	 * @param points
+	 * 	points on the object of interest
+	 * @param negPoints
+	 * 	points on the background
+	 * @return the future masks, canceled if the prompt is replaced by a newer one before being decoded
+	 */
+	public CompletableFuture<List<Mask>> submitPoints(Object image, List<Localizable> points, List<Localizable> negPoints) {
+		return submit(image, () -> model.fetch2dSegmentation(points, negPoints));
+	}
+
+	/**
+	 * Schedule a bounding box prompt, see {@link SAMModel#fetch2dSegmentation(Interval)}
+	 * @param image
+	 * 	the image the prompt belongs to, only the newest prompt of each image is decoded
+	 * @param boundingBox
+	 * 	bounding box around the object of interest
+	 * @return the future masks, canceled if the prompt is replaced by a newer one before being decoded
+	 */
+	public CompletableFuture<List<Mask>> submitBox(Object image, Interval boundingBox) {
+		return submit(image, () -> model.fetch2dSegmentation(boundingBox));
+	}
+
+	/**
+	 * Schedule any prompt of an image
+	 * @param image
+	 * 	the image the prompt belongs to, only the newest prompt of each image is decoded
+	 * @param prompt
+	 * 	the inference that segments the prompt with the model
+	 * @return the future masks, canceled if the prompt is replaced by a newer one before being decoded
+	 */
+	public synchronized CompletableFuture<List<Mask>> submit(Object image, Inference<List<Mask>> prompt) {
+		Objects.requireNonNull(image, "The image cannot be null.");
+		nSubmitted ++;
+		Request request = new Request(image, prompt);
+		Request previous = pending.remove(image);
+		if (previous != null && previous.cancel(false))
+			nSuperseded ++;
+		if (running != null && running.image.equals(image) && running.cancel(true))
+			nCanceledRunning ++;
+		pending.put(image, request);
+		dispatch();
+		return request;
+	}
+
+	/**
+	 * Cancel all the prompts waiting and the prompt being decoded
+	 */
+	public synchronized void cancelAll() {
+		for (Request request : pending.values())
+			request.cancel(false);
+		pending.clear();
+		if (running != null)
+			running.cancel(true);
+	}
+
+	/**
+	 *
+	 * @return number of prompts submitted so far
+	 */
+	public synchronized long getSubmittedCount() {
+		return nSubmitted;
+	}
+
+	/**
+	 *
+	 * @return number of prompts dropped because a newer prompt of the same image arrived before they were decoded
+	 */
+	public synchronized long getSupersededCount() {
+		return nSuperseded;
+	}
+
+	/**
+	 *
+	 * @return number of prompts canceled while they were being decoded because a newer prompt of the same image arrived
+	 */
+	public synchronized long getCanceledRunningCount() {
+		return nCanceledRunning;
+	}
+
+	private synchronized void dispatch() {
+		if (running != null)
+			return;
+		Iterator<Request> it = pending.values().iterator();
+		while (running == null && it.hasNext()) {
+			Request next = it.next();
+			it.remove();
+			if (next.isDone())
+				continue;
+			running = next;
+		}
+		if (running == null)
+			return;
+		final Request request = running;
+		// the model is only free once the inference has finished, even if its future was canceled before.
+		// If it is canceled before starting, it is skipped and the model is released by the future
+		final AtomicBoolean claimed = new AtomicBoolean(false);
+		request.start(model.submit(() -> {
+			if (!claimed.compareAndSet(false, true))
+				return null;
+			try {
+				return request.prompt.run();
+			} finally {
+				release(request);
+			}
+		}, executor));
+		request.decoding.whenComplete((masks, ex) -> {
+			if (ex != null)
+				request.completeExceptionally(ex);
+			else
+				request.complete(masks);
+			if (claimed.compareAndSet(false, true))
+				release(request);
+		});
+	}
+
+	private synchronized void release(Request request) {
+		if (running == request)
+			running = null;
+		dispatch();
+	}
+
+	/**
+	 * Prompt of an image, its future result is completed once it has been decoded
+	 */
+	private static class Request extends CompletableFuture<List<Mask>> {
+
+		private final Object image;
+
+		private final Inference<List<Mask>> prompt;
+		/**
+		 * Future of the decoding in the model, null until the prompt is sent to the model
+		 */
+		private CompletableFuture<List<Mask>> decoding;
+
+		private Request(Object image, Inference<List<Mask>> prompt) {
+			this.image = image;
+			this.prompt = prompt;
+		}
+
+		private synchronized void start(CompletableFuture<List<Mask>> decoding) {
+			this.decoding = decoding;
+			if (isCancelled())
+				decoding.cancel(true);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean canceled = super.cancel(mayInterruptIfRunning);
+			CompletableFuture<List<Mask>> current;
+			synchronized (this) {
+				current = decoding;
+			}
+			if (canceled && current != null)
+				current.cancel(mayInterruptIfRunning);
+			return canceled;
+		}
+	}
+}
@@ -22,18 +22,34 @@ package ai.nets.samj.communication.model;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import ai.nets.samj.annotation.DuplicateMaskFilter;
 import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.annotation.MaskIndex;
 import ai.nets.samj.install.SamEnvManagerAbstract;
 import ai.nets.samj.models.AbstractSamJ;
 import ai.nets.samj.models.AbstractSamJ.BatchCallback;
+import ai.nets.samj.models.AbstractSamJ.Inference;
+import ai.nets.samj.models.EncodingCacheStats;
+import ai.nets.samj.models.EncodingDiskStore;
+import ai.nets.samj.models.SamJWorkerPool;
 import ai.nets.samj.ui.SAMJLogger;
 import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
 
 /**
  * A common ground for various placeholder classes to inform
@@ -59,6 +75,66 @@ public abstract class SAMModel {
 	protected boolean isHeavy;
 	protected boolean onlyBiggest = false;
 	protected SamEnvManagerAbstract manager;
+	/**
+	 * Model started in the background by {@link #warmUp(Executor)}, adopted by the next {@link #setImage(RandomAccessibleInterval, SAMJLogger)}
+	 */
+	private CompletableFuture<AbstractSamJ> standby;
+	/**
+	 * Time when the model was asked to start for an image, in nanoseconds, -1 once the first mask has been produced
+	 */
+	private long startRequested = -1;
+	private long startupTime = -1;
+	private long timeToFirstMask = -1;
+	private boolean warmStarted = false;
+	/**
+	 * Default time the model can be idle before its Python process is closed, in milliseconds
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 15 * 60 * 1000;
+	/**
+	 * Period between two checks of whether the model is idle, in milliseconds
+	 */
+	private static final long IDLE_CHECK_PERIOD = 30 * 1000;
+	
+	private static final ScheduledExecutorService IDLE_CHECKER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "SAMJ idle models");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private ScheduledFuture<?> idleCheck;
+	/**
+	 * Percentiles of the intensities stretched to the range fed to the model, see {@link AbstractSamJ#setNormalizationPercentiles(double, double)}
+	 */
+	private double[] normalizationPercentiles = new double[] {0, 100};
+	/**
+	 * Maximum number of bytes of the encodings cached in the Python process, see {@link AbstractSamJ#setEncodingCacheBudget(long)}
+	 */
+	private long encodingCacheBudget = AbstractSamJ.DEFAULT_ENCODING_CACHE_BUDGET;
+	/**
+	 * Whether the masks are sent from Python in shared memory or as JSON, see {@link AbstractSamJ#setBinaryMaskTransport(boolean)}
+	 */
+	private boolean binaryMaskTransport = true;
+	/**
+	 * Store where the encodings are written to disk, null to not write them, see {@link AbstractSamJ#setEncodingDiskStore(EncodingDiskStore)}
+	 */
+	private EncodingDiskStore encodingDiskStore;
+	private boolean contourTracingInPython = false;
+	/**
+	 * Whether the duplicated masks of a batch are discarded and the thresholds used, see
+	 * {@link AbstractSamJ#setDuplicateSuppression(boolean, double, double)}
+	 */
+	private boolean suppressDuplicates = false;
+	private double duplicateIoU = DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD;
+	private double duplicateContainment = DuplicateMaskFilter.DEFAULT_CONTAINMENT_THRESHOLD;
+	/**
+	 * Last image encoded by the model, set again if the model is used after being closed for being idle
+	 */
+	private RandomAccessibleInterval<?> encodedImage;
+	private boolean closedWhenIdle = false;
+	/**
+	 * Number of requests being run on the model, it is not closed for being idle while there is any
+	 */
+	private int requestsInFlight = 0;
 	
 
 	protected SAMJLogger log = new SAMJLogger() {
@@ -144,6 +220,309 @@ public abstract class SAMModel {
 	void setImage(final RandomAccessibleInterval<T> image, final SAMJLogger useThisLoggerForIt) 
 			throws IOException, RuntimeException, InterruptedException;
 
+	/**
+	 * Create a new instance of the model, starting its Python process and loading the weights
+	 * @param printer
+	 * 	consumer of the debugging text of the model
+	 * @return the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	protected abstract AbstractSamJ createSamJ(AbstractSamJ.DebugTextPrinter printer) 
+			throws IOException, RuntimeException, InterruptedException;
+
+	/**
+	 * Start the Python process of the model and load its weights in the background, so the next call to
+	 * {@link #setImage(RandomAccessibleInterval, SAMJLogger)} does not have to wait for it. Nothing is done if
+	 * the model is already loaded, being started, or not installed
+	 * @param executor
+	 * 	executor where the model is started
+	 */
+	public synchronized void warmUp(Executor executor) {
+		if (samj != null || standby != null || !isInstalled())
+			return;
+		standby = CompletableFuture.supplyAsync(() -> {
+			try {
+				return createSamJ(text -> {});
+			} catch (IOException | InterruptedException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Start the Python process of the model and load its weights in a background thread, see {@link #warmUp(Executor)}
+	 */
+	public void warmUp() {
+		warmUp(r -> {
+			Thread thread = new Thread(r, getName() + " warm start");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	/**
+	 * Get the model to encode the first image, adopting the model started by {@link #warmUp(Executor)}
+	 * if there is one, or creating a new one otherwise
+	 * @param printer
+	 * 	consumer of the debugging text of the model
+	 * @return the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	protected AbstractSamJ startSamJ(AbstractSamJ.DebugTextPrinter printer) 
+			throws IOException, RuntimeException, InterruptedException {
+		long start = System.nanoTime();
+		CompletableFuture<AbstractSamJ> warm;
+		synchronized (this) {
+			warm = standby;
+			standby = null;
+			startRequested = start;
+		}
+		AbstractSamJ started = null;
+		if (warm != null) {
+			try {
+				started = warm.get();
+				started.setDebugPrinter(printer);
+			} catch (ExecutionException | CancellationException e) {
+				log.warn(getName() + " could not be started in the background, starting it again: " 
+						+ (e.getCause() == null ? e.getMessage() : e.getCause().getMessage()));
+			}
+		}
+		warmStarted = started != null;
+		if (started == null)
+			started = createSamJ(printer);
+		applySettings(started);
+		startupTime = (System.nanoTime() - start) / 1000000;
+		synchronized (this) {
+			if (idleCheck == null)
+				idleCheck = IDLE_CHECKER.scheduleWithFixedDelay(this::closeIfIdle, 
+						IDLE_CHECK_PERIOD, IDLE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+		}
+		return started;
+	}
+
+	/**
+	 * Create a pool of instances of this model, each of them with its own Python process, to segment several
+	 * images in parallel. The instances are created when the requests of the pool need them, with the settings
+	 * this model has at that moment, and are independent of the instance used by {@link #setImage(RandomAccessibleInterval, SAMJLogger)}
+	 * @param maxWorkers
+	 * 	maximum number of instances alive at the same time
+	 * @return the pool, that needs to be closed once it is not needed anymore
+	 */
+	public SamJWorkerPool<AbstractSamJ> createWorkerPool(int maxWorkers) {
+		return new SamJWorkerPool<AbstractSamJ>(() -> {
+			AbstractSamJ worker = createSamJ(text -> {});
+			try {
+				applySettings(worker);
+			} catch (IOException | RuntimeException | InterruptedException e) {
+				worker.close();
+				throw e;
+			}
+			return worker;
+		}, maxWorkers);
+	}
+
+	/**
+	 * Set on a model that has just been started the settings of this model, so they are kept
+	 * when the Python process is created again, for example after being closed for being idle
+	 * @param model
+	 * 	the model just started
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	private void applySettings(AbstractSamJ model) throws IOException, RuntimeException, InterruptedException {
+		double[] percentiles;
+		long budget;
+		boolean binary, inPython, suppress;
+		double iou, containment;
+		EncodingDiskStore diskStore;
+		synchronized (this) {
+			percentiles = normalizationPercentiles.clone();
+			budget = encodingCacheBudget;
+			diskStore = encodingDiskStore;
+			binary = binaryMaskTransport;
+			inPython = contourTracingInPython;
+			suppress = suppressDuplicates;
+			iou = duplicateIoU;
+			containment = duplicateContainment;
+		}
+		model.setNormalizationPercentiles(percentiles[0], percentiles[1]);
+		model.setEncodingCacheBudget(budget);
+		model.setEncodingDiskStore(diskStore);
+		model.setBinaryMaskTransport(binary);
+		model.setContourTracingInPython(inPython);
+		model.setDuplicateSuppression(suppress, iou, containment);
+	}
+
+	/**
+	 * Keep the image that has just been encoded, to encode it again if the model is closed for being idle and used later
+	 * @param image
+	 * 	the image encoded
+	 */
+	protected synchronized void setEncodedImage(RandomAccessibleInterval<?> image) {
+		this.encodedImage = image;
+	}
+
+	/**
+	 * Release the image encoded by the model, keeping the model loaded in its Python process so 
+	 * the next image only needs to be encoded, see {@link AbstractSamJ#releaseImage()}
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public void releaseImage() throws IOException, RuntimeException, InterruptedException {
+		synchronized (this) {
+			encodedImage = null;
+			closedWhenIdle = false;
+		}
+		if (samj != null)
+			samj.releaseImage();
+	}
+
+	/**
+	 * Set the time the model can be idle before its Python process is closed. If the model is used after
+	 * being closed, it is started again and the last image is encoded again
+	 * @param idleTimeout
+	 * 	time in milliseconds, 0 or less to keep the model loaded until it is closed
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * 
+	 * @return the time the model can be idle before its Python process is closed in milliseconds
+	 */
+	public synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Set the percentiles of the intensities of each channel that are stretched to the range fed to the model.
+	 * They are used from the next image encoded, see {@link AbstractSamJ#setNormalizationPercentiles(double, double)}
+	 * @param lowPercentile
+	 * 	percentile mapped to the lowest value, between 0 and 100
+	 * @param highPercentile
+	 * 	percentile mapped to the highest value, between 0 and 100 and bigger than the low one
+	 */
+	public void setNormalizationPercentiles(double lowPercentile, double highPercentile) {
+		if (lowPercentile < 0 || highPercentile > 100 || lowPercentile >= highPercentile)
+			throw new IllegalArgumentException("The percentiles need to be in [0, 100] and the low percentile needs to be "
+					+ "smaller than the high one: " + lowPercentile + ", " + highPercentile);
+		synchronized (this) {
+			normalizationPercentiles = new double[] {lowPercentile, highPercentile};
+		}
+		AbstractSamJ current = samj;
+		if (current != null)
+			current.setNormalizationPercentiles(lowPercentile, highPercentile);
+	}
+
+	/**
+	 * 
+	 * @return the low and high percentiles of the intensities stretched to the range fed to the model
+	 */
+	public synchronized double[] getNormalizationPercentiles() {
+		return normalizationPercentiles.clone();
+	}
+
+	private synchronized void closeIfIdle() {
+		if (samj == null || requestsInFlight > 0 || idleTimeout <= 0 || samj.getIdleTime() < idleTimeout)
+			return;
+		log.info(getName() + " has been idle for " + (idleTimeout / 1000) + " s, closing its Python process.");
+		RandomAccessibleInterval<?> image = encodedImage;
+		closeProcess();
+		encodedImage = image;
+		closedWhenIdle = image != null;
+	}
+
+	/**
+	 * Start the model again and encode the last image if the model was closed for being idle
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	protected void reloadIfClosedWhenIdle() throws IOException, RuntimeException, InterruptedException {
+		RandomAccessibleInterval<?> image;
+		synchronized (this) {
+			if (samj != null || !closedWhenIdle)
+				return;
+			image = encodedImage;
+			closedWhenIdle = false;
+		}
+		log.info(getName() + " was closed after being idle, loading it again.");
+		setImage(Cast.unchecked(image), log);
+	}
+
+	/**
+	 * Start a request on the model, loading it again if it was closed for being idle. The model is not
+	 * closed for being idle until the request is finished with {@link #endRequest()}
+	 * @return the model that runs the request
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process or the model is not loaded
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	private AbstractSamJ beginRequest() throws IOException, RuntimeException, InterruptedException {
+		synchronized (this) {
+			requestsInFlight ++;
+		}
+		try {
+			reloadIfClosedWhenIdle();
+			synchronized (this) {
+				if (samj == null)
+					throw new IllegalStateException("The model " + getName() + " is not loaded.");
+				return samj;
+			}
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			endRequest();
+			throw e;
+		}
+	}
+
+	private synchronized void endRequest() {
+		requestsInFlight --;
+	}
+
+	/**
+	 * Store the time to the first mask if the masks are the first ones produced since the model was started
+	 */
+	private synchronized List<Mask> recordFirstMask(List<Mask> masks) {
+		if (startRequested >= 0 && masks != null && masks.size() > 0) {
+			timeToFirstMask = (System.nanoTime() - startRequested) / 1000000;
+			startRequested = -1;
+		}
+		return masks;
+	}
+
+	/**
+	 * 
+	 * @return time between the request to start the model for an image and the first mask it produced in 
+	 * 	milliseconds, -1 if no mask has been produced yet
+	 */
+	public synchronized long getTimeToFirstMask() {
+		return timeToFirstMask;
+	}
+
+	/**
+	 * 
+	 * @return time it took to have the model ready to encode the first image in milliseconds, waiting for the 
+	 * 	model started in the background or starting it, -1 if it has not been started yet
+	 */
+	public long getStartupTime() {
+		return startupTime;
+	}
+
+	/**
+	 * 
+	 * @return whether the model in use was started in the background by {@link #warmUp(Executor)}
+	 */
+	public boolean isWarmStarted() {
+		return warmStarted;
+	}
+
 	/**
 	 * 
 	 * @return a text describing the model.
@@ -177,19 +556,79 @@ public abstract class SAMModel {
 	}
 
 	public List<Mask> processBatchOfPoints(List<int[]> points) throws IOException, RuntimeException, InterruptedException {
-		return samj.processBatchOfPoints(points, !onlyBiggest);
+		AbstractSamJ model = beginRequest();
+		try {
+			return recordFirstMask(model.processBatchOfPoints(points, !onlyBiggest));
+		} finally {
+			endRequest();
+		}
 	}
 
 	public <T extends RealType<T> & NativeType<T>>
 	List<Mask> processBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai) 
 			throws IOException, RuntimeException, InterruptedException {
-		return samj.processBatchOfPrompts(points, rects, rai, !onlyBiggest);
+		AbstractSamJ model = beginRequest();
+		try {
+			return recordFirstMask(model.processBatchOfPrompts(points, rects, rai, !onlyBiggest));
+		} finally {
+			endRequest();
+		}
 	}
 
 	public <T extends RealType<T> & NativeType<T>>
 	List<Mask> processBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai, BatchCallback callback) 
 			throws IOException, RuntimeException, InterruptedException {
-		return samj.processBatchOfPrompts(points, rects, rai, !onlyBiggest, callback);
+		AbstractSamJ model = beginRequest();
+		try {
+			return recordFirstMask(model.processBatchOfPrompts(points, rects, rai, !onlyBiggest, callback));
+		} finally {
+			endRequest();
+		}
+	}
+
+	/**
+	 * Segment every object of the image prompting the model with a regular grid of points
+	 * @param pointsPerSide
+	 * 	number of points of the grid along each side of the image
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @return a list of polygons that represent the edges of each of the objects found
+	 * @throws IOException if any of the files needed to run the Python script is missing
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, BatchCallback callback)
+			throws IOException, RuntimeException, InterruptedException {
+		AbstractSamJ model = beginRequest();
+		try {
+			return recordFirstMask(model.segmentEverything(pointsPerSide, !onlyBiggest, callback));
+		} finally {
+			endRequest();
+		}
+	}
+
+	/**
+	 * Segment every object of the image prompting the model with a regular grid of points on the whole
+	 * image and on zoomed crops of it, so small objects are also found
+	 * @param pointsPerSide
+	 * 	number of points of the grid along each side of the image and of each crop
+	 * @param cropLevels
+	 * 	number of zoomed levels, each of them with crops 2 times smaller than the previous one
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @return a list of polygons that represent the edges of each of the objects found
+	 * @throws IOException if any of the files needed to run the Python script is missing
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, int cropLevels, BatchCallback callback)
+			throws IOException, RuntimeException, InterruptedException {
+		AbstractSamJ model = beginRequest();
+		try {
+			return recordFirstMask(model.segmentEverything(pointsPerSide, cropLevels, !onlyBiggest, callback));
+		} finally {
+			endRequest();
+		}
 	}
 
 	/**
@@ -206,16 +645,21 @@ public abstract class SAMModel {
 	 */
 	public List<Mask> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D) 
 			throws IOException, InterruptedException, RuntimeException {
+		AbstractSamJ model = beginRequest();
 		try {
 			List<int[]> list = listOfPoints2D.stream()
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
 			List<int[]> negList = listOfNegPoints2D.stream()
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
-			if (negList.size() == 0) return samj.processPoints(list, !onlyBiggest);
-			else return samj.processPoints(list, negList, !onlyBiggest);
+			if (negList.size() == 0) return recordFirstMask(model.processPoints(list, !onlyBiggest));
+			else return recordFirstMask(model.processPoints(list, negList, !onlyBiggest));
+		} catch (CancellationException e) {
+			throw e;
 		} catch (IOException | RuntimeException | InterruptedException e) {
 			log.error(this.getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
+		} finally {
+			endRequest();
 		}
 	}
 	
@@ -236,16 +680,21 @@ public abstract class SAMModel {
 	 */
 	public List<Mask> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D,
 			Rectangle zoomedRectangle) throws IOException, RuntimeException, InterruptedException {
+		AbstractSamJ model = beginRequest();
 		try {
 			List<int[]> list = listOfPoints2D.stream()
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
 			List<int[]> negList = listOfNegPoints2D.stream()
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
-			if (negList.size() == 0) return samj.processPoints(list, zoomedRectangle, !onlyBiggest);
-			else return samj.processPoints(list, negList, zoomedRectangle, !onlyBiggest);
+			if (negList.size() == 0) return recordFirstMask(model.processPoints(list, zoomedRectangle, !onlyBiggest));
+			else return recordFirstMask(model.processPoints(list, negList, zoomedRectangle, !onlyBiggest));
+		} catch (CancellationException e) {
+			throw e;
 		} catch (IOException | RuntimeException | InterruptedException e) {
 			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
+		} finally {
+			endRequest();
 		}
 	}
 
@@ -260,6 +709,7 @@ public abstract class SAMModel {
 	 */
 	public List<Mask> fetch2dSegmentation(Interval boundingBox2D) 
 			throws IOException, InterruptedException, RuntimeException {
+		AbstractSamJ model = beginRequest();
 		try {
 			//order to processBox() should be: x0,y0, x1,y1
 			final int bbox[] = {
@@ -268,10 +718,14 @@ public abstract class SAMModel {
 				(int)boundingBox2D.max(0),
 				(int)boundingBox2D.max(1)
 			};
-			return samj.processBox(bbox, !onlyBiggest);
+			return recordFirstMask(model.processBox(bbox, !onlyBiggest));
+		} catch (CancellationException e) {
+			throw e;
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
+		} finally {
+			endRequest();
 		}
 	}
 
@@ -288,12 +742,175 @@ public abstract class SAMModel {
 	 */
 	public <T extends RealType<T> & NativeType<T>> List<Mask> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai) 
 			throws IOException, InterruptedException, RuntimeException {
+		AbstractSamJ model = beginRequest();
 		try {
-			return samj.processMask(rai, !onlyBiggest);
+			return recordFirstMask(model.processMask(rai, !onlyBiggest));
+		} catch (CancellationException e) {
+			throw e;
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
+		} finally {
+			endRequest();
+		}
+	}
+
+	/**
+	 * Run any request on the loaded model asynchronously, see {@link AbstractSamJ#submit(Inference, Executor)}
+	 * @param <R>
+	 * 	type of the result of the request
+	 * @param inference
+	 * 	the request, it can call any of the blocking methods of this model
+	 * @param executor
+	 * 	executor where the request waits for the Python process
+	 * @return the future result of the request, that fails if the model is not loaded
+	 */
+	public <R> CompletableFuture<R> submit(Inference<R> inference, Executor executor) {
+		AbstractSamJ current;
+		boolean reload;
+		synchronized (this) {
+			current = samj;
+			reload = current == null && closedWhenIdle;
+			if (current != null || reload)
+				requestsInFlight ++;
+		}
+		if (current == null && !reload) {
+			CompletableFuture<R> future = new CompletableFuture<R>();
+			future.completeExceptionally(new IllegalStateException("The model " + getName() + " is not loaded."));
+			return future;
+		}
+		CompletableFuture<R> future;
+		if (reload) {
+			final ReloadFuture<R> reloading = new ReloadFuture<R>();
+			executor.execute(() -> {
+				if (reloading.isDone())
+					return;
+				AbstractSamJ model;
+				try {
+					model = beginRequest();
+				} catch (IOException | RuntimeException | InterruptedException e) {
+					reloading.completeExceptionally(e);
+					return;
+				}
+				CompletableFuture<R> request = model.submit(inference, executor);
+				request.whenComplete((r, e) -> endRequest());
+				reloading.forward(request);
+			});
+			future = reloading;
+		} else {
+			future = current.submit(inference, executor);
+		}
+		future.whenComplete((r, e) -> endRequest());
+		return future;
+	}
+
+	/**
+	 * Asynchronous version of {@link #setImage(RandomAccessibleInterval, SAMJLogger)}
+	 * @param <T>
+	 * 	the ImgLib2 data types allowed for the image
+	 * @param image
+	 * 	the image of interest for segmentation or annotation
+	 * @param useThisLoggerForIt
+	 * 	a logger to provide info about the progress
+	 * @param executor
+	 * 	executor where the model is loaded and the image encoded
+	 * @return future that completes once the image is encoded
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	CompletableFuture<Void> setImageAsync(RandomAccessibleInterval<T> image, SAMJLogger useThisLoggerForIt, Executor executor) {
+		AbstractSamJ current;
+		synchronized (this) {
+			current = samj;
+			if (current != null)
+				requestsInFlight ++;
+		}
+		if (current != null) {
+			CompletableFuture<Void> future = current.submit(() -> {
+				setImage(image, useThisLoggerForIt);
+				return null;
+			}, executor);
+			future.whenComplete((r, e) -> endRequest());
+			return future;
 		}
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		executor.execute(() -> {
+			try {
+				setImage(image, useThisLoggerForIt);
+				future.complete(null);
+			} catch (IOException | RuntimeException | InterruptedException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Asynchronous version of {@link #fetch2dSegmentation(List, List)}. Cancelling the future cancels the Python task
+	 * @param listOfPoints2D
+	 * 	List of points that make reference to the instance of interest
+	 * @param listOfNegPoints2D
+	 * 	list of points that makes reference to something that is not the instance of interest
+	 * @param executor
+	 * 	executor where the request waits for the Python process
+	 * @return the future list of polygons that represent the edges of each of the masks segmented by the model
+	 */
+	public CompletableFuture<List<Mask>> fetch2dSegmentationAsync(List<Localizable> listOfPoints2D, 
+			List<Localizable> listOfNegPoints2D, Executor executor) {
+		return submit(() -> fetch2dSegmentation(listOfPoints2D, listOfNegPoints2D), executor);
+	}
+
+	/**
+	 * Asynchronous version of {@link #fetch2dSegmentation(Interval)}. Cancelling the future cancels the Python task
+	 * @param boundingBox2D
+	 * 	a bounding box around the instance of interest
+	 * @param executor
+	 * 	executor where the request waits for the Python process
+	 * @return the future list of polygons that represent the edges of each of the masks segmented by the model
+	 */
+	public CompletableFuture<List<Mask>> fetch2dSegmentationAsync(Interval boundingBox2D, Executor executor) {
+		return submit(() -> fetch2dSegmentation(boundingBox2D), executor);
+	}
+
+	/**
+	 * Asynchronous version of {@link #processBatchOfPrompts(List, List, RandomAccessibleInterval, BatchCallback)}.
+	 * Cancelling the future cancels the Python task
+	 * @param <T>
+	 * 	the ImgLib2 data types allowed for the input mask
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param rai
+	 * 	mask whose objects are used as prompts, can be null
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @param executor
+	 * 	executor where the request waits for the Python process
+	 * @return the future list of polygons
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	CompletableFuture<List<Mask>> processBatchOfPromptsAsync(List<int[]> points, List<Rectangle> rects, 
+			RandomAccessibleInterval<T> rai, BatchCallback callback, Executor executor) {
+		if (callback == null)
+			return submit(() -> processBatchOfPrompts(points, rects, rai), executor);
+		return submit(() -> processBatchOfPrompts(points, rects, rai, callback), executor);
+	}
+
+	/**
+	 * Asynchronous version of {@link #segmentEverything(int, int, BatchCallback)}. Cancelling the future cancels the Python task
+	 * @param pointsPerSide
+	 * 	number of points of the grid along each side of the image and of each crop
+	 * @param cropLevels
+	 * 	number of zoomed levels, each of them with crops 2 times smaller than the previous one
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @param executor
+	 * 	executor where the request waits for the Python process
+	 * @return the future list of polygons
+	 */
+	public CompletableFuture<List<Mask>> segmentEverythingAsync(int pointsPerSide, int cropLevels, 
+			BatchCallback callback, Executor executor) {
+		return submit(() -> segmentEverything(pointsPerSide, cropLevels, callback), executor);
 	}
 
 	/**
@@ -312,6 +929,16 @@ public abstract class SAMModel {
 	if (samj != null)
 			samj.close();
 		samj = null;
+		synchronized (this) {
+			if (standby != null)
+				standby.thenAccept(AbstractSamJ::close);
+			standby = null;
+			if (idleCheck != null)
+				idleCheck.cancel(false);
+			idleCheck = null;
+			encodedImage = null;
+			closedWhenIdle = false;
+		}
 	}
 	
 	/**
@@ -349,4 +976,151 @@ public abstract class SAMModel {
 		}
 	}
 	
+	/**
+	 * Set the maximum number of bytes that the encodings cached in the Python process can use.
+	 * The budget is kept if the Python process is created again
+	 * @param budget
+	 * 	maximum number of bytes
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void setEncodingCacheBudget(long budget) throws IOException, InterruptedException {
+		if (budget <= 0)
+			throw new IllegalArgumentException("The budget of the encoding cache needs to be positive.");
+		synchronized (this) {
+			encodingCacheBudget = budget;
+		}
+		AbstractSamJ current = samj;
+		if (current == null)
+			return;
+		try {
+			current.setEncodingCacheBudget(budget);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(getName()+", unable to set the budget of the encoding cache: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Set whether the masks produced by the model are sent from Python to Java packed in shared memory
+	 * or as JSON lists, see {@link AbstractSamJ#setBinaryMaskTransport(boolean)}
+	 * @param binaryMaskTransport
+	 * 	whether to use shared memory (true) or JSON (false) to retrieve the masks
+	 */
+	public void setBinaryMaskTransport(boolean binaryMaskTransport) {
+		synchronized (this) {
+			this.binaryMaskTransport = binaryMaskTransport;
+		}
+		AbstractSamJ current = samj;
+		if (current != null)
+			current.setBinaryMaskTransport(binaryMaskTransport);
+	}
+
+	/**
+	 * Set the store where the encodings are written to disk, so the images opened again are not encoded again
+	 * even after the Python process is closed, see {@link AbstractSamJ#setEncodingDiskStore(EncodingDiskStore)}.
+	 * By default the encodings are not written to disk
+	 * @param diskStore
+	 * 	the store where the encodings are written, null to not write them to disk
+	 */
+	public void setEncodingDiskStore(EncodingDiskStore diskStore) {
+		synchronized (this) {
+			this.encodingDiskStore = diskStore;
+		}
+		AbstractSamJ current = samj;
+		if (current != null)
+			current.setEncodingDiskStore(diskStore);
+	}
+
+	/**
+	 * Set whether the contours of the objects are traced in the Python process or in Java, 
+	 * see {@link AbstractSamJ#setContourTracingInPython(boolean)}
+	 * @param traceInPython
+	 * 	whether to trace the contours in Python and send them with the RLE or not
+	 */
+	public void setContourTracingInPython(boolean traceInPython) {
+		synchronized (this) {
+			this.contourTracingInPython = traceInPython;
+		}
+		AbstractSamJ current = samj;
+		if (current != null)
+			current.setContourTracingInPython(traceInPython);
+	}
+
+	/**
+	 * Set whether the masks of a batch of prompts that are duplicates of other masks of the same batch
+	 * are discarded, see {@link AbstractSamJ#setDuplicateSuppression(boolean, double, double)}
+	 * @param suppressDuplicates
+	 * 	whether to discard the duplicated masks or not
+	 * @param iouThreshold
+	 * 	minimum intersection over union for two masks to be considered the same object
+	 * @param containmentThreshold
+	 * 	minimum fraction of the smallest mask covered by the other one for two masks to be considered the same object
+	 */
+	public void setDuplicateSuppression(boolean suppressDuplicates, double iouThreshold, double containmentThreshold) {
+		DuplicateMaskFilter.checkThresholds(iouThreshold, containmentThreshold);
+		synchronized (this) {
+			this.suppressDuplicates = suppressDuplicates;
+			this.duplicateIoU = iouThreshold;
+			this.duplicateContainment = containmentThreshold;
+		}
+		AbstractSamJ current = samj;
+		if (current != null)
+			current.setDuplicateSuppression(suppressDuplicates, iouThreshold, containmentThreshold);
+	}
+	
+	/**
+	 * 
+	 * @return the statistics of the encodings cached by the model or null if the model is not loaded
+	 */
+	public EncodingCacheStats getEncodingCacheStats() {
+		return samj == null ? null : samj.getEncodingCacheStats();
+	}
+	
+	/**
+	 * 
+	 * @return the spatial index of the masks produced by the batches of prompts on the current image,
+	 * 	or null if the model is not loaded
+	 */
+	public MaskIndex getMaskIndex() {
+		return samj == null ? null : samj.getMaskIndex();
+	}
+	
+
+	/**
+	 * Future of a request that has to load the model again before running. Cancelling it also cancels
+	 * the request once it has been submitted to the model, which cancels its Python task
+	 */
+	private static class ReloadFuture<R> extends CompletableFuture<R> {
+		/**
+		 * Request submitted to the model once it has been loaded
+		 */
+		private CompletableFuture<R> request;
+
+		private void forward(CompletableFuture<R> request) {
+			synchronized (this) {
+				this.request = request;
+			}
+			request.whenComplete((r, e) -> {
+				if (e == null)
+					complete(r);
+				else
+					completeExceptionally(e);
+			});
+			if (isCancelled())
+				request.cancel(true);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean canceled = super.cancel(mayInterruptIfRunning);
+			CompletableFuture<R> running;
+			synchronized (this) {
+				running = request;
+			}
+			if (canceled && running != null)
+				running.cancel(mayInterruptIfRunning);
+			return canceled;
+		}
+	}
 }
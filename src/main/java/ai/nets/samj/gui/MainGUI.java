@@ -31,6 +31,10 @@ import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainGUI extends JFrame {
 
@@ -59,6 +63,18 @@ public class MainGUI extends JFrame {
     protected JRadioButton radioButton2;
     protected JProgressBar batchProgress = new JProgressBar();
     protected ResizableButton stopProgressBtn = new ResizableButton("■", 10, 2, 2);
+    /**
+     * Executor where the requests to the model wait for the Python process, so the GUI never waits for it
+     */
+    protected final ExecutorService inferenceExecutor = Executors.newCachedThreadPool(r -> {
+    	Thread thread = new Thread(r, "SAMJ inference");
+    	thread.setDaemon(true);
+    	return thread;
+    });
+    /**
+     * Batch of prompts being processed, null if none has been started
+     */
+    protected CompletableFuture<List<Mask>> batchRequest;
     protected final ModelSelection cmbModels;
     // TODO add information tab to cmbImages, same as cmbModels
     // TODO changes to just a combobox on december 2024
@@ -122,7 +138,8 @@ public class MainGUI extends JFrame {
         retunLargest.addActionListener(e -> cmbModels.getSelectedModel().setReturnOnlyBiggest(retunLargest.isSelected()));
         btnBatchSAMize.addActionListener(e -> batchSAMize());
         stopProgressBtn.addActionListener(e -> {
-        	// TODO stopProgress();
+        	if (batchRequest != null)
+        		batchRequest.cancel(true);
         });
         close.addActionListener(e -> dispose());
         help.addActionListener(e -> consumer.exportImageLabeling());
@@ -174,6 +191,7 @@ public class MainGUI extends JFrame {
 
         this.setTwoThirdsEnabled(false);
     	go.setEnabled(false);
+        this.cmbModels.getSelectedModel().warmUp();
         new Thread(() -> {
             if (this.cmbModels.getSelectedModel().isInstalled() && cmbImages.getSelectedObject() != null)
             	SwingUtilities.invokeLater(() -> go.setEnabled(true));
@@ -538,14 +556,13 @@ public class MainGUI extends JFrame {
     	lyt.show(cardPanel2_2, INVISIBLE_STR);
     	this.stopProgressBtn.setEnabled(true);
     	consumer.setFocusedImage(this.cmbImages.getSelectedObject());
-    	new Thread(() -> {
-    		try {
-				cmbModels.getSelectedModel().processBatchOfPrompts(pointPrompts, rectPrompts, rai, batchDrawerCallback);
-			} catch (IOException | RuntimeException | InterruptedException e) {
-				e.printStackTrace();
-			}
+    	batchRequest = cmbModels.getSelectedModel()
+    			.processBatchOfPromptsAsync(pointPrompts, rectPrompts, rai, batchDrawerCallback, inferenceExecutor);
+    	batchRequest.whenComplete((masks, ex) -> {
+    		if (ex != null && !(ex instanceof CancellationException))
+    			ex.printStackTrace();
     		SwingUtilities.invokeLater(() -> stopProgressBtn.setEnabled(false));
-    	}).start();;
+    	});
     	pointPrompts.stream().forEach(pp -> consumer.deletePointRoi(pp));
     	rectPrompts.stream().forEach(pp -> consumer.deleteRectRoi(pp));
     }
@@ -554,7 +571,14 @@ public class MainGUI extends JFrame {
         imageListener = new ImageSelectionListener() {
             @Override
             public void modelActionsOnImageChanged() {
-                cmbModels.getSelectedModel().closeProcess();
+                SAMModel model = cmbModels.getSelectedModel();
+                try {
+                    model.releaseImage();
+                } catch (IOException | RuntimeException | InterruptedException ex) {
+                    ex.printStackTrace();
+                    model.closeProcess();
+                    model.warmUp();
+                }
             }
 
             @Override
@@ -586,6 +610,7 @@ public class MainGUI extends JFrame {
                 go.setEnabled(cmbImages.getSelectedObject() != null);
                 go.setEnabled(false);
                 go.showAnimation(true);
+                cmbModels.getSelectedModel().warmUp();
                 new Thread(() -> {
                     go.setEnabled(cmbModels.getSelectedModel().isInstalled());
                     go.showAnimation(false);
@@ -78,8 +78,8 @@ public class ModelSelection extends ComboBoxButtonComp<String> implements ItemLi
 				// checks if indeed a different model is selected (from what was selected before)
 				if (nSelectedModel != selected) {
 					unLoadModel();
-					listener.changeGUI();
 					selected = nSelectedModel;
+					listener.changeGUI();
 				}
 			} catch (Exception ex) {
 				ex.printStackTrace();
@@ -22,20 +22,32 @@ package ai.nets.samj.models;
 import java.lang.AutoCloseable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+import ai.nets.samj.annotation.DuplicateMaskFilter;
 import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.annotation.MaskIndex;
+import ai.nets.samj.annotation.RleContourTracer;
+import ai.nets.samj.annotation.RleMask;
 
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.io.IOException;
+import java.nio.ByteOrder;
 
 import io.bioimage.modelrunner.apposed.appose.Environment;
 import io.bioimage.modelrunner.apposed.appose.Service;
@@ -43,11 +55,15 @@ import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
 import io.bioimage.modelrunner.system.PlatformDetection;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
@@ -75,10 +91,51 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	protected static long ENCODE_MARGIN = 64;
 	
 	protected static int MAX_IMG_SIZE = 2024;
+	/**
+	 * Side of the tiles in which the images too big to be encoded at once are divided
+	 */
+	public static long TILE_SIDE = 1024;
+	/**
+	 * Minimum number of pixels shared by neighbouring tiles. Any prompt that needs an area smaller
+	 * than the overlap can be processed with the encodings of a single tile
+	 */
+	public static long TILE_OVERLAP = ENCODE_MARGIN * 4;
+	
+	private static final String TILE_ENCODING_PREFIX = "tile_";
+	/**
+	 * Prefix of the names used in the encodings map for the encodings of the crops of the pyramid of the automatic mode
+	 */
+	private static final String CROP_ENCODING_PREFIX = "crop_";
+	/**
+	 * Distance in pixels to the border of a crop of the automatic mode under which a mask is considered cut by the crop
+	 */
+	private static final int CROP_EDGE_TOLERANCE = 2;
+	/**
+	 * Default maximum number of bytes that the cached encodings can use in the Python process
+	 */
+	public static final long DEFAULT_ENCODING_CACHE_BUDGET = 4L * 1024 * 1024 * 1024;
+	
+	private static final String ENCODING_BYTES_KEY = "encoding_bytes";
+	/**
+	 * Name used in the encodings map for the encodings that are being written to or read from disk
+	 */
+	private static final String DISK_ENCODING_NAME = "disk_encoding";
+	/**
+	 * Prefix of the names used in the encodings map for the encodings of whole images
+	 */
+	private static final String IMAGE_ENCODING_PREFIX = "image_";
 	
 	protected static String UPDATE_ID_N_CONTOURS = "PROMPT_NUMBER_" + UUID.randomUUID().toString();
 	
 	protected static String UPDATE_ID_CONTOUR = "FOUND_CONTOUR_" + UUID.randomUUID().toString();
+	
+	private static final String MASKS_SHM_KEY = "masks_shm";
+	
+	private static final String MASKS_SHM_SIZE_KEY = "masks_shm_size";
+	/**
+	 * Python code that frees the shared memory segments used to send the masks of the previous task
+	 */
+	private static final String RELEASE_SHMS_SCRIPT = "release_returned_shms()" + System.lineSeparator();
 
 	public interface BatchCallback { 
 		
@@ -94,6 +151,17 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		
 		}
 
+	/**
+	 * Inference run by {@link AbstractSamJ#submit(Inference, Executor)}
+	 * @param <R>
+	 * 	type of the result of the inference
+	 */
+	public interface Inference<R> {
+		
+		R run() throws IOException, RuntimeException, InterruptedException;
+		
+	}
+
 	/** Essentially, a syntactic-shortcut for a String consumer */
 	public interface DebugTextPrinter { void printText(String text); }
 	/**
@@ -121,6 +189,14 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 * Shared memory array used to share between Java and Python the image that wants to be processed by EfficientSAM 
 	 */
 	protected SharedMemoryArray shma;
+	/**
+	 * Pool of the shared memory segments used for the images and masks sent to Python, reused across encodings
+	 */
+	protected final SharedMemoryPool shmPool = new SharedMemoryPool();
+	/**
+	 * Dimensions of the mask sent to Python in the last batch of prompts
+	 */
+	private long[] maskDims;
 	/**
 	 * Target dimensions of the image that is going to be encoded. If a single-channel 2D image is provided, that image is
 	 * converted into a 3-channel image that EfficientSAM requires.
@@ -133,6 +209,11 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 * The axes are "xyc"
 	 */
 	protected long[] targetReescaledDims;
+	/**
+	 * Whether the image in {@link #shma} was copied by planes, as the C-ordered array [channels, height, width] of an
+	 * {@link net.imglib2.img.array.ArrayImg}, instead of written pixel by pixel as [width, height, channels]
+	 */
+	protected boolean planarShm;
 	/**
 	 * Coordinates of the vertex of the crop/zoom of hte image of interest that has been encoded.
 	 * It is the closest vertex to the origin.
@@ -173,13 +254,192 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 * it is not, the image is encoded on demand
 	 */
 	protected boolean imageSmall = true;
+	/**
+	 * Grid of overlapping tiles in which the image is divided when it is too big to be encoded at once.
+	 * The encodings of every tile are computed in the background and kept in the Python encodings map, 
+	 * so the prompts can be processed without encoding anything. Null if the image is small
+	 */
+	protected TileGrid tiles;
+	/**
+	 * Index of the tile whose encodings are loaded in the predictor, -1 if the predictor contains the
+	 * encodings of something else
+	 */
+	private int currentTile = -1;
+	/**
+	 * Lock used so the encoding of the tiles in the background and the prompts do not change the state 
+	 * of the predictor at the same time. It is fair so the prompts do not wait for more than one tile
+	 */
+	private final ReentrantLock tileLock = new ReentrantLock(true);
+	/**
+	 * Lock used so the requests run one after the other, in the order they were submitted. It is taken by the
+	 * asynchronous requests and by the blocking methods that change the state of the predictor, it is reentrant
+	 * so the asynchronous requests can call the blocking methods
+	 */
+	private final ReentrantLock requestLock = new ReentrantLock(true);
+	/**
+	 * Asynchronous request being run by each thread, used to cancel its Python tasks
+	 */
+	private final Map<Thread, InferenceFuture<?>> activeRequests = new ConcurrentHashMap<Thread, InferenceFuture<?>>();
+	
+	private Thread tileEncodingThread;
+	/**
+	 * Last Python task created, used to know whether the model is busy
+	 */
+	private volatile Task lastTask;
+	/**
+	 * Last time the model was seen busy, in milliseconds
+	 */
+	private volatile long lastActivity = System.currentTimeMillis();
+	
+	private volatile boolean stopTileEncoding = false;
+	/**
+	 * Center of the last prompt, the tiles around it are the first ones to be encoded
+	 */
+	private volatile int[] lastPromptCenter;
+	
+	/**
+	 * Whether the contours and RLE masks produced by the model are sent back from Python packed
+	 * in a shared memory segment (true) or as JSON lists in the task outputs (false).
+	 * The JSON path is slower for big batches, but it is easier to inspect while debugging
+	 */
+	protected boolean binaryMaskTransport = true;
+	/**
+	 * Whether the contours are traced in Python and sent with the RLE (true) or traced in Java from the RLE (false)
+	 */
+	protected boolean contourTracingInPython = false;
+	/**
+	 * Spatial index of the masks produced by the batches of prompts processed on the current image
+	 */
+	private final MaskIndex maskIndex = new MaskIndex();
+	/**
+	 * Whether the masks of a batch of prompts that are duplicates of other masks of the batch are discarded
+	 */
+	private boolean suppressDuplicates = false;
+	
+	private double duplicateIoU = DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD;
+	
+	private double duplicateContainment = DuplicateMaskFilter.DEFAULT_CONTAINMENT_THRESHOLD;
+	/**
+	 * Filter of the duplicated masks of the batch of prompts being processed, null if the masks are not filtered
+	 */
+	private DuplicateMaskFilter batchFilter;
+	/**
+	 * Crop of the pyramid of the automatic mode being decoded, null if the masks do not come from a crop
+	 */
+	private volatile Rectangle everythingCrop;
+	/**
+	 * Default number of prompts of the same kind that are decoded together by the model
+	 */
+	public static final int DEFAULT_DECODER_BATCH_SIZE = 16;
+	/**
+	 * Number of prompts of the same kind (points, rectangles or objects of a mask) that are decoded
+	 * together in a single call to the decoder of the model when a batch of prompts is processed
+	 */
+	protected int decoderBatchSize = DEFAULT_DECODER_BATCH_SIZE;
+	/**
+	 * Number of threads that run the decoder of the model when a batch of prompts is processed
+	 */
+	protected int decoderThreads = 1;
+	/**
+	 * Number of threads that trace the contours and RLE of the masks when a batch of prompts is processed
+	 */
+	protected int tracingThreads = 3;
+	/**
+	 * Number of threads that send the objects found back to Java when a batch of prompts is processed
+	 */
+	protected int emitterThreads = 1;
+	/**
+	 * Default minimum predicted IoU of the masks kept by {@link #segmentEverything(int, boolean, BatchCallback)}
+	 */
+	public static final double DEFAULT_EVERYTHING_IOU_THRESHOLD = 0.88;
+	/**
+	 * Default minimum stability score of the masks kept by {@link #segmentEverything(int, boolean, BatchCallback)}
+	 */
+	public static final double DEFAULT_EVERYTHING_STABILITY_THRESHOLD = 0.95;
+	/**
+	 * Minimum IoU predicted by the model for the masks of the points of the grid of the automatic mode
+	 */
+	protected double everythingIoUThreshold = DEFAULT_EVERYTHING_IOU_THRESHOLD;
+	/**
+	 * Minimum stability score for the masks of the points of the grid of the automatic mode, the IoU between
+	 * the masks obtained thresholding the logits at {@link #everythingStabilityOffset} and at minus that value
+	 */
+	protected double everythingStabilityThreshold = DEFAULT_EVERYTHING_STABILITY_THRESHOLD;
+	/**
+	 * Offset of the logits used to compute the stability score of the masks in the automatic mode
+	 */
+	protected double everythingStabilityOffset = 1.0;
+	/**
+	 * Minimum fraction of the smallest of two masks covered by the other for {@link #segmentEverything(int, boolean, BatchCallback)}
+	 * to consider them the same object. Disabled by default, the objects nested inside bigger ones are kept
+	 */
+	private double everythingContainmentThreshold = DuplicateMaskFilter.NO_CONTAINMENT;
+	/**
+	 * Number of grid points decoded per second in the last call to {@link #segmentEverything(int, boolean, BatchCallback)}
+	 */
+	private double everythingThroughput = 0;
+	
+	/**
+	 * Identifier of the model (and its variant), used to tell apart the encodings computed by different models
+	 * in the {@link #diskStore}
+	 */
+	protected String modelId = getClass().getSimpleName();
+	/**
+	 * Store where the encodings are written to disk, so they can be reused once the Python process
+	 * is closed. If it is null (default), the encodings are not written to disk
+	 */
+	protected EncodingDiskStore diskStore;
+	/**
+	 * Hash of the content of the image of interest and of its normalization, used to find its encodings in the {@link #diskStore}
+	 */
+	protected String imageHash;
+	/**
+	 * Hash of the content of the image of interest only, used to find its histogram
+	 */
+	private String contentHash;
+	/**
+	 * Percentiles of the intensities stretched to the range fed to the model, used from the next image set
+	 */
+	private double lowPercentile = 0;
+	
+	private double highPercentile = 100;
+	/**
+	 * Percentiles used for the image of interest
+	 */
+	private double[] appliedPercentiles = new double[] {0, 100};
+	/**
+	 * Number of images whose histograms are kept
+	 */
+	private static final int HISTOGRAM_CACHE_SIZE = 8;
+	/**
+	 * Histograms of the intensities of the last images set, by the hash of their content
+	 */
+	private final LinkedHashMap<String, IntensityHistogram> histograms = new LinkedHashMap<String, IntensityHistogram>(16, 0.75f, true);
+	/**
+	 * Name in the encodings cache of the encodings of the whole image that are loaded in the predictor, 
+	 * null if the predictor contains the encodings of a crop or a tile
+	 */
+	private String loadedEncodingKey;
 	
 	private int nRoisProcessed;
 	
 	/**
-	 * List of encodings that are cached to avoid recalculating
+	 * Encodings that are cached in the Python process to avoid recalculating them, with the number of bytes
+	 * each of them uses. The map is in access order, so the first entry is the least recently used one
 	 */
-	List<String> savedEncodings = new ArrayList<String>();
+	private final LinkedHashMap<String, Long> savedEncodings = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	/**
+	 * Maximum number of bytes that the cached encodings can use in the Python process. When it is exceeded, 
+	 * the least recently used encodings are deleted
+	 */
+	protected long encodingCacheBudget = DEFAULT_ENCODING_CACHE_BUDGET;
+	
+	private final EncodingCacheStats cacheStats = new EncodingCacheStats(DEFAULT_ENCODING_CACHE_BUDGET);
+	/**
+	 * Size of the last tile encoding stored, used to know whether there is space in the cache 
+	 * for another tile before encoding it
+	 */
+	private long lastTileBytes = 0;
 
 	protected abstract String persistEncodingScript(String encodingName);
 
@@ -187,10 +447,91 @@ public abstract class AbstractSamJ implements AutoCloseable {
 
 	protected abstract String deleteEncodingScript(String encodingName);
 	
+	/**
+	 * Create the script that segments everything prompting the model with each of the points of a grid,
+	 * that are given to the script in the input 'grid_prompts'. The script can be built with
+	 * {@link #createBatchScript(SharedMemoryArray, String, boolean, boolean)}
+	 * @param grid
+	 * 	points of the grid, in the coordinates of the encoded image
+	 * @param returnAll
+	 * 	whether to return all the objects of each mask or only the biggest
+	 */
 	protected abstract void cellSAM(List<int[]> grid, boolean returnAll);
 	
 	protected abstract void processPromptsBatchWithSAM(SharedMemoryArray shmArr, boolean returnAll);
 	
+	/**
+	 * Create the script that processes a batch of prompts, the point prompts, rectangle prompts and
+	 * the objects of the mask are decoded in groups of {@link #decoderBatchSize} prompts and go through
+	 * a pipeline whose stages use {@link #decoderThreads}, {@link #tracingThreads} and {@link #emitterThreads}.
+	 * The script needs the variables 'point_prompts' and 'rect_prompts' to be defined
+	 * @param shmArr
+	 * 	shared memory containing a mask whose objects are used as prompts, can be null
+	 * @param decodeBatch
+	 * 	definition of the Python function 'decode_batch(kind, coords)' of the model. 'kind' is one of 'mask', 'point'
+	 * 	or 'rect' and 'coords' is an array of shape [batch, n_points, 2] (the rectangles are given by two corners).
+	 * 	It needs to return the binary masks for each of the prompts, with shape [batch, height, width]
+	 * @param returnAll
+	 * 	whether to return all the objects found for each prompt or only the biggest one
+	 * @return the script that processes the batch of prompts
+	 */
+	protected String createBatchScript(SharedMemoryArray shmArr, String decodeBatch, boolean returnAll) {
+		return createBatchScript(shmArr, decodeBatch, returnAll, false);
+	}
+	
+	/**
+	 * Create the script that processes a batch of prompts, as {@link #createBatchScript(SharedMemoryArray, String, boolean)}.
+	 * If the points of a grid are used as prompts, the script also needs the variable 'grid_prompts' and
+	 * 'decode_batch' is called with the kind 'grid'. For this kind it needs to return a tuple with the logits
+	 * of the best mask of each point, with shape [batch, height, width], and their predicted IoU, with shape [batch].
+	 * Only the masks whose predicted IoU and stability reach {@link #everythingIoUThreshold} and 
+	 * {@link #everythingStabilityThreshold} are sent back
+	 * @param shmArr
+	 * 	shared memory containing a mask whose objects are used as prompts, can be null
+	 * @param decodeBatch
+	 * 	definition of the Python function 'decode_batch(kind, coords)' of the model
+	 * @param returnAll
+	 * 	whether to return all the objects found for each prompt or only the biggest one
+	 * @param grid
+	 * 	whether the script uses the points of the variable 'grid_prompts' as prompts or not
+	 * @return the script that processes the batch of prompts
+	 */
+	protected String createBatchScript(SharedMemoryArray shmArr, String decodeBatch, boolean returnAll, boolean grid) {
+		String code = "labeled_array = None" + System.lineSeparator()
+				+ "num_features = 0" + System.lineSeparator();
+		if (!grid)
+			code += "grid_prompts = []" + System.lineSeparator();
+		if (shmArr != null) {
+			code += shmPool.attachScript(shmArr, "shm_mask")
+					+ "mask_batch = np.ndarray(%s, buffer=shm_mask.buf, dtype='uint8').reshape([";
+			long size = 1;
+			for (long l : maskDims) {
+				code += l + ",";
+				size *= l;
+			}
+			code = String.format(code, size);
+			code += "])" + System.lineSeparator();
+			code += "labeled_array, num_features = label(mask_batch)" + System.lineSeparator();
+		}
+		code += ""
+				+ "ntot = num_features + len(point_prompts) + len(rect_prompts) + len(grid_prompts)" + System.lineSeparator()
+				+ "args = {\"outputs\": {'n': str(ntot)}, \"message\": '" + AbstractSamJ.UPDATE_ID_N_CONTOURS + "'}" + System.lineSeparator()
+				+ "task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
+				+ decodeBatch
+				+ "contours_x, contours_y, rle_masks = run_prompts_in_batches(task, decode_batch, point_prompts, rect_prompts," + System.lineSeparator()
+				+ "  labeled_array=labeled_array, num_features=num_features, batch_size=" + decoderBatchSize + "," + System.lineSeparator()
+				+ "  only_biggest=" + (!returnAll ? "True" : "False") + getTracingArgs() + ", ij_roi=" + (this.isIJROIManager ? "True" : "False") + "," + System.lineSeparator()
+				+ "  binary=" + (this.binaryMaskTransport ? "True" : "False") + ", update_id='" + AbstractSamJ.UPDATE_ID_CONTOUR + "'," + System.lineSeparator()
+				+ "  decode_threads=" + decoderThreads + ", trace_threads=" + tracingThreads + ", emit_threads=" + emitterThreads + "," + System.lineSeparator()
+				+ "  grid_prompts=grid_prompts, pred_iou_thresh=" + everythingIoUThreshold + ", stability_thresh=" + everythingStabilityThreshold + "," + System.lineSeparator()
+				+ "  stability_offset=" + everythingStabilityOffset + ")" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "set_mask_outputs(task.outputs, contours_x, contours_y, rle_masks, binary=" + (this.binaryMaskTransport ? "True" : "False") + ")" + System.lineSeparator()
+				+ "labeled_array = None" + System.lineSeparator()
+				+ "mask_batch = None" + System.lineSeparator();
+		return code;
+	}
+	
 	protected abstract void processPointsWithSAM(int nPoints, int nNegPoints, boolean returnAll);
 	
 	protected abstract void processBoxWithSAM(boolean returnAll);
@@ -207,8 +548,263 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 * Close the Python process and clean the memory
 	 */
 	public void close() {
+		stopTileEncoding = true;
 		if (python != null) 
 			python.close();
+		shmPool.close();
+	}
+	
+	/**
+	 * Release the image set in the model, keeping the model loaded in the Python process so another image
+	 * can be set without starting it again. The encodings of the tiles of the image are deleted, the encodings
+	 * kept in the cache of encodings are not, so setting the image again later might not need to encode it
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	public void releaseImage() throws IOException, InterruptedException, RuntimeException {
+		stopTileEncoding();
+		deleteTileEncodings();
+		this.tiles = null;
+		this.currentTile = -1;
+		this.img = null;
+		this.imageHash = null;
+		this.loadedEncodingKey = null;
+		maskIndex.clear();
+	}
+	
+	/**
+	 * Set the percentiles of the intensities of each channel that are stretched to the range fed to the model,
+	 * the intensities outside them are clipped. Clipping some of the brightest and darkest pixels, for example 
+	 * from 1 to 99.8, avoids that a few very bright pixels reduce the contrast of the whole image.
+	 * The percentiles are computed once per image from its histogram and used for all the crops and tiles encoded.
+	 * They are used from the next image set. By default they are 0 and 100, the min and max of each channel, and 
+	 * 8-bit images are fed as they are
+	 * @param lowPercentile
+	 * 	percentile mapped to the lowest value, between 0 and 100
+	 * @param highPercentile
+	 * 	percentile mapped to the highest value, between 0 and 100 and bigger than the low one
+	 */
+	public void setNormalizationPercentiles(double lowPercentile, double highPercentile) {
+		if (lowPercentile < 0 || highPercentile > 100 || lowPercentile >= highPercentile)
+			throw new IllegalArgumentException("The percentiles need to be in [0, 100] and the low percentile needs to be "
+					+ "smaller than the high one: " + lowPercentile + ", " + highPercentile);
+		this.lowPercentile = lowPercentile;
+		this.highPercentile = highPercentile;
+	}
+	
+	private String getNormalizationSuffix() {
+		if (lowPercentile <= 0 && highPercentile >= 100)
+			return "";
+		return "_p" + lowPercentile + "-" + highPercentile;
+	}
+	
+	/**
+	 * 
+	 * @return whether the intensities of the image of interest are clipped at some percentiles or stretched from their min to their max
+	 */
+	protected boolean isClippingIntensities() {
+		return appliedPercentiles[0] > 0 || appliedPercentiles[1] < 100;
+	}
+	
+	/**
+	 * Get the intensities of each channel of the image of interest that are stretched to the range fed to the model,
+	 * from the histogram of the image, that is computed the first time and reused for all the crops and tiles
+	 * @return the levels as [low0, high0, low1, high1, ...] or null if the image is 8-bit and fed as it is
+	 */
+	protected double[] getIntensityLevels() {
+		if (img == null || isFedAsItIs(Util.getTypeFromInterval(Cast.unchecked(img)), appliedPercentiles))
+			return null;
+		IntensityHistogram histogram;
+		synchronized (histograms) {
+			histogram = histograms.get(contentHash);
+		}
+		if (histogram == null) {
+			histogram = ImgLib2Utils.computeHistogram(Cast.unchecked(img));
+			synchronized (histograms) {
+				histograms.put(contentHash, histogram);
+				Iterator<String> it = histograms.keySet().iterator();
+				while (histograms.size() > HISTOGRAM_CACHE_SIZE) {
+					it.next();
+					it.remove();
+				}
+			}
+		}
+		return histogram.getLevels(appliedPercentiles[0], appliedPercentiles[1]);
+	}
+	
+	/**
+	 * 
+	 * @param type
+	 * 	pixel type of the image of interest
+	 * @param percentiles
+	 * 	low and high percentiles of the intensities stretched to the range fed to the model
+	 * @return whether the image is fed to the model without changing its intensities, which only happens for
+	 * 	8-bit images that are not clipped at any percentile
+	 */
+	static boolean isFedAsItIs(Object type, double[] percentiles) {
+		return percentiles[0] <= 0 && percentiles[1] >= 100 && type instanceof UnsignedByteType;
+	}
+	
+	/**
+	 * Set whether the masks produced by the model are sent from Python to Java packed in shared memory
+	 * or as JSON lists. Shared memory is the default and much faster for big batches of objects, the JSON
+	 * path is kept as a fallback, mainly for debugging.
+	 * @param binaryMaskTransport
+	 * 	whether to use shared memory (true) or JSON (false) to retrieve the masks
+	 */
+	public void setBinaryMaskTransport(boolean binaryMaskTransport) {
+		this.binaryMaskTransport = binaryMaskTransport;
+	}
+	
+	/**
+	 * Set whether the contours of the objects are traced in the Python process or in Java. By default Python
+	 * only sends the RLE of the objects and their contours are traced from it in Java, in parallel
+	 * @param traceInPython
+	 * 	whether to trace the contours in Python and send them with the RLE or not
+	 */
+	public void setContourTracingInPython(boolean traceInPython) {
+		this.contourTracingInPython = traceInPython;
+	}
+	
+	/**
+	 * 
+	 * @return the keyword arguments of the Python methods that extract the objects of the masks that
+	 * 	select how their contours are traced, starting with a comma
+	 */
+	protected String getTracingArgs() {
+		return ", trace_in_python=" + (contourTracingInPython ? "True" : "False");
+	}
+	
+	/**
+	 * Set how many prompts of the same kind are decoded together when a batch of prompts is processed.
+	 * Bigger batches make a better use of the GPU but need more memory, as all the masks of the batch
+	 * are kept in memory at the same time
+	 * @param decoderBatchSize
+	 * 	number of prompts decoded in a single call to the model decoder, at least 1
+	 */
+	public void setDecoderBatchSize(int decoderBatchSize) {
+		if (decoderBatchSize < 1)
+			throw new IllegalArgumentException("The decoder batch size needs to be at least 1: " + decoderBatchSize);
+		this.decoderBatchSize = decoderBatchSize;
+	}
+	
+	/**
+	 * Set the number of threads used by each of the stages of the pipeline that processes a batch of prompts.
+	 * The masks are produced by the decoders, traced by the tracing workers and sent back to Java by the
+	 * emitters, the stages are connected by bounded queues so the throughput is given by the slowest one
+	 * @param decoderThreads
+	 * 	number of threads running the decoder of the model, usually 1 as the decoder already uses the GPU or all the CPU cores
+	 * @param tracingThreads
+	 * 	number of threads extracting the contours and RLE of the masks
+	 * @param emitterThreads
+	 * 	number of threads sending the objects back to Java
+	 */
+	public void setBatchPipelineThreads(int decoderThreads, int tracingThreads, int emitterThreads) {
+		if (decoderThreads < 1 || tracingThreads < 1 || emitterThreads < 1)
+			throw new IllegalArgumentException("Every stage of the batch pipeline needs at least one thread: "
+					+ decoderThreads + ", " + tracingThreads + ", " + emitterThreads);
+		this.decoderThreads = decoderThreads;
+		this.tracingThreads = tracingThreads;
+		this.emitterThreads = emitterThreads;
+	}
+	
+	/**
+	 * Set whether the masks of a batch of prompts that are duplicates of other masks of the same batch
+	 * are discarded before being sent to {@link BatchCallback#drawRoi(List)} and returned, using the default thresholds
+	 * of {@link DuplicateMaskFilter}
+	 * @param suppressDuplicates
+	 * 	whether to discard the duplicated masks or not
+	 */
+	public void setDuplicateSuppression(boolean suppressDuplicates) {
+		setDuplicateSuppression(suppressDuplicates, DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD, 
+				DuplicateMaskFilter.DEFAULT_CONTAINMENT_THRESHOLD);
+	}
+	
+	/**
+	 * Set whether the masks of a batch of prompts that are duplicates of other masks of the same batch
+	 * are discarded before being sent to {@link BatchCallback#drawRoi(List)} and returned
+	 * @param suppressDuplicates
+	 * 	whether to discard the duplicated masks or not
+	 * @param iouThreshold
+	 * 	minimum intersection over union for two masks to be considered the same object
+	 * @param containmentThreshold
+	 * 	minimum fraction of the smallest mask covered by the other one for two masks to be considered the same object
+	 */
+	public void setDuplicateSuppression(boolean suppressDuplicates, double iouThreshold, double containmentThreshold) {
+		DuplicateMaskFilter.checkThresholds(iouThreshold, containmentThreshold);
+		this.suppressDuplicates = suppressDuplicates;
+		this.duplicateIoU = iouThreshold;
+		this.duplicateContainment = containmentThreshold;
+	}
+	
+	/**
+	 * Set the filters applied to the masks found by {@link #segmentEverything(int, boolean, BatchCallback)}
+	 * @param iouThreshold
+	 * 	minimum IoU predicted by the model for a mask to be kept, between 0 and 1
+	 * @param stabilityThreshold
+	 * 	minimum stability score for a mask to be kept, between 0 and 1. The stability score is the IoU between the 
+	 * 	masks obtained thresholding the logits of the model slightly above and below 0, 0 disables the filter
+	 */
+	public void setEverythingThresholds(double iouThreshold, double stabilityThreshold) {
+		if (iouThreshold < 0 || iouThreshold > 1)
+			throw new IllegalArgumentException("The predicted IoU threshold needs to be in [0, 1]: " + iouThreshold);
+		else if (stabilityThreshold < 0 || stabilityThreshold > 1)
+			throw new IllegalArgumentException("The stability threshold needs to be in [0, 1]: " + stabilityThreshold);
+		this.everythingIoUThreshold = iouThreshold;
+		this.everythingStabilityThreshold = stabilityThreshold;
+	}
+	
+	/**
+	 * Set the filters applied to the masks found by {@link #segmentEverything(int, boolean, BatchCallback)}, also
+	 * discarding the masks that are mostly covered by a bigger one
+	 * @param iouThreshold
+	 * 	minimum IoU predicted by the model for a mask to be kept, between 0 and 1
+	 * @param stabilityThreshold
+	 * 	minimum stability score for a mask to be kept, between 0 and 1, 0 disables the filter
+	 * @param containmentThreshold
+	 * 	minimum fraction of the smallest of two masks covered by the other for both to be considered the same object,
+	 * 	{@link DuplicateMaskFilter#NO_CONTAINMENT} to only compare the IoU of the masks, which keeps the nested objects
+	 */
+	public void setEverythingThresholds(double iouThreshold, double stabilityThreshold, double containmentThreshold) {
+		DuplicateMaskFilter.checkThresholds(DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD, containmentThreshold);
+		setEverythingThresholds(iouThreshold, stabilityThreshold);
+		this.everythingContainmentThreshold = containmentThreshold;
+	}
+	
+	/**
+	 * 
+	 * @return number of points of the grid decoded per second by the last call to 
+	 * 	{@link #segmentEverything(int, boolean, BatchCallback)}, including the encoding if it was needed
+	 */
+	public double getEverythingThroughput() {
+		return everythingThroughput;
+	}
+	
+	private void startDuplicateFilter() {
+		batchFilter = suppressDuplicates ? new DuplicateMaskFilter(duplicateIoU, duplicateContainment) : null;
+	}
+	
+	private List<Mask> filterDuplicates(List<Mask> masks) {
+		Rectangle crop = everythingCrop;
+		if (crop != null)
+			masks = removeCropEdgeMasks(masks, crop);
+		DuplicateMaskFilter filter = batchFilter;
+		return filter == null ? masks : filter.filter(masks);
+	}
+	
+	/**
+	 * Set the store where the encodings are written to disk, so images that are opened again do not need
+	 * to be encoded again, even after closing the Python process. The encodings of the images and of the crops
+	 * encoded around the prompts are written by a background thread of the Python process, the tiles of the 
+	 * big images and the crops of {@link #segmentEverything(int, int, boolean, BatchCallback)} are not written.
+	 * By default the encodings are not written to disk
+	 * @param diskStore
+	 * 	the store where the encodings are written, for example {@link EncodingDiskStore#getDefault()}, 
+	 * 	null to not write them to disk
+	 */
+	public void setEncodingDiskStore(EncodingDiskStore diskStore) {
+		this.diskStore = diskStore;
 	}
 	
 	/**
@@ -290,36 +886,75 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 */
 	public <T extends RealType<T> & NativeType<T>>
 	void setImage(RandomAccessibleInterval<T> rai) throws IOException, RuntimeException, InterruptedException {
-		setImageOfInterest(rai);
-		if (img.dimensionsAsLongArray()[0] * img.dimensionsAsLongArray()[1] > MAX_ENCODED_AREA_RS * MAX_ENCODED_AREA_RS
-				|| img.dimensionsAsLongArray()[0] > MAX_ENCODED_SIDE || img.dimensionsAsLongArray()[1] > MAX_ENCODED_SIDE) {
-			this.targetDims = new long[] {0, 0, 0};
-			this.imageSmall = false;
-			return;
-		} else {
-			scale = 1;
-		}
-		this.script = "";
-		sendImgLib2AsNp();
-		createEncodeImageScript();
+		requestLock.lock();
 		try {
-			printScript(script, "Creation of initial embeddings");
-			Task task = python.task(script);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException(task.error);
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException(task.error);
-			this.shma.close();
-		} catch (IOException | InterruptedException | RuntimeException e) {
+			String newContentHash = ImgLib2Utils.contentHash(rai);
+			String newHash = newContentHash + getNormalizationSuffix();
+			if (tiles != null && newHash.equals(imageHash))
+				return;
+			if (!newHash.equals(imageHash))
+				maskIndex.clear();
+			stopTileEncoding();
+			this.tiles = null;
+			deleteTileEncodings();
+			setImageOfInterest(rai);
+			this.imageHash = newHash;
+			this.contentHash = newContentHash;
+			this.appliedPercentiles = new double[] {lowPercentile, highPercentile};
+			this.currentTile = -1;
+			if (img.dimensionsAsLongArray()[0] * img.dimensionsAsLongArray()[1] > MAX_ENCODED_AREA_RS * MAX_ENCODED_AREA_RS
+					|| img.dimensionsAsLongArray()[0] > MAX_ENCODED_SIDE || img.dimensionsAsLongArray()[1] > MAX_ENCODED_SIDE) {
+				this.targetDims = new long[] {0, 0, 0};
+				this.imageSmall = false;
+				this.tiles = new TileGrid(img.dimensionsAsLongArray()[0], img.dimensionsAsLongArray()[1], TILE_SIDE, TILE_OVERLAP);
+				startTileEncoding();
+				return;
+			} else {
+				scale = 1;
+			}
+			this.encodeCoords = new long[] {0, 0};
+			String imageKey = IMAGE_ENCODING_PREFIX + imageHash + "_0_0_" + targetDims[0] + "_" + targetDims[1] + "_s" + scale;
+			if (imageKey.equals(loadedEncodingKey)) {
+				return;
+			} else if (savedEncodings.containsKey(imageKey)) {
+				loadEncoding(imageKey);
+				this.loadedEncodingKey = imageKey;
+				return;
+			}
+			// the encodings of the previous image are not in the predictor anymore
+			this.loadedEncodingKey = null;
+			String diskKey = getDiskKey(new long[] {0, 0, targetDims[0], targetDims[1]}, scale);
+			if (diskKey != null && diskStore.contains(diskKey) && loadEncodingFromDisk(diskKey, "")) {
+				storeEncoding(imageKey);
+				this.loadedEncodingKey = imageKey;
+				return;
+			}
+			this.script = "";
+			sendImgLib2AsNp();
+			createEncodeImageScript();
+			if (diskKey != null)
+				this.script += System.lineSeparator() + saveEncodingToDiskScript(diskKey);
 			try {
-				this.shma.close();
-			} catch (IOException e1) {
-				throw new IOException(e.toString() + System.lineSeparator() + e1.toString());
+				printScript(script, "Creation of initial embeddings");
+				Task task = newTask(script, null);
+				task.waitFor();
+				if (task.status == TaskStatus.CANCELED)
+					throw new CancellationException("Task canceled");
+				else if (task.status == TaskStatus.FAILED)
+					throw new RuntimeException(task.error);
+				else if (task.status == TaskStatus.CRASHED)
+					throw new RuntimeException(task.error);
+				if (diskKey != null)
+					diskStore.trimInBackground();
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				shmPool.discard(this.shma);
+				throw e;
 			}
-			throw e;
+			shmPool.release(this.shma);
+			storeEncoding(imageKey);
+			this.loadedEncodingKey = imageKey;
+		} finally {
+			requestLock.unlock();
 		}
 	}
 	
@@ -328,29 +963,451 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	}
 	
 	private void reencodeCrop(long[] cropSize) throws IOException, InterruptedException, RuntimeException {
+		reencodeCrop(cropSize, "");
+	}
+	
+	private void reencodeCrop(long[] cropSize, String postScript) throws IOException, InterruptedException, RuntimeException {
+		reencodeCrop(cropSize, postScript, true);
+	}
+	
+	/**
+	 * Encode a crop of the image of interest starting at {@link #encodeCoords}
+	 * @param cropSize
+	 * 	size [width, height] of the crop, if null the crop is defined by the 4 values of {@link #encodeCoords}
+	 * @param postScript
+	 * 	Python code that is run in the same task right after the encoding
+	 * @param useDiskStore
+	 * 	whether the encodings are looked for in the {@link #diskStore} and written to it or not
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	private void reencodeCrop(long[] cropSize, String postScript, boolean useDiskStore) 
+			throws IOException, InterruptedException, RuntimeException {
+		this.currentTile = -1;
+		this.loadedEncodingKey = null;
+		long[] cropDims = cropSize != null ? cropSize 
+				: new long[] {encodeCoords[2] - encodeCoords[0], encodeCoords[3] - encodeCoords[1]};
+		int cropScale = getCropScale(cropDims);
+		String diskKey = useDiskStore ? getDiskKey(new long[] {encodeCoords[0], encodeCoords[1], cropDims[0], cropDims[1]}, cropScale) : null;
+		if (diskKey != null && diskStore.contains(diskKey) && loadEncodingFromDisk(diskKey, postScript)) {
+			this.targetDims = new long[] {cropDims[0], cropDims[1], 3};
+			this.scale = cropScale;
+			if (cropScale != 1)
+				this.targetReescaledDims = new long[] {cropDims[0] / cropScale, cropDims[1] / cropScale, 3};
+			return;
+		}
 		this.script = "";
 		sendCropAsNp(cropSize);
 		createEncodeImageScript();
+		if (diskKey != null)
+			this.script += System.lineSeparator() + saveEncodingToDiskScript(diskKey);
+		this.script += System.lineSeparator() + postScript + System.lineSeparator();
 		try {
 			printScript(script, "Creation of the cropped embeddings");
-			Task task = python.task(script);
+			Task task = newTask(script, null);
 			task.waitFor();
 			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
+				throw new CancellationException("Task canceled");
 			else if (task.status == TaskStatus.FAILED)
 				throw new RuntimeException(task.error);
 			else if (task.status == TaskStatus.CRASHED)
 				throw new RuntimeException(task.error);
-			this.shma.close();
+			if (diskKey != null)
+				diskStore.trimInBackground();
 		} catch (IOException | InterruptedException | RuntimeException e) {
+			shmPool.discard(this.shma);
+			throw e;
+		}
+		shmPool.release(this.shma);
+		
+	}
+	
+	/**
+	 * Start encoding in the background all the tiles of an image that is too big to be encoded at once.
+	 * The tiles closer to the last prompt are encoded first
+	 */
+	private void startTileEncoding() {
+		stopTileEncoding = false;
+		lastPromptCenter = null;
+		final TileGrid grid = this.tiles;
+		tileEncodingThread = new Thread(() -> {
 			try {
-				this.shma.close();
-			} catch (IOException e1) {
-				throw new IOException(e.toString() + System.lineSeparator() + e1.toString());
+				while (!stopTileEncoding) {
+					tileLock.lock();
+					try {
+						int n = grid.nextTileToEncode(lastPromptCenter);
+						if (n == -1 || stopTileEncoding || cacheStats.snapshot().getBytesResident() + lastTileBytes > encodingCacheBudget)
+							break;
+						encodeTile(n);
+					} finally {
+						tileLock.unlock();
+					}
+				}
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				if (!stopTileEncoding)
+					debugPrinter.printText("Encoding of the tiles stopped: " + e.toString());
 			}
-			throw e;
+		});
+		tileEncodingThread.setName("SAMJ tile encoder");
+		tileEncodingThread.setDaemon(true);
+		tileEncodingThread.start();
+	}
+	
+	/**
+	 * Stop the background encoding of the tiles. Waits for the tile that is being encoded, if any, 
+	 * so the next task does not overlap with it in the Python process
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void stopTileEncoding() throws InterruptedException {
+		stopTileEncoding = true;
+		if (tileEncodingThread != null)
+			tileEncodingThread.join();
+		tileEncodingThread = null;
+	}
+	
+	private synchronized void deleteTileEncodings() throws IOException, InterruptedException, RuntimeException {
+		List<String> tileEncodings = savedEncodings.keySet().stream()
+				.filter(name -> name.startsWith(TILE_ENCODING_PREFIX)).collect(Collectors.toList());
+		for (String name : tileEncodings)
+			removeEncoding(name, false);
+		lastTileBytes = 0;
+	}
+	
+	/**
+	 * Encode a tile and keep its encodings in the Python encodings map. After this method the encodings of the
+	 * tile are loaded in the predictor
+	 * @param n
+	 * 	index of the tile
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	private void encodeTile(int n) throws IOException, InterruptedException, RuntimeException {
+		Rectangle tile = tiles.getTile(n);
+		this.encodeCoords = new long[] {tile.x, tile.y};
+		reencodeCrop(new long[] {tile.width, tile.height}, "", false);
+		this.currentTile = n;
+		lastTileBytes = storeEncoding(TILE_ENCODING_PREFIX + n);
+		tiles.setEncoded(n, true);
+	}
+	
+	/**
+	 * Load the encodings of a tile in the predictor. If the tile has not been encoded in the background yet,
+	 * it is encoded now
+	 * @param n
+	 * 	index of the tile
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	private void useTile(int n) throws IOException, InterruptedException, RuntimeException {
+		if (!tiles.isEncoded(n)) {
+			encodeTile(n);
+			return;
+		} else if (currentTile == n) {
+			return;
 		}
+		Rectangle tile = tiles.getTile(n);
+		loadEncoding(TILE_ENCODING_PREFIX + n);
+		this.encodeCoords = new long[] {tile.x, tile.y};
+		this.targetDims = new long[] {tile.width, tile.height, 3};
+		this.scale = getCropScale(new long[] {tile.width, tile.height});
+		this.currentTile = n;
+	}
+	
+	/**
+	 * Load in the predictor the encodings of the tile that covers the area needed by a prompt
+	 * @param area
+	 * 	area of the image needed to process the prompt
+	 * @return true if there is a tile that covers the area and false otherwise. In that case
+	 * 	the area needs to be encoded as a crop
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	private boolean useTileCovering(Rectangle area) throws IOException, InterruptedException, RuntimeException {
+		lastPromptCenter = new int[] {(int) area.getCenterX(), (int) area.getCenterY()};
+		int n = tiles.findCoveringTile(area);
+		if (!tiles.covers(n, area))
+			return false;
+		useTile(n);
+		return true;
+	}
+	
+	private Rectangle getAreaAroundBox(int[] boundingBox) {
+		Rectangle area = new Rectangle((int) (boundingBox[0] - ENCODE_MARGIN), (int) (boundingBox[1] - ENCODE_MARGIN), 
+				(int) (boundingBox[2] - boundingBox[0] + 2 * ENCODE_MARGIN), (int) (boundingBox[3] - boundingBox[1] + 2 * ENCODE_MARGIN));
+		return area.intersection(new Rectangle(0, 0, (int) img.dimensionsAsLongArray()[0], (int) img.dimensionsAsLongArray()[1]));
+	}
+	
+	/**
+	 * Create a Python task. If the thread is running an asynchronous request, the task is attached to it
+	 * so cancelling the request cancels the task
+	 * @param code
+	 * 	the Python script
+	 * @param inputs
+	 * 	the inputs of the script, can be null
+	 * @return the task, not started yet
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws CancellationException if the asynchronous request has been canceled
+	 */
+	private Task newTask(String code, Map<String, Object> inputs) throws IOException, RuntimeException {
+		lastActivity = System.currentTimeMillis();
+		InferenceFuture<?> request = activeRequests.get(Thread.currentThread());
+		if (request == null) {
+			lastTask = inputs == null ? python.task(code) : python.task(code, inputs);
+			return lastTask;
+		}
+		synchronized (request) {
+			if (request.isCancelled())
+				throw new CancellationException("Task canceled");
+			request.task = inputs == null ? python.task(code) : python.task(code, inputs);
+			lastTask = request.task;
+			return request.task;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return time since the model finished its last Python task in milliseconds, 0 if it is running one.
+	 * 	The end of the tasks is only noticed when this method is called, so it should be called periodically
+	 */
+	public long getIdleTime() {
+		Task task = lastTask;
+		long now = System.currentTimeMillis();
+		if (task != null && (task.status == null || !task.status.isFinished()))
+			lastActivity = now;
+		return now - lastActivity;
+	}
+	
+	/**
+	 * Run an inference asynchronously. The requests submitted are run one after the other, in the order they 
+	 * were submitted, so several of them can be in flight without the caller waiting for the Python process.
+	 * Cancelling the future cancels the Python task that is running for the request, or skips the request
+	 * if it has not started yet
+	 * @param <R>
+	 * 	type of the result
+	 * @param inference
+	 * 	the inference, it can call any of the blocking methods of this instance
+	 * @param executor
+	 * 	executor where the inference waits for the Python process
+	 * @return the future result of the inference
+	 */
+	public <R> CompletableFuture<R> submit(Inference<R> inference, Executor executor) {
+		Objects.requireNonNull(executor, "The executor cannot be null.");
+		final InferenceFuture<R> future = new InferenceFuture<R>();
+		executor.execute(() -> {
+			if (future.isDone())
+				return;
+			requestLock.lock();
+			try {
+				if (future.isDone())
+					return;
+				activeRequests.put(Thread.currentThread(), future);
+				future.complete(inference.run());
+			} catch (IOException | RuntimeException | InterruptedException e) {
+				future.completeExceptionally(e);
+			} finally {
+				activeRequests.remove(Thread.currentThread());
+				requestLock.unlock();
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Asynchronous version of {@link #setImage(RandomAccessibleInterval)}
+	 * @param <T>
+	 * 	ImgLib2 data type of the image of interest
+	 * @param rai
+	 * 	image that is going to be encoded
+	 * @param executor
+	 * 	executor where the encoding waits for the Python process
+	 * @return future that completes once the image is encoded
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	CompletableFuture<Void> setImageAsync(RandomAccessibleInterval<T> rai, Executor executor) {
+		return submit(() -> {
+			setImage(rai);
+			return null;
+		}, executor);
+	}
+	
+	/**
+	 * Asynchronous version of {@link #processPoints(List, List, boolean)}
+	 * @param pointsList
+	 * 	the list of points that serve as a prompt for EfficientSAM
+	 * @param pointsNegList
+	 * 	the list of points that does not point to the instance of interest, but the background
+	 * @param returnAll
+	 * 	whether to return all the polygons created by EfficientSAM of only the biggest
+	 * @param executor
+	 * 	executor where the inference waits for the Python process
+	 * @return the future list of polygons
+	 */
+	public CompletableFuture<List<Mask>> processPointsAsync(List<int[]> pointsList, List<int[]> pointsNegList, 
+			boolean returnAll, Executor executor) {
+		return submit(() -> processPoints(pointsList, pointsNegList, returnAll), executor);
+	}
+	
+	/**
+	 * Asynchronous version of {@link #processBox(int[], boolean)}
+	 * @param boundingBox
+	 * 	the bounding box that serves as the prompt for EfficientSAM
+	 * @param returnAll
+	 * 	whether to return all the polygons created by EfficientSAM of only the biggest
+	 * @param executor
+	 * 	executor where the inference waits for the Python process
+	 * @return the future list of polygons
+	 */
+	public CompletableFuture<List<Mask>> processBoxAsync(int[] boundingBox, boolean returnAll, Executor executor) {
+		return submit(() -> processBox(boundingBox, returnAll), executor);
+	}
+	
+	/**
+	 * Asynchronous version of {@link #processBatchOfPrompts(List, List, RandomAccessibleInterval, boolean, BatchCallback)}
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask
+	 * @param pointsList
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param rai
+	 * 	mask whose objects are used as prompts, can be null
+	 * @param returnAll
+	 * 	whether to return all the objects found for each prompt or only the biggest one
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @param executor
+	 * 	executor where the inference waits for the Python process
+	 * @return the future list of polygons
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	CompletableFuture<List<Mask>> processBatchOfPromptsAsync(List<int[]> pointsList, List<Rectangle> rects, 
+			RandomAccessibleInterval<T> rai, boolean returnAll, BatchCallback callback, Executor executor) {
+		if (callback == null)
+			return submit(() -> processBatchOfPrompts(pointsList, rects, rai, returnAll), executor);
+		return submit(() -> processBatchOfPrompts(pointsList, rects, rai, returnAll, callback), executor);
+	}
+	
+	/**
+	 * {@link CompletableFuture} of an asynchronous request that cancels the Python task of the request when cancelled
+	 */
+	private static class InferenceFuture<R> extends CompletableFuture<R> {
+		/**
+		 * Last Python task started by the request
+		 */
+		private Task task;
 		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean canceled = super.cancel(mayInterruptIfRunning);
+			Task running;
+			synchronized (this) {
+				running = task;
+			}
+			if (canceled && running != null && running.status != null && !running.status.isFinished())
+				running.cancel();
+			return canceled;
+		}
+	}
+	
+	private void runTask(String code) throws IOException, InterruptedException, RuntimeException {
+		Task task = newTask(code, null);
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new CancellationException("Task canceled");
+		else if (task.status == TaskStatus.FAILED)
+			throw new RuntimeException(task.error);
+		else if (task.status == TaskStatus.CRASHED)
+			throw new RuntimeException(task.error);
+	}
+	
+	private static int getCropScale(long[] cropDims) {
+		return Math.max(1, (int) (Math.min(cropDims[0], cropDims[1]) / MAX_IMG_SIZE));
+	}
+	
+	/**
+	 * 
+	 * @param crop
+	 * 	crop of the image of interest that is encoded [x, y, width, height]
+	 * @param cropScale
+	 * 	subsampling factor applied to the crop
+	 * @return the key of the encodings of the crop in the {@link #diskStore} or null if the encodings are not written to disk
+	 */
+	private String getDiskKey(long[] crop, int cropScale) {
+		if (diskStore == null || imageHash == null)
+			return null;
+		return diskStore.getKey(imageHash, modelId, crop, cropScale);
+	}
+	
+	private String saveEncodingToDiskScript(String diskKey) {
+		return persistEncodingScript(DISK_ENCODING_NAME) + System.lineSeparator()
+				+ "save_encoding_to_disk_async(encodings_map.pop('" + DISK_ENCODING_NAME + "'), r'" 
+				+ diskStore.getPathForPython(diskKey) + "')" + System.lineSeparator();
+	}
+	
+	/**
+	 * Load in the predictor encodings previously written to the {@link #diskStore}
+	 * @param diskKey
+	 * 	key of the encodings in the store
+	 * @param postScript
+	 * 	Python code that is run in the same task right after loading the encodings
+	 * @return true if the encodings were loaded and false if they could not be read, in that case they
+	 * 	are deleted from the store and the image needs to be encoded
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	private boolean loadEncodingFromDisk(String diskKey, String postScript) throws IOException, InterruptedException {
+		String code = ""
+				+ "encodings_map['" + DISK_ENCODING_NAME + "'] = load_encoding_from_disk(r'" + diskStore.getPathForPython(diskKey) + "')" + System.lineSeparator()
+				+ selectEncodingScript(DISK_ENCODING_NAME) + System.lineSeparator()
+				+ "del encodings_map['" + DISK_ENCODING_NAME + "']" + System.lineSeparator()
+				+ postScript + System.lineSeparator();
+		printScript(code, "Loading of the embeddings from disk");
+		try {
+			runTask(code);
+			diskStore.touch(diskKey);
+			return true;
+		} catch (RuntimeException ex) {
+			debugPrinter.printText("Unable to load the encodings from disk, encoding the image again: " + ex.getMessage());
+			diskStore.delete(diskKey);
+			return false;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the shape of the numpy array of the image written in {@link #shma}, [channels, height, width] if it was 
+	 * 	copied by planes ({@link #planarShm}) or [width, height, channels] otherwise
+	 */
+	protected String getShmImageShape() {
+		long width = (long) Math.ceil(targetDims[0] / (double) scale);
+		long height = (long) Math.ceil(targetDims[1] / (double) scale);
+		if (planarShm)
+			return "[" + targetDims[2] + ", " + height + ", " + width + "]";
+		return "[" + width + ", " + height + ", " + targetDims[2] + "]";
+	}
+	
+	/**
+	 * Write a mask into a segment of the {@link #shmPool}, as the uint8 C-ordered array with the dimensions of the mask, 
+	 * 1 where the mask is not 0
+	 * @return the segment, that has to be released once the mask has been used
+	 */
+	private <T extends RealType<T> & NativeType<T>> SharedMemoryArray sendMask(RandomAccessibleInterval<T> rai) {
+		maskDims = rai.dimensionsAsLongArray();
+		SharedMemoryArray maskShma = shmPool.acquire(Intervals.numElements(rai));
+		ImgLib2Utils.writeMask(rai, maskShma.getDataBufferNoHeader());
+		return maskShma;
+	}
+	
+	/**
+	 * 
+	 * @return the statistics of the shared memory segments used to send the images and masks to Python, and of their reuse
+	 */
+	public SharedMemoryPool getSharedMemoryPool() {
+		return shmPool;
 	}
 	
 	protected <T extends RealType<T> & NativeType<T>> 
@@ -371,15 +1428,13 @@ public abstract class AbstractSamJ implements AutoCloseable {
 				Views.offsetInterval( Cast.unchecked(img), new long[] {encodeCoords[0], encodeCoords[1], 0}, cropSize );
 		targetDims = crop.dimensionsAsLongArray();
 		
-		scale = (int) (Math.min(targetDims[0], targetDims[1]) / MAX_IMG_SIZE);
-		scale = Math.max(scale, 1);
+		scale = getCropScale(targetDims);
 		if (scale == 1) {
 			createSHMArray(crop);
 		} else {
-			RandomAccessibleInterval<T> subsampledCrop = Views.subsample(crop, 
-					new long[] {scale, scale, 1});
-			targetReescaledDims = subsampledCrop.dimensionsAsLongArray();
-			createSHMArray(subsampledCrop);
+			RandomAccessibleInterval<T> reescaledCrop = ImgLib2Utils.reescaleIfNeeded(crop, scale);
+			targetReescaledDims = reescaledCrop.dimensionsAsLongArray();
+			createSHMArray(reescaledCrop);
 		}
 		
 	}
@@ -390,7 +1445,7 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		Map<String, Object> results = null;
 		List<Mask> totalPolys = new ArrayList<Mask>();
 		try {
-			Task task = python.task(script, inputs);
+			Task task = newTask(RELEASE_SHMS_SCRIPT + script, inputs);
 			nRoisProcessed = 1;
 			task.listen(event -> {
 	            switch (event.responseType) {
@@ -399,8 +1454,10 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	                		break;
 	                	else if (task.message.equals(UPDATE_ID_CONTOUR)) {
 	                		callback.updateProgress(nRoisProcessed ++);
-	                		List<Mask> polys = defineMask((List<List<Number>>)task.outputs.get("temp_x"), 
-	                				(List<List<Number>>)task.outputs.get("temp_y"), (List<List<Number>>)task.outputs.get("temp_mask"));
+	                		List<Mask> polys = retrieveMasks(task.outputs, "temp_x", "temp_y", "temp_mask");
+	                		recalculatePolys(polys, encodeCoords);
+	                		polys = filterDuplicates(polys);
+	                		maskIndex.addAll(polys);
 	                		callback.drawRoi(polys);
 	                		totalPolys.addAll(polys);
 	                	} else if (task.message.equals(UPDATE_ID_N_CONTOURS)) {
@@ -414,84 +1471,160 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	        });
 			task.waitFor();
 			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
+				throw new CancellationException("Task canceled");
 			else if (task.status == TaskStatus.FAILED)
 				throw new RuntimeException(task.error);
 			else if (task.status == TaskStatus.CRASHED)
 				throw new RuntimeException(task.error);
 			else if (task.status != TaskStatus.COMPLETE)
 				throw new RuntimeException(task.error);
-			else if (task.outputs.get("contours_x") == null)
-				throw new RuntimeException("No 'contours_x' output found");
-			else if (task.outputs.get("contours_y") == null)
-				throw new RuntimeException("No 'contours_y' output found");
-			else if (task.outputs.get("rle") == null)
-				throw new RuntimeException("No 'rle' outputs found");
+			checkMaskOutputs(task.outputs);
 			callback.updateProgress(Integer.parseInt((String) task.outputs.get("n")));
 			results = task.outputs;
 		} catch (InterruptedException | RuntimeException e) {
 			throw e;
 		}
-		List<Mask> polys = defineMask((List<List<Number>>)results.get("contours_x"), 
-				(List<List<Number>>)results.get("contours_y"), (List<List<Number>>)results.get("rle"));
+		List<Mask> polys = retrieveMasks(results, "contours_x", "contours_y", "rle");
+		recalculatePolys(polys, encodeCoords);
+		polys = filterDuplicates(polys);
+		maskIndex.addAll(polys);
 		callback.drawRoi(polys);
 		totalPolys.addAll(polys);
+		return totalPolys;
+	}
+	
+	private List<Mask> defineMask(List<List<Number>> contoursX, List<List<Number>> contoursY, List<List<Number>> rles, long width) {
+		final Iterator<List<Number>> contoursXIt = contoursX.iterator();
+		final Iterator<List<Number>> contoursYIt = contoursY.iterator();
+		final Iterator<List<Number>> rleIt = rles.iterator();
+		final List<Mask> masks = new ArrayList<Mask>(contoursX.size());
+		while (contoursXIt.hasNext()) {
+			int[] xArr = contoursXIt.next().stream().mapToInt(Number::intValue).toArray();
+			int[] yArr = contoursYIt.next().stream().mapToInt(Number::intValue).toArray();
+			long[] rle = rleIt.next().stream().mapToLong(Number::longValue).toArray();
+			masks.add(Mask.build(new Polygon(xArr, yArr, xArr.length), rle, width));
+		}
+		return masks;
+	}
+	
+	/**
+	 * Read the masks returned by the Python process. If the Python process packed them in a shared memory
+	 * segment they are decoded from it, otherwise they are read from the JSON lists of the outputs.
+	 * The contours that were not traced in Python are traced from the RLE masks
+	 * @param outputs
+	 * 	the outputs of the Python task or of the update event
+	 * @param xKey
+	 * 	key of the x coordinates of the contours in the JSON outputs
+	 * @param yKey
+	 * 	key of the y coordinates of the contours in the JSON outputs
+	 * @param rleKey
+	 * 	key of the RLE masks in the JSON outputs
+	 * @return the list of masks
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Mask> retrieveMasks(Map<String, Object> outputs, String xKey, String yKey, String rleKey) {
+		List<Mask> masks;
+		long width = (long) Math.ceil(this.targetDims[0] / (double) scale);
+		if (outputs.get(MASKS_SHM_KEY) != null) {
+			try {
+				masks = readMasksFromShm((String) outputs.get(MASKS_SHM_KEY), 
+						Long.parseLong((String) outputs.get(MASKS_SHM_SIZE_KEY)), width);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read the masks from shared memory: " + e.getMessage(), e);
+			}
+		} else {
+			masks = defineMask((List<List<Number>>) outputs.get(xKey), 
+					(List<List<Number>>) outputs.get(yKey), (List<List<Number>>) outputs.get(rleKey), width);
+		}
+		RleContourTracer.traceMissingContours(masks);
+		return masks;
+	}
+	
+	/**
+	 * Decode the masks packed by the Python method 'set_mask_outputs' in a shared memory segment and release it.
+	 * The data is copied in bulk into primitive arrays, without boxing any coordinate.
+	 * @param pythonName
+	 * 	name of the shared memory segment as given by Python
+	 * @param size
+	 * 	number of int64 values in the segment
+	 * @param width
+	 * 	width of the image in which the RLE masks are defined
+	 * @return the list of masks
+	 * @throws IOException if the shared memory segment cannot be opened
+	 */
+	private List<Mask> readMasksFromShm(String pythonName, long size, long width) throws IOException {
+		String name = PlatformDetection.isWindows() || pythonName.startsWith("/") ? pythonName : "/" + pythonName;
+		long[] payload = new long[(int) size];
+		SharedMemoryArray resultsShma = SharedMemoryArray.readOrCreate(name, new long[] {size}, new LongType(), false, false);
+		try {
+			resultsShma.getDataBufferNoHeader().duplicate().order(ByteOrder.nativeOrder()).asLongBuffer().get(payload);
+		} finally {
+			// closing the segment unlinks it, Python does not keep it open once it has been sent
+			resultsShma.close();
+		}
+		final int nMasks = (int) payload[0];
+		final List<Mask> masks = new ArrayList<Mask>(nMasks);
+		int pos = 2 + 2 * nMasks;
+		for (int n = 0; n < nMasks; n ++) {
+			final int nPoints = (int) payload[2 + n];
+			final int nRle = (int) payload[2 + nMasks + n];
+			final int[] xArr = new int[nPoints];
+			final int[] yArr = new int[nPoints];
+			for (int i = 0; i < nPoints; i ++) {
+				xArr[i] = (int) payload[pos + i];
+				yArr[i] = (int) payload[pos + nPoints + i];
+			}
+			RleMask rle = RleMask.fromRle(payload, pos + 2 * nPoints, pos + 2 * nPoints + nRle, width);
+			pos += 2 * nPoints + nRle;
+			masks.add(Mask.build(new Polygon(xArr, yArr, nPoints), rle));
+		}
+		return masks;
+	}
+	
+	/**
+	 * Run the script of a batch of prompts that has no callback and get its masks in the coordinates of the image,
+	 * without the duplicates and added to the index of masks, as the batches with callback do while they run
+	 */
+	private List<Mask> processBatchAndRetrieveMasks(HashMap<String, Object> inputs) 
+			throws IOException, RuntimeException, InterruptedException {
+		List<Mask> polys = processAndRetrieveContours(inputs);
+		recalculatePolys(polys, encodeCoords);
+		polys = filterDuplicates(polys);
+		maskIndex.addAll(polys);
 		return polys;
 	}
 	
-	private List<Mask> defineMask(List<List<Number>> contoursX, List<List<Number>> contoursY, List<List<Number>> rles) {
-		final Iterator<List<Number>> contoursXIt = contoursX.iterator();
-		final Iterator<List<Number>> contoursYIt = contoursY.iterator();
-		final Iterator<List<Number>> rleIt = rles.iterator();
-		final List<Mask> masks = new ArrayList<Mask>(contoursX.size());
-		while (contoursXIt.hasNext()) {
-			int[] xArr = contoursXIt.next().stream().mapToInt(Number::intValue).toArray();
-			int[] yArr = contoursYIt.next().stream().mapToInt(Number::intValue).toArray();
-			long[] rle = rleIt.next().stream().mapToLong(Number::longValue).toArray();
-			masks.add(Mask.build(new Polygon(xArr, yArr, xArr.length), rle));
-		}
-		recalculatePolys(masks, encodeCoords);
-		return masks;
+	private static void checkMaskOutputs(Map<String, Object> outputs) {
+		if (outputs.get(MASKS_SHM_KEY) != null)
+			return;
+		else if (outputs.get("contours_x") == null)
+			throw new RuntimeException("No 'contours_x' output found");
+		else if (outputs.get("contours_y") == null)
+			throw new RuntimeException("No 'contours_y' output found");
+		else if (outputs.get("rle") == null)
+			throw new RuntimeException("No 'rle' outputs found");
 	}
 	
-	@SuppressWarnings("unchecked")
 	private List<Mask> processAndRetrieveContours(HashMap<String, Object> inputs) 
 			throws IOException, RuntimeException, InterruptedException {
 		Map<String, Object> results = null;
 		try {
-			Task task = python.task(script, inputs);
+			Task task = newTask(RELEASE_SHMS_SCRIPT + script, inputs);
 			task.waitFor();
 			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
+				throw new CancellationException("Task canceled");
 			else if (task.status == TaskStatus.FAILED)
 				throw new RuntimeException(task.error);
 			else if (task.status == TaskStatus.CRASHED)
 				throw new RuntimeException(task.error);
 			else if (task.status != TaskStatus.COMPLETE)
 				throw new RuntimeException(task.error);
-			else if (task.outputs.get("contours_x") == null)
-				throw new RuntimeException("No 'contours_x' output found");
-			else if (task.outputs.get("contours_y") == null)
-				throw new RuntimeException("No 'outputs_y' ouptut found");
-			else if (task.outputs.get("rle") == null)
-				throw new RuntimeException("No 'rle' outputs found");
+			checkMaskOutputs(task.outputs);
 			results = task.outputs;
 		} catch (InterruptedException | RuntimeException e) {
 			throw e;
 		}
-
-		final List<List<Number>> contours_x_container = (List<List<Number>>)results.get("contours_x");
-		final Iterator<List<Number>> contours_x = contours_x_container.iterator();
-		final Iterator<List<Number>> contours_y = ((List<List<Number>>)results.get("contours_y")).iterator();
-		final Iterator<List<Number>> rles = ((List<List<Number>>)results.get("rle")).iterator();
-		final List<Mask> masks = new ArrayList<Mask>(contours_x_container.size());
-		while (contours_x.hasNext()) {
-			int[] xArr = contours_x.next().stream().mapToInt(Number::intValue).toArray();
-			int[] yArr = contours_y.next().stream().mapToInt(Number::intValue).toArray();
-			long[] rle = rles.next().stream().mapToLong(Number::longValue).toArray();
-			masks.add(Mask.build(new Polygon(xArr, yArr, xArr.length), rle));
-		}
-		return masks;
+		return retrieveMasks(results, "contours_x", "contours_y", "rle");
 	}
 	
 	public <T extends RealType<T> & NativeType<T>>
@@ -504,35 +1637,42 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	List<Mask> processBatchOfPrompts(List<int[]> pointsList, List<Rectangle> rects, 
 			RandomAccessibleInterval<T> rai, boolean returnAll, BatchCallback callback) 
 					throws IOException, RuntimeException, InterruptedException {
-		if ((pointsList == null || pointsList.size() == 0) && (rects == null || rects.size() == 0) && (rai == null))
-			return new ArrayList<Mask>();
-		checkPrompts(pointsList, rects, rai);
+		requestLock.lock();
+		try {
+			if ((pointsList == null || pointsList.size() == 0) && (rects == null || rects.size() == 0) && (rai == null))
+				return new ArrayList<Mask>();
+			checkPrompts(pointsList, rects, rai);
+			startDuplicateFilter();
+			if (tiles != null && rai == null)
+				return processBatchOfPromptsInTiles(pointsList, rects, null, returnAll, callback);
 
-		// TODO adapt to reencoding for big images, ideally it should process points close together together
-		pointsList = adaptPointPrompts(pointsList);
-		// TODO adapt rect prompts
-		this.script = "";
-		SharedMemoryArray maskShma = null;
-		if (rai != null)
-			maskShma = SharedMemoryArray.createSHMAFromRAI(rai, false, false);
+			// TODO adapt to reencoding for big images, ideally it should process points close together together
+			pointsList = adaptPointPrompts(pointsList);
+			// TODO adapt rect prompts
+			this.script = "";
+			SharedMemoryArray maskShma = null;
+			if (rai != null)
+				maskShma = sendMask(rai);
 
-		try {
-			HashMap<String, Object> inputs = new HashMap<String, Object>();
-			inputs.put("point_prompts", pointsList == null ? new ArrayList<int[]>() : pointsList);
-			List<int[]> rectPrompts = new ArrayList<int[]>();
-			if (rects != null && rects.size() > 0)
-				rectPrompts = rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
-											.collect(Collectors.toList());
-			inputs.put("rect_prompts", rectPrompts);
-			processPromptsBatchWithSAM(maskShma, returnAll);
-			printScript(script, "Batch of prompts inference");
-			List<Mask> polys = processAndRetrieveContours(inputs, callback);
-			if (PlatformDetection.isWindows() && maskShma != null) maskShma.close();
-			return polys;
-		} catch (IOException | RuntimeException | InterruptedException ex) {
-			if (maskShma != null)
-				maskShma.close();
-			throw ex;
+			try {
+				HashMap<String, Object> inputs = new HashMap<String, Object>();
+				inputs.put("point_prompts", pointsList == null ? new ArrayList<int[]>() : pointsList);
+				List<int[]> rectPrompts = new ArrayList<int[]>();
+				if (rects != null && rects.size() > 0)
+					rectPrompts = rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
+												.collect(Collectors.toList());
+				inputs.put("rect_prompts", rectPrompts);
+				processPromptsBatchWithSAM(maskShma, returnAll);
+				printScript(script, "Batch of prompts inference");
+				List<Mask> polys = processAndRetrieveContours(inputs, callback);
+				shmPool.release(maskShma);
+				return polys;
+			} catch (IOException | RuntimeException | InterruptedException ex) {
+				shmPool.discard(maskShma);
+				throw ex;
+			}
+		} finally {
+			requestLock.unlock();
 		}
 	}
 	
@@ -545,36 +1685,157 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	public <T extends RealType<T> & NativeType<T>>
 	List<Mask> processBatchOfPrompts(List<int[]> pointsList, List<Rectangle> rects, RandomAccessibleInterval<T> rai, boolean returnAll) 
 			throws IOException, RuntimeException, InterruptedException {
-		if ((pointsList == null || pointsList.size() == 0) && (rects == null || rects.size() == 0) && (rai == null))
-			return new ArrayList<Mask>();
-		checkPrompts(pointsList, rects, rai);
+		requestLock.lock();
+		try {
+			if ((pointsList == null || pointsList.size() == 0) && (rects == null || rects.size() == 0) && (rai == null))
+				return new ArrayList<Mask>();
+			checkPrompts(pointsList, rects, rai);
+			startDuplicateFilter();
+			if (tiles != null && rai == null)
+				return processBatchOfPromptsInTiles(pointsList, rects, null, returnAll, null);
 
-		// TODO adapt to reencoding for big images, ideally it should process points close together together
-		pointsList = adaptPointPrompts(pointsList);
-		// TODO adapt rect prompts
-		this.script = "";
-		SharedMemoryArray maskShma = null;
-		if (rai != null)
-			maskShma = SharedMemoryArray.createSHMAFromRAI(rai, false, false);
+			// TODO adapt to reencoding for big images, ideally it should process points close together together
+			pointsList = adaptPointPrompts(pointsList);
+			// TODO adapt rect prompts
+			this.script = "";
+			SharedMemoryArray maskShma = null;
+			if (rai != null)
+				maskShma = sendMask(rai);
 
+			try {
+				HashMap<String, Object> inputs = new HashMap<String, Object>();
+				inputs.put("point_prompts", pointsList == null ? new ArrayList<int[]>() : pointsList);
+				List<int[]> rectPrompts = new ArrayList<int[]>();
+				if (rects != null && rects.size() > 0)
+					rectPrompts = rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
+												.collect(Collectors.toList());
+				inputs.put("rect_prompts", rectPrompts);
+				processPromptsBatchWithSAM(maskShma, returnAll);
+				printScript(script, "Batch of prompts inference");
+				List<Mask> polys = processBatchAndRetrieveMasks(inputs);
+				shmPool.release(maskShma);
+				return polys;
+			} catch (IOException | RuntimeException | InterruptedException ex) {
+				shmPool.discard(maskShma);
+				throw ex;
+			}
+		} finally {
+			requestLock.unlock();
+		}
+	}
+	
+	/**
+	 * Process a batch of prompts on an image divided in tiles. The prompts are grouped by the tile that covers them 
+	 * and every group is processed with the encodings of its tile. If the points of a grid are given, they are
+	 * processed in the automatic mode and the point and rectangle prompts are ignored
+	 */
+	private List<Mask> processBatchOfPromptsInTiles(List<int[]> pointsList, List<Rectangle> rects, List<int[]> grid,
+			boolean returnAll, BatchCallback callback) throws IOException, RuntimeException, InterruptedException {
+		TreeMap<Integer, List<int[]>> pointsPerTile = new TreeMap<Integer, List<int[]>>();
+		TreeMap<Integer, List<int[]>> rectsPerTile = new TreeMap<Integer, List<int[]>>();
+		if (grid != null) {
+			pointsList = grid;
+			rects = null;
+		}
+		if (pointsList != null) {
+			for (int[] pp : pointsList) {
+				int n = tiles.findCoveringTile(getAreaAroundBox(new int[] {pp[0], pp[1], pp[0], pp[1]}));
+				pointsPerTile.computeIfAbsent(n, k -> new ArrayList<int[]>()).add(pp);
+			}
+		}
+		if (rects != null) {
+			for (Rectangle rr : rects) {
+				int[] box = new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height};
+				rectsPerTile.computeIfAbsent(tiles.findCoveringTile(getAreaAroundBox(box)), k -> new ArrayList<int[]>()).add(box);
+			}
+		}
+		TreeSet<Integer> tileInds = new TreeSet<Integer>(pointsPerTile.keySet());
+		tileInds.addAll(rectsPerTile.keySet());
+		TiledBatchCallback tiledCallback = null;
+		if (callback != null) {
+			tiledCallback = new TiledBatchCallback(callback);
+			callback.setTotalNumberOfRois((pointsList == null ? 0 : pointsList.size()) + (rects == null ? 0 : rects.size()));
+		}
+		List<Mask> masks = new ArrayList<Mask>();
+		tileLock.lock();
 		try {
-			HashMap<String, Object> inputs = new HashMap<String, Object>();
-			inputs.put("point_prompts", pointsList == null ? new ArrayList<int[]>() : pointsList);
-			List<int[]> rectPrompts = new ArrayList<int[]>();
-			if (rects != null && rects.size() > 0)
-				rectPrompts = rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
-											.collect(Collectors.toList());
-			inputs.put("rect_prompts", rectPrompts);
-			processPromptsBatchWithSAM(maskShma, returnAll);
-			printScript(script, "Batch of prompts inference");
-			List<Mask> polys = processAndRetrieveContours(inputs);
-			recalculatePolys(polys, encodeCoords);
-			if (PlatformDetection.isWindows() && maskShma != null) maskShma.close();
-			return polys;
-		} catch (IOException | RuntimeException | InterruptedException ex) {
-			if (maskShma != null)
-				maskShma.close();
-			throw ex;
+			for (int n : tileInds) {
+				useTile(n);
+				List<int[]> tilePoints = adaptPointPrompts(pointsPerTile.getOrDefault(n, new ArrayList<int[]>()));
+				List<int[]> tileRects = rectsPerTile.getOrDefault(n, new ArrayList<int[]>()).stream()
+						.map(bb -> new int[] {(int) Math.ceil((bb[0] - encodeCoords[0]) / (double) scale), 
+								(int) Math.ceil((bb[1] - encodeCoords[1]) / (double) scale),
+								(int) Math.ceil((bb[2] - encodeCoords[0]) / (double) scale), 
+								(int) Math.ceil((bb[3] - encodeCoords[1]) / (double) scale)})
+						.collect(Collectors.toList());
+				HashMap<String, Object> inputs = new HashMap<String, Object>();
+				this.script = "";
+				if (grid != null) {
+					inputs.put("point_prompts", new ArrayList<int[]>());
+					inputs.put("rect_prompts", new ArrayList<int[]>());
+					inputs.put("grid_prompts", tilePoints);
+					cellSAM(tilePoints, returnAll);
+				} else {
+					inputs.put("point_prompts", tilePoints);
+					inputs.put("rect_prompts", tileRects);
+					processPromptsBatchWithSAM(null, returnAll);
+				}
+				printScript(script, "Batch of prompts inference on tile " + n);
+				List<Mask> polys;
+				if (callback == null) {
+					polys = processBatchAndRetrieveMasks(inputs);
+				} else {
+					polys = processAndRetrieveContours(inputs, tiledCallback);
+					tiledCallback.finishTile(tilePoints.size() + tileRects.size());
+				}
+				masks.addAll(polys);
+			}
+		} finally {
+			tileLock.unlock();
+		}
+		return masks;
+	}
+	
+	/**
+	 * {@link BatchCallback} that reports the progress of the batches processed tile by tile as a single batch
+	 */
+	private static class TiledBatchCallback implements BatchCallback {
+		
+		private final BatchCallback callback;
+		
+		private int nProcessed = 0;
+		
+		private TiledBatchCallback(BatchCallback callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void setTotalNumberOfRois(int nRois) {
+			// the total is set once for all the tiles
+		}
+
+		@Override
+		public void updateProgress(int n) {
+			callback.updateProgress(nProcessed + n);
+		}
+
+		@Override
+		public void drawRoi(List<Mask> masks) {
+			callback.drawRoi(masks);
+		}
+
+		@Override
+		public void deletePointPrompt(List<int[]> promptList) {
+			callback.deletePointPrompt(promptList);
+		}
+
+		@Override
+		public void deleteRectPrompt(List<int[]> promptList) {
+			callback.deleteRectPrompt(promptList);
+		}
+		
+		private void finishTile(int nPrompts) {
+			nProcessed += nPrompts;
 		}
 	}
 	
@@ -589,15 +1850,249 @@ public abstract class AbstractSamJ implements AutoCloseable {
 				&& (rects == null || rects.size() == 0)
 				&& rai != null) {
 			dims = rai.dimensionsAsLongArray();
+			long width = (long) Math.ceil(targetDims[0] / (double) scale);
+			long height = (long) Math.ceil(targetDims[1] / (double) scale);
 			if ((dims.length == 2 || (dims.length == 3 && dims[2] == 1)) 
-					&& dims[1] == this.shma.getOriginalShape()[0] && dims[0] == this.shma.getOriginalShape()[1]) {
+					&& dims[1] == width && dims[0] == height) {
 				rai = Views.permute(rai, 0, 1);
-			} else if (dims[0] != this.shma.getOriginalShape()[0] && dims[1] != this.shma.getOriginalShape()[1]
+			} else if (dims[0] != width && dims[1] != height
 					|| (dims.length == 3 && dims[2] != 1) || dims.length > 3) {
 				throw new IllegalArgumentException("The provided mask should be a 2d image with just one channel of width "
-						+ this.shma.getOriginalShape()[1] + " and height " + this.shma.getOriginalShape()[0]);
+						+ width + " and height " + height);
+			}
+		}
+	}
+	
+	/**
+	 * Segment every object of the image, prompting the model with each of the points of a regular grid.
+	 * The grid is decoded in batches and only the masks with a high predicted IoU and stability are kept
+	 * ({@link #setEverythingThresholds(double, double)}). The objects found several times are removed with
+	 * a {@link DuplicateMaskFilter} using the IoU threshold of {@link #setDuplicateSuppression(boolean, double, double)}.
+	 * The objects nested inside bigger ones are kept, unless a containment threshold is given to
+	 * {@link #setEverythingThresholds(double, double, double)}
+	 * @param pointsPerSide
+	 * 	number of points of the grid along each side of the image, the grid has pointsPerSide * pointsPerSide points
+	 * @param returnAll
+	 * 	whether to return all the objects found for each point of the grid or only the biggest one
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @return the list of objects found in the image
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, boolean returnAll, BatchCallback callback) 
+			throws IOException, RuntimeException, InterruptedException {
+		return segmentEverything(pointsPerSide, 0, returnAll, callback);
+	}
+	
+	/**
+	 * Segment every object of the image as {@link #segmentEverything(int, boolean, BatchCallback)}, but also
+	 * looking at zoomed crops of the image, so the objects too small to be resolved on the whole image are found.
+	 * Level k of the pyramid divides the image (or each of its tiles if it is too big to be encoded at once) in 
+	 * overlapping crops 2^k times smaller, and each crop is prompted with its own grid of points.
+	 * 
+	 * The masks of the crops that touch the border of the crop, where the objects might be cut, are discarded.
+	 * The levels are processed from the most zoomed one to the whole image, so when the same object is found 
+	 * in several levels the mask with the best resolution is kept. The encodings of the crops are kept in the cache
+	 * to be reused by the next calls on the same image
+	 * @param pointsPerSide
+	 * 	number of points of the grid along each side of the image and of each of the crops
+	 * @param cropLevels
+	 * 	number of zoomed levels of the pyramid, 0 to only segment the whole image, 2 to also look at crops zoomed 2x and 4x
+	 * @param returnAll
+	 * 	whether to return all the objects found for each point of the grid or only the biggest one
+	 * @param callback
+	 * 	callback that receives the objects as they are found, can be null
+	 * @return the list of objects found in the image
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, int cropLevels, boolean returnAll, BatchCallback callback) 
+			throws IOException, RuntimeException, InterruptedException {
+		requestLock.lock();
+		try {
+			if (pointsPerSide < 1)
+				throw new IllegalArgumentException("The grid needs at least one point per side: " + pointsPerSide);
+			else if (cropLevels < 0)
+				throw new IllegalArgumentException("The number of levels of the crop pyramid cannot be negative: " + cropLevels);
+			final long start = System.nanoTime();
+			long[] dims = img.dimensionsAsLongArray();
+			List<Rectangle> crops = new ArrayList<Rectangle>();
+			long baseSide = tiles == null ? Math.max(dims[0], dims[1]) : TILE_SIDE;
+			for (int level = cropLevels; level > 0; level --) {
+				long side = baseSide >> level;
+				if (side < MIN_ENCODED_AREA_SIDE)
+					continue;
+				TileGrid levelGrid = new TileGrid(dims[0], dims[1], side, side / 4);
+				for (int n = 0; n < levelGrid.size(); n ++)
+					crops.add(levelGrid.getTile(n));
+			}
+			List<int[]> grid = createPointGrid(new Rectangle(0, 0, (int) dims[0], (int) dims[1]), pointsPerSide);
+			int nPoints = grid.size() * (crops.size() + 1);
+			TiledBatchCallback pyramidCallback = null;
+			if (callback != null) {
+				pyramidCallback = new TiledBatchCallback(callback);
+				callback.setTotalNumberOfRois(nPoints);
+			}
+			batchFilter = new DuplicateMaskFilter(duplicateIoU, everythingContainmentThreshold);
+			List<Mask> polys = new ArrayList<Mask>();
+			if (crops.size() > 0)
+				polys.addAll(segmentCrops(crops, pointsPerSide, returnAll, pyramidCallback));
+			if (tiles != null) {
+				polys.addAll(processBatchOfPromptsInTiles(null, null, grid, returnAll, pyramidCallback));
+			} else {
+				tileLock.lock();
+				try {
+					useWholeImageEncoding();
+					polys.addAll(segmentEncodedArea(grid, returnAll, pyramidCallback));
+				} finally {
+					tileLock.unlock();
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			everythingThroughput = nPoints / Math.max(seconds, 1e-9);
+			debugPrinter.printText(String.format("segmentEverything() decoded %d grid points on %d crops into %d masks in %.2f s (%.1f points/s)",
+					nPoints, crops.size() + 1, polys.size(), seconds, everythingThroughput));
+			return polys;
+		} finally {
+			requestLock.unlock();
+		}
+	}
+	
+	/**
+	 * Segment everything in each of the crops of the pyramid. The encoding and the decoding of the crops share
+	 * the predictor of the Python process, so each crop is encoded, if it is not cached, right before its grid
+	 * is decoded, by the thread of the request, and cancelling the request cancels both
+	 */
+	private List<Mask> segmentCrops(List<Rectangle> crops, int pointsPerSide, boolean returnAll, TiledBatchCallback callback) 
+			throws IOException, RuntimeException, InterruptedException {
+		List<Mask> masks = new ArrayList<Mask>();
+		for (Rectangle crop : crops) {
+			tileLock.lock();
+			try {
+				useCropEncoding(crop);
+				everythingCrop = crop;
+				masks.addAll(segmentEncodedArea(createPointGrid(crop, pointsPerSide), returnAll, callback));
+			} finally {
+				everythingCrop = null;
+				tileLock.unlock();
 			}
 		}
+		return masks;
+	}
+	
+	/**
+	 * Decode a grid of points with the encodings loaded in the predictor
+	 * @param grid
+	 * 	points of the grid in the coordinates of the whole image
+	 */
+	private List<Mask> segmentEncodedArea(List<int[]> grid, boolean returnAll, TiledBatchCallback callback) 
+			throws IOException, RuntimeException, InterruptedException {
+		List<int[]> gridPrompts = adaptPointPrompts(grid);
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("point_prompts", new ArrayList<int[]>());
+		inputs.put("rect_prompts", new ArrayList<int[]>());
+		inputs.put("grid_prompts", gridPrompts);
+		this.script = "";
+		cellSAM(gridPrompts, returnAll);
+		printScript(script, "Segment everything inference");
+		List<Mask> polys;
+		if (callback == null) {
+			polys = processBatchAndRetrieveMasks(inputs);
+		} else {
+			polys = processAndRetrieveContours(inputs, callback);
+			callback.finishTile(grid.size());
+		}
+		return polys;
+	}
+	
+	private static List<int[]> createPointGrid(Rectangle area, int pointsPerSide) {
+		List<int[]> grid = new ArrayList<int[]>(pointsPerSide * pointsPerSide);
+		for (int j = 0; j < pointsPerSide; j ++) {
+			for (int i = 0; i < pointsPerSide; i ++)
+				grid.add(new int[] {area.x + (int) ((i + 0.5) * area.width / pointsPerSide), 
+						area.y + (int) ((j + 0.5) * area.height / pointsPerSide)});
+		}
+		return grid;
+	}
+	
+	/**
+	 * Load in the predictor the encodings of the whole image, that are encoded again if they are not cached.
+	 * Only for the images that are not divided in tiles
+	 */
+	private void useWholeImageEncoding() throws IOException, InterruptedException, RuntimeException {
+		long[] dims = img.dimensionsAsLongArray();
+		if (encodeCoords[0] == 0 && encodeCoords[1] == 0 && targetDims[0] == dims[0] && targetDims[1] == dims[1])
+			return;
+		String imageKey = IMAGE_ENCODING_PREFIX + imageHash + "_0_0_" + dims[0] + "_" + dims[1] + "_s1";
+		if (savedEncodings.containsKey(imageKey)) {
+			loadEncoding(imageKey);
+			this.encodeCoords = new long[] {0, 0};
+			this.targetDims = new long[] {dims[0], dims[1], 3};
+			this.scale = 1;
+		} else {
+			this.encodeCoords = new long[] {0, 0, dims[0], dims[1]};
+			reencodeCrop();
+			storeEncoding(imageKey);
+		}
+		this.loadedEncodingKey = imageKey;
+	}
+	
+	private String getCropEncodingKey(Rectangle crop) {
+		return CROP_ENCODING_PREFIX + imageHash + "_" + crop.x + "_" + crop.y + "_" + crop.width + "_" + crop.height;
+	}
+	
+	/**
+	 * Encode a crop of the pyramid of {@link #segmentEverything(int, int, boolean, BatchCallback)} and keep
+	 * its encodings in the cache, if they are not there already
+	 */
+	private void encodePyramidCrop(Rectangle crop) throws IOException, InterruptedException, RuntimeException {
+		String key = getCropEncodingKey(crop);
+		if (savedEncodings.containsKey(key))
+			return;
+		this.encodeCoords = new long[] {crop.x, crop.y};
+		reencodeCrop(new long[] {crop.width, crop.height}, "", false);
+		storeEncoding(key);
+	}
+	
+	/**
+	 * Load in the predictor the encodings of a crop of the pyramid, encoding it again if they were evicted from the cache
+	 */
+	private void useCropEncoding(Rectangle crop) throws IOException, InterruptedException, RuntimeException {
+		String key = getCropEncodingKey(crop);
+		if (savedEncodings.containsKey(key))
+			loadEncoding(key);
+		else
+			encodePyramidCrop(crop);
+		this.encodeCoords = new long[] {crop.x, crop.y};
+		this.targetDims = new long[] {crop.width, crop.height, 3};
+		this.scale = getCropScale(new long[] {crop.width, crop.height});
+		this.currentTile = -1;
+	}
+	
+	/**
+	 * Discard the masks that touch a border of a crop that is not a border of the image, as they might be cut by the crop
+	 */
+	private List<Mask> removeCropEdgeMasks(List<Mask> masks, Rectangle crop) {
+		long[] dims = img.dimensionsAsLongArray();
+		List<Mask> kept = new ArrayList<Mask>(masks.size());
+		for (Mask mask : masks) {
+			RleMask rle = mask.getRle();
+			if (rle.isEmpty())
+				continue;
+			else if (crop.x > 0 && rle.getMinX() <= crop.x + CROP_EDGE_TOLERANCE)
+				continue;
+			else if (crop.y > 0 && rle.getMinY() <= crop.y + CROP_EDGE_TOLERANCE)
+				continue;
+			else if (crop.x + crop.width < dims[0] && rle.getMaxX() >= crop.x + crop.width - 1 - CROP_EDGE_TOLERANCE)
+				continue;
+			else if (crop.y + crop.height < dims[1] && rle.getMaxY() >= crop.y + crop.height - 1 - CROP_EDGE_TOLERANCE)
+				continue;
+			kept.add(mask);
+		}
+		return kept;
 	}
 	
 	public List<Mask> processBatchOfPoints(List<int[]> points) throws IOException, RuntimeException, InterruptedException {
@@ -680,12 +2175,17 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 */
 	public List<Mask> processPoints(List<int[]> pointsList, List<int[]> pointsNegList)
 			throws IOException, RuntimeException, InterruptedException {
-		Rectangle rect = new Rectangle();
-		rect.x = (int) this.encodeCoords[0];
-		rect.y = (int) this.encodeCoords[1];
-		rect.height = (int) this.targetDims[1];
-		rect.width = (int) this.targetDims[0];
-		return processPoints(pointsList, pointsNegList, rect, true);
+		requestLock.lock();
+		try {
+			Rectangle rect = new Rectangle();
+			rect.x = (int) this.encodeCoords[0];
+			rect.y = (int) this.encodeCoords[1];
+			rect.height = (int) this.targetDims[1];
+			rect.width = (int) this.targetDims[0];
+			return processPoints(pointsList, pointsNegList, rect, true);
+		} finally {
+			requestLock.unlock();
+		}
 	}
 	
 	public List<Mask> processPoints(List<int[]> pointsList, List<int[]> pointsNegList, 
@@ -714,12 +2214,17 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 */
 	public List<Mask> processPoints(List<int[]> pointsList, List<int[]> pointsNegList, boolean returnAll)
 			throws IOException, RuntimeException, InterruptedException {
-		Rectangle rect = new Rectangle();
-		rect.x = (int) this.encodeCoords[0];
-		rect.y = (int) this.encodeCoords[1];
-		rect.height = (int) this.targetDims[1];
-		rect.width = (int) this.targetDims[0];
-		return processPoints(pointsList, pointsNegList, rect, returnAll);
+		requestLock.lock();
+		try {
+			Rectangle rect = new Rectangle();
+			rect.x = (int) this.encodeCoords[0];
+			rect.y = (int) this.encodeCoords[1];
+			rect.height = (int) this.targetDims[1];
+			rect.width = (int) this.targetDims[0];
+			return processPoints(pointsList, pointsNegList, rect, returnAll);
+		} finally {
+			requestLock.unlock();
+		}
 	}
 	
 	/**
@@ -746,21 +2251,46 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	public List<Mask> processPoints(List<int[]> pointsList, List<int[]> pointsNegList, 
 			Rectangle encodingArea, boolean returnAll)
 			throws IOException, RuntimeException, InterruptedException {
-		Objects.requireNonNull(encodingArea, "Third argument cannot be null. Use the method "
-				+ "'processPoints(List<int[]> pointsList, List<int[]> pointsNegList, Rectangle zoomedArea, boolean returnAll)'"
-				+ " instead");
-		if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
-				|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
-			if (encodingArea.x == -1) {
-				encodingArea = getCurrentlyEncodedArea();
-			} else {
-				ArrayList<int[]> outsideP = getPointsNotInRect(pointsList, pointsNegList, encodingArea);
-				if (outsideP.size() != 0)
-					throw new IllegalArgumentException("The Rectangle containing the area to be encoded should "
-						+ "contain all the points. Point {x=" + outsideP.get(0)[0] + ", y=" + outsideP.get(0)[1] + "} is out of the region.");
+		requestLock.lock();
+		try {
+			Objects.requireNonNull(encodingArea, "Third argument cannot be null. Use the method "
+					+ "'processPoints(List<int[]> pointsList, List<int[]> pointsNegList, Rectangle zoomedArea, boolean returnAll)'"
+					+ " instead");
+			if (tiles != null) {
+				tileLock.lock();
+				try {
+					if (!useTileCovering(getApproximateAreaNeeded(pointsList, pointsNegList)))
+						encodeAreaForPoints(pointsList, pointsNegList, encodingArea);
+					return runPointsPrompt(pointsList, pointsNegList, returnAll);
+				} finally {
+					tileLock.unlock();
+				}
+			}
+			if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
+					|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
+				encodeAreaForPoints(pointsList, pointsNegList, encodingArea);
 			}
-			evaluateReencodingNeeded(pointsList, pointsNegList, encodingArea);
+			return runPointsPrompt(pointsList, pointsNegList, returnAll);
+		} finally {
+			requestLock.unlock();
+		}
+	}
+	
+	private void encodeAreaForPoints(List<int[]> pointsList, List<int[]> pointsNegList, Rectangle encodingArea) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (encodingArea.x == -1) {
+			encodingArea = getCurrentlyEncodedArea();
+		} else {
+			ArrayList<int[]> outsideP = getPointsNotInRect(pointsList, pointsNegList, encodingArea);
+			if (outsideP.size() != 0)
+				throw new IllegalArgumentException("The Rectangle containing the area to be encoded should "
+					+ "contain all the points. Point {x=" + outsideP.get(0)[0] + ", y=" + outsideP.get(0)[1] + "} is out of the region.");
 		}
+		evaluateReencodingNeeded(pointsList, pointsNegList, encodingArea);
+	}
+	
+	private List<Mask> runPointsPrompt(List<int[]> pointsList, List<int[]> pointsNegList, boolean returnAll) 
+			throws IOException, RuntimeException, InterruptedException {
 		pointsList = adaptPointPrompts(pointsList);
 		pointsNegList = adaptPointPrompts(pointsNegList);
 		this.script = "";
@@ -822,16 +2352,40 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 */
 	public List<Mask> processBox(int[] boundingBox, boolean returnAll)
 			throws IOException, RuntimeException, InterruptedException {
-		if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
-				|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
-			if (needsMoreResolution(boundingBox)) {
-				this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
-				reencodeCrop();
-			} else if (!isAreaEncoded(boundingBox)) {
-				this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
-				reencodeCrop();
+		requestLock.lock();
+		try {
+			if (tiles != null) {
+				tileLock.lock();
+				try {
+					if (!useTileCovering(getAreaAroundBox(boundingBox)))
+						encodeAreaForBox(boundingBox);
+					return runBoxPrompt(boundingBox, returnAll);
+				} finally {
+					tileLock.unlock();
+				}
 			}
+			if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
+					|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
+				encodeAreaForBox(boundingBox);
+			}
+			return runBoxPrompt(boundingBox, returnAll);
+		} finally {
+			requestLock.unlock();
+		}
+	}
+	
+	private void encodeAreaForBox(int[] boundingBox) throws IOException, RuntimeException, InterruptedException {
+		if (needsMoreResolution(boundingBox)) {
+			this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
+			reencodeCrop();
+		} else if (!isAreaEncoded(boundingBox)) {
+			this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
+			reencodeCrop();
 		}
+	}
+	
+	private List<Mask> runBoxPrompt(int[] boundingBox, boolean returnAll) 
+			throws IOException, RuntimeException, InterruptedException {
 		int[] adaptedBoundingBox = new int[] {(int) Math.ceil((boundingBox[0] - encodeCoords[0]) / (double) scale), 
 				(int) Math.ceil((boundingBox[1] - encodeCoords[1]) / (double) scale),
 				(int) Math.ceil((boundingBox[2] - encodeCoords[0]) / (double) scale), (int) Math.ceil((boundingBox[3] - encodeCoords[1]) / (double) scale)};;
@@ -1152,81 +2706,198 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 * 	position of the crop in the total image
 	 */
 	protected void recalculatePolys(List<Mask> masks, long[] encodeCoords) {
-		masks.stream().forEach(pp -> {
-			pp.getContour().xpoints = Arrays.stream(pp.getContour().xpoints).map(x -> x * scale + (int) encodeCoords[0]).toArray();
-			pp.getContour().ypoints = Arrays.stream(pp.getContour().ypoints).map(y -> y * scale + (int) encodeCoords[1]).toArray();
-			long[] upscaledRLE = new long[pp.getRLEMask().length * scale];
-			for (int i = 0; i < pp.getRLEMask().length; i += 2) {
-				int x = (int) (pp.getRLEMask()[i] % Math.ceil(this.targetDims[0] / (double) scale));
-				int y = (int) (pp.getRLEMask()[i] / Math.ceil(this.targetDims[0] / (double) scale));
-				int newX = x * scale;
-				int newY = y * scale;
-				long newLen = pp.getRLEMask()[i + 1] * scale;
-				for (int j = 0; j < scale; j ++) {
-					upscaledRLE[i * scale + j * 2] = newX + encodeCoords[0] + (encodeCoords[1] + newY + j) * this.img.dimensionsAsLongArray()[0];
-					upscaledRLE[i * scale + j * 2 + 1] = newLen;
-				}
+		final long imageWidth = this.img.dimensionsAsLongArray()[0];
+		for (Mask mask : masks) {
+			Polygon contour = mask.getContour();
+			for (int i = 0; i < contour.npoints; i ++) {
+				contour.xpoints[i] = contour.xpoints[i] * scale + (int) encodeCoords[0];
+				contour.ypoints[i] = contour.ypoints[i] * scale + (int) encodeCoords[1];
 			}
-			pp.rleEncoding = upscaledRLE;
-		});
+			contour.invalidate();
+			RleMask rle = mask.getRle();
+			rle.scale(scale);
+			rle.translate((int) encodeCoords[0], (int) encodeCoords[1]);
+			rle.setWidth(imageWidth);
+		}
 	}
 
+	/**
+	 * Keep the encodings of the image that is currently loaded in the predictor in the Python process, so they can be 
+	 * used later without encoding the image again. The encodings are cached with the rest of encodings kept and they
+	 * might be deleted if the memory budget of the cache ({@link #setEncodingCacheBudget(long)}) is exceeded
+	 * @return the name of the encodings, used to select them with {@link #selectEncoding(String)}
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 */
 	public String persistEncoding() throws IOException, InterruptedException {
-		String uuid = UUID.randomUUID().toString();
-		String saveEncodings = persistEncodingScript(uuid);
+		requestLock.lock();
+		tileLock.lock();
 		try {
-			Task task = python.task(saveEncodings);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException(task.error);
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException(task.error);
-		} catch (IOException | InterruptedException | RuntimeException e) {
-			throw e;
+			String uuid = UUID.randomUUID().toString();
+			storeEncoding(uuid);
+			return uuid;
+		} finally {
+			tileLock.unlock();
+			requestLock.unlock();
 		}
-		this.savedEncodings.add(uuid);
-		return uuid;
 	}
 
+	/**
+	 * Load the encodings kept with {@link #persistEncoding()} in the predictor
+	 * @param encodingName
+	 * 	name of the encodings
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws IllegalArgumentException if there are no encodings with that name, either because they never
+	 * 	existed or because they have been deleted from the cache
+	 */
 	public void selectEncoding(String encodingName) throws IOException, InterruptedException {
-		if (!this.savedEncodings.contains(encodingName))
-			throw new IllegalArgumentException("No saved encoding found with name: " + encodingName);
-		String setEncoding = selectEncodingScript(encodingName);
+		requestLock.lock();
+		tileLock.lock();
 		try {
-			Task task = python.task(setEncoding);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException(task.error);
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException(task.error);
-		} catch (IOException | InterruptedException | RuntimeException e) {
-			throw e;
+			loadEncoding(encodingName);
+			this.currentTile = -1;
+		} finally {
+			tileLock.unlock();
+			requestLock.unlock();
 		}
-		
 	}
 
-
+	/**
+	 * Delete the encodings kept with {@link #persistEncoding()} from the Python process
+	 * @param encodingName
+	 * 	name of the encodings
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 */
 	public void deleteEncoding(String encodingName) throws IOException, InterruptedException {
-		if (!this.savedEncodings.contains(encodingName))
-			return;
-		String returnEncoding = deleteEncodingScript(encodingName);
+		requestLock.lock();
+		tileLock.lock();
 		try {
-			Task task = python.task(returnEncoding);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException("Task canceled");
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException(task.error);
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException(task.error);
-		} catch (IOException | InterruptedException | RuntimeException e) {
-			throw e;
+			removeEncoding(encodingName, false);
+		} finally {
+			tileLock.unlock();
+			requestLock.unlock();
+		}
+	}
+	
+	/**
+	 * Set the maximum number of bytes that the cached encodings can use in the Python process. If the
+	 * encodings cached use more memory, the least recently used ones are deleted
+	 * @param budget
+	 * 	maximum number of bytes
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void setEncodingCacheBudget(long budget) throws IOException, InterruptedException {
+		requestLock.lock();
+		tileLock.lock();
+		try {
+			if (budget <= 0)
+				throw new IllegalArgumentException("The budget of the encoding cache needs to be positive.");
+			this.encodingCacheBudget = budget;
+			cacheStats.setBudget(budget);
+			evictEncodings(null);
+		} finally {
+			tileLock.unlock();
+			requestLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get the spatial index with the masks produced by the batches of prompts on the current image, by
+	 * {@link #processBatchOfPrompts(List, List, RandomAccessibleInterval, boolean)} and its variants and by
+	 * {@link #segmentEverything(int, int, boolean, BatchCallback)}, with or without callback and with or without tiles.
+	 * The masks of the single prompts of {@link #processPoints(List, boolean)} and {@link #processBox(int[], boolean)}
+	 * are not added. The index is emptied when a different image is set
+	 * @return the index of the masks produced for the current image
+	 */
+	public MaskIndex getMaskIndex() {
+		return maskIndex;
+	}
+	
+	/**
+	 * 
+	 * @return the statistics of the encodings cached in the Python process at the moment of the call
+	 */
+	public EncodingCacheStats getEncodingCacheStats() {
+		return cacheStats.snapshot();
+	}
+	
+	/**
+	 * Keep the encodings loaded in the predictor with the name provided and evict the least recently used 
+	 * encodings if the cache exceeds its budget
+	 * @param encodingName
+	 * 	name of the encodings
+	 * @return number of bytes used by the encodings
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	private synchronized long storeEncoding(String encodingName) throws IOException, InterruptedException, RuntimeException {
+		String saveEncodings = persistEncodingScript(encodingName) + System.lineSeparator()
+				+ "task.outputs['" + ENCODING_BYTES_KEY + "'] = str(encoding_nbytes(encodings_map['" + encodingName + "']))" 
+				+ System.lineSeparator();
+		Task task = newTask(saveEncodings, null);
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new CancellationException("Task canceled");
+		else if (task.status == TaskStatus.FAILED)
+			throw new RuntimeException(task.error);
+		else if (task.status == TaskStatus.CRASHED)
+			throw new RuntimeException(task.error);
+		long bytes = Long.parseLong((String) task.outputs.get(ENCODING_BYTES_KEY));
+		Long previous = this.savedEncodings.put(encodingName, bytes);
+		if (previous != null)
+			cacheStats.remove(previous, false);
+		cacheStats.add(bytes);
+		evictEncodings(encodingName);
+		return bytes;
+	}
+	
+	private synchronized void loadEncoding(String encodingName) throws IOException, InterruptedException, RuntimeException {
+		if (this.savedEncodings.get(encodingName) == null) {
+			cacheStats.miss();
+			throw new IllegalArgumentException("No saved encoding found with name: " + encodingName);
+		}
+		cacheStats.hit();
+		this.loadedEncodingKey = null;
+		runTask(selectEncodingScript(encodingName));
+	}
+	
+	private synchronized void removeEncoding(String encodingName, boolean evicted) 
+			throws IOException, InterruptedException, RuntimeException {
+		if (!this.savedEncodings.containsKey(encodingName))
+			return;
+		runTask(deleteEncodingScript(encodingName));
+		cacheStats.remove(this.savedEncodings.remove(encodingName), evicted);
+		if (tiles != null && encodingName.startsWith(TILE_ENCODING_PREFIX))
+			tiles.setEncoded(Integer.parseInt(encodingName.substring(TILE_ENCODING_PREFIX.length())), false);
+	}
+	
+	/**
+	 * Delete the least recently used encodings until the cache is under its budget. The encodings loaded in
+	 * the predictor, the ones of {@link #loadedEncodingKey} or of the {@link #currentTile}, are never deleted
+	 * @param keep
+	 * 	name of an encoding that should not be deleted, usually the one that has just been stored. Can be null
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 * @throws RuntimeException if there is any error running the Python code
+	 */
+	private synchronized void evictEncodings(String keep) throws IOException, InterruptedException, RuntimeException {
+		String tileKey = currentTile >= 0 ? TILE_ENCODING_PREFIX + currentTile : null;
+		while (cacheStats.snapshot().getBytesResident() > encodingCacheBudget) {
+			String eldest = null;
+			for (String name : savedEncodings.keySet()) {
+				if (!name.equals(keep) && !name.equals(loadedEncodingKey) && !name.equals(tileKey)) {
+					eldest = name;
+					break;
+				}
+			}
+			if (eldest == null)
+				break;
+			removeEncoding(eldest, true);
 		}
-		this.savedEncodings.remove(encodingName);
 	}
 	
 	public static String getProgressString() {
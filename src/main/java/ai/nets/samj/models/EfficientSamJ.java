@@ -21,6 +21,7 @@ package ai.nets.samj.models;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,17 +31,13 @@ import io.bioimage.modelrunner.apposed.appose.Environment;
 import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
-import io.bioimage.modelrunner.utils.CommonUtils;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Cast;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 /**
@@ -118,6 +115,7 @@ public class EfficientSamJ extends AbstractSamJ {
 
 		this.debugPrinter = debugPrinter;
 		this.isDebugging = printPythonCode;
+		this.modelId = "efficientsam";
 
 		this.env = new Environment() {
 			@Override public String base() { return manager.getModelEnv(); }
@@ -128,7 +126,9 @@ public class EfficientSamJ extends AbstractSamJ {
 				manager.getModelEnv() + File.separator + EfficientSamEnvManager.ESAM_NAME,
 				manager.getModelWeigthPath());
 		//printScript(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES, "Edges tracing code");
-		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES);
+		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES + PythonMethods.MASKS_TO_SHM + PythonMethods.SHM_POOL + PythonMethods.ENCODING_SIZE
+				+ PythonMethods.ENCODING_DISK_STORE + PythonMethods.BATCH_DECODING
+				+ PythonMethods.SAM_EVERYTHING);
 		task.waitFor();
 		if (task.status == TaskStatus.CANCELED)
 			throw new RuntimeException("Task canceled");
@@ -200,28 +200,20 @@ public class EfficientSamJ extends AbstractSamJ {
 		// This line wants to recreate the original numpy array. Should look like:
 		// input0_appose_shm = shared_memory.SharedMemory(name=input0)
 		// input0 = np.ndarray(size, dtype="float64", buffer=input0_appose_shm.buf).reshape([64, 64])
-		code += "im_shm = shared_memory.SharedMemory(name='"
-							+ shma.getNameForPython() + "', size=" + shma.getSize() 
-							+ ")" + System.lineSeparator();
+		code += shmPool.attachScript(shma, "im_shm");
 		int size = (int) targetDims[2];
 		for (int i = 0; i < targetDims.length - 1; i ++) {
 			size *= Math.ceil(targetDims[i] / (double) scale);
 			}
-		code += "im = np.ndarray(" + size + ", dtype='" + CommonUtils.getDataTypeFromRAI(Cast.unchecked(shma.getSharedRAI()))
-			  + "', buffer=im_shm.buf).reshape([";
-		for (int i = 0; i < targetDims.length - 1; i ++)
-			code += (int) Math.ceil(targetDims[i] / (double) scale) + ", ";
-		code += targetDims[2];
-		code += "])" + System.lineSeparator();
+		code += "im = np.ndarray(" + size + ", dtype='float32', buffer=im_shm.buf).reshape(" + getShmImageShape() + ")" + System.lineSeparator();
 		//code += "np.save('/home/carlos/git/crop.npy', im)" + System.lineSeparator();
 		code += "input_h = im.shape[1]" + System.lineSeparator();
-		code += "input_w = im.shape[0]" + System.lineSeparator();
+		code += "input_w = im.shape[" + (planarShm ? 2 : 0) + "]" + System.lineSeparator();
 		code += "globals()['input_h'] = input_h" + System.lineSeparator();
 		code += "globals()['input_w'] = input_w" + System.lineSeparator();
 		//code += "task.update(str(im.shape))" + System.lineSeparator();
-		code += "im = torch.from_numpy(np.transpose(im, (2, 1, 0)))" + System.lineSeparator();
+		code += "im = torch.from_numpy(" + (planarShm ? "im" : "np.transpose(im, (2, 1, 0))") + ")" + System.lineSeparator();
 		//code += "task.update('after ' + str(im.shape))" + System.lineSeparator();
-		code += "im_shm.unlink()" + System.lineSeparator();
 		this.script += code;
 		this.script += ""
 				+ "_ = predictor.get_image_embeddings(im[None, ...])" + System.lineSeparator();
@@ -261,11 +253,9 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "task.update(str(mask.shape))" + System.lineSeparator()
 				//+ "np.save('/temp/aa.npy', mask)" + System.lineSeparator()
 				+ (this.isIJROIManager ? "mask[1:, 1:] += mask[:-1, :-1]" : "") + System.lineSeparator()
-				+ "contours_x,contours_y,rle_masks = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
+				+ "contours_x,contours_y,rle_masks = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + getTracingArgs() + ")" + System.lineSeparator()
 				+ "task.update('all contours traced')" + System.lineSeparator()
-				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
-				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+				+ "set_mask_outputs(task.outputs, contours_x, contours_y, rle_masks, binary=" + (this.binaryMaskTransport ? "True" : "False") + ")" + System.lineSeparator();
 		this.script = code;
 	}
 
@@ -293,31 +283,58 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "task.update(str(mask.shape))" + System.lineSeparator()
 				//+ "np.save('/home/carlos/git/mask.npy', mask)" + System.lineSeparator()
 				+ (this.isIJROIManager ? "mask[1:, 1:] += mask[:-1, :-1]" : "") + System.lineSeparator()
-				+ "contours_x,contours_y,rle_masks = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
+				+ "contours_x,contours_y,rle_masks = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + getTracingArgs() + ")" + System.lineSeparator()
 				+ "task.update('all contours traced')" + System.lineSeparator()
-				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
-				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+				+ "set_mask_outputs(task.outputs, contours_x, contours_y, rle_masks, binary=" + (this.binaryMaskTransport ? "True" : "False") + ")" + System.lineSeparator();
 		this.script = code;
 	}
 
 	@Override
 	protected void cellSAM(List<int[]> grid, boolean returnAll) {
-		// TODO Auto-generated method stub
+		this.script = createBatchScript(null, DECODE_BATCH, returnAll, true);
+	}
+	
+	/**
+	 * Get the intensities of each channel of the image stretched to [0, 1]. Unless the intensities are clipped at some percentiles,
+	 * the channels that are already between 0 and 1 are fed as they are
+	 * @return the levels as [low0, high0, low1, high1, ...]
+	 */
+	private double[] getNormalizationLevels() {
+		double[] levels = getIntensityLevels();
+		if (levels == null || isClippingIntensities())
+			return levels;
+		for (int c = 0; c < levels.length; c += 2) {
+			if (levels[c] >= 0 && levels[c + 1] <= 1) {
+				levels[c] = 0;
+				levels[c + 1] = 1;
+			}
+		}
+		return levels;
+	}
+	
+	/**
+	 * 
+	 * @return whether the levels of every channel are 0 and 1, so the image is fed as it is
+	 */
+	private static boolean isNormalized(double[] levels) {
+		if (levels == null)
+			return false;
+		for (int c = 0; c < levels.length; c += 2) {
+			if (levels[c] != 0 || levels[c + 1] != 1)
+				return false;
+		}
+		return true;
 	}
 	
 	private <T extends RealType<T> & NativeType<T>>
-	void adaptImageToModel(final RandomAccessibleInterval<T> ogImg, RandomAccessibleInterval<FloatType> targetImg) {
+	void adaptImageToModel(final RandomAccessibleInterval<T> ogImg, ByteBuffer targetBuffer, int nChannels, double[] levels) {
 		if (ogImg.numDimensions() == 3 && ogImg.dimensionsAsLongArray()[2] == 3) {
-			for (int i = 0; i < 3; i ++) 
-				RealTypeConverters.copyFromTo( ImgLib2Utils.normalizedView(Views.hyperSlice(ogImg, 2, i), this.debugPrinter), Views.hyperSlice(targetImg, 2, i) );
+			ImgLib2Utils.writeNormalized(ogImg, targetBuffer, nChannels, levels, this.debugPrinter);
 		} else if (ogImg.numDimensions() == 3 && ogImg.dimensionsAsLongArray()[2] == 1) {
 			debugPrinter.printText("CONVERTED 1 CHANNEL IMAGE INTO 3 TO BE FEEDED TO SAMJ");
-			IntervalView<FloatType> resIm = Views.interval( Views.expandMirrorDouble(ImgLib2Utils.normalizedView(ogImg, this.debugPrinter), new long[] {0, 0, 2}), 
-					Intervals.createMinMax(new long[] {0, 0, 0, ogImg.dimensionsAsLongArray()[0] - 1, ogImg.dimensionsAsLongArray()[1] - 1, 2}) );
-			RealTypeConverters.copyFromTo( resIm, targetImg );
+			ImgLib2Utils.writeNormalized(ogImg, targetBuffer, nChannels, levels, this.debugPrinter);
 		} else if (ogImg.numDimensions() == 2) {
-			adaptImageToModel(Views.addDimension(ogImg, 0, 0), targetImg);
+			adaptImageToModel(Views.addDimension(ogImg, 0, 0), targetBuffer, nChannels, levels);
 		} else {
 			throw new IllegalArgumentException("Currently SAMJ only supports 1-channel (grayscale) or 3-channel (RGB, BGR, ...) 2D images."
 					+ "The image dimensions order should be 'yxc', first dimension height, second width and third channels.");
@@ -365,20 +382,28 @@ public class EfficientSamJ extends AbstractSamJ {
 
 	@Override
 	protected <T extends RealType<T> & NativeType<T>> void createSHMArray(RandomAccessibleInterval<T> imShared) {
-		RandomAccessibleInterval<T> imageToBeSent = ImgLib2Utils.reescaleIfNeeded(imShared);
-		long[] dims = imageToBeSent.dimensionsAsLongArray();
-		shma = SharedMemoryArray.create(new long[] {dims[0], dims[1], dims[2]}, new FloatType(), false, false);
-		adaptImageToModel(imageToBeSent, shma.getSharedRAI());
+		long[] dims = imShared.dimensionsAsLongArray();
+		double[] levels = getNormalizationLevels();
+		shma = shmPool.acquire(dims[0] * dims[1] * dims[2] * 4);
+		planarShm = isNormalized(levels) && ImgLib2Utils.isPlanarCopyable(imShared, new FloatType());
+		if (planarShm) {
+			debugPrinter.printText("IMAGE IS NORMALIZED, copying its planes directly");
+			ImgLib2Utils.copyPlanar(imShared, shma.getDataBufferNoHeader());
+			return;
+		}
+		adaptImageToModel(imShared, shma.getDataBufferNoHeader(), (int) dims[2], levels);
 	}
 
 	@Override
 	public String persistEncodingScript(String encodingName) {
-		return "encodings_map['" + encodingName + "'] = predictor.encoded_images";
+		return "encodings_map['" + encodingName + "'] = (predictor.encoded_images, input_h, input_w)";
 	}
 
 	@Override
 	public String selectEncodingScript(String encodingName) {
-		return "predictor.encoded_images = encodings_map['" + encodingName + "']";
+		return "predictor.encoded_images, input_h, input_w = encodings_map['" + encodingName + "']" + System.lineSeparator()
+				+ "globals()['input_h'] = input_h" + System.lineSeparator()
+				+ "globals()['input_w'] = input_w";
 		
 	}
 
@@ -387,161 +412,36 @@ public class EfficientSamJ extends AbstractSamJ {
 		return "del encodings_map['" + encodingName + "']";
 	}
 
+	/**
+	 * Python function that decodes a group of prompts of the same kind, used by the batch of prompts and
+	 * by the automatic mode
+	 */
+	private static final String DECODE_BATCH = ""
+			+ "def decode_batch(kind, coords):" + System.lineSeparator()
+			+ "  b = coords.shape[0]" + System.lineSeparator()
+			+ "  ip = torch.reshape(torch.tensor(coords), [1, b, -1, 2])" + System.lineSeparator()
+			+ "  if kind == 'rect':" + System.lineSeparator()
+			+ "    labels = np.tile(np.array([2, 3]), (b, 1))" + System.lineSeparator()
+			+ "  else:" + System.lineSeparator()
+			+ "    labels = np.ones(coords.shape[:2], dtype='int64')" + System.lineSeparator()
+			+ "  il = torch.reshape(torch.tensor(labels), [1, b, -1])" + System.lineSeparator()
+			+ "  predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
+			+ "    ip," + System.lineSeparator()
+			+ "    il," + System.lineSeparator()
+			+ "    multimask_output=True," + System.lineSeparator()
+			+ "    input_h=input_h," + System.lineSeparator()
+			+ "    input_w=input_w," + System.lineSeparator()
+			+ "    output_h=input_h," + System.lineSeparator()
+			+ "    output_w=input_w,)" + System.lineSeparator()
+			+ "  sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)" + System.lineSeparator()
+			+ "  predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)" + System.lineSeparator()
+			+ "  if kind == 'grid':" + System.lineSeparator()
+			+ "    predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)" + System.lineSeparator()
+			+ "    return predicted_logits[0, :, 0, :, :].cpu().detach().numpy(), predicted_iou[0, :, 0].cpu().detach().numpy()" + System.lineSeparator()
+			+ "  return torch.ge(predicted_logits[0, :, 0, :, :], 0).cpu().detach().numpy()" + System.lineSeparator();
+
 	@Override
-	protected void processPromptsBatchWithSAM(SharedMemoryArray shmArr,
-			boolean returnAll) {
-		String code = ""
-				+ "num_threads = 3" + System.lineSeparator()
-				+ "finished_threads = []" + System.lineSeparator()
-				+ "from concurrent.futures import ThreadPoolExecutor, as_completed" + System.lineSeparator()
-				+ "import threading" + System.lineSeparator()
-				+ "lock = threading.Lock()" + System.lineSeparator()
-				+ "def respond_in_thread(task, args, inds, lock, finished_threads):" + System.lineSeparator()
-				+ "  task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "  with lock:" + System.lineSeparator()
-				+ "    finished_threads.extend(inds)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "def cancel_unstarted_tasks(futures):" + System.lineSeparator()
-				+ "    for future in futures:" + System.lineSeparator()
-				+ "        if not future.running() and not future.done():" + System.lineSeparator()
-				+ "            future.cancel()" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "num_features = 0" + System.lineSeparator();
-		if (shmArr != null) {
-			code += ""
-					+ "shm_mask = shared_memory.SharedMemory(name='" + shmArr.getNameForPython() + "')" + System.lineSeparator()
-					+ "mask_batch = np.ndarray(%s, buffer=shm_mask.buf, dtype='" 
-					+ shmArr.getOriginalDataType() + "').reshape([";
-			long size = 1;
-			for (long l : shmArr.getOriginalShape()) {
-				code += l + ",";
-				size *= l;
-			}
-			code = String.format(code, size);
-			code += "])" + System.lineSeparator();
-			code += "labeled_array, num_features = label(mask_batch)" + System.lineSeparator();
-		}
-		code += ""
-				+ "contours_x = []" + System.lineSeparator()
-				+ "contours_y = []" + System.lineSeparator()
-				+ "rle_masks = []" + System.lineSeparator()
-				+ "ntot = num_features + len(point_prompts) + len(rect_prompts)" + System.lineSeparator()
-				+ "args = {\"outputs\": {'n': str(ntot)}, \"message\": '" + AbstractSamJ.UPDATE_ID_N_CONTOURS + "'}" + System.lineSeparator()
-				+ "task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				// TODO right now is geetting the mask after each prompt
-				// TODO test processing first every prompt and then getting the masks
-				+ "with ThreadPoolExecutor(max_workers=num_threads) as executor:" + System.lineSeparator()
-				+ "  futures = []" + System.lineSeparator()
-				+ "  n_objects = 0" + System.lineSeparator()
-				+ "  for n_feat in range(1, num_features + 1):" + System.lineSeparator()
-				+ "    extracted_point_prompts = []" + System.lineSeparator()
-				+ "    extracted_point_labels = []" + System.lineSeparator()
-				+ "    inds = np.where(labeled_array == n_feat)" + System.lineSeparator()
-				+ "    n_points = np.min([3, inds[0].shape[0]])" + System.lineSeparator()
-				+ "    random_positions = np.random.choice(inds[0].shape[0], n_points, replace=False)" + System.lineSeparator()
-				+ "    for pp in range(n_points):" + System.lineSeparator()
-				+ "      extracted_point_prompts += [[inds[0][random_positions[pp]], inds[1][random_positions[pp]]]]" + System.lineSeparator()
-				+ "      extracted_point_labels += [1]" + System.lineSeparator()
-				+ "    ip = torch.reshape(torch.tensor(np.array(extracted_point_prompts).reshape(len(extracted_point_prompts), 2)), [1, 1, -1, 2])" + System.lineSeparator()
-				+ "    il = torch.reshape(torch.tensor(np.array(extracted_point_labels)), [1, 1, -1])" + System.lineSeparator()
-				+ "    predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
-				+ "      ip," + System.lineSeparator()
-				+ "      il," + System.lineSeparator()
-				+ "      multimask_output=True," + System.lineSeparator()
-				+ "      input_h=input_h," + System.lineSeparator()
-				+ "      input_w=input_w," + System.lineSeparator()
-				+ "      output_h=input_h," + System.lineSeparator()
-				+ "      output_w=input_w,)" + System.lineSeparator()
-				+ "    sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)" + System.lineSeparator()
-				+ "    predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)" + System.lineSeparator()
-				+ "    predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)" + System.lineSeparator()
-				+ "    mask = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()" + System.lineSeparator()
-				+ (this.isIJROIManager ? "    mask[1:, 1:] += mask[:-1, :-1]" : "") + System.lineSeparator()
-				+ "    c_x, c_y, r_m = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
-				+ "    contours_x += c_x" + System.lineSeparator()
-				+ "    contours_y += c_y" + System.lineSeparator()
-				+ "    rle_masks += r_m" + System.lineSeparator()
-				+ "    args = {\"outputs\": {'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": '" + AbstractSamJ.UPDATE_ID_CONTOUR + "'}" + System.lineSeparator()
-				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
-				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
-				+ "    futures.append(future)" + System.lineSeparator()
-				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "  for p_prompt in point_prompts:" + System.lineSeparator()
-				+ "    ip = torch.reshape(torch.tensor(np.array(p_prompt).reshape(1, 2)), [1, 1, -1, 2])" + System.lineSeparator()
-				+ "    il = torch.reshape(torch.tensor(np.array([1])), [1, 1, -1])" + System.lineSeparator()
-				+ "    predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
-				+ "      ip," + System.lineSeparator()
-				+ "      il," + System.lineSeparator()
-				+ "      multimask_output=True," + System.lineSeparator()
-				+ "      input_h=input_h," + System.lineSeparator()
-				+ "      input_w=input_w," + System.lineSeparator()
-				+ "      output_h=input_h," + System.lineSeparator()
-				+ "      output_w=input_w,)" + System.lineSeparator()
-				+ "    sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)" + System.lineSeparator()
-				+ "    predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)" + System.lineSeparator()
-				+ "    predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)" + System.lineSeparator()
-				+ "    mask = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()" + System.lineSeparator()
-				+ (this.isIJROIManager ? "    mask[1:, 1:] += mask[:-1, :-1]" : "") + System.lineSeparator()
-				+ "    c_x, c_y, r_m = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
-				+ "    contours_x += c_x" + System.lineSeparator()
-				+ "    contours_y += c_y" + System.lineSeparator()
-				+ "    rle_masks += r_m" + System.lineSeparator()
-				+ "    args = {\"outputs\": {'point': p_prompt, 'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": '" + AbstractSamJ.UPDATE_ID_CONTOUR + "'}" + System.lineSeparator()
-				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
-				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
-				+ "    futures.append(future)" + System.lineSeparator()
-				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "  for rect_prompt in rect_prompts:" + System.lineSeparator()
-				+ "    input_box = np.array([[rect_prompt[0], rect_prompt[1]], [rect_prompt[2], rect_prompt[3]]])" + System.lineSeparator()
-				+ "    input_box = torch.reshape(torch.tensor(input_box), [1, 1, -1, 2])" + System.lineSeparator()
-				+ "    input_label = np.array([2,3])" + System.lineSeparator()
-				+ "    input_label = torch.reshape(torch.tensor(input_label), [1, 1, -1])" + System.lineSeparator()
-				+ "    predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
-				+ "      input_box," + System.lineSeparator()
-				+ "      input_label," + System.lineSeparator()
-				+ "      multimask_output=True," + System.lineSeparator()
-				+ "      input_h=input_h," + System.lineSeparator()
-				+ "      input_w=input_w," + System.lineSeparator()
-				+ "      output_h=input_h," + System.lineSeparator()
-				+ "      output_w=input_w,)" + System.lineSeparator()
-				+ "    sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)" + System.lineSeparator()
-				+ "    predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)" + System.lineSeparator()
-				+ "    predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)" + System.lineSeparator()
-				+ "    mask = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()" + System.lineSeparator()
-				+ (this.isIJROIManager ? "    mask[1:, 1:] += mask[:-1, :-1]" : "") + System.lineSeparator()
-				+ "    c_x, c_y, r_m = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
-				+ "    contours_x += c_x" + System.lineSeparator()
-				+ "    contours_y += c_y" + System.lineSeparator()
-				+ "    rle_masks += r_m" + System.lineSeparator()
-				+ "    args = {\"outputs\": {'rect': rect_prompt, 'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": '" + AbstractSamJ.UPDATE_ID_CONTOUR + "'}" + System.lineSeparator()
-				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
-				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
-				+ "    futures.append(future)" + System.lineSeparator()
-				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "  finished_threads.sort()" + System.lineSeparator()
-				+ "  cancel_unstarted_tasks(futures)" + System.lineSeparator()
-				+ "  for i, future in enumerate(futures[::-1]):" + System.lineSeparator()
-				+ "    if not future.cancelled():" + System.lineSeparator()
-				+ "      future.result()" + System.lineSeparator()
-				+ "  for i in finished_threads[::-1]:" + System.lineSeparator()
-				+ "      contours_x.pop(i)" + System.lineSeparator()
-				+ "      contours_y.pop(i)" + System.lineSeparator()
-				+ "      rle_masks.pop(i)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "task.update('all contours traced')" + System.lineSeparator()
-				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
-				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
-		code += "mask_batch = None" + System.lineSeparator();
-		if (shmArr != null) {
-			code += "shm_mask.close()" + System.lineSeparator();
-			code += "shm_mask.unlink()" + System.lineSeparator();
-		}
-		this.script = code;
+	protected void processPromptsBatchWithSAM(SharedMemoryArray shmArr, boolean returnAll) {
+		this.script = createBatchScript(shmArr, DECODE_BATCH, returnAll);
 	}
 }
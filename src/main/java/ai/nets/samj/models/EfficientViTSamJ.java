@@ -29,22 +29,19 @@ import ai.nets.samj.install.SamEnvManagerAbstract;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import io.bioimage.modelrunner.apposed.appose.Environment;
 import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
 
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
-import io.bioimage.modelrunner.utils.CommonUtils;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.util.Cast;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 /**
@@ -158,6 +155,7 @@ public class EfficientViTSamJ extends AbstractSamJ {
 							+ MODELS_DICT.keySet().stream().collect(Collectors.toList()));
 		this.debugPrinter = debugPrinter;
 		this.isDebugging = printPythonCode;
+		this.modelId = "efficientvitsam_" + type;
 
 		this.env = new Environment() {
 			@Override public String base() { return manager.getModelEnv(); }
@@ -169,7 +167,9 @@ public class EfficientViTSamJ extends AbstractSamJ {
 									MODELS_DICT.get(type), MODELS_DICT.get(type), manager.getModelWeigthPath());
 		
 		//printScript(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES, "Edges tracing code");
-		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES);
+		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES + PythonMethods.MASKS_TO_SHM + PythonMethods.SHM_POOL + PythonMethods.ENCODING_SIZE
+				+ PythonMethods.ENCODING_DISK_STORE + PythonMethods.BATCH_DECODING
+				+ PythonMethods.SAM_EVERYTHING);
 		task.waitFor();
 		if (task.status == TaskStatus.CANCELED)
 			throw new RuntimeException("Task canceled");
@@ -304,22 +304,14 @@ public class EfficientViTSamJ extends AbstractSamJ {
 	@Override
 	protected void createEncodeImageScript() {
 		script = "";
-		script += "im_shm = shared_memory.SharedMemory(name='"
-				+ shma.getNameForPython() + "', size=" + shma.getSize() 
-				+ ")" + System.lineSeparator();
+		script += shmPool.attachScript(shma, "im_shm");
 		int size = (int) targetDims[2];
 		for (int i = 0; i < targetDims.length - 1; i ++) {
 			size *= Math.ceil(targetDims[i] / (double) scale);
 			}
-		script += "im = np.ndarray(" + size + ", dtype='" + CommonUtils.getDataTypeFromRAI(Cast.unchecked(shma.getSharedRAI()))
-				+ "', buffer=im_shm.buf).reshape([";
-		for (int i = 0; i < targetDims.length - 1; i ++)
-			script += (int) Math.ceil(targetDims[i] / (double) scale) + ", ";
-		script += targetDims[2];
-		script += "])" + System.lineSeparator();
-		script += "im = np.transpose(im, (1, 0, 2))" + System.lineSeparator();
+		script += "im = np.ndarray(" + size + ", dtype='uint8', buffer=im_shm.buf).reshape(" + getShmImageShape() + ")" + System.lineSeparator();
+		script += "im = np.transpose(im, " + (planarShm ? "(1, 2, 0)" : "(1, 0, 2)") + ")" + System.lineSeparator();
 		//code += "np.save('/home/carlos/git/aa.npy', im)" + System.lineSeparator();
-		script += "im_shm.unlink()" + System.lineSeparator();
 		//code += "box_shm.close()" + System.lineSeparator();
 		script += ""
 			+ "task.update(str(im.shape))" + System.lineSeparator()
@@ -328,10 +320,15 @@ public class EfficientViTSamJ extends AbstractSamJ {
 
 	@Override
 	protected <T extends RealType<T> & NativeType<T>> void createSHMArray(RandomAccessibleInterval<T> imShared) {
-		RandomAccessibleInterval<T> imageToBeSent = ImgLib2Utils.reescaleIfNeeded(imShared);
-		long[] dims = imageToBeSent.dimensionsAsLongArray();
-		shma = SharedMemoryArray.create(new long[] {dims[0], dims[1], dims[2]}, new UnsignedByteType(), false, false);
-		adaptImageToModel(imageToBeSent, shma.getSharedRAI());
+		long[] dims = imShared.dimensionsAsLongArray();
+		double[] levels = getIntensityLevels();
+		shma = shmPool.acquire(dims[0] * dims[1] * dims[2]);
+		planarShm = levels == null && ImgLib2Utils.isPlanarCopyable(imShared, new UnsignedByteType());
+		if (planarShm) {
+			ImgLib2Utils.copyPlanar(imShared, shma.getDataBufferNoHeader());
+			return;
+		}
+		adaptImageToModel(imShared, shma.getDataBufferNoHeader(), (int) dims[2], levels);
 	}
 
 	@Override
@@ -358,11 +355,9 @@ public class EfficientViTSamJ extends AbstractSamJ {
 				+ "task.update('end predict')" + System.lineSeparator()
 				+ "task.update(str(mask.shape))" + System.lineSeparator()
 				+ (this.isIJROIManager ? "mask[0, 1:, 1:] += mask[0, :-1, :-1]" : "") + System.lineSeparator()
-				+ "contours_x, contours_y, rle_masks = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
+				+ "contours_x, contours_y, rle_masks = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + getTracingArgs() + ")" + System.lineSeparator()
 				+ "task.update('all contours traced')" + System.lineSeparator()
-				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
-				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+				+ "set_mask_outputs(task.outputs, contours_x, contours_y, rle_masks, binary=" + (this.binaryMaskTransport ? "True" : "False") + ")" + System.lineSeparator();
 		this.script = code;
 	}
 
@@ -380,11 +375,9 @@ public class EfficientViTSamJ extends AbstractSamJ {
 				+ "task.update(str(mask.shape))" + System.lineSeparator()
 				//+ "np.save('/home/carlos/git/mask.npy', mask)" + System.lineSeparator()
 				+ (this.isIJROIManager ? "mask[0, 1:, 1:] += mask[0, :-1, :-1]" : "") + System.lineSeparator()
-				+ "contours_x,contours_y,rle_masks = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
+				+ "contours_x,contours_y,rle_masks = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + getTracingArgs() + ")" + System.lineSeparator()
 				+ "task.update('all contours traced')" + System.lineSeparator()
-				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
-				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+				+ "set_mask_outputs(task.outputs, contours_x, contours_y, rle_masks, binary=" + (this.binaryMaskTransport ? "True" : "False") + ")" + System.lineSeparator();
 		this.script = code;
 	}
 	
@@ -405,19 +398,14 @@ public class EfficientViTSamJ extends AbstractSamJ {
 	}
 	
 	private <T extends RealType<T> & NativeType<T>>
-	void adaptImageToModel(RandomAccessibleInterval<T> ogImg, RandomAccessibleInterval<T> targetImg) {
+	void adaptImageToModel(RandomAccessibleInterval<T> ogImg, ByteBuffer targetBuffer, int nChannels, double[] levels) {
 		if (ogImg.numDimensions() == 3 && ogImg.dimensionsAsLongArray()[2] == 3) {
-			for (int i = 0; i < 3; i ++) 
-				RealTypeConverters.copyFromTo( ImgLib2Utils.convertViewToRGB(Views.hyperSlice(ogImg, 2, i), this.debugPrinter), 
-						Views.hyperSlice(targetImg, 2, i) );
+			ImgLib2Utils.writeRGB(ogImg, targetBuffer, nChannels, levels, this.debugPrinter);
 		} else if (ogImg.numDimensions() == 3 && ogImg.dimensionsAsLongArray()[2] == 1) {
 			debugPrinter.printText("CONVERTED 1 CHANNEL IMAGE INTO 3 TO BE FEEDED TO SAMJ");
-			IntervalView<UnsignedByteType> resIm = 
-					Views.interval( Views.expandMirrorDouble(ImgLib2Utils.convertViewToRGB(ogImg, this.debugPrinter), new long[] {0, 0, 2}), 
-					Intervals.createMinMax(new long[] {0, 0, 0, ogImg.dimensionsAsLongArray()[0] - 1, ogImg.dimensionsAsLongArray()[1] - 1, 2}) );
-			RealTypeConverters.copyFromTo( resIm, targetImg );
+			ImgLib2Utils.writeRGB(ogImg, targetBuffer, nChannels, levels, this.debugPrinter);
 		} else if (ogImg.numDimensions() == 2) {
-			adaptImageToModel(Views.addDimension(ogImg, 0, 0), targetImg);
+			adaptImageToModel(Views.addDimension(ogImg, 0, 0), targetBuffer, nChannels, levels);
 		} else {
 			throw new IllegalArgumentException("Currently SAMJ only supports 1-channel (grayscale) or 3-channel (RGB, BGR, ...) 2D images."
 					+ "The image dimensions order should be 'yxc', first dimension height, second width and third channels.");
@@ -443,8 +431,7 @@ public class EfficientViTSamJ extends AbstractSamJ {
 
 	@Override
 	protected void cellSAM(List<int[]> grid, boolean returnAll) {
-		// TODO Auto-generated method stub
-		
+		this.script = createBatchScript(null, DECODE_BATCH, returnAll, true);
 	}
 
 	@Override
@@ -462,139 +449,32 @@ public class EfficientViTSamJ extends AbstractSamJ {
 		return "del encodings_map['" + encodingName + "']";
 	}
 
+	/**
+	 * Python function that decodes a group of prompts of the same kind, used by the batch of prompts and
+	 * by the automatic mode
+	 */
+	private static final String DECODE_BATCH = ""
+			+ "def decode_batch(kind, coords):" + System.lineSeparator()
+			+ "  b = coords.shape[0]" + System.lineSeparator()
+			+ "  if kind == 'rect':" + System.lineSeparator()
+			+ "    boxes = predictor.apply_boxes(coords.reshape(b, 4).astype('float32'))" + System.lineSeparator()
+			+ "    boxes = torch.as_tensor(boxes, dtype=torch.float, device=predictor.device)" + System.lineSeparator()
+			+ "    masks, _, _ = predictor.predict_torch(point_coords=None, point_labels=None," + System.lineSeparator()
+			+ "      boxes=boxes, multimask_output=False,)" + System.lineSeparator()
+			+ "  else:" + System.lineSeparator()
+			+ "    points = predictor.apply_coords(coords.astype('float32'))" + System.lineSeparator()
+			+ "    points = torch.as_tensor(points, dtype=torch.float, device=predictor.device)" + System.lineSeparator()
+			+ "    labels = torch.ones(coords.shape[:2], dtype=torch.int, device=predictor.device)" + System.lineSeparator()
+			+ "    masks, iou, _ = predictor.predict_torch(point_coords=points, point_labels=labels," + System.lineSeparator()
+			+ "      boxes=None, multimask_output=(kind == 'grid'), return_logits=(kind == 'grid'),)" + System.lineSeparator()
+			+ "    if kind == 'grid':" + System.lineSeparator()
+			+ "      best = torch.argmax(iou, dim=1)" + System.lineSeparator()
+			+ "      rows = torch.arange(b, device=iou.device)" + System.lineSeparator()
+			+ "      return masks[rows, best].cpu().numpy(), iou[rows, best].cpu().numpy()" + System.lineSeparator()
+			+ "  return masks[:, 0].cpu().numpy()" + System.lineSeparator();
+
 	@Override
-	protected void processPromptsBatchWithSAM(SharedMemoryArray shmArr,
-			boolean returnAll) {
-		String code = ""
-				+ "num_threads = 3" + System.lineSeparator()
-				+ "finished_threads = []" + System.lineSeparator()
-				+ "print(('threading' not in globals().keys()))" + System.lineSeparator()
-				+ "if \"threading\" not in globals().keys():" + System.lineSeparator()
-				+ "  import threading" + System.lineSeparator()
-				+ "  globals()['threading'] = threading" + System.lineSeparator()
-				+ "if \"ThreadPoolExecutor\" not in globals().keys():" + System.lineSeparator()
-				+ "  from concurrent.futures import ThreadPoolExecutor, as_completed" + System.lineSeparator()
-				+ "  globals()['ThreadPoolExecutor'] = ThreadPoolExecutor" + System.lineSeparator()
-				+ "  globals()['as_completed'] = as_completed" + System.lineSeparator()
-				+ "lock = threading.Lock()" + System.lineSeparator()
-				+ "def respond_in_thread(task, args, inds, lock, finished_threads):" + System.lineSeparator()
-				+ "  task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "  with lock:" + System.lineSeparator()
-				+ "    finished_threads.extend(inds)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "def cancel_unstarted_tasks(futures):" + System.lineSeparator()
-				+ "    for future in futures:" + System.lineSeparator()
-				+ "        if not future.running() and not future.done():" + System.lineSeparator()
-				+ "            future.cancel()" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "num_features = 0" + System.lineSeparator();
-		if (shmArr != null) {
-			code += ""
-					+ "shm_mask = shared_memory.SharedMemory(name='" + shmArr.getNameForPython() + "')" + System.lineSeparator()
-					+ "mask_batch = np.ndarray(%s, buffer=shm_mask.buf, dtype='" 
-					+ shmArr.getOriginalDataType() + "').reshape([";
-			long size = 1;
-			for (long l : shmArr.getOriginalShape()) {
-				code += l + ",";
-				size *= l;
-			}
-			code = String.format(code, size);
-			code += "])" + System.lineSeparator();
-			code += "labeled_array, num_features = label(mask_batch)" + System.lineSeparator();
-		}
-		code += ""
-				+ "contours_x = []" + System.lineSeparator()
-				+ "contours_y = []" + System.lineSeparator()
-				+ "rle_masks = []" + System.lineSeparator()
-				+ "ntot = num_features + len(point_prompts) + len(rect_prompts)" + System.lineSeparator()
-				+ "args = {\"outputs\": {'n': str(ntot)}, \"message\": '" + AbstractSamJ.UPDATE_ID_N_CONTOURS + "'}" + System.lineSeparator()
-				+ "task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				// TODO right now is geetting the mask after each prompt
-				// TODO test processing first every prompt and then getting the masks
-				+ "with ThreadPoolExecutor(max_workers=num_threads) as executor:" + System.lineSeparator()
-				+ "  futures = []" + System.lineSeparator()
-				+ "  n_objects = 0" + System.lineSeparator()
-				+ "  for n_feat in range(1, num_features + 1):" + System.lineSeparator()
-				+ "    extracted_point_prompts = []" + System.lineSeparator()
-				+ "    extracted_point_labels = []" + System.lineSeparator()
-				+ "    inds = np.where(labeled_array == n_feat)" + System.lineSeparator()
-				+ "    n_points = np.min([3, inds[0].shape[0]])" + System.lineSeparator()
-				+ "    random_positions = np.random.choice(inds[0].shape[0], n_points, replace=False)" + System.lineSeparator()
-				+ "    for pp in range(n_points):" + System.lineSeparator()
-				+ "      extracted_point_prompts += [[inds[0][random_positions[pp]], inds[1][random_positions[pp]]]]" + System.lineSeparator()
-				+ "      extracted_point_labels += [1]" + System.lineSeparator()
-				+ "    mask, _, _ = predictor.predict(" + System.lineSeparator()
-				+ "      point_coords=np.array(extracted_point_prompts)," + System.lineSeparator()
-				+ "      point_labels=np.array(extracted_point_labels)," + System.lineSeparator()
-				+ "      multimask_output=False," + System.lineSeparator()
-				+ "      box=None,)" + System.lineSeparator()
-				+ (this.isIJROIManager ? "    mask[0, 1:, 1:] += mask[0, :-1, :-1]" : "") + System.lineSeparator()
-				+ "    c_x, c_y, r_m = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
-				+ "    contours_x += c_x" + System.lineSeparator()
-				+ "    contours_y += c_y" + System.lineSeparator()
-				+ "    rle_masks += r_m" + System.lineSeparator()
-				+ "    args = {\"outputs\": {'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": '" + AbstractSamJ.UPDATE_ID_CONTOUR + "'}" + System.lineSeparator()
-				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
-				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
-				+ "    futures.append(future)" + System.lineSeparator()
-				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "  for p_prompt in point_prompts:" + System.lineSeparator()
-				+ "    mask, _, _ = predictor.predict(" + System.lineSeparator()
-				+ "      point_coords=np.array(p_prompt).reshape(1, 2)," + System.lineSeparator()
-				+ "      point_labels=np.array([1])," + System.lineSeparator()
-				+ "      multimask_output=False," + System.lineSeparator()
-				+ "      box=None,)" + System.lineSeparator()
-				+ (this.isIJROIManager ? "    mask[0, 1:, 1:] += mask[0, :-1, :-1]" : "") + System.lineSeparator()
-				+ "    c_x, c_y, r_m = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
-				+ "    contours_x += c_x" + System.lineSeparator()
-				+ "    contours_y += c_y" + System.lineSeparator()
-				+ "    rle_masks += r_m" + System.lineSeparator()
-				+ "    args = {\"outputs\": {'point': p_prompt, 'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": '" + AbstractSamJ.UPDATE_ID_CONTOUR + "'}" + System.lineSeparator()
-				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
-				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
-				+ "    futures.append(future)" + System.lineSeparator()
-				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "  for rect_prompt in rect_prompts:" + System.lineSeparator()
-				+ "    input_box = np.array([[rect_prompt[0], rect_prompt[1]], [rect_prompt[2], rect_prompt[3]]])" + System.lineSeparator()
-				+ "    mask, _, _ = predictor.predict(" + System.lineSeparator()
-				+ "      point_coords=None," + System.lineSeparator()
-				+ "      point_labels=np.array([1])," + System.lineSeparator()
-				+ "      multimask_output=False," + System.lineSeparator()
-				+ "      box=input_box,)" + System.lineSeparator()
-				+ (this.isIJROIManager ? "    mask[0, 1:, 1:] += mask[0, :-1, :-1]" : "") + System.lineSeparator()
-				+ "    c_x, c_y, r_m = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
-				+ "    contours_x += c_x" + System.lineSeparator()
-				+ "    contours_y += c_y" + System.lineSeparator()
-				+ "    rle_masks += r_m" + System.lineSeparator()
-				+ "    args = {\"outputs\": {'rect': rect_prompt, 'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": '" + AbstractSamJ.UPDATE_ID_CONTOUR + "'}" + System.lineSeparator()
-				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
-				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
-				+ "    futures.append(future)" + System.lineSeparator()
-				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "  finished_threads.sort()" + System.lineSeparator()
-				+ "  cancel_unstarted_tasks(futures)" + System.lineSeparator()
-				+ "  for i, future in enumerate(futures[::-1]):" + System.lineSeparator()
-				+ "    if not future.cancelled():" + System.lineSeparator()
-				+ "      future.result()" + System.lineSeparator()
-				+ "  for i in finished_threads[::-1]:" + System.lineSeparator()
-				+ "      contours_x.pop(i)" + System.lineSeparator()
-				+ "      contours_y.pop(i)" + System.lineSeparator()
-				+ "      rle_masks.pop(i)" + System.lineSeparator()
-				+ "" + System.lineSeparator()
-				+ "task.update('all contours traced')" + System.lineSeparator()
-				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
-				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
-		code += "mask_batch = None" + System.lineSeparator();
-		if (shmArr != null) {
-			code += "shm_mask.close()" + System.lineSeparator();
-			code += "shm_mask.unlink()" + System.lineSeparator();
-		}
-		this.script = code;
+	protected void processPromptsBatchWithSAM(SharedMemoryArray shmArr, boolean returnAll) {
+		this.script = createBatchScript(shmArr, DECODE_BATCH, returnAll);
 	}
 }
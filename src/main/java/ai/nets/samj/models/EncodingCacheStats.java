@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+/**
+ * Statistics of the cache of encodings kept in the Python process of a SAMJ model.
+ *
+ * The instances returned by {@link AbstractSamJ#getEncodingCacheStats()} are snapshots,
+ * they do not change when the cache is used afterwards.
+ * @author Carlos Garcia
+ */
+public class EncodingCacheStats {
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	private long bytesResident;
+
+	private long budget;
+
+	private int entries;
+
+	EncodingCacheStats(long budget) {
+		this.budget = budget;
+	}
+
+	synchronized void hit() {
+		hits ++;
+	}
+
+	synchronized void miss() {
+		misses ++;
+	}
+
+	synchronized void add(long bytes) {
+		bytesResident += bytes;
+		entries ++;
+	}
+
+	synchronized void remove(long bytes, boolean evicted) {
+		bytesResident -= bytes;
+		entries --;
+		if (evicted)
+			evictions ++;
+	}
+
+	synchronized void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	synchronized EncodingCacheStats snapshot() {
+		EncodingCacheStats copy = new EncodingCacheStats(budget);
+		copy.hits = hits;
+		copy.misses = misses;
+		copy.evictions = evictions;
+		copy.bytesResident = bytesResident;
+		copy.entries = entries;
+		return copy;
+	}
+
+	/**
+	 *
+	 * @return number of times a cached encoding was requested and found
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 *
+	 * @return number of times a cached encoding was requested and it was not found,
+	 * 	either because it never existed or because it had been evicted
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 *
+	 * @return number of encodings removed from the cache to keep it under the memory budget
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 *
+	 * @return number of bytes used by the encodings that are in the cache
+	 */
+	public long getBytesResident() {
+		return bytesResident;
+	}
+
+	/**
+	 *
+	 * @return maximum number of bytes that the encodings in the cache can use
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 *
+	 * @return number of encodings in the cache
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 *
+	 * @return fraction of the requests that found the encoding in the cache, 0 if there have been no requests
+	 */
+	public double getHitRate() {
+		return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+	}
+
+	@Override
+	public String toString() {
+		return "EncodingCacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+				+ ", entries=" + entries + ", bytesResident=" + bytesResident + ", budget=" + budget + "}";
+	}
+}
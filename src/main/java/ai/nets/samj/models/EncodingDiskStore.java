@@ -0,0 +1,227 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Folder where the encodings computed by the SAM models are written to disk, so they survive the 
+ * Python process and an image that is opened again does not need to be encoded again.
+ * 
+ * Every encoding is a folder of memory-mapped .npy files (one per tensor) plus a json file with the
+ * structure of the encoding. The encodings are identified by the hash of the image, the model that 
+ * produced them and the crop and scale of the image that was encoded.
+ * 
+ * @author Carlos Garcia
+ */
+public class EncodingDiskStore {
+	
+	/**
+	 * Default folder where the encodings are stored
+	 */
+	public static final String DEFAULT_DIR = System.getProperty("java.io.tmpdir") + File.separator + "samj_encodings";
+	/**
+	 * File that marks that an encoding has been written completely
+	 */
+	private static final String STRUCTURE_FILE = "structure.json";
+	
+	/**
+	 * Default maximum number of bytes that the encodings in the store can use
+	 */
+	public static final long DEFAULT_MAX_BYTES = 20L * 1024 * 1024 * 1024;
+	/**
+	 * Suffix of the folders of the encodings that are still being written
+	 */
+	private static final String TMP_SUFFIX = ".tmp";
+	/**
+	 * Thread where the stores are trimmed without blocking the requests of the models
+	 */
+	private static final ExecutorService TRIMMER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "SAMJ encoding store trimmer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final File dir;
+	
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	
+	private final AtomicBoolean trimPending = new AtomicBoolean(false);
+	
+	/**
+	 * Create a store that keeps the encodings in the folder provided
+	 * @param dir
+	 * 	folder where the encodings are written, it is created if it does not exist
+	 */
+	public EncodingDiskStore(String dir) {
+		this.dir = new File(dir);
+		this.dir.mkdirs();
+	}
+	
+	/**
+	 * Set the maximum number of bytes that the encodings in the store can use. When {@link #trim()} is called,
+	 * the encodings used least recently are deleted until the store is under this size
+	 * @param maxBytes
+	 * 	maximum number of bytes
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * 
+	 * @return a store in the default folder {@link #DEFAULT_DIR}
+	 */
+	public static EncodingDiskStore getDefault() {
+		return new EncodingDiskStore(DEFAULT_DIR);
+	}
+	
+	/**
+	 * Create the key that identifies an encoding in the store
+	 * @param imageHash
+	 * 	hash of the content of the image
+	 * @param modelId
+	 * 	identifier of the model (and its variant) that computes the encodings
+	 * @param crop
+	 * 	crop of the image that is encoded [x, y, width, height]
+	 * @param scale
+	 * 	subsampling factor applied to the crop before encoding it
+	 * @return the key of the encoding
+	 */
+	public String getKey(String imageHash, String modelId, long[] crop, int scale) {
+		return modelId.replaceAll("[^A-Za-z0-9_\\-]", "_") + "_" + imageHash 
+				+ "_" + crop[0] + "_" + crop[1] + "_" + crop[2] + "_" + crop[3] + "_s" + scale;
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * 	key of the encoding
+	 * @return whether the encoding has been written completely to the store or not
+	 */
+	public boolean contains(String key) {
+		return new File(new File(dir, key), STRUCTURE_FILE).isFile();
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * 	key of the encoding
+	 * @return the path to the folder of the encoding in a form that can be written in a Python String
+	 */
+	public String getPathForPython(String key) {
+		return new File(dir, key).getAbsolutePath().replace("\\", "/");
+	}
+	
+	/**
+	 * Mark an encoding as used, so it is the last one to be deleted by {@link #trim()}
+	 * @param key
+	 * 	key of the encoding
+	 */
+	public void touch(String key) {
+		new File(dir, key).setLastModified(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Delete the encodings used least recently until the store uses less than the maximum number of bytes
+	 * @throws IOException if any of the files cannot be read or deleted
+	 */
+	public synchronized void trim() throws IOException {
+		File[] encodings = dir.listFiles(ff -> ff.isDirectory() && !ff.getName().endsWith(TMP_SUFFIX));
+		if (encodings == null)
+			return;
+		long[] sizes = new long[encodings.length];
+		long total = 0;
+		for (int i = 0; i < encodings.length; i ++) {
+			try (Stream<Path> walk = Files.walk(encodings[i].toPath())) {
+				sizes[i] = walk.filter(Files::isRegularFile).mapToLong(pp -> pp.toFile().length()).sum();
+			}
+			total += sizes[i];
+		}
+		Integer[] order = new Integer[encodings.length];
+		for (int i = 0; i < order.length; i ++)
+			order[i] = i;
+		final long[] modified = new long[encodings.length];
+		for (int i = 0; i < encodings.length; i ++)
+			modified[i] = encodings[i].lastModified();
+		Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+		for (int i = 0; i < order.length && total > maxBytes; i ++) {
+			deleteRecursively(encodings[order[i]].toPath());
+			total -= sizes[order[i]];
+		}
+	}
+	
+	/**
+	 * Call {@link #trim()} in a background thread. If a call is already waiting, no new call is made
+	 */
+	public void trimInBackground() {
+		if (!trimPending.compareAndSet(false, true))
+			return;
+		TRIMMER.execute(() -> {
+			trimPending.set(false);
+			try {
+				trim();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	/**
+	 * Delete an encoding from the store
+	 * @param key
+	 * 	key of the encoding
+	 * @throws IOException if any of the files cannot be deleted
+	 */
+	public void delete(String key) throws IOException {
+		deleteRecursively(new File(dir, key).toPath());
+	}
+	
+	/**
+	 * Delete all the encodings in the store
+	 * @throws IOException if any of the files cannot be deleted
+	 */
+	public void clear() throws IOException {
+		File[] encodings = dir.listFiles();
+		if (encodings == null)
+			return;
+		for (File ff : encodings)
+			deleteRecursively(ff.toPath());
+	}
+	
+	private static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path))
+			return;
+		try (Stream<Path> walk = Files.walk(path)) {
+			for (Path pp : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(pp);
+		}
+	}
+
+}
@@ -19,18 +19,49 @@
  */
 package ai.nets.samj.models;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
 import ai.nets.samj.models.AbstractSamJ.DebugTextPrinter;
+import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
 /**
@@ -39,6 +70,45 @@ import net.imglib2.view.Views;
  * @author Carlos Garcia
  */
 public class ImgLib2Utils {
+	
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	
+	private static final long FNV_PRIME = 0x100000001b3L;
+	/**
+	 * Number of bands in which an image is divided to compute its hash in parallel
+	 */
+	private static final long HASH_BANDS = 256;
+	/**
+	 * Number of pixels of each of the chunks in which the min and max of an image are computed in parallel
+	 */
+	private static final long MIN_MAX_CHUNK = 1 << 20;
+	/**
+	 * Number of rows of each of the bands in which the min and max of a channel are computed in parallel
+	 */
+	private static final int ROW_BAND = 64;
+	/**
+	 * Number of columns of each of the bands written in parallel into a buffer. The buffer is ordered with the
+	 * columns as slowest axis, so each band is written in a block of the buffer while its rows are read from the image
+	 */
+	private static final int COLUMN_BAND = 64;
+	/**
+	 * Number of chunks in which the histogram of a channel is computed
+	 */
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Reads the values of the pixels of one channel of an image, at the position x, y from its origin
+	 */
+	private interface ChannelReader {
+		double get(long x, long y);
+	}
+
+	/**
+	 * Creates the readers of one channel of an image, each of them can only be used by one thread
+	 */
+	private interface ReaderFactory {
+		ChannelReader create();
+	}
 
 	/**
 	 * Get the maximum and minimum pixel values of an {@link IterableInterval}
@@ -51,19 +121,69 @@ public class ImgLib2Utils {
 	 */
 	public static <T extends RealType<T> & NativeType<T>>
 	void getMinMaxPixelValue(final IterableInterval<T> inImg, final double[] outMinMax) {
-		double min = inImg.firstElement().getRealDouble();
-		double max = min;
+		final long size = inImg.size();
+		final long nChunks = (size + MIN_MAX_CHUNK - 1) / MIN_MAX_CHUNK;
+		double[] minMax = LongStream.range(0, nChunks).parallel().mapToObj(n -> {
+			Cursor<T> cursor = inImg.cursor();
+			cursor.jumpFwd(n * MIN_MAX_CHUNK);
+			long end = Math.min(size, (n + 1) * MIN_MAX_CHUNK);
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (long i = n * MIN_MAX_CHUNK; i < end; i ++) {
+				double val = cursor.next().getRealDouble();
+				min = Math.min(min,val);
+				max = Math.max(max,val);
+			}
+			return new double[] {min, max};
+		}).reduce(ImgLib2Utils::mergeMinMax).orElse(new double[] {0, 0});
 
-		for (T px : inImg) {
-			double val = px.getRealDouble();
-			min = Math.min(min,val);
-			max = Math.max(max,val);
+		if (outMinMax.length > 1) {
+			outMinMax[0] = minMax[0];
+			outMinMax[1] = minMax[1];
 		}
+	}
 
-		if (outMinMax.length > 1) {
-			outMinMax[0] = min;
-			outMinMax[1] = max;
+	/**
+	 * Get the minimum and maximum pixel values of each of the channels of a 2D image. The image is read in parallel
+	 * by bands of rows, accessing directly the primitive arrays of {@link ArrayImg} and {@link PlanarImg} images
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param img
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @return the min and max of each channel, as [min0, max0, min1, max1, ...]
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	double[] getChannelsMinMax(final RandomAccessibleInterval<T> img) {
+		final ReaderFactory[] readers = channelReaders(img);
+		final double[] minMax = new double[2 * readers.length];
+		for (int c = 0; c < readers.length; c ++) {
+			double[] channel = getMinMax(readers[c], img.dimension(0), img.dimension(1));
+			minMax[2 * c] = channel[0];
+			minMax[2 * c + 1] = channel[1];
 		}
+		return minMax;
+	}
+
+	private static double[] getMinMax(final ReaderFactory readers, final long width, final long height) {
+		final int nBands = (int) ((height + ROW_BAND - 1) / ROW_BAND);
+		return IntStream.range(0, nBands).parallel().mapToObj(band -> {
+			ChannelReader reader = readers.create();
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			long end = Math.min(height, (long) (band + 1) * ROW_BAND);
+			for (long y = (long) band * ROW_BAND; y < end; y ++) {
+				for (long x = 0; x < width; x ++) {
+					double val = reader.get(x, y);
+					min = Math.min(min,val);
+					max = Math.max(max,val);
+				}
+			}
+			return new double[] {min, max};
+		}).reduce(ImgLib2Utils::mergeMinMax).orElse(new double[] {0, 0});
+	}
+
+	private static double[] mergeMinMax(double[] a, double[] b) {
+		return new double[] {Math.min(a[0], b[0]), Math.max(a[1], b[1])};
 	}
 
 	/**
@@ -159,18 +279,601 @@ public class ImgLib2Utils {
 		return convertViewToRGB(inImg, minMax);
 	}
 	
-	protected static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> 
-	reescaleIfNeeded(RandomAccessibleInterval<T> rai) {
-		if ((rai.dimensionsAsLongArray()[0] > rai.dimensionsAsLongArray()[1])
-				&& (rai.dimensionsAsLongArray()[0] > AbstractSamJ.MAX_ENCODED_AREA_RS)) {
-			// TODO reescale
-			return rai;
-		} else if ((rai.dimensionsAsLongArray()[0] < rai.dimensionsAsLongArray()[1])
-				&& (rai.dimensionsAsLongArray()[1] > AbstractSamJ.MAX_ENCODED_SIDE)) {
-			// TODO reescale
-			return rai;
+	/**
+	 * Write an image into a buffer as the 8-bit RGB image fed to SAM, in one parallel pass. Each channel is scaled 
+	 * from its min and max to [0, 255], images of {@link UnsignedByteType} are written as they are.
+	 * The buffer is ordered as a C-ordered array of shape [width, height, channels], as it is read by numpy
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param img
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @param buffer
+	 * 	buffer where the image is written, usually the buffer of a shared memory segment
+	 * @param nChannels
+	 * 	number of channels written in the buffer, if the image has less channels its last channel is repeated
+	 * @param debugPrinter
+	 *  consumer that handles printing information about what is happening in this method
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	void writeRGB(final RandomAccessibleInterval<T> img, final ByteBuffer buffer, final int nChannels, 
+			DebugTextPrinter debugPrinter) {
+		writeRGB(img, buffer, nChannels, null, debugPrinter);
+	}
+
+	/**
+	 * Write an image into a buffer as the 8-bit RGB image fed to SAM, in one parallel pass. Each channel is stretched 
+	 * from its low to its high level to [0, 255], the values outside the levels are clipped.
+	 * The buffer is ordered as a C-ordered array of shape [width, height, channels], as it is read by numpy
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param img
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @param buffer
+	 * 	buffer where the image is written, usually the buffer of a shared memory segment
+	 * @param nChannels
+	 * 	number of channels written in the buffer, if the image has less channels its last channel is repeated
+	 * @param levels
+	 * 	low and high levels of each channel as [low0, high0, low1, high1, ...], usually obtained from an 
+	 * 	{@link IntensityHistogram}. If null, they are the min and max of each channel and images of 
+	 * 	{@link UnsignedByteType} are written as they are
+	 * @param debugPrinter
+	 *  consumer that handles printing information about what is happening in this method
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	void writeRGB(final RandomAccessibleInterval<T> img, final ByteBuffer buffer, final int nChannels, 
+			final double[] levels, DebugTextPrinter debugPrinter) {
+		final ReaderFactory[] readers = channelReaders(img);
+		final double[] offsets = new double[readers.length];
+		final double[] scales = new double[readers.length];
+		if (levels != null) {
+			checkLevels(levels, readers.length);
+			for (int c = 0; c < readers.length; c ++) {
+				debugPrinter.printText("LOW LEVEL="+levels[2 * c]+", HIGH LEVEL="+levels[2 * c + 1]+", converting channel " + c);
+				offsets[c] = levels[2 * c];
+				scales[c] = levels[2 * c + 1] > levels[2 * c] ? 255 / (levels[2 * c + 1] - levels[2 * c]) : 0;
+			}
+		} else if (Util.getTypeFromInterval(img) instanceof UnsignedByteType) {
+			debugPrinter.printText("IMAGE IS RGB, writing it directly");
+			for (int c = 0; c < readers.length; c ++)
+				scales[c] = 1;
 		} else {
+			for (int c = 0; c < readers.length; c ++) {
+				double[] minMax = getMinMax(readers[c], img.dimension(0), img.dimension(1));
+				debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS _NOT_ RGB, converting channel " + c);
+				offsets[c] = minMax[0];
+				scales[c] = minMax[1] > minMax[0] ? 255 / (minMax[1] - minMax[0]) : 0;
+			}
+		}
+		writeChannels(readers, img.dimension(0), img.dimension(1), nChannels, offsets, scales,
+				(i, val) -> buffer.put(i, (byte) Math.max(0, Math.min(255, Math.round(val)))));
+	}
+
+	/**
+	 * Write an image into a buffer as the float32 image normalized to [0, 1] fed to SAM, in one parallel pass. Each channel
+	 * is normalized with its min and max, unless its values are already between 0 and 1.
+	 * The buffer is ordered as a C-ordered array of shape [width, height, channels], as it is read by numpy
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param img
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @param buffer
+	 * 	buffer where the image is written, usually the buffer of a shared memory segment
+	 * @param nChannels
+	 * 	number of channels written in the buffer, if the image has less channels its last channel is repeated
+	 * @param debugPrinter
+	 *  consumer that handles printing information about what is happening in this method
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	void writeNormalized(final RandomAccessibleInterval<T> img, final ByteBuffer buffer, final int nChannels, 
+			DebugTextPrinter debugPrinter) {
+		writeNormalized(img, buffer, nChannels, null, debugPrinter);
+	}
+
+	/**
+	 * Write an image into a buffer as the float32 image normalized to [0, 1] fed to SAM, in one parallel pass. Each channel
+	 * is stretched from its low to its high level to [0, 1], the values outside the levels are clipped.
+	 * The buffer is ordered as a C-ordered array of shape [width, height, channels], as it is read by numpy
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param img
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @param buffer
+	 * 	buffer where the image is written, usually the buffer of a shared memory segment
+	 * @param nChannels
+	 * 	number of channels written in the buffer, if the image has less channels its last channel is repeated
+	 * @param levels
+	 * 	low and high levels of each channel as [low0, high0, low1, high1, ...], usually obtained from an 
+	 * 	{@link IntensityHistogram}. If null, they are the min and max of each channel, and the channels 
+	 * 	whose values are already between 0 and 1 are written as they are
+	 * @param debugPrinter
+	 *  consumer that handles printing information about what is happening in this method
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	void writeNormalized(final RandomAccessibleInterval<T> img, final ByteBuffer buffer, final int nChannels, 
+			final double[] levels, DebugTextPrinter debugPrinter) {
+		final ReaderFactory[] readers = channelReaders(img);
+		final double[] offsets = new double[readers.length];
+		final double[] scales = new double[readers.length];
+		if (levels != null) {
+			checkLevels(levels, readers.length);
+			for (int c = 0; c < readers.length; c ++) {
+				debugPrinter.printText("LOW LEVEL="+levels[2 * c]+", HIGH LEVEL="+levels[2 * c + 1]+", normalizing channel " + c);
+				offsets[c] = levels[2 * c];
+				scales[c] = 1 / (levels[2 * c + 1] - levels[2 * c] + 1e-9);
+			}
+		} else {
+			for (int c = 0; c < readers.length; c ++) {
+				double[] minMax = getMinMax(readers[c], img.dimension(0), img.dimension(1));
+				if (isNormalizedInterval(minMax)) {
+					debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS NORMALIZED, writing channel " + c + " directly");
+					scales[c] = 1;
+				} else {
+					debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS _NOT_ NORMALIZED, normalizing channel " + c);
+					offsets[c] = minMax[0];
+					scales[c] = 1 / (minMax[1] - minMax[0] + 1e-9);
+				}
+			}
+		}
+		final FloatBuffer floats = buffer.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		writeChannels(readers, img.dimension(0), img.dimension(1), nChannels, offsets, scales,
+				(i, val) -> floats.put(i, (float) Math.max(0, Math.min(1, val))));
+	}
+
+	/**
+	 * Whether an image can be copied as it is with {@link #copyPlanar(RandomAccessibleInterval, ByteBuffer)}, that is if it is an 
+	 * {@link ArrayImg} of the given type, or a crop of one, with axes xyc
+	 * @param img
+	 * 	the image
+	 * @param type
+	 * 	the type of the pixels fed to the model
+	 * @return whether the image can be copied by planes
+	 */
+	public static boolean isPlanarCopyable(final RandomAccessibleInterval<?> img, final NativeType<?> type) {
+		final ArrayImg<?, ?> source = arrayImgSource(img);
+		if (source == null || !source.firstElement().getClass().equals(type.getClass()))
+			return false;
+		final Object storage = source.update(null);
+		return storage instanceof ByteArray || storage instanceof FloatArray;
+	}
+
+	/**
+	 * Copy an image of {@link UnsignedByteType} or {@link FloatType}, backed by an {@link ArrayImg}, into a buffer without converting it.
+	 * The buffer is ordered as a C-ordered array of shape [channels, height, width], the order of the {@link ArrayImg}, so 
+	 * every row of the image is copied in a block, in parallel. Check first that the image can be copied 
+	 * with {@link #isPlanarCopyable(RandomAccessibleInterval, NativeType)}
+	 * @param img
+	 * 	image with axes xyc
+	 * @param buffer
+	 * 	buffer where the image is written, usually the buffer of a shared memory segment
+	 */
+	public static void copyPlanar(final RandomAccessibleInterval<?> img, final ByteBuffer buffer) {
+		final ArrayImg<?, ?> source = arrayImgSource(img);
+		if (source == null)
+			throw new IllegalArgumentException("Only images backed by an ArrayImg can be copied by planes.");
+		final long[] offset = arrayImgOffset(img);
+		final long srcWidth = source.dimension(0);
+		final long srcHeight = source.dimension(1);
+		final int width = (int) img.dimension(0);
+		final long height = img.dimension(1);
+		final long nChannels = img.dimension(2);
+		if (width * height * nChannels > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The image is too big to be written into a single buffer: " 
+					+ width + "x" + height + "x" + nChannels);
+		final Object storage = source.update(null);
+		final IntStream rows = IntStream.range(0, (int) (height * nChannels)).parallel();
+		if (storage instanceof ByteArray) {
+			final byte[] arr = ((ByteArray) storage).getCurrentStorageArray();
+			rows.forEach(row -> {
+				final long c = row / height;
+				final long y = row % height;
+				final int from = (int) (((offset[2] + c) * srcHeight + offset[1] + y) * srcWidth + offset[0]);
+				final ByteBuffer rowBuffer = buffer.duplicate();
+				rowBuffer.position(row * width);
+				rowBuffer.put(arr, from, width);
+			});
+		} else if (storage instanceof FloatArray) {
+			final float[] arr = ((FloatArray) storage).getCurrentStorageArray();
+			final FloatBuffer floats = buffer.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+			rows.forEach(row -> {
+				final long c = row / height;
+				final long y = row % height;
+				final int from = (int) (((offset[2] + c) * srcHeight + offset[1] + y) * srcWidth + offset[0]);
+				final FloatBuffer rowBuffer = floats.duplicate();
+				rowBuffer.position(row * width);
+				rowBuffer.put(arr, from, width);
+			});
+		} else {
+			throw new IllegalArgumentException("Only images of bytes or floats can be copied by planes.");
+		}
+	}
+
+	/**
+	 * 
+	 * @return the {@link ArrayImg} with axes xyc that contains the image, if the image is the {@link ArrayImg} itself
+	 * 	or a translated crop of it, or null otherwise
+	 */
+	private static ArrayImg<?, ?> arrayImgSource(final RandomAccessibleInterval<?> img) {
+		if (img.numDimensions() != 3 || arrayImgOffset(img) == null)
+			return null;
+		return img instanceof ArrayImg ? (ArrayImg<?, ?>) img : (ArrayImg<?, ?>) ((MixedTransformView<?>) ((IntervalView<?>) img).getSource()).getSource();
+	}
+
+	/**
+	 * 
+	 * @return the position in its {@link ArrayImg} of the origin of an image that is an {@link ArrayImg} or a translated crop of one,
+	 * 	as the ones created with {@link Views#offsetInterval(net.imglib2.RandomAccessible, long[], long[])}, or null for any other image
+	 */
+	private static long[] arrayImgOffset(final RandomAccessibleInterval<?> img) {
+		final int n = img.numDimensions();
+		if (img instanceof ArrayImg)
+			return new long[n];
+		if (!(img instanceof IntervalView) || !(((IntervalView<?>) img).getSource() instanceof MixedTransformView))
+			return null;
+		final MixedTransformView<?> view = (MixedTransformView<?>) ((IntervalView<?>) img).getSource();
+		if (!(view.getSource() instanceof ArrayImg))
+			return null;
+		final MixedTransform transform = view.getTransformToSource();
+		final ArrayImg<?, ?> source = (ArrayImg<?, ?>) view.getSource();
+		if (transform.numSourceDimensions() != n || transform.numTargetDimensions() != n)
+			return null;
+		final long[] offset = new long[n];
+		for (int d = 0; d < n; d ++) {
+			if (transform.getComponentZero(d) || transform.getComponentMapping(d) != d || transform.getComponentInversion(d))
+				return null;
+			offset[d] = transform.getTranslation(d) + img.min(d);
+			if (offset[d] < 0 || offset[d] + img.dimension(d) > source.dimension(d))
+				return null;
+		}
+		return offset;
+	}
+
+	/**
+	 * Write a mask into a buffer as a uint8 C-ordered array with the dimensions of the mask, as it is read by numpy, 
+	 * with 1 where the mask is not 0 and 0 elsewhere. The slowest axis is divided in bands written in parallel
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param mask
+	 * 	the mask
+	 * @param buffer
+	 * 	buffer where the mask is written, usually the buffer of a shared memory segment
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	void writeMask(final RandomAccessibleInterval<T> mask, final ByteBuffer buffer) {
+		if (Intervals.numElements(mask) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The mask is too big to be written into a single buffer.");
+		final long[] dims = mask.dimensionsAsLongArray();
+		final long[] min = mask.minAsLongArray();
+		final int n = dims.length;
+		final long planeSize = Intervals.numElements(mask) / dims[0];
+		LongStream.range(0, dims[0]).parallel().forEach(x0 -> {
+			final RandomAccess<T> ra = mask.randomAccess();
+			final long[] pos = min.clone();
+			pos[0] += x0;
+			for (long i = 0; i < planeSize; i ++) {
+				// C order, the last axis is the fastest
+				long rest = i;
+				for (int d = n - 1; d > 0; d --) {
+					pos[d] = min[d] + rest % dims[d];
+					rest /= dims[d];
+				}
+				ra.setPosition(pos);
+				buffer.put((int) (x0 * planeSize + i), (byte) (ra.get().getRealDouble() != 0 ? 1 : 0));
+			}
+		});
+	}
+
+	private static void checkLevels(double[] levels, int nChannels) {
+		if (levels.length != 2 * nChannels)
+			throw new IllegalArgumentException("There should be a low and a high level for each of the " 
+					+ nChannels + " channels, but there are " + levels.length + " levels.");
+	}
+
+	/**
+	 * Compute the histogram of the intensities of each channel of an image, in parallel by bands of rows
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param img
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @return the histogram of each channel
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	IntensityHistogram computeHistogram(final RandomAccessibleInterval<T> img) {
+		final ReaderFactory[] readers = channelReaders(img);
+		final long width = img.dimension(0);
+		final long height = img.dimension(1);
+		final boolean integer = Util.getTypeFromInterval(img) instanceof IntegerType;
+		final double[] mins = new double[readers.length];
+		final double[] maxs = new double[readers.length];
+		final long[][] counts = new long[readers.length][];
+		// one partial histogram per chunk of rows, few chunks to limit the memory, but never more than 2^30 pixels per chunk
+		final long rowsPerChunk = Math.max(1, Math.min((height + PARALLELISM - 1) / PARALLELISM, (1L << 30) / Math.max(1, width)));
+		final int nChunks = (int) ((height + rowsPerChunk - 1) / rowsPerChunk);
+		for (int c = 0; c < readers.length; c ++) {
+			final double[] minMax = getMinMax(readers[c], width, height);
+			final double range = minMax[1] - minMax[0];
+			final int nBins = integer && range < IntensityHistogram.MAX_BINS ? (int) range + 1 : IntensityHistogram.MAX_BINS;
+			final double toBin = range > 0 ? (nBins - 1) / range : 0;
+			final ReaderFactory factory = readers[c];
+			counts[c] = IntStream.range(0, nChunks).parallel().mapToObj(chunk -> {
+				ChannelReader reader = factory.create();
+				int[] bins = new int[nBins];
+				long end = Math.min(height, (chunk + 1) * rowsPerChunk);
+				for (long y = chunk * rowsPerChunk; y < end; y ++) {
+					for (long x = 0; x < width; x ++)
+						bins[(int) Math.round((reader.get(x, y) - minMax[0]) * toBin)] ++;
+				}
+				long[] partial = new long[nBins];
+				for (int i = 0; i < nBins; i ++)
+					partial[i] = bins[i];
+				return partial;
+			}).reduce((a, b) -> {
+				for (int i = 0; i < nBins; i ++)
+					a[i] += b[i];
+				return a;
+			}).orElse(new long[nBins]);
+			mins[c] = minMax[0];
+			maxs[c] = minMax[1];
+		}
+		return new IntensityHistogram(mins, maxs, counts);
+	}
+
+	/**
+	 * Writes a value at a position of a buffer
+	 */
+	private interface BufferWriter {
+		void put(int index, double value);
+	}
+
+	/**
+	 * Write (value - offset) * scale of every pixel of every channel into the buffer, in parallel by bands of columns
+	 */
+	private static void writeChannels(final ReaderFactory[] readers, final long width, final long height, final int nChannels,
+			final double[] offsets, final double[] scales, final BufferWriter writer) {
+		if (width * height * nChannels > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The image is too big to be written into a single buffer: " 
+					+ width + "x" + height + "x" + nChannels);
+		final int nBands = (int) ((width + COLUMN_BAND - 1) / COLUMN_BAND);
+		IntStream.range(0, nBands).parallel().forEach(band -> {
+			final long x0 = (long) band * COLUMN_BAND;
+			final long x1 = Math.min(width, x0 + COLUMN_BAND);
+			for (int c = 0; c < nChannels; c ++) {
+				final int in = Math.min(c, readers.length - 1);
+				final ChannelReader reader = readers[in].create();
+				final double offset = offsets[in];
+				final double scale = scales[in];
+				for (long y = 0; y < height; y ++) {
+					for (long x = x0; x < x1; x ++)
+						writer.put((int) ((x * height + y) * nChannels + c), (reader.get(x, y) - offset) * scale);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Create the readers of each of the channels of an image. The images backed by an {@link ArrayImg} or a {@link PlanarImg}
+	 * of the usual numeric types are read directly from their primitive arrays, the rest through a {@link RandomAccess}
+	 */
+	private static <T extends RealType<T> & NativeType<T>>
+	ReaderFactory[] channelReaders(final RandomAccessibleInterval<T> img) {
+		if (img.numDimensions() != 2 && img.numDimensions() != 3)
+			throw new IllegalArgumentException("Only images with axes xy or xyc are supported, the image has "
+					+ img.numDimensions() + " dimensions.");
+		final int nChannels = img.numDimensions() == 2 ? 1 : (int) img.dimension(2);
+		final long width = img.dimension(0);
+		final long height = img.dimension(1);
+		final T type = Util.getTypeFromInterval(img);
+		final ReaderFactory[] readers = new ReaderFactory[nChannels];
+		for (int c = 0; c < nChannels; c ++) {
+			ChannelReader direct = null;
+			if (img instanceof ArrayImg)
+				direct = arrayReader(((ArrayImg<?, ?>) img).update(null), type, c * width * height, width);
+			else if (img instanceof PlanarImg)
+				direct = arrayReader(((PlanarImg<?, ?>) img).getPlane(c), type, 0, width);
+			if (direct != null) {
+				final ChannelReader reader = direct;
+				readers[c] = () -> reader;
+				continue;
+			}
+			final RandomAccessibleInterval<T> channel = img.numDimensions() == 2 ? img : Views.hyperSlice(img, 2, c);
+			final long[] min = channel.minAsLongArray();
+			readers[c] = () -> {
+				final RandomAccess<T> ra = channel.randomAccess();
+				return (x, y) -> {
+					ra.setPosition(min[0] + x, 0);
+					ra.setPosition(min[1] + y, 1);
+					return ra.get().getRealDouble();
+				};
+			};
+		}
+		return readers;
+	}
+
+	/**
+	 * Reader of a channel stored in a primitive array, from the position offset, with rows of the given width
+	 * @return the reader or null if the storage or the type are not supported
+	 */
+	private static ChannelReader arrayReader(final Object storage, final Object type, final long offset, final long width) {
+		if (storage instanceof ByteArray) {
+			final byte[] arr = ((ByteArray) storage).getCurrentStorageArray();
+			if (type instanceof UnsignedByteType)
+				return (x, y) -> arr[(int) (offset + y * width + x)] & 0xff;
+			else if (type instanceof ByteType)
+				return (x, y) -> arr[(int) (offset + y * width + x)];
+		} else if (storage instanceof ShortArray) {
+			final short[] arr = ((ShortArray) storage).getCurrentStorageArray();
+			if (type instanceof UnsignedShortType)
+				return (x, y) -> arr[(int) (offset + y * width + x)] & 0xffff;
+			else if (type instanceof ShortType)
+				return (x, y) -> arr[(int) (offset + y * width + x)];
+		} else if (storage instanceof IntArray) {
+			final int[] arr = ((IntArray) storage).getCurrentStorageArray();
+			if (type instanceof UnsignedIntType)
+				return (x, y) -> arr[(int) (offset + y * width + x)] & 0xffffffffL;
+			else if (type instanceof IntType)
+				return (x, y) -> arr[(int) (offset + y * width + x)];
+		} else if (storage instanceof LongArray && type instanceof LongType) {
+			final long[] arr = ((LongArray) storage).getCurrentStorageArray();
+			return (x, y) -> arr[(int) (offset + y * width + x)];
+		} else if (storage instanceof FloatArray && type instanceof FloatType) {
+			final float[] arr = ((FloatArray) storage).getCurrentStorageArray();
+			return (x, y) -> arr[(int) (offset + y * width + x)];
+		} else if (storage instanceof DoubleArray && type instanceof DoubleType) {
+			final double[] arr = ((DoubleArray) storage).getCurrentStorageArray();
+			return (x, y) -> arr[(int) (offset + y * width + x)];
+		}
+		return null;
+	}
+	
+	/**
+	 * Compute a 64-bit hash of the dimensions and pixel values of an image, used to recognise an image
+	 * that has already been encoded.
+	 * The image is divided in bands of rows that are hashed in parallel, the hashes of the bands are then
+	 * combined in order, so the result does not depend on the number of threads
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param rai
+	 * 	the image of interest
+	 * @return the hash as an hexadecimal String
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	String contentHash(final RandomAccessibleInterval<T> rai) {
+		final long[] dims = rai.dimensionsAsLongArray();
+		final long[] min = rai.minAsLongArray();
+		final long[] max = rai.maxAsLongArray();
+		final int bandAxis = dims.length > 1 ? 1 : 0;
+		final long nBands = Math.min(dims[bandAxis], HASH_BANDS);
+		final long bandSize = (long) Math.ceil(dims[bandAxis] / (double) nBands);
+		final long[] bandHashes = LongStream.range(0, nBands).parallel().map(b -> {
+			long[] bandMin = min.clone();
+			long[] bandMax = max.clone();
+			bandMin[bandAxis] = min[bandAxis] + b * bandSize;
+			bandMax[bandAxis] = Math.min(max[bandAxis], bandMin[bandAxis] + bandSize - 1);
+			if (bandMin[bandAxis] > bandMax[bandAxis])
+				return 0;
+			long hash = FNV_OFFSET;
+			for (T px : Views.flatIterable(Views.interval(rai, bandMin, bandMax)))
+				hash = (hash ^ Double.doubleToLongBits(px.getRealDouble())) * FNV_PRIME;
+			return hash;
+		}).toArray();
+		long hash = FNV_OFFSET;
+		for (long d : dims)
+			hash = (hash ^ d) * FNV_PRIME;
+		for (long bandHash : bandHashes)
+			hash = (hash ^ bandHash) * FNV_PRIME;
+		return String.format("%016x", hash);
+	}
+	
+	/**
+	 * Reduce the size of an image that is bigger than the size the models are fed with by an integer factor, so that 
+	 * the coordinates of the masks obtained can be multiplied by the factor to go back to the image. Each pixel of the
+	 * result is the average of the block of factor x factor pixels it covers, the blocks at the right and bottom borders
+	 * only average the pixels inside the image.
+	 * 
+	 * The result is an image of the type of the input instead of being written straight into the shared memory, so the
+	 * models copy it with the same code they use for the images that are not reduced, which keeps the 8-bit images
+	 * without changes and stretches the rest with the levels of the histogram of the whole image. The extra copy is at
+	 * most of the size fed to the encoder, much smaller than the crops that need to be reduced
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param rai
+	 * 	image of one channel, with axes xy, or several, with axes xyc
+	 * @param factor
+	 * 	factor by which the image is reduced, the size of the result is the size of the image divided by the factor rounded up
+	 * @return the reduced image, of the same type as the image, or the image itself if the factor is 1
+	 */
+	protected static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> 
+	reescaleIfNeeded(RandomAccessibleInterval<T> rai, int factor) {
+		if (factor <= 1)
 			return rai;
+		return downscale(rai, (rai.dimension(0) + factor - 1) / factor, (rai.dimension(1) + factor - 1) / factor, factor);
+	}
+	
+	/**
+	 * Average each channel of an image by blocks, first along the rows and then along the columns, both passes in 
+	 * parallel and reading the image directly from its primitive arrays when possible. The first pass keeps the rows
+	 * already reduced in a float buffer of width x inHeight values, that is reused for all the channels
+	 * @param factor
+	 * 	side in pixels of the blocks of the image averaged into each pixel of the result
+	 */
+	private static <T extends RealType<T> & NativeType<T>> Img<T> 
+	downscale(final RandomAccessibleInterval<T> rai, final long width, final long height, final int factor) {
+		final ReaderFactory[] readers = channelReaders(rai);
+		final long inWidth = rai.dimension(0);
+		final long inHeight = rai.dimension(1);
+		if (width * inHeight > Integer.MAX_VALUE || width * height > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The image is too big to be resampled: " + inWidth + "x" + inHeight);
+		final T type = Util.getTypeFromInterval(rai);
+		final double minValue = type.getMinValue();
+		final double maxValue = type.getMaxValue();
+		final Img<T> out = rai.numDimensions() == 2 ? new ArrayImgFactory<T>(type).create(width, height)
+				: new ArrayImgFactory<T>(type).create(width, height, readers.length);
+		final AreaKernel kernelX = new AreaKernel(inWidth, width, factor);
+		final AreaKernel kernelY = new AreaKernel(inHeight, height, factor);
+		final int nInBands = (int) ((inHeight + ROW_BAND - 1) / ROW_BAND);
+		final int nOutBands = (int) ((height + ROW_BAND - 1) / ROW_BAND);
+		final float[] rows = new float[(int) (width * inHeight)];
+		for (int c = 0; c < readers.length; c ++) {
+			final ReaderFactory factory = readers[c];
+			final int channel = c;
+			IntStream.range(0, nInBands).parallel().forEach(band -> {
+				final ChannelReader reader = factory.create();
+				final long y1 = Math.min(inHeight, (long) (band + 1) * ROW_BAND);
+				for (long y = (long) band * ROW_BAND; y < y1; y ++) {
+					for (int x = 0; x < width; x ++) {
+						final float[] weights = kernelX.weights[x];
+						final long start = kernelX.starts[x];
+						double sum = 0;
+						for (int k = 0; k < weights.length; k ++)
+							sum += weights[k] * reader.get(start + k, y);
+						rows[(int) (y * width + x)] = (float) sum;
+					}
+				}
+			});
+			IntStream.range(0, nOutBands).parallel().forEach(band -> {
+				final RandomAccess<T> ra = out.randomAccess();
+				if (out.numDimensions() == 3)
+					ra.setPosition(channel, 2);
+				final int y1 = (int) Math.min(height, (long) (band + 1) * ROW_BAND);
+				for (int y = band * ROW_BAND; y < y1; y ++) {
+					final float[] weights = kernelY.weights[y];
+					final long start = kernelY.starts[y];
+					ra.setPosition(y, 1);
+					for (int x = 0; x < width; x ++) {
+						double sum = 0;
+						for (int k = 0; k < weights.length; k ++)
+							sum += weights[k] * rows[(int) ((start + k) * width + x)];
+						ra.setPosition(x, 0);
+						ra.get().setReal(Math.max(minValue, Math.min(maxValue, sum)));
+					}
+				}
+			});
+		}
+		return out;
+	}
+	
+	/**
+	 * Weights of the pixels of the image that are averaged into each pixel of the result, along one axis
+	 */
+	private static class AreaKernel {
+		/**
+		 * First pixel of the image averaged into each pixel of the result
+		 */
+		private final long[] starts;
+		/**
+		 * Weights of the consecutive pixels of the image from the first one, they add up to 1
+		 */
+		private final float[][] weights;
+		
+		private AreaKernel(long inSize, long outSize, int factor) {
+			this.starts = new long[(int) outSize];
+			this.weights = new float[(int) outSize][];
+			for (int i = 0; i < outSize; i ++) {
+				final long first = (long) i * factor;
+				final long last = Math.min(inSize, first + factor) - 1;
+				starts[i] = first;
+				weights[i] = new float[(int) (last - first + 1)];
+				Arrays.fill(weights[i], 1f / weights[i].length);
+			}
 		}
 	}
 }
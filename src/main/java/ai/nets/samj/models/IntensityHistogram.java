@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+/**
+ * Histogram of the intensities of each channel of an image, used to find the percentiles of the intensities
+ * that are stretched to the range fed to the model. It is computed once per image with
+ * {@link ImgLib2Utils#computeHistogram(net.imglib2.RandomAccessibleInterval)} and reused for every crop and
+ * tile of the image that is encoded.
+ *
+ * The bins go from the min to the max of each channel. Images of integer types whose channels span less
+ * than {@link #MAX_BINS} values have one bin per value, so their percentiles are exact.
+ *
+ * @author Carlos Garcia
+ */
+public class IntensityHistogram {
+
+	/**
+	 * Maximum number of bins of the histogram of a channel
+	 */
+	public static final int MAX_BINS = 1 << 16;
+
+	private final double[] mins;
+
+	private final double[] maxs;
+
+	private final long[][] counts;
+
+	private final long[] totals;
+
+	/**
+	 * Create the histogram from the counts of each channel
+	 * @param mins
+	 * 	min value of each channel, lower edge of its first bin
+	 * @param maxs
+	 * 	max value of each channel, upper edge of its last bin
+	 * @param counts
+	 * 	number of pixels of each bin of each channel
+	 */
+	IntensityHistogram(double[] mins, double[] maxs, long[][] counts) {
+		this.mins = mins;
+		this.maxs = maxs;
+		this.counts = counts;
+		this.totals = new long[counts.length];
+		for (int c = 0; c < counts.length; c ++) {
+			for (long n : counts[c])
+				totals[c] += n;
+		}
+	}
+
+	/**
+	 *
+	 * @return number of channels of the image
+	 */
+	public int getNumberOfChannels() {
+		return counts.length;
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of the image
+	 * @return min value of the channel
+	 */
+	public double getMin(int channel) {
+		return mins[channel];
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of the image
+	 * @return max value of the channel
+	 */
+	public double getMax(int channel) {
+		return maxs[channel];
+	}
+
+	/**
+	 * Get the value below which a percentage of the pixels of a channel are
+	 * @param channel
+	 * 	channel of the image
+	 * @param percent
+	 * 	percentage of the pixels, between 0 and 100. 0 gives the min of the channel and 100 its max
+	 * @return the value of the percentile
+	 */
+	public double getPercentile(int channel, double percent) {
+		if (percent <= 0 || totals[channel] == 0)
+			return mins[channel];
+		else if (percent >= 100)
+			return maxs[channel];
+		long[] bins = counts[channel];
+		double width = (maxs[channel] - mins[channel]) / Math.max(1, bins.length - 1);
+		double rank = percent / 100 * totals[channel];
+		long cumulative = 0;
+		for (int i = 0; i < bins.length; i ++) {
+			cumulative += bins[i];
+			if (cumulative >= rank)
+				return Math.min(maxs[channel], mins[channel] + i * width);
+		}
+		return maxs[channel];
+	}
+
+	/**
+	 * Get the intensities of each channel that are stretched to the range fed to the model
+	 * @param lowPercent
+	 * 	percentile of the intensities mapped to the lowest value
+	 * @param highPercent
+	 * 	percentile of the intensities mapped to the highest value
+	 * @return the levels as [low0, high0, low1, high1, ...]
+	 */
+	public double[] getLevels(double lowPercent, double highPercent) {
+		double[] levels = new double[2 * counts.length];
+		for (int c = 0; c < counts.length; c ++) {
+			levels[2 * c] = getPercentile(c, lowPercent);
+			levels[2 * c + 1] = getPercentile(c, highPercent);
+		}
+		return levels;
+	}
+}
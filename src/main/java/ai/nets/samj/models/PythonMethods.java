@@ -79,7 +79,9 @@ public class PythonMethods {
 			+ "    #" + System.lineSeparator()
 			+ "    return x_coords,y_coords" + System.lineSeparator()
 			+ "" + System.lineSeparator()
-			+ "def get_polygons_from_binary_mask(sam_result, at_least_of_this_size = 6, only_biggest=False):" + System.lineSeparator()
+			+ "# the contours are traced in Java from the RLE unless trace_in_python is set" + System.lineSeparator()
+			+ "def get_polygons_from_binary_mask(sam_result, at_least_of_this_size = 6, only_biggest=False," + System.lineSeparator()
+			+ "                                  trace_in_python=False):" + System.lineSeparator()
 			+ "    labels = measure.regionprops( measure.label(sam_result > 0,connectivity=1) )" + System.lineSeparator()
 			+ "    x_contours = []" + System.lineSeparator()
 			+ "    y_contours = []" + System.lineSeparator()
@@ -87,7 +89,9 @@ public class PythonMethods {
 			+ "    sizes = []" + System.lineSeparator()
 			+ "    for obj in labels:" + System.lineSeparator()
 			+ "        if obj.num_pixels >= at_least_of_this_size:" + System.lineSeparator()
-			+ "            x_coords,y_coords = trace_contour(obj.image, obj.num_pixels, obj.bbox[1],obj.bbox[0])" + System.lineSeparator()
+			+ "            x_coords,y_coords = [], []" + System.lineSeparator()
+			+ "            if trace_in_python:" + System.lineSeparator()
+			+ "                x_coords,y_coords = trace_contour(obj.image, obj.num_pixels, obj.bbox[1],obj.bbox[0])" + System.lineSeparator()
 			+ "            rle = encode_rle(binary_fill_holes(obj.image))" + System.lineSeparator()
 			+ "            bbox_w = obj.bbox[3] - obj.bbox[1]" + System.lineSeparator()
 			+ "            for i in range(0, len(rle), 2):" + System.lineSeparator()
@@ -96,7 +100,7 @@ public class PythonMethods {
 			+ "            x_contours.append(x_coords)" + System.lineSeparator()
 			+ "            y_contours.append(y_coords)" + System.lineSeparator()
 			+ "            sizes.append(obj.num_pixels)" + System.lineSeparator()
-			+ "    if only_biggest:" + System.lineSeparator()
+			+ "    if only_biggest and sizes:" + System.lineSeparator()
 			+ "        max_size_pos = np.array(sizes).argmax()" + System.lineSeparator()
 			+ "        x_contours = [x_contours[max_size_pos]]" + System.lineSeparator()
 			+ "        y_contours = [y_contours[max_size_pos]]" + System.lineSeparator()
@@ -155,70 +159,354 @@ public class PythonMethods {
 			+ "    " +  System.lineSeparator()
 			+ "    return rle" +  System.lineSeparator()
 			+ "globals()['encode_rle'] = encode_rle" + System.lineSeparator();
+
+	/**
+	 * String containing the Python methods that send the contours and RLE masks back to Java.
+	 * The masks can either be sent as JSON lists in the task outputs or packed into a single
+	 * int64 shared memory segment, which avoids serializing every coordinate into text.
+	 *
+	 * Java reads and unlinks every segment as soon as it receives it. On Linux and macOS Python closes the segment
+	 * right after writing it, so a long batch does not keep a descriptor and a mapping per streamed object, and only
+	 * keeps its name to unlink it at the start of the next task if Java never read it (for example if the task was
+	 * cancelled). On Windows the segment disappears with its last handle, so Python keeps it open until the next task.
+	 *
+	 * The layout of the shared memory segment is:
+	 * [n_masks, total_length, n_contour_points_0, ..., n_contour_points_n, n_rle_0, ..., n_rle_n,
+	 *  x_0..., y_0..., rle_0..., x_1..., y_1..., rle_1..., ...]
+	 */
+	protected static String MASKS_TO_SHM = ""
+			+ "returned_shms = []" + System.lineSeparator()
+			+ "def release_returned_shms():" + System.lineSeparator()
+			+ "    while len(returned_shms) > 0:" + System.lineSeparator()
+			+ "        shm = returned_shms.pop()" + System.lineSeparator()
+			+ "        if isinstance(shm, str):" + System.lineSeparator()
+			+ "            try:" + System.lineSeparator()
+			+ "                shm = shared_memory.SharedMemory(name=shm)" + System.lineSeparator()
+			+ "            except FileNotFoundError:" + System.lineSeparator()
+			+ "                continue" + System.lineSeparator()
+			+ "        shm.close()" + System.lineSeparator()
+			+ "        try:" + System.lineSeparator()
+			+ "            shm.unlink()" + System.lineSeparator()
+			+ "        except FileNotFoundError:" + System.lineSeparator()
+			+ "            pass" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def set_mask_outputs(outputs, contours_x, contours_y, rles, binary=True, keys=('contours_x', 'contours_y', 'rle')):" + System.lineSeparator()
+			+ "    if not binary:" + System.lineSeparator()
+			+ "        outputs[keys[0]] = contours_x" + System.lineSeparator()
+			+ "        outputs[keys[1]] = contours_y" + System.lineSeparator()
+			+ "        outputs[keys[2]] = rles" + System.lineSeparator()
+			+ "        return outputs" + System.lineSeparator()
+			+ "    n_masks = len(rles)" + System.lineSeparator()
+			+ "    n_points = [len(cc) for cc in contours_x]" + System.lineSeparator()
+			+ "    n_rles = [len(rr) for rr in rles]" + System.lineSeparator()
+			+ "    total = 2 + 2 * n_masks + 2 * sum(n_points) + sum(n_rles)" + System.lineSeparator()
+			+ "    shm = shared_memory.SharedMemory(create=True, size=total * 8)" + System.lineSeparator()
+			+ "    arr = np.ndarray((total,), dtype='int64', buffer=shm.buf)" + System.lineSeparator()
+			+ "    arr[0] = n_masks" + System.lineSeparator()
+			+ "    arr[1] = total" + System.lineSeparator()
+			+ "    arr[2:2 + n_masks] = n_points" + System.lineSeparator()
+			+ "    arr[2 + n_masks:2 + 2 * n_masks] = n_rles" + System.lineSeparator()
+			+ "    pos = 2 + 2 * n_masks" + System.lineSeparator()
+			+ "    for c_x, c_y, rle, n_p, n_r in zip(contours_x, contours_y, rles, n_points, n_rles):" + System.lineSeparator()
+			+ "        arr[pos:pos + n_p] = c_x" + System.lineSeparator()
+			+ "        arr[pos + n_p:pos + 2 * n_p] = c_y" + System.lineSeparator()
+			+ "        arr[pos + 2 * n_p:pos + 2 * n_p + n_r] = rle" + System.lineSeparator()
+			+ "        pos += 2 * n_p + n_r" + System.lineSeparator()
+			+ "    del arr" + System.lineSeparator()
+			+ "    outputs['masks_shm'] = shm.name" + System.lineSeparator()
+			+ "    import os" + System.lineSeparator()
+			+ "    if os.name == 'nt':" + System.lineSeparator()
+			+ "        returned_shms.append(shm)" + System.lineSeparator()
+			+ "    else:" + System.lineSeparator()
+			+ "        from multiprocessing import resource_tracker" + System.lineSeparator()
+			+ "        resource_tracker.unregister(shm._name, 'shared_memory')" + System.lineSeparator()
+			+ "        shm.close()" + System.lineSeparator()
+			+ "        returned_shms.append(shm.name)" + System.lineSeparator()
+			+ "    outputs['masks_shm_size'] = str(total)" + System.lineSeparator()
+			+ "    return outputs" + System.lineSeparator()
+			+ "globals()['returned_shms'] = returned_shms" + System.lineSeparator()
+			+ "globals()['release_returned_shms'] = release_returned_shms" + System.lineSeparator()
+			+ "globals()['set_mask_outputs'] = set_mask_outputs" + System.lineSeparator();
+
+
+	/**
+	 * String containing the Python methods that attach the shared memory segments of the {@link SharedMemoryPool} of Java.
+	 * The segments are kept attached while the pool reuses them and are never unlinked from Python, they are detached once
+	 * the pool discards them
+	 */
+	protected static String SHM_POOL = ""
+			+ "pooled_shms = {}" + System.lineSeparator()
+			+ "def attach_pooled_shm(name, size, released=()):" + System.lineSeparator()
+			+ "    for old in released:" + System.lineSeparator()
+			+ "        old_shm = pooled_shms.pop(old, None)" + System.lineSeparator()
+			+ "        if old_shm is not None:" + System.lineSeparator()
+			+ "            try:" + System.lineSeparator()
+			+ "                old_shm.close()" + System.lineSeparator()
+			+ "            except BufferError:" + System.lineSeparator()
+			+ "                pass" + System.lineSeparator()
+			+ "    shm = pooled_shms.get(name)" + System.lineSeparator()
+			+ "    if shm is None:" + System.lineSeparator()
+			+ "        shm = shared_memory.SharedMemory(name=name, size=size)" + System.lineSeparator()
+			+ "        try:" + System.lineSeparator()
+			+ "            from multiprocessing import resource_tracker" + System.lineSeparator()
+			+ "            resource_tracker.unregister(shm._name, 'shared_memory')" + System.lineSeparator()
+			+ "        except Exception:" + System.lineSeparator()
+			+ "            pass" + System.lineSeparator()
+			+ "        pooled_shms[name] = shm" + System.lineSeparator()
+			+ "    return shm" + System.lineSeparator()
+			+ "globals()['pooled_shms'] = pooled_shms" + System.lineSeparator()
+			+ "globals()['attach_pooled_shm'] = attach_pooled_shm" + System.lineSeparator();
 	
-	
+	/**
+	 * Method that computes the number of bytes used by an encoding, which can be a tensor, an array
+	 * or any nested list, tuple or dictionary of them
+	 */
+	protected static String ENCODING_SIZE = ""
+			+ "def encoding_nbytes(enc):" + System.lineSeparator()
+			+ "    if isinstance(enc, (list, tuple)):" + System.lineSeparator()
+			+ "        return sum(encoding_nbytes(ee) for ee in enc)" + System.lineSeparator()
+			+ "    elif isinstance(enc, dict):" + System.lineSeparator()
+			+ "        return sum(encoding_nbytes(ee) for ee in enc.values())" + System.lineSeparator()
+			+ "    elif hasattr(enc, 'element_size') and hasattr(enc, 'nelement'):" + System.lineSeparator()
+			+ "        return enc.element_size() * enc.nelement()" + System.lineSeparator()
+			+ "    elif hasattr(enc, 'nbytes'):" + System.lineSeparator()
+			+ "        return int(enc.nbytes)" + System.lineSeparator()
+			+ "    return 0" + System.lineSeparator()
+			+ "globals()['encoding_nbytes'] = encoding_nbytes" + System.lineSeparator();
+
+	/**
+	 * Methods that write an encoding to a folder of memory-mapped .npy files and read it back.
+	 * The structure of the encoding (nested lists, tuples and dictionaries of tensors or arrays) 
+	 * is kept in a json file. The folder is written under a temporary name and renamed at the end, 
+	 * so an interrupted write never leaves a half-written encoding. The encodings are written by a
+	 * background thread, so the task that encodes the image does not wait for the disk
+	 */
+	protected static String ENCODING_DISK_STORE = ""
+			+ "def save_encoding_to_disk(enc, path):" + System.lineSeparator()
+			+ "    import os" + System.lineSeparator()
+			+ "    import json" + System.lineSeparator()
+			+ "    import shutil" + System.lineSeparator()
+			+ "    arrays = []" + System.lineSeparator()
+			+ "    def flatten(ee):" + System.lineSeparator()
+			+ "        if isinstance(ee, (list, tuple)):" + System.lineSeparator()
+			+ "            return [type(ee).__name__, [flatten(e) for e in ee]]" + System.lineSeparator()
+			+ "        elif isinstance(ee, dict):" + System.lineSeparator()
+			+ "            return ['dict', {k: flatten(v) for k, v in ee.items()}]" + System.lineSeparator()
+			+ "        elif isinstance(ee, torch.Tensor):" + System.lineSeparator()
+			+ "            t = ee.detach().cpu()" + System.lineSeparator()
+			+ "            if t.dtype == torch.bfloat16:" + System.lineSeparator()
+			+ "                t = t.float()" + System.lineSeparator()
+			+ "            arrays.append(t.numpy())" + System.lineSeparator()
+			+ "            return ['tensor', len(arrays) - 1, str(ee.device), str(ee.dtype).split('.')[-1]]" + System.lineSeparator()
+			+ "        elif isinstance(ee, np.ndarray):" + System.lineSeparator()
+			+ "            arrays.append(ee)" + System.lineSeparator()
+			+ "            return ['ndarray', len(arrays) - 1]" + System.lineSeparator()
+			+ "        return ['value', ee]" + System.lineSeparator()
+			+ "    structure = flatten(enc)" + System.lineSeparator()
+			+ "    tmp_path = path + '.tmp'" + System.lineSeparator()
+			+ "    shutil.rmtree(tmp_path, ignore_errors=True)" + System.lineSeparator()
+			+ "    os.makedirs(tmp_path)" + System.lineSeparator()
+			+ "    for i, arr in enumerate(arrays):" + System.lineSeparator()
+			+ "        mm = np.lib.format.open_memmap(os.path.join(tmp_path, str(i) + '.npy'), mode='w+', dtype=arr.dtype, shape=arr.shape)" + System.lineSeparator()
+			+ "        mm[...] = arr" + System.lineSeparator()
+			+ "        mm.flush()" + System.lineSeparator()
+			+ "        del mm" + System.lineSeparator()
+			+ "    with open(os.path.join(tmp_path, 'structure.json'), 'w') as f:" + System.lineSeparator()
+			+ "        json.dump(structure, f)" + System.lineSeparator()
+			+ "    shutil.rmtree(path, ignore_errors=True)" + System.lineSeparator()
+			+ "    os.replace(tmp_path, path)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def load_encoding_from_disk(path):" + System.lineSeparator()
+			+ "    import os" + System.lineSeparator()
+			+ "    import json" + System.lineSeparator()
+			+ "    with open(os.path.join(path, 'structure.json'), 'r') as f:" + System.lineSeparator()
+			+ "        structure = json.load(f)" + System.lineSeparator()
+			+ "    def build(ss):" + System.lineSeparator()
+			+ "        if ss[0] == 'list':" + System.lineSeparator()
+			+ "            return [build(s) for s in ss[1]]" + System.lineSeparator()
+			+ "        elif ss[0] == 'tuple':" + System.lineSeparator()
+			+ "            return tuple(build(s) for s in ss[1])" + System.lineSeparator()
+			+ "        elif ss[0] == 'dict':" + System.lineSeparator()
+			+ "            return {k: build(v) for k, v in ss[1].items()}" + System.lineSeparator()
+			+ "        elif ss[0] == 'tensor':" + System.lineSeparator()
+			+ "            arr = np.load(os.path.join(path, str(ss[1]) + '.npy'), mmap_mode='r')" + System.lineSeparator()
+			+ "            return torch.from_numpy(np.array(arr)).to(device=ss[2], dtype=getattr(torch, ss[3]))" + System.lineSeparator()
+			+ "        elif ss[0] == 'ndarray':" + System.lineSeparator()
+			+ "            return np.array(np.load(os.path.join(path, str(ss[1]) + '.npy'), mmap_mode='r'))" + System.lineSeparator()
+			+ "        return ss[1]" + System.lineSeparator()
+			+ "    return build(structure)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def save_encoding_to_disk_async(enc, path):" + System.lineSeparator()
+			+ "    import sys" + System.lineSeparator()
+			+ "    import threading" + System.lineSeparator()
+			+ "    def write():" + System.lineSeparator()
+			+ "        try:" + System.lineSeparator()
+			+ "            save_encoding_to_disk(enc, path)" + System.lineSeparator()
+			+ "        except Exception as ex:" + System.lineSeparator()
+			+ "            print('Unable to write the encodings to disk: ' + str(ex), file=sys.stderr)" + System.lineSeparator()
+			+ "    threading.Thread(target=write, daemon=True).start()" + System.lineSeparator()
+			+ "globals()['save_encoding_to_disk'] = save_encoding_to_disk" + System.lineSeparator()
+			+ "globals()['save_encoding_to_disk_async'] = save_encoding_to_disk_async" + System.lineSeparator()
+			+ "globals()['load_encoding_from_disk'] = load_encoding_from_disk" + System.lineSeparator();
+
+	/**
+	 * Method that processes a batch of prompts (points, rectangles and the connected components of a mask) 
+	 * running the decoder once per group of prompts of the same kind instead of once per prompt.
+	 * The model specific decoding is done by the function 'decode_batch(kind, coords)', that receives
+	 * an array of shape [batch, n_points, 2] and returns an array of masks of shape [batch, height, width].
+	 * For the points of the grid of the automatic mode, kind 'grid', it returns instead the logits of the best
+	 * mask of each point and its predicted IoU, and only the masks that pass the filters of 'filter_grid_masks' are kept.
+	 * 
+	 * The work is done by a pipeline of three stages connected by bounded queues: the decoders, the workers
+	 * that trace the contours and RLE of the masks and the emitters that send the objects back to Java.
+	 * Each stage runs in its own threads, so the slowest stage is the one that limits the throughput.
+	 * The objects that have not been sent when all the masks are traced are returned. If the task is canceled
+	 * from Java, the decoders stop taking new batches and the method fails
+	 */
+	protected static String BATCH_DECODING = ""
+			+ "def run_prompts_in_batches(task, decode_batch, point_prompts, rect_prompts, labeled_array=None, num_features=0," + System.lineSeparator()
+			+ "                           batch_size=16, only_biggest=False, ij_roi=True, binary=True, update_id=''," + System.lineSeparator()
+			+ "                           decode_threads=1, trace_threads=3, emit_threads=1, grid_prompts=()," + System.lineSeparator()
+			+ "                           pred_iou_thresh=0.0, stability_thresh=0.0, stability_offset=1.0," + System.lineSeparator()
+			+ "                           trace_in_python=False):" + System.lineSeparator()
+			+ "    import threading" + System.lineSeparator()
+			+ "    import queue" + System.lineSeparator()
+			+ "    jobs = {'mask': [], 'point': [], 'rect': [], 'grid': []}" + System.lineSeparator()
+			+ "    n_jobs = 0" + System.lineSeparator()
+			+ "    for n_feat in range(1, num_features + 1):" + System.lineSeparator()
+			+ "        inds = np.where(labeled_array == n_feat)" + System.lineSeparator()
+			+ "        n_points = np.min([3, inds[0].shape[0]])" + System.lineSeparator()
+			+ "        random_positions = np.random.choice(inds[0].shape[0], n_points, replace=False)" + System.lineSeparator()
+			+ "        coords = [[inds[0][random_positions[pp]], inds[1][random_positions[pp]]] for pp in range(n_points)]" + System.lineSeparator()
+			+ "        coords += [coords[-1]] * (3 - n_points)" + System.lineSeparator()
+			+ "        jobs['mask'].append((n_jobs, {}, coords))" + System.lineSeparator()
+			+ "        n_jobs += 1" + System.lineSeparator()
+			+ "    for p_prompt in point_prompts:" + System.lineSeparator()
+			+ "        jobs['point'].append((n_jobs, {'point': p_prompt}, [[p_prompt[0], p_prompt[1]]]))" + System.lineSeparator()
+			+ "        n_jobs += 1" + System.lineSeparator()
+			+ "    for rect_prompt in rect_prompts:" + System.lineSeparator()
+			+ "        jobs['rect'].append((n_jobs, {'rect': rect_prompt}, [[rect_prompt[0], rect_prompt[1]], [rect_prompt[2], rect_prompt[3]]]))" + System.lineSeparator()
+			+ "        n_jobs += 1" + System.lineSeparator()
+			+ "    for g_prompt in grid_prompts:" + System.lineSeparator()
+			+ "        jobs['grid'].append((n_jobs, {}, [[g_prompt[0], g_prompt[1]]]))" + System.lineSeparator()
+			+ "        n_jobs += 1" + System.lineSeparator()
+			+ "    batches = queue.Queue()" + System.lineSeparator()
+			+ "    for kind, kind_jobs in jobs.items():" + System.lineSeparator()
+			+ "        for start in range(0, len(kind_jobs), batch_size):" + System.lineSeparator()
+			+ "            batches.put((kind, kind_jobs[start:start + batch_size]))" + System.lineSeparator()
+			+ "    masks_queue = queue.Queue(maxsize=2 * batch_size)" + System.lineSeparator()
+			+ "    emit_queue = queue.Queue(maxsize=2 * batch_size)" + System.lineSeparator()
+			+ "    finishing = threading.Event()" + System.lineSeparator()
+			+ "    lock = threading.Lock()" + System.lineSeparator()
+			+ "    traced = {}" + System.lineSeparator()
+			+ "    sent = set()" + System.lineSeparator()
+			+ "    errors = []" + System.lineSeparator()
+			+ "    def decoder():" + System.lineSeparator()
+			+ "        while not errors and not getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+			+ "            try:" + System.lineSeparator()
+			+ "                kind, chunk = batches.get_nowait()" + System.lineSeparator()
+			+ "            except queue.Empty:" + System.lineSeparator()
+			+ "                return" + System.lineSeparator()
+			+ "            try:" + System.lineSeparator()
+			+ "                masks = decode_batch(kind, np.array([cc for _, _, cc in chunk]))" + System.lineSeparator()
+			+ "                if kind == 'grid':" + System.lineSeparator()
+			+ "                    masks, keep = filter_grid_masks(masks[0], masks[1], pred_iou_thresh, stability_thresh, stability_offset)" + System.lineSeparator()
+			+ "                else:" + System.lineSeparator()
+			+ "                    keep = [True] * len(chunk)" + System.lineSeparator()
+			+ "            except Exception as ex:" + System.lineSeparator()
+			+ "                errors.append(ex)" + System.lineSeparator()
+			+ "                return" + System.lineSeparator()
+			+ "            for (ind, extra, _), mask, kk in zip(chunk, masks, keep):" + System.lineSeparator()
+			+ "                if kk:" + System.lineSeparator()
+			+ "                    masks_queue.put((ind, extra, mask))" + System.lineSeparator()
+			+ "    def tracer():" + System.lineSeparator()
+			+ "        while True:" + System.lineSeparator()
+			+ "            item = masks_queue.get()" + System.lineSeparator()
+			+ "            if item is None:" + System.lineSeparator()
+			+ "                return" + System.lineSeparator()
+			+ "            if errors:" + System.lineSeparator()
+			+ "                continue" + System.lineSeparator()
+			+ "            ind, extra, mask = item" + System.lineSeparator()
+			+ "            try:" + System.lineSeparator()
+			+ "                if ij_roi:" + System.lineSeparator()
+			+ "                    mask[1:, 1:] += mask[:-1, :-1]" + System.lineSeparator()
+			+ "                c_x, c_y, r_m = get_polygons_from_binary_mask(mask, only_biggest=only_biggest," + System.lineSeparator()
+			+ "                                                              trace_in_python=trace_in_python)" + System.lineSeparator()
+			+ "            except Exception as ex:" + System.lineSeparator()
+			+ "                errors.append(ex)" + System.lineSeparator()
+			+ "                continue" + System.lineSeparator()
+			+ "            with lock:" + System.lineSeparator()
+			+ "                traced[ind] = (c_x, c_y, r_m)" + System.lineSeparator()
+			+ "            emit_queue.put((ind, extra, c_x, c_y, r_m))" + System.lineSeparator()
+			+ "    def emitter():" + System.lineSeparator()
+			+ "        while True:" + System.lineSeparator()
+			+ "            item = emit_queue.get()" + System.lineSeparator()
+			+ "            if item is None:" + System.lineSeparator()
+			+ "                return" + System.lineSeparator()
+			+ "            if finishing.is_set() or errors:" + System.lineSeparator()
+			+ "                continue" + System.lineSeparator()
+			+ "            ind, extra, c_x, c_y, r_m = item" + System.lineSeparator()
+			+ "            try:" + System.lineSeparator()
+			+ "                args = {'outputs': set_mask_outputs(dict(extra), c_x, c_y, r_m, binary=binary, keys=('temp_x', 'temp_y', 'temp_mask')), 'message': update_id}" + System.lineSeparator()
+			+ "                task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
+			+ "            except Exception as ex:" + System.lineSeparator()
+			+ "                errors.append(ex)" + System.lineSeparator()
+			+ "                continue" + System.lineSeparator()
+			+ "            with lock:" + System.lineSeparator()
+			+ "                sent.add(ind)" + System.lineSeparator()
+			+ "    def start(target, n):" + System.lineSeparator()
+			+ "        threads = [threading.Thread(target=target, daemon=True) for _ in range(max(1, n))]" + System.lineSeparator()
+			+ "        for tt in threads:" + System.lineSeparator()
+			+ "            tt.start()" + System.lineSeparator()
+			+ "        return threads" + System.lineSeparator()
+			+ "    decoders = start(decoder, decode_threads)" + System.lineSeparator()
+			+ "    tracers = start(tracer, trace_threads)" + System.lineSeparator()
+			+ "    emitters = start(emitter, emit_threads)" + System.lineSeparator()
+			+ "    for tt in decoders:" + System.lineSeparator()
+			+ "        tt.join()" + System.lineSeparator()
+			+ "    for _ in tracers:" + System.lineSeparator()
+			+ "        masks_queue.put(None)" + System.lineSeparator()
+			+ "    for tt in tracers:" + System.lineSeparator()
+			+ "        tt.join()" + System.lineSeparator()
+			+ "    finishing.set()" + System.lineSeparator()
+			+ "    for _ in emitters:" + System.lineSeparator()
+			+ "        emit_queue.put(None)" + System.lineSeparator()
+			+ "    for tt in emitters:" + System.lineSeparator()
+			+ "        tt.join()" + System.lineSeparator()
+			+ "    if errors:" + System.lineSeparator()
+			+ "        raise errors[0]" + System.lineSeparator()
+			+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+			+ "        raise RuntimeError('Task canceled')" + System.lineSeparator()
+			+ "    contours_x = []" + System.lineSeparator()
+			+ "    contours_y = []" + System.lineSeparator()
+			+ "    rle_masks = []" + System.lineSeparator()
+			+ "    for ind in sorted(traced.keys()):" + System.lineSeparator()
+			+ "        if ind in sent:" + System.lineSeparator()
+			+ "            continue" + System.lineSeparator()
+			+ "        contours_x += traced[ind][0]" + System.lineSeparator()
+			+ "        contours_y += traced[ind][1]" + System.lineSeparator()
+			+ "        rle_masks += traced[ind][2]" + System.lineSeparator()
+			+ "    return contours_x, contours_y, rle_masks" + System.lineSeparator()
+			+ "globals()['run_prompts_in_batches'] = run_prompts_in_batches" + System.lineSeparator();
+
+	/**
+	 * Methods used by the automatic mode, that segments everything prompting the model with a grid of points.
+	 * The masks are kept if their predicted IoU and their stability score reach the thresholds. The stability
+	 * score is the IoU between the masks obtained thresholding the logits at +offset and -offset
+	 */
 	protected static String SAM_EVERYTHING = ""
-			+ "def calculate_pairs(masks):\n"
-			+ "    added_masks = masks.sum(2)\n"
-			+ "    inds = np.where(added_masks > 1)\n"
-			+ "    pairs = np.zeros((0, 2))\n"
-			+ "    for ii in range(inds.shape[0]):\n"
-			+ "        overlapping = np.where(masks[inds[0][ii], inds[1][ii]])[0]\n"
-			+ "        for i in range(overlapping[0].shape[0]):\n"
-			+ "            for j in range(i + 1, overlapping[0].shape[0]):\n"
-			+ "                pp = np.unique(np.array([overlapping[i], overlapping[j]])).reshape(-1, 2)\n"
-			+ "                matches = np.all(pairs == pp, axis=1)\n"
-			+ "                if not matches.any():\n"
-			+ "                    pairs = np.concatenate((pairs, pp), axis=0)\n"
-			+ "    return pairs\n"
-			+ "\n"
-			+ "def sam_everything(point_list, return_all=False):\n"
-			+ "    masks = np.zeros((input_h, input_w, 0), dtype='uint8')\n"
-			+ "    scores = []\n"
-			+ "    for ii, pp in enumerate(point_list):\n"
-			+ "        input_points = np.array(pp).reshape(1, 2)\n"
-			+ "        input_points = torch.reshape(torch.tensor(input_points), [1, 1, -1, 2])\n"
-			+ "        input_label = np.array([0])\n"
-			+ "        input_label = torch.reshape(torch.tensor(input_label), [1, 1, -1])\n"
-			+ "        predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images,\n"
-			+ "				input_points,\n"
-			+ "				input_label,\n"
-			+ "				multimask_output=True,\n"
-			+ "				input_h=input_h,\n"
-			+ "				input_w=input_w,\n"
-			+ "				output_h=input_h,\n"
-			+ "				output_w=input_w,)\n"
-			+ "        sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)\n"
-			+ "        predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)\n"
-			+ "        predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)\n"
-			+ "        mask = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()\n"
-			+ "        if predicted_iou[0] > 1:\n"
-			+ "            masks = np.concatenate((masks, mask.reshape(mask.shape[0], mask.shape[1], 1)), axis=1)\n"
-			+ "            scores.append(predicted_iou[0].cpu().detach().numpy())\n"
-			+ "\n"
-			+ "    # TODO do we support detection of objects within objects?\n"
-			+ "    pairs = calculate_pairs(masks)\n"
-			+ "    while pairs.shape[0] != 0:\n"
-			+ "        pp = pairs[0]\n"
-			+ "        mask_sum = (masks[:, :, pp[0]] + masks[:, :, pp[1]])\n"
-			+ "        union = (mask_sum > 0).sum()\n"
-			+ "        intersec = (mask_sum == 2).sum()\n"
-			+ "        if intersec / union > 0.8:\n"
-			+ "            new_mask = (mask_sum > 0) * 1\n"
-			+ "            masks = np.delete(masks, interest, axis=2)\n"
-			+ "            masks = np.concatenate((masks, new_mask.reshape(masks.shape[0], masks.shape[1], 1)), axis=2)\n"
-			+ "            pairs = calculate_pairs(masks)\n"
-			+ "        elif intersec == masks[:, :, pp[0]].sum() or intersec == masks[:, :, pp[1]].sum():\n"
-			+ "            pairs = np.concatenate((pairs, np.unique(np.array([pp[0], pp[1]])).reshape(-1, 2)), axis=0)\n"
-			+ "        else:\n"
-			+ "            ## TODO run again precition\n"
-			+ "            if score[pp[0]] > score[pp[1]]:\n"
-			+ "                (masks[:, :, pp[1]] = ((masks[:, :, pp[1]] - masks[:, :, pp[0]]) > 0) * 1\n"
-			+ "            else:\n"
-			+ "                (masks[:, :, pp[0]] = ((masks[:, :, pp[0]] - masks[:, :, pp[1]]) > 0) * 1\n"
-			+ "            pairs = calculate_pairs(masks)\n"
-			+ "        added_masks = masks.sum(2)\n"
-			+ "        inds = np.where(added_masks > 1)\n"
-			+ "    label = np.arange(masks.shape[2])\n"
-			+ "    return label.reshape(1, 1, -1) * masks";
+			+ "def stability_score(logits, offset):" + System.lineSeparator()
+			+ "    high = (logits > offset).sum(axis=(-2, -1))" + System.lineSeparator()
+			+ "    low = (logits > -offset).sum(axis=(-2, -1))" + System.lineSeparator()
+			+ "    return high / np.maximum(low, 1)" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def filter_grid_masks(logits, pred_iou, pred_iou_thresh, stability_thresh, stability_offset, min_area=6):" + System.lineSeparator()
+			+ "    masks = logits > 0" + System.lineSeparator()
+			+ "    # masks smaller than the smallest object kept by get_polygons_from_binary_mask would give no polygon" + System.lineSeparator()
+			+ "    keep = (np.asarray(pred_iou) >= pred_iou_thresh) & (masks.sum(axis=(-2, -1)) >= min_area)" + System.lineSeparator()
+			+ "    if stability_thresh > 0:" + System.lineSeparator()
+			+ "        keep &= stability_score(logits, stability_offset) >= stability_thresh" + System.lineSeparator()
+			+ "    return masks, keep" + System.lineSeparator()
+			+ "globals()['stability_score'] = stability_score" + System.lineSeparator()
+			+ "globals()['filter_grid_masks'] = filter_grid_masks" + System.lineSeparator();
 }
@@ -0,0 +1,485 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Pool of instances of a model, each of them with its own Python process, used to run the inference
+ * of several images in parallel instead of one after the other through a single Python process.
+ *
+ * The requests of an image are always sent to the same worker while it is alive, so the embeddings
+ * of the image stay in that worker and are not computed again. The images without a worker are given
+ * to an idle worker, or to a new one if all of them are busy and the pool is not full. Workers that
+ * have been idle for longer than the idle timeout are closed, and workers whose requests keep failing
+ * are retired and replaced by new ones when needed.
+ *
+ * @author Carlos Garcia
+ * @param <M>
+ * 	the model run by the workers
+ */
+public class SamJWorkerPool<M extends AbstractSamJ> implements AutoCloseable {
+
+	/**
+	 * Default time a worker can be idle before being closed, in milliseconds
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	/**
+	 * Default number of consecutive failed requests after which a worker is retired
+	 */
+	public static final int DEFAULT_MAX_FAILURES = 3;
+	/**
+	 * Period between two checks of the idle workers, in milliseconds
+	 */
+	private static final long REAP_PERIOD = 10 * 1000;
+
+	/**
+	 * Creates the model of each of the workers
+	 * @param <M>
+	 * 	the model run by the workers
+	 */
+	public interface WorkerFactory<M extends AbstractSamJ> {
+		/**
+		 * Create a new instance of the model, with its own Python process.
+		 * For example {@code () -> Sam2.initializeSam("tiny", manager)}, or see
+		 * {@link ai.nets.samj.communication.model.SAMModel#createWorkerPool(int)}
+		 * @return the model
+		 * @throws IOException if any of the files to run a Python process is missing
+		 * @throws RuntimeException if there is any error running the Python code
+		 * @throws InterruptedException if the process is interrupted
+		 */
+		M create() throws IOException, RuntimeException, InterruptedException;
+	}
+
+	/**
+	 * Inference run by a worker of the pool on the image of the request
+	 * @param <M>
+	 * 	the model run by the workers
+	 * @param <R>
+	 * 	type of the result of the inference
+	 */
+	public interface WorkerInference<M extends AbstractSamJ, R> {
+
+		R run(M model) throws IOException, RuntimeException, InterruptedException;
+
+	}
+
+	private final WorkerFactory<M> factory;
+
+	private final int maxWorkers;
+
+	private final List<Worker> workers = new ArrayList<Worker>();
+	/**
+	 * Worker that holds the embeddings of each image
+	 */
+	private final WeakHashMap<RandomAccessibleInterval<?>, Worker> affinity = new WeakHashMap<RandomAccessibleInterval<?>, Worker>();
+
+	private final ScheduledExecutorService reaper;
+
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	private int maxFailures = DEFAULT_MAX_FAILURES;
+
+	private int nextId = 0;
+
+	private int nRetired = 0;
+
+	private int nReaped = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Create a pool of workers. The workers are only started when the requests need them
+	 * @param factory
+	 * 	creates the model of each worker
+	 * @param maxWorkers
+	 * 	maximum number of workers alive at the same time, each of them is a Python process with a copy of the model
+	 */
+	public SamJWorkerPool(WorkerFactory<M> factory, int maxWorkers) {
+		this.factory = Objects.requireNonNull(factory, "The factory cannot be null.");
+		if (maxWorkers < 1)
+			throw new IllegalArgumentException("The pool needs at least one worker: " + maxWorkers);
+		this.maxWorkers = maxWorkers;
+		this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "SAMJ worker reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reaper.scheduleWithFixedDelay(this::reapIdleWorkers, REAP_PERIOD, REAP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the time a worker can be idle before being closed
+	 * @param idleTimeout
+	 * 	time in milliseconds, 0 or less to keep the workers alive until the pool is closed
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Set the number of consecutive failed requests after which a worker is considered unhealthy and retired
+	 * @param maxFailures
+	 * 	number of failed requests, at least 1
+	 */
+	public synchronized void setMaxFailures(int maxFailures) {
+		if (maxFailures < 1)
+			throw new IllegalArgumentException("The number of failures needs to be at least 1: " + maxFailures);
+		this.maxFailures = maxFailures;
+	}
+
+	/**
+	 * Run an inference on an image in one of the workers of the pool. The image is encoded by the worker
+	 * before the inference if it was not the last image the worker used.
+	 * The requests sent to the same worker run one after the other, see {@link AbstractSamJ#submit(AbstractSamJ.Inference, Executor)}
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param <R>
+	 * 	type of the result
+	 * @param image
+	 * 	image the inference is run on, all the requests of the same image go to the same worker
+	 * @param inference
+	 * 	the inference, it can call any of the blocking methods of the model of the worker
+	 * @param executor
+	 * 	executor where the inference waits for the Python process, and where the workers are started
+	 * @return the future result of the inference
+	 */
+	public synchronized <T extends RealType<T> & NativeType<T>, R>
+	CompletableFuture<R> submit(RandomAccessibleInterval<T> image, WorkerInference<M, R> inference, Executor executor) {
+		Objects.requireNonNull(image, "The image cannot be null.");
+		Objects.requireNonNull(executor, "The executor cannot be null.");
+		if (closed)
+			throw new IllegalStateException("The worker pool is closed.");
+		final Worker worker = selectWorker(image, executor);
+		worker.pending ++;
+		worker.lastUsed = System.currentTimeMillis();
+		final PoolFuture<R> future = new PoolFuture<R>();
+		worker.model.whenComplete((model, ex) -> {
+			if (ex != null) {
+				future.completeExceptionally(ex);
+				return;
+			}
+			future.start(model.submit(() -> {
+				if (worker.image != image) {
+					worker.image = null;
+					model.setImage(image);
+					worker.image = image;
+				}
+				return inference.run(model);
+			}, executor));
+		});
+		future.whenComplete((result, ex) -> finished(worker, ex));
+		return future;
+	}
+
+	/**
+	 *
+	 * @return the state of each of the workers alive
+	 */
+	public synchronized List<WorkerStatus> getWorkerStatus() {
+		List<WorkerStatus> status = new ArrayList<WorkerStatus>(workers.size());
+		long now = System.currentTimeMillis();
+		for (Worker worker : workers)
+			status.add(new WorkerStatus(worker, now));
+		return status;
+	}
+
+	/**
+	 *
+	 * @return number of workers alive
+	 */
+	public synchronized int size() {
+		return workers.size();
+	}
+
+	/**
+	 *
+	 * @return number of workers retired because their requests kept failing or their model could not be created
+	 */
+	public synchronized int getRetiredCount() {
+		return nRetired;
+	}
+
+	/**
+	 *
+	 * @return number of workers closed because they were idle for longer than the idle timeout
+	 */
+	public synchronized int getReapedCount() {
+		return nReaped;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Close the Python processes of all the workers. The requests still running fail
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		reaper.shutdownNow();
+		for (Worker worker : workers)
+			worker.close();
+		workers.clear();
+		affinity.clear();
+	}
+
+	private Worker selectWorker(RandomAccessibleInterval<?> image, Executor executor) {
+		Worker worker = affinity.get(image);
+		if (worker != null)
+			return worker;
+		for (Worker w : workers) {
+			if (worker == null || w.pending < worker.pending)
+				worker = w;
+		}
+		if ((worker == null || worker.pending > 0) && workers.size() < maxWorkers)
+			worker = startWorker(executor);
+		affinity.put(image, worker);
+		return worker;
+	}
+
+	private Worker startWorker(Executor executor) {
+		final Worker worker = new Worker(nextId ++, CompletableFuture.supplyAsync(() -> {
+			try {
+				return factory.create();
+			} catch (IOException | InterruptedException e) {
+				throw new CompletionException(e);
+			}
+		}, executor));
+		workers.add(worker);
+		worker.model.whenComplete((model, ex) -> {
+			if (ex != null)
+				retire(worker);
+		});
+		return worker;
+	}
+
+	private synchronized void finished(Worker worker, Throwable ex) {
+		worker.pending --;
+		worker.lastUsed = System.currentTimeMillis();
+		if (ex == null) {
+			worker.completed ++;
+			worker.consecutiveFailures = 0;
+		} else if (!(ex instanceof CancellationException)) {
+			worker.failed ++;
+			worker.consecutiveFailures ++;
+			if (worker.consecutiveFailures >= maxFailures)
+				retire(worker);
+		}
+		if (worker.retired && worker.pending == 0)
+			worker.close();
+	}
+
+	private synchronized void retire(Worker worker) {
+		if (worker.retired)
+			return;
+		worker.retired = true;
+		nRetired ++;
+		remove(worker);
+		if (worker.pending == 0)
+			worker.close();
+	}
+
+	private synchronized void reapIdleWorkers() {
+		if (idleTimeout <= 0)
+			return;
+		long now = System.currentTimeMillis();
+		for (Worker worker : new ArrayList<Worker>(workers)) {
+			if (worker.pending > 0 || now - worker.lastUsed < idleTimeout || !worker.model.isDone())
+				continue;
+			nReaped ++;
+			remove(worker);
+			worker.close();
+		}
+	}
+
+	private void remove(Worker worker) {
+		workers.remove(worker);
+		affinity.values().removeIf(w -> w == worker);
+	}
+
+	/**
+	 * One of the models of the pool and the counters of its requests
+	 */
+	private class Worker {
+
+		private final int id;
+
+		private final CompletableFuture<M> model;
+		/**
+		 * Image encoded by the model, only accessed by the requests of the worker, that run one after the other
+		 */
+		private volatile RandomAccessibleInterval<?> image;
+
+		private int pending = 0;
+
+		private long completed = 0;
+
+		private long failed = 0;
+
+		private int consecutiveFailures = 0;
+
+		private long lastUsed = System.currentTimeMillis();
+
+		private boolean retired = false;
+
+		private Worker(int id, CompletableFuture<M> model) {
+			this.id = id;
+			this.model = model;
+		}
+
+		private void close() {
+			model.thenAccept(AbstractSamJ::close);
+		}
+	}
+
+	/**
+	 * State of a worker of the pool at a given moment
+	 */
+	public static class WorkerStatus {
+
+		private final int id;
+
+		private final boolean started;
+
+		private final int pending;
+
+		private final long completed;
+
+		private final long failed;
+
+		private final int consecutiveFailures;
+
+		private final long idleMillis;
+
+		private WorkerStatus(SamJWorkerPool<?>.Worker worker, long now) {
+			this.id = worker.id;
+			this.started = worker.model.isDone() && !worker.model.isCompletedExceptionally();
+			this.pending = worker.pending;
+			this.completed = worker.completed;
+			this.failed = worker.failed;
+			this.consecutiveFailures = worker.consecutiveFailures;
+			this.idleMillis = worker.pending > 0 ? 0 : now - worker.lastUsed;
+		}
+
+		/**
+		 *
+		 * @return identifier of the worker, unique in its pool
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 *
+		 * @return whether the model of the worker has been loaded
+		 */
+		public boolean isStarted() {
+			return started;
+		}
+
+		/**
+		 *
+		 * @return number of requests waiting or running in the worker
+		 */
+		public int getPendingRequests() {
+			return pending;
+		}
+
+		/**
+		 *
+		 * @return number of requests completed successfully by the worker
+		 */
+		public long getCompletedRequests() {
+			return completed;
+		}
+
+		/**
+		 *
+		 * @return number of requests that failed in the worker
+		 */
+		public long getFailedRequests() {
+			return failed;
+		}
+
+		/**
+		 *
+		 * @return number of requests that failed in a row in the worker, it is retired when it reaches the maximum
+		 */
+		public int getConsecutiveFailures() {
+			return consecutiveFailures;
+		}
+
+		/**
+		 *
+		 * @return time since the worker finished its last request in milliseconds, 0 if it is busy
+		 */
+		public long getIdleMillis() {
+			return idleMillis;
+		}
+	}
+
+	/**
+	 * Future of a request of the pool, cancelling it cancels the request in the worker
+	 */
+	private static class PoolFuture<R> extends CompletableFuture<R> {
+
+		private CompletableFuture<R> inner;
+
+		private synchronized void start(CompletableFuture<R> inner) {
+			this.inner = inner;
+			if (isCancelled()) {
+				inner.cancel(true);
+				return;
+			}
+			inner.whenComplete((result, ex) -> {
+				if (ex != null)
+					completeExceptionally(ex);
+				else
+					complete(result);
+			});
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean canceled = super.cancel(mayInterruptIfRunning);
+			CompletableFuture<R> current;
+			synchronized (this) {
+				current = inner;
+			}
+			if (canceled && current != null)
+				current.cancel(mayInterruptIfRunning);
+			return canceled;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Pool of shared memory segments used to send the images and masks to the Python process of a model.
+ * Creating a segment for every image encoded means a new segment in the system, its page faults and
+ * attaching it from Python every time, so the segments are kept after being used and reused for the
+ * next images of the same size or smaller.
+ * The segments are created with a size that is a power of two, so a session whose images grow
+ * only creates a few of them. The Python process keeps the segments attached (see {@link PythonMethods#SHM_POOL})
+ * and never unlinks them, they are unlinked by the pool when they are discarded or when the pool is closed.
+ *
+ * @author Carlos Garcia
+ */
+public class SharedMemoryPool implements Closeable {
+
+	/**
+	 * Size of the smallest segment created, in bytes
+	 */
+	public static final long MIN_SEGMENT_SIZE = 1 << 20;
+	/**
+	 * Maximum number of segments kept while they are not in use
+	 */
+	public static final int MAX_FREE_SEGMENTS = 4;
+	/**
+	 * Segments not in use, from the smallest to the biggest
+	 */
+	private final List<SharedMemoryArray> free = new ArrayList<SharedMemoryArray>();
+	/**
+	 * Segments in use and their size
+	 */
+	private final IdentityHashMap<SharedMemoryArray, Long> inUse = new IdentityHashMap<SharedMemoryArray, Long>();
+	/**
+	 * Names of the segments discarded since the last time the Python process was told to detach them
+	 */
+	private final List<String> discarded = new ArrayList<String>();
+
+	private boolean closed = false;
+
+	private long nAcquired = 0;
+
+	private long nReused = 0;
+
+	private long nCreated = 0;
+
+	private long nDiscarded = 0;
+
+	/**
+	 * Get a segment of at least the given size. It is a segment that is not in use if there is one big enough,
+	 * or a new one otherwise. The segment needs to be given back with {@link #release(SharedMemoryArray)} once
+	 * the Python process has read it
+	 * @param bytes
+	 * 	size needed in bytes
+	 * @return the segment, whose size might be bigger than the one requested
+	 */
+	public synchronized SharedMemoryArray acquire(long bytes) {
+		if (closed)
+			throw new IllegalStateException("The pool of shared memory segments is closed.");
+		nAcquired ++;
+		for (int i = 0; i < free.size(); i ++) {
+			SharedMemoryArray segment = free.get(i);
+			if (segment.getSize() >= bytes) {
+				free.remove(i);
+				inUse.put(segment, segment.getSize());
+				nReused ++;
+				return segment;
+			}
+		}
+		long size = MIN_SEGMENT_SIZE;
+		while (size < bytes)
+			size *= 2;
+		// none of the segments that are not in use is big enough, the smallest ones are discarded to make room for the new one
+		while (free.size() > 0 && free.size() + 1 > MAX_FREE_SEGMENTS)
+			unlink(free.remove(0));
+		SharedMemoryArray segment = SharedMemoryArray.create(new long[] {size}, new UnsignedByteType(), false, false);
+		nCreated ++;
+		inUse.put(segment, size);
+		return segment;
+	}
+
+	/**
+	 * Give back a segment obtained with {@link #acquire(long)}, so it can be reused
+	 * @param segment
+	 * 	the segment, null is ignored
+	 */
+	public synchronized void release(SharedMemoryArray segment) {
+		if (segment == null || inUse.remove(segment) == null)
+			return;
+		int pos = 0;
+		while (pos < free.size() && free.get(pos).getSize() < segment.getSize())
+			pos ++;
+		free.add(pos, segment);
+		while (free.size() > MAX_FREE_SEGMENTS)
+			unlink(free.remove(0));
+	}
+
+	/**
+	 * Unlink a segment obtained with {@link #acquire(long)} instead of reusing it, used when the Python process
+	 * might still be reading it, for example if the task that used it failed or was canceled
+	 * @param segment
+	 * 	the segment, null is ignored
+	 */
+	public synchronized void discard(SharedMemoryArray segment) {
+		if (segment == null || inUse.remove(segment) == null)
+			return;
+		unlink(segment);
+	}
+
+	/**
+	 * Python code that attaches a segment of the pool to the variable given, reusing the attachment of
+	 * previous scripts, and detaches the segments discarded by the pool since the last script
+	 * @param segment
+	 * 	the segment obtained with {@link #acquire(long)}
+	 * @param variable
+	 * 	name of the Python variable that holds the shared memory object
+	 * @return the Python code
+	 */
+	public synchronized String attachScript(SharedMemoryArray segment, String variable) {
+		String released = "[";
+		for (String name : discarded)
+			released += "'" + name + "', ";
+		released += "]";
+		discarded.clear();
+		return variable + " = attach_pooled_shm('" + segment.getNameForPython() + "', " + segment.getSize()
+				+ ", released=" + released + ")" + System.lineSeparator();
+	}
+
+	/**
+	 *
+	 * @return number of segments requested from the pool
+	 */
+	public synchronized long getAcquiredCount() {
+		return nAcquired;
+	}
+
+	/**
+	 *
+	 * @return number of segments requested that were served with a segment created before
+	 */
+	public synchronized long getReusedCount() {
+		return nReused;
+	}
+
+	/**
+	 *
+	 * @return number of segments created by the pool
+	 */
+	public synchronized long getCreatedCount() {
+		return nCreated;
+	}
+
+	/**
+	 *
+	 * @return number of segments unlinked because the pool had too many or did not need them anymore
+	 */
+	public synchronized long getDiscardedCount() {
+		return nDiscarded;
+	}
+
+	/**
+	 *
+	 * @return fraction of the segments requested that were reused, between 0 and 1
+	 */
+	public synchronized double getReuseRate() {
+		return nAcquired == 0 ? 0 : nReused / (double) nAcquired;
+	}
+
+	/**
+	 *
+	 * @return size in bytes of all the segments of the pool, in use or not
+	 */
+	public synchronized long getPooledBytes() {
+		long bytes = 0;
+		for (SharedMemoryArray segment : free)
+			bytes += segment.getSize();
+		for (long size : inUse.values())
+			bytes += size;
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Shared memory pool: %d requests, %d reused (%.1f%%), %d created, %d discarded, %d bytes pooled",
+				nAcquired, nReused, 100 * getReuseRate(), nCreated, nDiscarded, getPooledBytes());
+	}
+
+	/**
+	 * Unlink all the segments of the pool, also the ones in use. It is closed with the Python process, that cannot read them anymore
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (SharedMemoryArray segment : free)
+			unlink(segment);
+		for (SharedMemoryArray segment : inUse.keySet())
+			unlink(segment);
+		free.clear();
+		inUse.clear();
+		discarded.clear();
+	}
+
+	private void unlink(SharedMemoryArray segment) {
+		nDiscarded ++;
+		discarded.add(segment.getNameForPython());
+		try {
+			segment.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
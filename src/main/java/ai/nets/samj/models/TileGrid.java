@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.awt.Rectangle;
+
+/**
+ * Grid of overlapping tiles used to encode images that are too big to be encoded at once.
+ *
+ * All the tiles have the same size, the last tile of each row and column is shifted back so it
+ * ends at the border of the image, thus it overlaps more with its neighbour. Because of the overlap,
+ * any area smaller than the overlap is fully contained in at least one tile.
+ *
+ * The tiles are indexed row by row, starting at the upper left corner of the image.
+ * @author Carlos Garcia
+ */
+public class TileGrid {
+
+	private final long[] xStarts;
+
+	private final long[] yStarts;
+
+	private final long tileWidth;
+
+	private final long tileHeight;
+
+	private final boolean[] encoded;
+
+	/**
+	 * Create the grid of tiles for an image
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param tileSide
+	 * 	side of the square tiles. If the image is smaller than the tile in any of the axes, the tiles
+	 * 	will have the size of the image in that axis
+	 * @param overlap
+	 * 	minimum number of pixels shared between neighbouring tiles
+	 */
+	public TileGrid(long width, long height, long tileSide, long overlap) {
+		if (tileSide <= overlap)
+			throw new IllegalArgumentException("The side of the tiles (" + tileSide + ") needs to be "
+					+ "bigger than the overlap between them (" + overlap + ").");
+		this.tileWidth = Math.min(tileSide, width);
+		this.tileHeight = Math.min(tileSide, height);
+		this.xStarts = computeStarts(width, tileWidth, overlap);
+		this.yStarts = computeStarts(height, tileHeight, overlap);
+		this.encoded = new boolean[xStarts.length * yStarts.length];
+	}
+
+	private static long[] computeStarts(long size, long tileSize, long overlap) {
+		long stride = tileSize - overlap;
+		int n = tileSize == size ? 1 : (int) Math.ceil((size - tileSize) / (double) stride) + 1;
+		long[] starts = new long[n];
+		for (int i = 0; i < n; i ++)
+			starts[i] = Math.min(i * stride, size - tileSize);
+		return starts;
+	}
+
+	/**
+	 *
+	 * @return number of tiles in the grid
+	 */
+	public int size() {
+		return encoded.length;
+	}
+
+	/**
+	 *
+	 * @param n
+	 * 	index of the tile
+	 * @return the area of the image covered by the tile
+	 */
+	public Rectangle getTile(int n) {
+		return new Rectangle((int) xStarts[n % xStarts.length], (int) yStarts[n / xStarts.length],
+				(int) tileWidth, (int) tileHeight);
+	}
+
+	/**
+	 * Find the tile that should be used to process a prompt that needs the area provided.
+	 * Among the tiles that contain the whole area, the one whose center is closer to the
+	 * center of the area is chosen. If no tile contains the whole area, the tile with the
+	 * biggest intersection with it is returned
+	 * @param area
+	 * 	area of the image needed to process a prompt
+	 * @return index of the tile that covers the area
+	 */
+	public int findCoveringTile(Rectangle area) {
+		int best = -1;
+		double bestDist = Double.MAX_VALUE;
+		for (int n = 0; n < size(); n ++) {
+			Rectangle tile = getTile(n);
+			if (!tile.contains(area))
+				continue;
+			double dist = Math.pow(tile.getCenterX() - area.getCenterX(), 2) + Math.pow(tile.getCenterY() - area.getCenterY(), 2);
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = n;
+			}
+		}
+		if (best != -1)
+			return best;
+		long bestArea = -1;
+		for (int n = 0; n < size(); n ++) {
+			Rectangle inter = getTile(n).intersection(area);
+			long interArea = inter.isEmpty() ? 0 : (long) inter.width * inter.height;
+			if (interArea > bestArea) {
+				bestArea = interArea;
+				best = n;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 *
+	 * @param n
+	 * 	index of the tile
+	 * @param area
+	 * 	area of the image
+	 * @return whether the tile contains the whole area or not
+	 */
+	public boolean covers(int n, Rectangle area) {
+		return getTile(n).contains(area);
+	}
+
+	/**
+	 *
+	 * @param n
+	 * 	index of the tile
+	 * @return whether the encodings of the tile have already been computed
+	 */
+	public synchronized boolean isEncoded(int n) {
+		return encoded[n];
+	}
+
+	/**
+	 * Set whether a tile is encoded or not. The encodings of a tile might be deleted to
+	 * release memory, in that case the tile needs to be encoded again
+	 * @param n
+	 * 	index of the tile
+	 * @param isEncoded
+	 * 	whether the encodings of the tile are available or not
+	 */
+	public synchronized void setEncoded(int n, boolean isEncoded) {
+		encoded[n] = isEncoded;
+	}
+
+	/**
+	 * Select the next tile that should be encoded in the background. The tiles closer to the last
+	 * place where the user prompted are encoded first.
+	 * @param focus
+	 * 	position [x, y] of the last prompt, if null the tiles are encoded row by row
+	 * @return the index of the tile that should be encoded next or -1 if all the tiles are encoded
+	 */
+	public synchronized int nextTileToEncode(int[] focus) {
+		int best = -1;
+		double bestDist = Double.MAX_VALUE;
+		for (int n = 0; n < size(); n ++) {
+			if (encoded[n])
+				continue;
+			else if (focus == null)
+				return n;
+			Rectangle tile = getTile(n);
+			double dist = Math.pow(tile.getCenterX() - focus[0], 2) + Math.pow(tile.getCenterY() - focus[1], 2);
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = n;
+			}
+		}
+		return best;
+	}
+
+}
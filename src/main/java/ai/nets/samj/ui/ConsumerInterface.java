@@ -24,6 +24,7 @@ import java.awt.Rectangle;
 import java.util.List;
 
 import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.communication.model.LivePromptScheduler;
 import ai.nets.samj.communication.model.SAMModel;
 import ai.nets.samj.gui.components.ComboBoxItem;
 import net.imglib2.RandomAccessibleInterval;
@@ -38,6 +39,10 @@ import net.imglib2.type.numeric.RealType;
 public abstract class ConsumerInterface {
 	
 	protected SAMModel selectedModel;
+	/**
+	 * Scheduler that the prompts of the LIVE mode should go through, so only the newest prompt of each image is decoded
+	 */
+	protected LivePromptScheduler livePrompts;
 	
 	public interface ConsumerCallback { 
 		
@@ -103,7 +108,10 @@ public abstract class ConsumerInterface {
 	public abstract boolean isValidPromptSelected();
 	
 	public void setModel(SAMModel model) {
+		if (livePrompts != null)
+			livePrompts.cancelAll();
 		this.selectedModel = model;
+		this.livePrompts = model == null ? null : new LivePromptScheduler(model);
 	}
 	
 	public void setCallback(ConsumerCallback callback) {
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks which masks are discarded by {@link DuplicateMaskFilter}. The masks are rectangles of an image
+ * of {@link #WIDTH} pixels of width.
+ *
+ * @author Carlos Garcia
+ */
+public class DuplicateMaskFilterTest {
+
+	private static final long WIDTH = 600;
+
+	@Test
+	public void testIoU() {
+		Mask big = rect(10, 10, 6, 6);
+		Mask almostTheSame = rect(10, 10, 6, 5);
+		Mask shifted = rect(13, 10, 6, 6);
+		DuplicateMaskFilter filter = new DuplicateMaskFilter();
+		// IoU of 30 / 36 with the first mask, and of 18 / 54 with the shifted one
+		List<Mask> kept = filter.filter(Arrays.asList(big, almostTheSame, shifted));
+		assertEquals(Arrays.asList(big, shifted), kept);
+		assertEquals(1, filter.getSuppressedCount());
+	}
+
+	@Test
+	public void testIoUThreshold() {
+		Mask big = rect(10, 10, 6, 6);
+		Mask half = rect(10, 10, 6, 3);
+		assertEquals(Arrays.asList(big), new DuplicateMaskFilter(0.5, DuplicateMaskFilter.NO_CONTAINMENT)
+				.filter(Arrays.asList(big, half)));
+		assertEquals(Arrays.asList(big, half), new DuplicateMaskFilter(0.51, DuplicateMaskFilter.NO_CONTAINMENT)
+				.filter(Arrays.asList(big, half)));
+	}
+
+	@Test
+	public void testNestedMasksAreKeptByDefault() {
+		Mask cell = rect(10, 10, 20, 20);
+		Mask nucleus = rect(15, 15, 5, 5);
+		assertEquals(Arrays.asList(cell, nucleus), new DuplicateMaskFilter().filter(Arrays.asList(cell, nucleus)));
+	}
+
+	@Test
+	public void testContainment() {
+		Mask cell = rect(10, 10, 20, 20);
+		Mask nucleus = rect(15, 15, 5, 5);
+		// only half of the mask is covered by the cell
+		Mask outside = rect(25, 15, 10, 5);
+		DuplicateMaskFilter filter = new DuplicateMaskFilter(DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD, 0.9);
+		assertEquals(Arrays.asList(cell, outside), filter.filter(Arrays.asList(nucleus, cell, outside)));
+		filter = new DuplicateMaskFilter(DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD, 0.5);
+		assertEquals(Arrays.asList(cell), filter.filter(Arrays.asList(nucleus, cell, outside)));
+	}
+
+	@Test
+	public void testBiggestMaskIsKeptFirst() {
+		Mask small = rect(10, 10, 6, 5);
+		Mask big = rect(10, 10, 6, 6);
+		Mask other = rect(100, 100, 4, 4);
+		List<Mask> kept = new DuplicateMaskFilter().filter(Arrays.asList(small, other, big));
+		// the biggest mask of the duplicates is kept, and the masks are returned in the order they were given
+		assertEquals(2, kept.size());
+		assertSame(other, kept.get(0));
+		assertSame(big, kept.get(1));
+	}
+
+	@Test
+	public void testMasksKeptInPreviousGroups() {
+		DuplicateMaskFilter filter = new DuplicateMaskFilter();
+		Mask small = rect(10, 10, 6, 5);
+		Mask big = rect(10, 10, 6, 6);
+		assertEquals(Arrays.asList(small), filter.filter(Arrays.asList(small)));
+		// the masks of the previous groups are kept even if the new mask is bigger
+		assertEquals(0, filter.filter(Arrays.asList(big)).size());
+		assertEquals(1, filter.getSuppressedCount());
+	}
+
+	@Test
+	public void testMasksInSeveralCellsOfTheIndex() {
+		// the masks cover several cells of the index of the kept masks
+		Mask big = rect(MaskIndex.DEFAULT_CELL_SIZE - 20, 10, 300, 300);
+		Mask duplicate = rect(MaskIndex.DEFAULT_CELL_SIZE - 10, 20, 290, 290);
+		Mask far = rect(10, 400, 10, 10);
+		assertEquals(Arrays.asList(far, big), new DuplicateMaskFilter().filter(Arrays.asList(far, duplicate, big)));
+	}
+
+	@Test
+	public void testEmptyMasksAreDiscarded() {
+		Mask empty = Mask.build(new Polygon(), RleMask.fromRle(new long[0], WIDTH));
+		DuplicateMaskFilter filter = new DuplicateMaskFilter();
+		assertEquals(0, filter.filter(Arrays.asList(empty)).size());
+		assertEquals(1, filter.getSuppressedCount());
+	}
+
+	@Test
+	public void testValidThresholds() {
+		DuplicateMaskFilter.checkThresholds(1, 1);
+		DuplicateMaskFilter.checkThresholds(0.01, 0.5);
+		DuplicateMaskFilter.checkThresholds(DuplicateMaskFilter.DEFAULT_IOU_THRESHOLD, DuplicateMaskFilter.DEFAULT_CONTAINMENT_THRESHOLD);
+		DuplicateMaskFilter.checkThresholds(0.5, DuplicateMaskFilter.NO_CONTAINMENT);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroIoUThreshold() {
+		DuplicateMaskFilter.checkThresholds(0, DuplicateMaskFilter.NO_CONTAINMENT);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIoUThresholdAboveOne() {
+		DuplicateMaskFilter.checkThresholds(1.1, DuplicateMaskFilter.NO_CONTAINMENT);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeContainmentThreshold() {
+		DuplicateMaskFilter.checkThresholds(0.5, -0.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidThresholdsOfTheConstructor() {
+		new DuplicateMaskFilter(0.5, 0);
+	}
+
+	private static Mask rect(int x, int y, int width, int height) {
+		long[] rle = new long[2 * height];
+		for (int j = 0; j < height; j ++) {
+			rle[2 * j] = (y + j) * WIDTH + x;
+			rle[2 * j + 1] = width;
+		}
+		return Mask.build(new Polygon(), RleMask.fromRle(rle, WIDTH));
+	}
+}
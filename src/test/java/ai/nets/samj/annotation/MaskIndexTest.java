@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Checks the queries of {@link MaskIndex} with cells of {@link #CELL} pixels, so the masks of the tests
+ * fall on the borders between cells or cover several of them. The masks are defined in an image of
+ * {@link #WIDTH} pixels of width.
+ *
+ * @author Carlos Garcia
+ */
+public class MaskIndexTest {
+
+	private static final int CELL = 4;
+
+	private static final long WIDTH = 64;
+
+	@Test
+	public void testPointsAtTheBordersOfTheCells() {
+		MaskIndex index = new MaskIndex(CELL);
+		// the mask covers the last column of the first cell and the first column of the second one
+		Mask mask = rect(3, 0, 2, 1);
+		index.add(mask);
+		assertEquals(Arrays.asList(mask), index.queryPoint(3, 0));
+		assertEquals(Arrays.asList(mask), index.queryPoint(4, 0));
+		assertEquals(0, index.queryPoint(2, 0).size());
+		assertEquals(0, index.queryPoint(5, 0).size());
+		assertEquals(0, index.queryPoint(3, 1).size());
+	}
+
+	@Test
+	public void testMaskSpanningSeveralCells() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask big = rect(2, 2, 13, 10);
+		Mask small = rect(20, 20, 2, 2);
+		index.addAll(Arrays.asList(big, small));
+		for (int y = 2; y < 12; y ++) {
+			for (int x = 2; x < 15; x ++)
+				assertEquals(Arrays.asList(big), index.queryPoint(x, y));
+		}
+		// the mask is in 4 x 3 cells, but it is only returned once
+		assertEquals(Arrays.asList(big), index.queryBox(new Rectangle(0, 0, 16, 16)));
+		assertEquals(Arrays.asList(big, small), index.queryBox(new Rectangle(0, 0, 30, 30)));
+		assertEquals(0, index.queryCandidates(small).size());
+		assertEquals(Arrays.asList(big, small), index.queryCandidates(rect(10, 10, 11, 11)));
+	}
+
+	@Test
+	public void testPointInTheBoundingBoxButNotInTheMask() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask corner = Mask.build(new Polygon(), RleMask.fromRle(new long[] {0, 6, WIDTH, 1, 2 * WIDTH, 1}, WIDTH));
+		index.add(corner);
+		assertEquals(Arrays.asList(corner), index.queryPoint(5, 0));
+		assertEquals(Arrays.asList(corner), index.queryPoint(0, 2));
+		assertEquals(0, index.queryPoint(5, 2).size());
+	}
+
+	@Test
+	public void testQueryBoxAcrossCells() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask left = rect(0, 0, 4, 4);
+		Mask right = rect(4, 0, 4, 4);
+		Mask below = rect(0, 8, 8, 1);
+		index.addAll(Arrays.asList(left, right, below));
+		assertEquals(Arrays.asList(left, right), index.queryBox(new Rectangle(3, 3, 2, 2)));
+		assertEquals(Arrays.asList(left), index.queryBox(new Rectangle(3, 0, 1, 8)));
+		assertEquals(Arrays.asList(right, below), index.queryBox(new Rectangle(4, 3, 1, 6)));
+		assertEquals(0, index.queryBox(new Rectangle(0, 4, 8, 4)).size());
+		assertEquals(0, index.queryBox(new Rectangle(3, 3, 0, 0)).size());
+	}
+
+	@Test
+	public void testCandidatesTouchingAtTheBorderOfACell() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask left = rect(0, 0, 4, 4);
+		Mask right = rect(4, 0, 4, 4);
+		Mask overlapping = rect(3, 1, 2, 2);
+		index.addAll(Arrays.asList(left, right, overlapping));
+		assertEquals(Arrays.asList(overlapping), index.queryCandidates(left));
+		assertEquals(Arrays.asList(left, right), index.queryCandidates(overlapping));
+	}
+
+	@Test
+	public void testLastMasksAreReturnedFirst() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask first = rect(0, 0, 8, 8);
+		Mask second = rect(2, 2, 4, 4);
+		index.add(first);
+		index.add(second);
+		assertEquals(Arrays.asList(second, first), index.queryPoint(3, 3));
+		assertEquals(Arrays.asList(first, second), index.queryBox(new Rectangle(0, 0, 8, 8)));
+	}
+
+	@Test
+	public void testQueryOverlapping() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask big = rect(0, 0, 10, 10);
+		Mask almostTheSame = rect(0, 0, 10, 9);
+		Mask half = rect(0, 0, 10, 5);
+		index.addAll(Arrays.asList(big, almostTheSame, half));
+		assertEquals(Arrays.asList(almostTheSame), index.queryOverlapping(big, 0.8));
+		assertEquals(Arrays.asList(almostTheSame, half), index.queryOverlapping(big, 0.5));
+		assertEquals(0.9, MaskIndex.iou(big.getRle(), almostTheSame.getRle()), 1e-9);
+	}
+
+	@Test
+	public void testAddTheSameMaskTwiceAndEmptyMasks() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask mask = rect(5, 5, 3, 3);
+		index.add(mask);
+		index.add(mask);
+		index.add(Mask.build(new Polygon(), RleMask.fromRle(new long[0], WIDTH)));
+		assertEquals(1, index.size());
+		assertEquals(Arrays.asList(mask), index.queryBox(new Rectangle(0, 0, 10, 10)));
+	}
+
+	@Test
+	public void testRemove() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask first = rect(0, 0, 6, 6);
+		Mask second = rect(3, 3, 6, 6);
+		index.addAll(Arrays.asList(first, second));
+		assertTrue(index.remove(first));
+		assertFalse(index.remove(first));
+		assertEquals(1, index.size());
+		assertEquals(Arrays.asList(second), index.queryPoint(4, 4));
+		assertEquals(0, index.queryPoint(1, 1).size());
+		assertEquals(Arrays.asList(second), index.queryBox(new Rectangle(0, 0, 10, 10)));
+	}
+
+	@Test
+	public void testClear() {
+		MaskIndex index = new MaskIndex(CELL);
+		Mask first = rect(0, 0, 10, 10);
+		Mask second = rect(20, 20, 10, 10);
+		index.addAll(Arrays.asList(first, second));
+		index.remove(second);
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(Collections.emptyList(), index.queryPoint(5, 5));
+		assertEquals(Collections.emptyList(), index.queryBox(new Rectangle(0, 0, 40, 40)));
+		// the masks can be added again after clearing the index, and they are not removed anymore
+		index.addAll(Arrays.asList(second, first));
+		assertEquals(2, index.size());
+		assertEquals(Arrays.asList(second), index.queryPoint(25, 25));
+		assertEquals(Arrays.asList(second, first), index.queryBox(new Rectangle(0, 0, 40, 40)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCellSize() {
+		new MaskIndex(0);
+	}
+
+	private static Mask rect(int x, int y, int width, int height) {
+		long[] rle = new long[2 * height];
+		for (int j = 0; j < height; j ++) {
+			rle[2 * j] = (y + j) * WIDTH + x;
+			rle[2 * j + 1] = width;
+		}
+		return Mask.build(new Polygon(), RleMask.fromRle(rle, WIDTH));
+	}
+}
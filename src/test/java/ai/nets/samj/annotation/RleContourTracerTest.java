@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link RleContourTracer} produces the same contours as the pixel by pixel walk of the Python
+ * method 'trace_contour', ported below as {@link #referenceTrace(boolean[][], int)}, on the kind of objects
+ * produced by SAMJ. The objects are drawn with '#' for the pixels of the object.
+ *
+ * @author Carlos Garcia
+ */
+public class RleContourTracerTest {
+
+	private static final int[] CCW_DIR = {8, 9, 6, 3, 2, 1, 4, 7};
+	private static final int[] DIR_IDX = {0, 5, 4, 3, 6, 0, 2, 7, 0, 1};
+	private static final int[] COUNTER_SHIFTED_DIR = {0, 6, 9, 8, 3, 0, 7, 2, 1, 4};
+	private static final int[] DIR_DX = {0, -1, 0, 1, -1, 0, 1, -1, 0, 1};
+	private static final int[] DIR_DY = {0, 1, 1, 1, 0, 0, 0, -1, -1, -1};
+
+	@Test
+	public void testSolidObject() {
+		assertSameAsReference(
+				"..........",
+				"...####...",
+				"..######..",
+				"..######..",
+				"...####...",
+				"..........");
+	}
+
+	@Test
+	public void testOnePixelLines() {
+		assertSameAsReference(
+				".......",
+				".#####.",
+				".......");
+		assertSameAsReference(
+				"...",
+				".#.",
+				".#.",
+				".#.",
+				"...");
+		assertSameAsReference(
+				".....",
+				".#...",
+				".#...",
+				".####",
+				".....");
+		assertSameAsReference(
+				"...",
+				".#.",
+				"...");
+	}
+
+	@Test
+	public void testObjectTouchingTheBorders() {
+		assertSameAsReference(
+				"####",
+				"####",
+				"##..");
+		assertSameAsReference(
+				"..##",
+				".###",
+				"####");
+		assertSameAsReference(
+				"#");
+	}
+
+	@Test
+	public void testDiagonalSteps() {
+		// the masks are 4-connected, but their contours move diagonally along the steps
+		assertSameAsReference(
+				"##...",
+				".##..",
+				"..##.",
+				"...##");
+		assertSameAsReference(
+				"...#",
+				"..##",
+				".##.",
+				"##..");
+		assertSameAsReference(
+				".#.#.",
+				".###.",
+				"..#..",
+				".###.",
+				".#.#.");
+	}
+
+	@Test
+	public void testHolesAreNotTraced() {
+		// the RLE sent by Python has the holes of the object filled, but even with a hole only the outer border is traced
+		String[] ring = {
+				"......",
+				".####.",
+				".#..#.",
+				".#..#.",
+				".####.",
+				"......"};
+		String[] filled = {
+				"......",
+				".####.",
+				".####.",
+				".####.",
+				".####.",
+				"......"};
+		Polygon contour = RleContourTracer.trace(toRle(ring));
+		assertContourEquals(referenceTrace(toBitmap(filled), 16), contour);
+		for (int i = 0; i < contour.npoints; i ++)
+			assertTrue(isOuterBorder(toBitmap(filled), contour.xpoints[i], contour.ypoints[i]));
+	}
+
+	@Test
+	public void testLimitOfPointsWithHoles() {
+		// Python traced the object with its hole and stopped the walk after as many points as pixels has the object.
+		// The Java tracer receives the RLE with the hole filled, so it stops after as many points as pixels has the
+		// filled object and can give the points of the contour that Python missed
+		String[] object = {
+				"..##.",
+				"..#.#",
+				"#.###",
+				"###.."};
+		String[] filled = {
+				"..##.",
+				"..###",
+				"#.###",
+				"###.."};
+		Polygon contour = RleContourTracer.trace(toRle(filled));
+		assertContourEquals(referenceTrace(toBitmap(filled), 12), contour);
+		int[][] python = referenceTrace(toBitmap(object), 11);
+		assertEquals(11, python[0].length);
+		assertTrue(contour.npoints > python[0].length);
+		assertArrayEquals(python[0], Arrays.copyOf(contour.xpoints, python[0].length));
+		assertArrayEquals(python[1], Arrays.copyOf(contour.ypoints, python[1].length));
+	}
+
+	@Test
+	public void testEmptyMask() {
+		assertEquals(0, RleContourTracer.trace(RleMask.fromRle(new long[0], 10)).npoints);
+	}
+
+	private static void assertSameAsReference(String... rows) {
+		boolean[][] bitmap = toBitmap(rows);
+		int area = 0;
+		for (boolean[] row : bitmap)
+			for (boolean pixel : row)
+				area += pixel ? 1 : 0;
+		assertContourEquals(referenceTrace(bitmap, area), RleContourTracer.trace(toRle(rows)));
+	}
+
+	private static void assertContourEquals(int[][] expected, Polygon contour) {
+		assertArrayEquals(expected[0], Arrays.copyOf(contour.xpoints, contour.npoints));
+		assertArrayEquals(expected[1], Arrays.copyOf(contour.ypoints, contour.npoints));
+	}
+
+	private static boolean[][] toBitmap(String[] rows) {
+		boolean[][] bitmap = new boolean[rows.length][];
+		for (int y = 0; y < rows.length; y ++) {
+			bitmap[y] = new boolean[rows[y].length()];
+			for (int x = 0; x < rows[y].length(); x ++)
+				bitmap[y][x] = rows[y].charAt(x) == '#';
+		}
+		return bitmap;
+	}
+
+	private static RleMask toRle(String[] rows) {
+		int width = rows[0].length();
+		List<Long> rle = new ArrayList<Long>();
+		for (int y = 0; y < rows.length; y ++) {
+			for (int x = 0; x < width; x ++) {
+				if (rows[y].charAt(x) != '#')
+					continue;
+				int start = x;
+				while (x < width && rows[y].charAt(x) == '#')
+					x ++;
+				rle.add((long) (y * width + start));
+				rle.add((long) (x - start));
+			}
+		}
+		return RleMask.fromRle(rle.stream().mapToLong(Long::longValue).toArray(), width);
+	}
+
+	private static boolean isSet(boolean[][] bitmap, int x, int y) {
+		return y >= 0 && y < bitmap.length && x >= 0 && x < bitmap[y].length && bitmap[y][x];
+	}
+
+	private static boolean isOuterBorder(boolean[][] bitmap, int x, int y) {
+		return isSet(bitmap, x, y) && !(isSet(bitmap, x - 1, y) && isSet(bitmap, x + 1, y)
+				&& isSet(bitmap, x, y - 1) && isSet(bitmap, x, y + 1));
+	}
+
+	/**
+	 * Port of the Python method 'trace_contour', the pixels outside of the image are background
+	 * @return the x and y coordinates of the contour
+	 */
+	private static int[][] referenceTrace(boolean[][] bitmap, int maxIters) {
+		int sy = 0, sx = 0;
+		while (!bitmap[sy][sx]) {
+			sx ++;
+			if (sx == bitmap[sy].length) {
+				sx = 0;
+				sy ++;
+			}
+		}
+		List<int[]> points = new ArrayList<int[]>();
+		points.add(new int[] {sx, sy});
+		int[] next = findContourNeighbour(bitmap, sx, sy, 1);
+		int cnt = 1;
+		while (next != null && !(next[0] == sx && next[1] == sy) && cnt < maxIters) {
+			points.add(new int[] {next[0], next[1]});
+			next = findContourNeighbour(bitmap, next[0], next[1], next[2]);
+			cnt ++;
+		}
+		int[][] coords = new int[2][points.size()];
+		for (int i = 0; i < points.size(); i ++) {
+			coords[0][i] = points.get(i)[0];
+			coords[1][i] = points.get(i)[1];
+		}
+		return coords;
+	}
+
+	private static int[] findContourNeighbour(boolean[][] bitmap, int cx, int cy, int lastForwardDir) {
+		int testDir = COUNTER_SHIFTED_DIR[lastForwardDir];
+		int nx = cx + DIR_DX[testDir];
+		int ny = cy + DIR_DY[testDir];
+		for (int tries = 0; tries < 8; tries ++) {
+			if (isOuterBorder(bitmap, nx, ny))
+				return new int[] {nx, ny, testDir};
+			testDir = CCW_DIR[(DIR_IDX[testDir] + 1) % 8];
+			nx = cx + DIR_DX[testDir];
+			ny = cy + DIR_DY[testDir];
+		}
+		// a single pixel has no neighbours, the Python method would not stop
+		return null;
+	}
+}
@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the operations of {@link RleMask} against the flat RLE format. The masks are defined in an image
+ * of {@link #WIDTH} pixels of width, so the runs are easy to follow by hand.
+ *
+ * @author Carlos Garcia
+ */
+public class RleMaskTest {
+
+	private static final long WIDTH = 10;
+
+	@Test
+	public void testRunsAcrossTheEndOfTheRows() {
+		// the run starts 2 pixels before the end of the first row and goes on in the second one
+		RleMask mask = RleMask.fromRle(new long[] {8, 4}, WIDTH);
+		assertEquals(2, mask.getRunCount());
+		assertArrayEquals(new long[] {8, 2, 10, 2}, mask.toRle());
+		assertEquals(4, mask.area());
+		assertEquals(0, mask.getMinY());
+		assertEquals(1, mask.getMaxY());
+		assertEquals(0, mask.getMinX());
+		assertEquals(9, mask.getMaxX());
+		assertTrue(mask.contains(9, 0));
+		assertTrue(mask.contains(0, 1));
+		assertFalse(mask.contains(0, 0));
+		assertFalse(mask.contains(2, 1));
+	}
+
+	@Test
+	public void testRunCoveringWholeRows() {
+		RleMask mask = RleMask.fromRle(new long[] {10, 20}, WIDTH);
+		assertArrayEquals(new long[] {10, 10, 20, 10}, mask.toRle());
+		assertEquals(1, mask.getMinY());
+		assertEquals(2, mask.getMaxY());
+		assertEquals(20, mask.area());
+	}
+
+	@Test
+	public void testFromPartOfAnArray() {
+		long[] rle = new long[] {0, 1, 12, 3, 25, 1, 99, 1};
+		RleMask mask = RleMask.fromRle(rle, 2, 6, WIDTH);
+		assertArrayEquals(new long[] {12, 3, 25, 1}, mask.toRle());
+		assertEquals(4, mask.area());
+	}
+
+	@Test
+	public void testEmptyMasks() {
+		RleMask empty = RleMask.fromRle(new long[0], WIDTH);
+		RleMask mask = rect(1, 1, 2, 2);
+		assertTrue(empty.isEmpty());
+		assertEquals(0, empty.area());
+		assertEquals(0, empty.getRunCount());
+		assertArrayEquals(new long[0], empty.toRle());
+		assertFalse(empty.contains(0, 0));
+		assertArrayEquals(mask.toRle(), empty.union(mask).toRle());
+		assertArrayEquals(mask.toRle(), mask.union(empty).toRle());
+		assertTrue(empty.union(empty).isEmpty());
+		assertTrue(empty.intersection(mask).isEmpty());
+		assertTrue(mask.intersection(empty).isEmpty());
+		assertEquals(0, empty.intersectionArea(mask));
+		assertEquals(0, mask.intersectionArea(empty));
+		empty.translate(3, 3);
+		empty.scale(2);
+		assertTrue(empty.isEmpty());
+		assertEquals(0, empty.area());
+	}
+
+	@Test
+	public void testUnion() {
+		RleMask a = rect(0, 0, 3, 2);
+		RleMask b = rect(2, 1, 3, 2);
+		RleMask union = a.union(b);
+		assertArrayEquals(new long[] {0, 3, 10, 5, 22, 3}, union.toRle());
+		assertEquals(11, union.area());
+		assertEquals(0, union.getMinX());
+		assertEquals(4, union.getMaxX());
+		assertArrayEquals(union.toRle(), b.union(a).toRle());
+		// the inputs are not modified
+		assertArrayEquals(new long[] {0, 3, 10, 3}, a.toRle());
+	}
+
+	@Test
+	public void testUnionMergesTouchingRuns() {
+		RleMask left = rect(0, 0, 2, 1);
+		RleMask right = rect(2, 0, 2, 1);
+		assertArrayEquals(new long[] {0, 4}, left.union(right).toRle());
+		// runs separated by one pixel are kept apart
+		RleMask far = rect(5, 0, 2, 1);
+		assertArrayEquals(new long[] {0, 2, 5, 2}, left.union(far).toRle());
+	}
+
+	@Test
+	public void testUnionOfMasksInDifferentRows() {
+		RleMask top = rect(0, 0, 2, 1);
+		RleMask bottom = rect(0, 3, 2, 1);
+		RleMask union = top.union(bottom);
+		assertArrayEquals(new long[] {0, 2, 30, 2}, union.toRle());
+		assertEquals(0, union.getMinY());
+		assertEquals(3, union.getMaxY());
+		assertFalse(union.contains(0, 1));
+	}
+
+	@Test
+	public void testIntersection() {
+		RleMask a = rect(0, 0, 3, 2);
+		RleMask b = rect(2, 1, 3, 2);
+		RleMask intersection = a.intersection(b);
+		assertArrayEquals(new long[] {12, 1}, intersection.toRle());
+		assertEquals(1, intersection.area());
+		assertEquals(1, a.intersectionArea(b));
+		assertEquals(1, b.intersectionArea(a));
+		assertEquals(a.area(), a.intersectionArea(a));
+	}
+
+	@Test
+	public void testIntersectionOfSeveralRunsInARow() {
+		RleMask a = RleMask.fromRle(new long[] {0, 2, 4, 2}, WIDTH);
+		RleMask b = RleMask.fromRle(new long[] {1, 4}, WIDTH);
+		assertArrayEquals(new long[] {1, 1, 4, 1}, a.intersection(b).toRle());
+		assertEquals(2, a.intersectionArea(b));
+		assertEquals(2, a.intersection(b).getRunCount());
+	}
+
+	@Test
+	public void testDisjointMasks() {
+		RleMask a = rect(0, 0, 2, 2);
+		// touching the first mask, but not sharing any pixel
+		RleMask right = rect(2, 0, 2, 2);
+		RleMask below = rect(0, 2, 2, 2);
+		assertTrue(a.intersection(right).isEmpty());
+		assertTrue(a.intersection(below).isEmpty());
+		assertEquals(0, a.intersectionArea(right));
+		assertEquals(0, a.intersectionArea(below));
+		assertEquals(8, a.union(below).area());
+	}
+
+	@Test
+	public void testIntersectionAcrossTheEndOfTheRows() {
+		RleMask a = RleMask.fromRle(new long[] {8, 4}, WIDTH);
+		RleMask b = RleMask.fromRle(new long[] {9, 2}, WIDTH);
+		assertArrayEquals(new long[] {9, 1, 10, 1}, a.intersection(b).toRle());
+		assertEquals(2, a.intersectionArea(b));
+		assertArrayEquals(new long[] {8, 2, 10, 2}, a.union(b).toRle());
+	}
+
+	@Test
+	public void testTranslate() {
+		RleMask mask = rect(1, 0, 3, 2);
+		mask.translate(1, 2);
+		assertArrayEquals(new long[] {22, 3, 32, 3}, mask.toRle());
+		assertEquals(2, mask.getMinX());
+		assertEquals(4, mask.getMaxX());
+		assertEquals(2, mask.getMinY());
+		assertEquals(3, mask.getMaxY());
+		assertEquals(6, mask.area());
+		assertTrue(mask.contains(2, 2));
+		assertFalse(mask.contains(1, 0));
+		mask.translate(-2, -2);
+		assertArrayEquals(new long[] {0, 3, 10, 3}, mask.toRle());
+	}
+
+	@Test
+	public void testTranslateIntoABiggerImage() {
+		// a mask computed in a crop of 4 pixels of width moved to the image
+		RleMask mask = RleMask.fromRle(new long[] {2, 4}, 4);
+		mask.translate(5, 1);
+		mask.setWidth(WIDTH);
+		assertArrayEquals(new long[] {17, 2, 25, 2}, mask.toRle());
+	}
+
+	@Test
+	public void testScale() {
+		// row 0: pixels 1 and 2, row 1: pixel 0
+		RleMask mask = RleMask.fromRle(new long[] {1, 2, 10, 1}, WIDTH);
+		mask.scale(2);
+		assertEquals(2, mask.getRowScale());
+		assertEquals(0, mask.getMinY());
+		assertEquals(3, mask.getMaxY());
+		assertEquals(0, mask.getMinX());
+		assertEquals(5, mask.getMaxX());
+		assertEquals(12, mask.area());
+		assertEquals(4, mask.getRunCount());
+		assertArrayEquals(new long[] {2, 4, 12, 4, 20, 2, 30, 2}, mask.toRle());
+		assertTrue(mask.contains(5, 1));
+		assertFalse(mask.contains(6, 1));
+		assertTrue(mask.contains(1, 3));
+		assertFalse(mask.contains(2, 3));
+		assertFalse(mask.contains(0, 4));
+	}
+
+	@Test
+	public void testScaleKeepsTheOrigin() {
+		RleMask mask = rect(1, 1, 1, 1);
+		mask.scale(3);
+		assertEquals(3, mask.getMinY());
+		assertEquals(5, mask.getMaxY());
+		assertEquals(3, mask.getMinX());
+		assertEquals(5, mask.getMaxX());
+		assertArrayEquals(new long[] {33, 3, 43, 3, 53, 3}, mask.toRle());
+		// scaling again multiplies the factors
+		mask.scale(2);
+		assertEquals(6, mask.getRowScale());
+		assertEquals(36, mask.area());
+		assertEquals(6, mask.getMinY());
+		assertEquals(11, mask.getMaxY());
+	}
+
+	@Test
+	public void testScaleAndTranslate() {
+		RleMask mask = rect(0, 0, 1, 1);
+		mask.scale(2);
+		mask.translate(1, 1);
+		assertArrayEquals(new long[] {11, 2, 21, 2}, mask.toRle());
+		assertEquals(1, mask.getMinY());
+		assertEquals(2, mask.getMaxY());
+	}
+
+	@Test
+	public void testOperationsWithScaledMasks() {
+		RleMask scaled = rect(0, 0, 2, 1);
+		scaled.scale(2);
+		RleMask other = rect(1, 1, 4, 2);
+		assertEquals(3, scaled.intersectionArea(other));
+		RleMask intersection = scaled.intersection(other);
+		assertEquals(1, intersection.getRowScale());
+		assertArrayEquals(new long[] {11, 3}, intersection.toRle());
+		assertArrayEquals(new long[] {0, 4, 10, 5, 21, 4}, scaled.union(other).toRle());
+		assertEquals(scaled.area() + other.area() - 3, scaled.union(other).area());
+	}
+
+	@Test
+	public void testScaleByOne() {
+		RleMask mask = rect(1, 1, 2, 2);
+		mask.scale(1);
+		assertEquals(1, mask.getRowScale());
+		assertArrayEquals(new long[] {11, 2, 21, 2}, mask.toRle());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidScaleFactor() {
+		rect(0, 0, 1, 1).scale(0);
+	}
+
+	private static RleMask rect(int x, int y, int width, int height) {
+		long[] rle = new long[2 * height];
+		for (int j = 0; j < height; j ++) {
+			rle[2 * j] = (y + j) * WIDTH + x;
+			rle[2 * j + 1] = width;
+		}
+		return RleMask.fromRle(rle, WIDTH);
+	}
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.communication.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.models.AbstractSamJ;
+import ai.nets.samj.models.AbstractSamJ.Inference;
+import ai.nets.samj.ui.SAMJLogger;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Checks which prompts {@link LivePromptScheduler} decodes, cancels and drops. The model runs the prompts
+ * directly on the executor, without any Python process, and the prompts wait until the test releases them,
+ * so every test decides which prompt is being decoded when the next one arrives.
+ *
+ * @author Carlos Garcia
+ */
+public class LivePromptSchedulerTest {
+
+	private static final long TIMEOUT = 5;
+
+	private ExecutorService executor;
+
+	private LivePromptScheduler scheduler;
+	/**
+	 * Prompts in the order they were run
+	 */
+	private final List<Prompt> decoded = Collections.synchronizedList(new ArrayList<Prompt>());
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+		scheduler = new LivePromptScheduler(new DirectModel(), executor);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testSinglePrompt() throws Exception {
+		Prompt prompt = new Prompt(false);
+		assertSame(prompt.masks, scheduler.submit("a", prompt).get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(1, scheduler.getSubmittedCount());
+		assertEquals(0, scheduler.getSupersededCount());
+		assertEquals(0, scheduler.getCanceledRunningCount());
+	}
+
+	@Test
+	public void testOnlyTheNewestWaitingPromptIsDecoded() throws Exception {
+		Prompt busy = new Prompt(true);
+		CompletableFuture<List<Mask>> busyFuture = scheduler.submit("b", busy);
+		assertTrue(busy.started.await(TIMEOUT, TimeUnit.SECONDS));
+		Prompt first = new Prompt(false);
+		Prompt second = new Prompt(false);
+		CompletableFuture<List<Mask>> firstFuture = scheduler.submit("a", first);
+		CompletableFuture<List<Mask>> secondFuture = scheduler.submit("a", second);
+		assertTrue(firstFuture.isCancelled());
+		assertEquals(1, scheduler.getSupersededCount());
+		// the prompt of another image being decoded is not canceled
+		assertFalse(busyFuture.isDone());
+		assertEquals(0, scheduler.getCanceledRunningCount());
+		busy.release.countDown();
+		assertSame(busy.masks, busyFuture.get(TIMEOUT, TimeUnit.SECONDS));
+		assertSame(second.masks, secondFuture.get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(busy, second), decoded);
+		assertEquals(3, scheduler.getSubmittedCount());
+	}
+
+	@Test
+	public void testNewPromptCancelsTheDecodingOfTheSameImage() throws Exception {
+		Prompt first = new Prompt(true);
+		CompletableFuture<List<Mask>> firstFuture = scheduler.submit("a", first);
+		assertTrue(first.started.await(TIMEOUT, TimeUnit.SECONDS));
+		Prompt second = new Prompt(false);
+		CompletableFuture<List<Mask>> secondFuture = scheduler.submit("a", second);
+		assertTrue(firstFuture.isCancelled());
+		assertEquals(1, scheduler.getCanceledRunningCount());
+		assertEquals(0, scheduler.getSupersededCount());
+		// the next prompt is only sent to the model once the canceled one actually stops
+		assertFalse(second.started.await(100, TimeUnit.MILLISECONDS));
+		first.release.countDown();
+		assertSame(second.masks, secondFuture.get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(first, second), decoded);
+		assertEquals(1, maxActive.get());
+	}
+
+	@Test
+	public void testPromptsOfDifferentImagesAreDecodedInOrder() throws Exception {
+		Prompt busy = new Prompt(true);
+		scheduler.submit("b", busy);
+		assertTrue(busy.started.await(TIMEOUT, TimeUnit.SECONDS));
+		Prompt a = new Prompt(false);
+		Prompt c = new Prompt(false);
+		CompletableFuture<List<Mask>> aFuture = scheduler.submit("a", a);
+		CompletableFuture<List<Mask>> cFuture = scheduler.submit("c", c);
+		busy.release.countDown();
+		assertSame(c.masks, cFuture.get(TIMEOUT, TimeUnit.SECONDS));
+		assertSame(a.masks, aFuture.get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(busy, a, c), decoded);
+		assertEquals(1, maxActive.get());
+	}
+
+	@Test
+	public void testCancelAll() throws Exception {
+		Prompt busy = new Prompt(true);
+		CompletableFuture<List<Mask>> busyFuture = scheduler.submit("b", busy);
+		assertTrue(busy.started.await(TIMEOUT, TimeUnit.SECONDS));
+		Prompt waiting = new Prompt(false);
+		CompletableFuture<List<Mask>> waitingFuture = scheduler.submit("a", waiting);
+		scheduler.cancelAll();
+		assertTrue(busyFuture.isCancelled());
+		assertTrue(waitingFuture.isCancelled());
+		busy.release.countDown();
+		// the scheduler keeps working after canceling everything
+		Prompt next = new Prompt(false);
+		assertSame(next.masks, scheduler.submit("a", next).get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(busy, next), decoded);
+	}
+
+	@Test
+	public void testFailedPrompt() throws Exception {
+		CompletableFuture<List<Mask>> failed = scheduler.submit("a", () -> {
+			throw new IOException("The prompt failed.");
+		});
+		try {
+			failed.get(TIMEOUT, TimeUnit.SECONDS);
+			fail("The prompt should have failed.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		Prompt next = new Prompt(false);
+		assertSame(next.masks, scheduler.submit("a", next).get(TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullImage() {
+		scheduler.submit(null, new Prompt(false));
+	}
+
+	/**
+	 * Prompt that records when it is decoded and, if it blocks, waits until {@link #release} is released
+	 */
+	private class Prompt implements Inference<List<Mask>> {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		private final CountDownLatch release;
+
+		private final List<Mask> masks = new ArrayList<Mask>();
+
+		private Prompt(boolean blocks) {
+			release = new CountDownLatch(blocks ? 1 : 0);
+		}
+
+		@Override
+		public List<Mask> run() throws InterruptedException {
+			int n = active.incrementAndGet();
+			maxActive.accumulateAndGet(n, Math::max);
+			decoded.add(this);
+			started.countDown();
+			try {
+				release.await();
+				return masks;
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Model that runs the inferences on the executor, without loading any Python process
+	 */
+	private static class DirectModel extends SAMModel {
+
+		@Override
+		public <R> CompletableFuture<R> submit(Inference<R> inference, Executor executor) {
+			CompletableFuture<R> future = new CompletableFuture<R>();
+			executor.execute(() -> {
+				try {
+					future.complete(inference.run());
+				} catch (IOException | RuntimeException | InterruptedException e) {
+					future.completeExceptionally(e);
+				}
+			});
+			return future;
+		}
+
+		@Override
+		public String getName() {
+			return "direct";
+		}
+
+		@Override
+		public String getInputImageAxes() {
+			return "xyc";
+		}
+
+		@Override
+		public <T extends RealType<T> & NativeType<T>>
+		void setImage(RandomAccessibleInterval<T> image, SAMJLogger useThisLoggerForIt) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected AbstractSamJ createSamJ(AbstractSamJ.DebugTextPrinter printer) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
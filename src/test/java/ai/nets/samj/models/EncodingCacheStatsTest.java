@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the counters of {@link EncodingCacheStats} and that its snapshots do not change afterwards.
+ *
+ * @author Carlos Garcia
+ */
+public class EncodingCacheStatsTest {
+
+	@Test
+	public void testEmpty() {
+		EncodingCacheStats stats = new EncodingCacheStats(100);
+		assertEquals(0, stats.getHits());
+		assertEquals(0, stats.getMisses());
+		assertEquals(0, stats.getEvictions());
+		assertEquals(0, stats.getEntries());
+		assertEquals(0, stats.getBytesResident());
+		assertEquals(100, stats.getBudget());
+		assertEquals(0, stats.getHitRate(), 0);
+	}
+
+	@Test
+	public void testHitRate() {
+		EncodingCacheStats stats = new EncodingCacheStats(100);
+		stats.hit();
+		stats.hit();
+		stats.hit();
+		stats.miss();
+		assertEquals(3, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(0.75, stats.getHitRate(), 1e-9);
+	}
+
+	@Test
+	public void testEntriesAndEvictions() {
+		EncodingCacheStats stats = new EncodingCacheStats(100);
+		stats.add(40);
+		stats.add(70);
+		assertEquals(2, stats.getEntries());
+		assertEquals(110, stats.getBytesResident());
+		// an encoding evicted to keep the budget and another one deleted on purpose
+		stats.remove(40, true);
+		stats.remove(70, false);
+		assertEquals(0, stats.getEntries());
+		assertEquals(0, stats.getBytesResident());
+		assertEquals(1, stats.getEvictions());
+	}
+
+	@Test
+	public void testSnapshot() {
+		EncodingCacheStats stats = new EncodingCacheStats(100);
+		stats.add(40);
+		stats.hit();
+		stats.miss();
+		EncodingCacheStats snapshot = stats.snapshot();
+		stats.add(10);
+		stats.remove(40, true);
+		stats.hit();
+		stats.setBudget(200);
+		assertEquals(1, snapshot.getEntries());
+		assertEquals(40, snapshot.getBytesResident());
+		assertEquals(1, snapshot.getHits());
+		assertEquals(1, snapshot.getMisses());
+		assertEquals(0, snapshot.getEvictions());
+		assertEquals(100, snapshot.getBudget());
+		assertEquals(200, stats.snapshot().getBudget());
+		assertEquals(10, stats.snapshot().getBytesResident());
+	}
+
+	@Test
+	public void testToString() {
+		EncodingCacheStats stats = new EncodingCacheStats(100);
+		stats.add(40);
+		stats.hit();
+		assertEquals("EncodingCacheStats{hits=1, misses=0, evictions=0, entries=1, bytesResident=40, budget=100}",
+				stats.toString());
+	}
+}
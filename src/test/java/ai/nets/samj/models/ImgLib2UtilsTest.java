@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Checks how {@link ImgLib2Utils} writes the images into the buffers fed to the models, converted with axes [x, y, c]
+ * or copied by planes with axes [c, y, x], and the reduction of the images by an integer factor of {@link ImgLib2Utils#reescaleIfNeeded(RandomAccessibleInterval, int)}.
+ *
+ * @author Carlos Garcia
+ */
+public class ImgLib2UtilsTest {
+
+	private static final AbstractSamJ.DebugTextPrinter PRINTER = text -> {};
+
+	@Test
+	public void testWriteRGBOf8BitImage() {
+		// xyc image of 2 x 3 pixels and 3 channels, written as it is
+		byte[] data = new byte[18];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (byte) (14 * i);
+		ByteBuffer buffer = ByteBuffer.allocate(18);
+		ImgLib2Utils.writeRGB(ArrayImgs.unsignedBytes(data, 2, 3, 3), buffer, 3, PRINTER);
+		for (int c = 0; c < 3; c ++) {
+			for (int y = 0; y < 3; y ++) {
+				for (int x = 0; x < 2; x ++)
+					assertEquals(data[(c * 3 + y) * 2 + x], buffer.get((x * 3 + y) * 3 + c));
+			}
+		}
+	}
+
+	@Test
+	public void testWriteRGBStretchesTheChannels() {
+		short[] data = new short[] {100, 180, 260, 500};
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		// one channel repeated in the 3 channels of the buffer, the pixel (0, 1) goes before the pixel (1, 0)
+		ImgLib2Utils.writeRGB(ArrayImgs.unsignedShorts(data, 2, 2), buffer, 3, PRINTER);
+		assertArrayEquals(new byte[] {0, 0, 0, 102, 102, 102, 51, 51, 51, -1, -1, -1}, buffer.array());
+	}
+
+	@Test
+	public void testWriteRGBWithLevels() {
+		short[] data = new short[] {0, 50, 90, 200};
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		ImgLib2Utils.writeRGB(ArrayImgs.unsignedShorts(data, 4, 1), buffer, 1, new double[] {50, 150}, PRINTER);
+		// the values outside the levels are clipped
+		assertArrayEquals(new byte[] {0, 0, 102, -1}, buffer.array());
+		// 8-bit images are stretched too when there are levels
+		ImgLib2Utils.writeRGB(ArrayImgs.unsignedBytes(new byte[] {0, 50, 90, (byte) 200}, 4, 1), buffer, 1, 
+				new double[] {50, 150}, PRINTER);
+		assertArrayEquals(new byte[] {0, 0, 102, -1}, buffer.array());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongNumberOfLevels() {
+		ImgLib2Utils.writeRGB(ArrayImgs.unsignedShorts(2, 2, 3), ByteBuffer.allocate(12), 3, new double[] {0, 1}, PRINTER);
+	}
+
+	@Test
+	public void testWriteNormalized() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * 4).order(ByteOrder.nativeOrder());
+		FloatBuffer floats = buffer.asFloatBuffer();
+		// already between 0 and 1, written as it is
+		ImgLib2Utils.writeNormalized(ArrayImgs.floats(new float[] {0.25f, 0.5f, 0.75f, 0.5f}, 4, 1), buffer, 1, PRINTER);
+		assertArrayEquals(new double[] {0.25, 0.5, 0.75, 0.5}, toArray(floats), 1e-6);
+		ImgLib2Utils.writeNormalized(ArrayImgs.floats(new float[] {2, 3, 4, 6}, 4, 1), buffer, 1, PRINTER);
+		assertArrayEquals(new double[] {0, 0.25, 0.5, 1}, toArray(floats), 1e-6);
+		ImgLib2Utils.writeNormalized(ArrayImgs.floats(new float[] {2, 3, 4, 6}, 4, 1), buffer, 1, new double[] {3, 5}, PRINTER);
+		assertArrayEquals(new double[] {0, 0, 0.5, 1}, toArray(floats), 1e-6);
+	}
+
+	@Test
+	public void testViewsAndPlanarImagesAreWrittenLikeArrays() {
+		// crop of 3 x 2 pixels and 2 channels of an image of 5 x 4 pixels
+		short[] data = new short[5 * 4 * 2];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (short) (i * i);
+		RandomAccessibleInterval<UnsignedShortType> crop = 
+				Views.offsetInterval(ArrayImgs.unsignedShorts(data, 5, 4, 2), new long[] {1, 2, 0}, new long[] {3, 2, 2});
+		short[] cropData = new short[3 * 2 * 2];
+		RandomAccess<UnsignedShortType> ra = crop.randomAccess();
+		for (int i = 0; i < cropData.length; i ++) {
+			ra.setPosition(new long[] {i % 3, (i / 3) % 2, i / 6});
+			cropData[i] = (short) ra.get().get();
+		}
+		ByteBuffer expected = ByteBuffer.allocate(12);
+		ImgLib2Utils.writeRGB(ArrayImgs.unsignedShorts(cropData, 3, 2, 2), expected, 2, PRINTER);
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		ImgLib2Utils.writeRGB(crop, buffer, 2, PRINTER);
+		assertArrayEquals(expected.array(), buffer.array());
+		PlanarImg<UnsignedShortType, ?> planar = PlanarImgs.unsignedShorts(3, 2, 2);
+		RandomAccess<UnsignedShortType> planarRa = planar.randomAccess();
+		for (int i = 0; i < cropData.length; i ++) {
+			planarRa.setPosition(new long[] {i % 3, (i / 3) % 2, i / 6});
+			planarRa.get().set(cropData[i] & 0xffff);
+		}
+		ImgLib2Utils.writeRGB(planar, buffer, 2, PRINTER);
+		assertArrayEquals(expected.array(), buffer.array());
+	}
+
+	@Test
+	public void testCopyPlanar() {
+		// crop of 2 x 2 pixels and 3 channels of an image of 4 x 3 pixels, copied with axes [c, y, x]
+		byte[] data = new byte[4 * 3 * 3];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (byte) i;
+		RandomAccessibleInterval<UnsignedByteType> crop = 
+				Views.offsetInterval(ArrayImgs.unsignedBytes(data, 4, 3, 3), new long[] {1, 1, 0}, new long[] {2, 2, 3});
+		assertTrue(ImgLib2Utils.isPlanarCopyable(crop, new UnsignedByteType()));
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		ImgLib2Utils.copyPlanar(crop, buffer);
+		assertArrayEquals(new byte[] {5, 6, 9, 10, 17, 18, 21, 22, 29, 30, 33, 34}, buffer.array());
+	}
+
+	@Test
+	public void testCopyPlanarOfFloats() {
+		float[] data = new float[] {0.5f, 1, 1.5f, 2, 2.5f, 3};
+		ByteBuffer buffer = ByteBuffer.allocate(4 * 6).order(ByteOrder.nativeOrder());
+		ImgLib2Utils.copyPlanar(ArrayImgs.floats(data, 1, 2, 3), buffer);
+		assertArrayEquals(new double[] {0.5, 1, 1.5, 2, 2.5, 3}, toArray(buffer.asFloatBuffer()), 0);
+	}
+
+	@Test
+	public void testImagesThatCannotBeCopiedByPlanes() {
+		// other type, other axes or a view that is not a translated crop
+		assertFalse(ImgLib2Utils.isPlanarCopyable(ArrayImgs.unsignedShorts(2, 2, 3), new UnsignedByteType()));
+		assertFalse(ImgLib2Utils.isPlanarCopyable(ArrayImgs.floats(2, 2, 3), new UnsignedByteType()));
+		assertFalse(ImgLib2Utils.isPlanarCopyable(ArrayImgs.unsignedBytes(2, 2), new UnsignedByteType()));
+		assertFalse(ImgLib2Utils.isPlanarCopyable(Views.permute(ArrayImgs.unsignedBytes(2, 2, 3), 0, 1), new UnsignedByteType()));
+		assertFalse(ImgLib2Utils.isPlanarCopyable(PlanarImgs.unsignedBytes(2, 2, 3), new UnsignedByteType()));
+	}
+
+	@Test
+	public void testFactorOne() {
+		ArrayImg<FloatType, FloatArray> img = ArrayImgs.floats(4, 4);
+		assertSame(img, ImgLib2Utils.reescaleIfNeeded(img, 1));
+	}
+
+	@Test
+	public void testBlocksAreAveraged() {
+		byte[] data = new byte[16];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (byte) (10 * i);
+		RandomAccessibleInterval<UnsignedByteType> reduced = ImgLib2Utils.reescaleIfNeeded(ArrayImgs.unsignedBytes(data, 4, 4), 2);
+		assertArrayEquals(new long[] {2, 2}, reduced.dimensionsAsLongArray());
+		assertEquals(25, get(reduced, 0, 0), 0);
+		assertEquals(45, get(reduced, 1, 0), 0);
+		assertEquals(105, get(reduced, 0, 1), 0);
+		assertEquals(125, get(reduced, 1, 1), 0);
+	}
+
+	@Test
+	public void testBlocksAtTheBorders() {
+		// 5 x 3 pixels, the last column and the last row of the result only average the pixels inside the image
+		float[] data = new float[15];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = i;
+		RandomAccessibleInterval<FloatType> reduced = ImgLib2Utils.reescaleIfNeeded(ArrayImgs.floats(data, 5, 3), 2);
+		assertArrayEquals(new long[] {3, 2}, reduced.dimensionsAsLongArray());
+		assertEquals((0 + 1 + 5 + 6) / 4.0, get(reduced, 0, 0), 1e-6);
+		assertEquals((4 + 9) / 2.0, get(reduced, 2, 0), 1e-6);
+		assertEquals((10 + 11) / 2.0, get(reduced, 0, 1), 1e-6);
+		assertEquals(14, get(reduced, 2, 1), 1e-6);
+	}
+
+	@Test
+	public void testSeveralChannels() {
+		// xyc image of 3 x 3 pixels and 3 channels, each channel is constant
+		float[] data = new float[27];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = i / 9;
+		RandomAccessibleInterval<FloatType> reduced = ImgLib2Utils.reescaleIfNeeded(ArrayImgs.floats(data, 3, 3, 3), 3);
+		assertArrayEquals(new long[] {1, 1, 3}, reduced.dimensionsAsLongArray());
+		RandomAccess<FloatType> ra = reduced.randomAccess();
+		for (int c = 0; c < 3; c ++) {
+			ra.setPosition(new long[] {0, 0, c});
+			assertEquals(c, ra.get().getRealDouble(), 1e-6);
+		}
+	}
+
+	@Test
+	public void testBigFactor() {
+		float[] data = new float[10 * 7];
+		Arrays.fill(data, 2.5f);
+		data[0] = 72.5f;
+		RandomAccessibleInterval<FloatType> reduced = ImgLib2Utils.reescaleIfNeeded(ArrayImgs.floats(data, 10, 7), 16);
+		assertArrayEquals(new long[] {1, 1}, reduced.dimensionsAsLongArray());
+		assertEquals(2.5 + 70 / 70.0, get(reduced, 0, 0), 1e-5);
+	}
+
+	private static double[] toArray(FloatBuffer floats) {
+		double[] values = new double[floats.capacity()];
+		for (int i = 0; i < values.length; i ++)
+			values[i] = floats.get(i);
+		return values;
+	}
+
+	private static <T extends RealType<T>> double get(RandomAccessibleInterval<T> img, long x, long y) {
+		RandomAccess<T> ra = img.randomAccess();
+		ra.setPosition(new long[] {x, y});
+		return ra.get().getRealDouble();
+	}
+}
@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Checks the histograms computed by {@link ImgLib2Utils#computeHistogram(net.imglib2.RandomAccessibleInterval)}
+ * and the intensity levels given by {@link IntensityHistogram#getLevels(double, double)} for 8-bit, 16-bit and
+ * float images.
+ *
+ * @author Carlos Garcia
+ */
+public class IntensityHistogramTest {
+
+	private static final double[] NO_CLIPPING = new double[] {0, 100};
+
+	@Test
+	public void testUnsignedByte() {
+		// the values from 0 to 99, once each
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (byte) i;
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedBytes(data, 10, 10));
+		assertEquals(1, histogram.getNumberOfChannels());
+		assertEquals(0, histogram.getMin(0), 0);
+		assertEquals(99, histogram.getMax(0), 0);
+		assertEquals(49, histogram.getPercentile(0, 50), 0);
+		assertArrayEquals(new double[] {0, 99}, histogram.getLevels(0, 100), 0);
+		assertArrayEquals(new double[] {0, 98}, histogram.getLevels(1, 99), 0);
+	}
+
+	@Test
+	public void testUnsignedByteAbove127() {
+		byte[] data = new byte[] {(byte) 128, (byte) 200, (byte) 255, (byte) 255};
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedBytes(data, 2, 2));
+		assertArrayEquals(new double[] {128, 255}, histogram.getLevels(0, 100), 0);
+		assertEquals(200, histogram.getPercentile(0, 50), 0);
+	}
+
+	@Test
+	public void testUnsignedShort() {
+		// one bin per value, the percentiles are exact
+		short[] data = new short[100];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (short) (1000 + 10 * i);
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedShorts(data, 20, 5));
+		assertArrayEquals(new double[] {1000, 1990}, histogram.getLevels(0, 100), 0);
+		assertArrayEquals(new double[] {1010, 1970}, histogram.getLevels(2, 98), 0);
+		assertEquals(1490, histogram.getPercentile(0, 50), 0);
+	}
+
+	@Test
+	public void testFullRangeOfUnsignedShort() {
+		short[] data = new short[] {0, 1, 2, (short) 65535};
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedShorts(data, 4, 1));
+		assertArrayEquals(new double[] {0, 65535}, histogram.getLevels(0, 100), 0);
+		assertEquals(1, histogram.getPercentile(0, 50), 0);
+		assertEquals(2, histogram.getPercentile(0, 75), 0);
+	}
+
+	@Test
+	public void testFloat() {
+		float[] data = new float[100];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = -1 + i / 50f;
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.floats(data, 10, 10));
+		// the min and the max are exact, the percentiles in between are within one bin
+		double bin = (histogram.getMax(0) - histogram.getMin(0)) / (IntensityHistogram.MAX_BINS - 1);
+		assertArrayEquals(new double[] {-1, 0.98}, histogram.getLevels(0, 100), 1e-6);
+		assertEquals(-0.02, histogram.getPercentile(0, 50), bin);
+		assertArrayEquals(new double[] {-0.96, 0.94}, histogram.getLevels(3, 98), bin);
+	}
+
+	@Test
+	public void testConstantImage() {
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.floats(new float[] {3, 3, 3, 3}, 2, 2));
+		assertArrayEquals(new double[] {3, 3}, histogram.getLevels(0, 100), 0);
+		assertArrayEquals(new double[] {3, 3}, histogram.getLevels(2, 98), 0);
+		histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedShorts(new short[] {7, 7}, 2, 1));
+		assertArrayEquals(new double[] {7, 7}, histogram.getLevels(1, 99), 0);
+	}
+
+	@Test
+	public void testSeveralChannels() {
+		// xyc image of 2 x 2 pixels and 3 channels
+		short[] data = new short[] {
+				0, 1, 2, 3,
+				100, 100, 100, 100,
+				10, 20, 30, 40};
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedShorts(data, 2, 2, 3));
+		assertEquals(3, histogram.getNumberOfChannels());
+		assertArrayEquals(new double[] {0, 3, 100, 100, 10, 40}, histogram.getLevels(0, 100), 0);
+		assertArrayEquals(new double[] {1, 2, 100, 100, 20, 30}, histogram.getLevels(50, 75), 0);
+	}
+
+	@Test
+	public void testImageSplitInSeveralChunks() {
+		// more rows than threads, the partial histograms of each chunk of rows are added
+		int width = 3, height = 4000;
+		short[] data = new short[width * height];
+		for (int i = 0; i < data.length; i ++)
+			data[i] = (short) (i / width);
+		IntensityHistogram histogram = ImgLib2Utils.computeHistogram(ArrayImgs.unsignedShorts(data, width, height));
+		assertArrayEquals(new double[] {0, 3999}, histogram.getLevels(0, 100), 0);
+		assertEquals(1999, histogram.getPercentile(0, 50), 0);
+		assertEquals(399, histogram.getPercentile(0, 10), 0);
+	}
+
+	@Test
+	public void testOnlyUnclipped8BitImagesAreFedAsTheyAre() {
+		assertTrue(AbstractSamJ.isFedAsItIs(new UnsignedByteType(), NO_CLIPPING));
+		assertFalse(AbstractSamJ.isFedAsItIs(new UnsignedByteType(), new double[] {1, 100}));
+		assertFalse(AbstractSamJ.isFedAsItIs(new UnsignedByteType(), new double[] {0, 99.5}));
+		assertFalse(AbstractSamJ.isFedAsItIs(new UnsignedShortType(), NO_CLIPPING));
+		assertFalse(AbstractSamJ.isFedAsItIs(new FloatType(), NO_CLIPPING));
+	}
+}
@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+
+/**
+ * Checks which segments {@link SharedMemoryPool} reuses, creates and unlinks.
+ *
+ * @author Carlos Garcia
+ */
+public class SharedMemoryPoolTest {
+
+	private static final long MIN = SharedMemoryPool.MIN_SEGMENT_SIZE;
+
+	private final SharedMemoryPool pool = new SharedMemoryPool();
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Test
+	public void testSizesArePowersOfTwo() {
+		assertEquals(MIN, pool.acquire(10).getSize());
+		assertEquals(MIN, pool.acquire(MIN).getSize());
+		assertEquals(2 * MIN, pool.acquire(MIN + 1).getSize());
+		assertEquals(8 * MIN, pool.acquire(5 * MIN).getSize());
+		assertEquals(4, pool.getCreatedCount());
+		assertEquals(0, pool.getReusedCount());
+		assertEquals(12 * MIN, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testReleasedSegmentsAreReused() {
+		SharedMemoryArray segment = pool.acquire(100);
+		pool.release(segment);
+		assertSame(segment, pool.acquire(MIN));
+		assertEquals(2, pool.getAcquiredCount());
+		assertEquals(1, pool.getReusedCount());
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(0.5, pool.getReuseRate(), 1e-9);
+		assertEquals(MIN, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testSegmentsInUseAreNotShared() {
+		SharedMemoryArray first = pool.acquire(10);
+		SharedMemoryArray second = pool.acquire(10);
+		assertNotSame(first, second);
+		assertEquals(2, pool.getCreatedCount());
+		// a free segment too small is not reused
+		pool.release(first);
+		SharedMemoryArray big = pool.acquire(MIN + 1);
+		assertNotSame(first, big);
+		assertEquals(0, pool.getReusedCount());
+	}
+
+	@Test
+	public void testSmallestSegmentBigEnoughIsReused() {
+		SharedMemoryArray small = pool.acquire(MIN);
+		SharedMemoryArray medium = pool.acquire(2 * MIN);
+		SharedMemoryArray big = pool.acquire(4 * MIN);
+		pool.release(big);
+		pool.release(small);
+		pool.release(medium);
+		assertSame(medium, pool.acquire(MIN + 1));
+		assertSame(small, pool.acquire(1));
+		assertSame(big, pool.acquire(1));
+		assertEquals(3, pool.getReusedCount());
+	}
+
+	@Test
+	public void testSmallestFreeSegmentsAreDiscarded() {
+		List<SharedMemoryArray> segments = new ArrayList<SharedMemoryArray>();
+		for (int i = 0; i <= SharedMemoryPool.MAX_FREE_SEGMENTS; i ++)
+			segments.add(pool.acquire(MIN << i));
+		for (SharedMemoryArray segment : segments)
+			pool.release(segment);
+		assertEquals(1, pool.getDiscardedCount());
+		// the segment of MIN bytes is not in the pool anymore
+		assertSame(segments.get(1), pool.acquire(1));
+		assertEquals(1, pool.getReusedCount());
+	}
+
+	@Test
+	public void testNewSegmentMakesRoomInThePool() {
+		List<SharedMemoryArray> segments = new ArrayList<SharedMemoryArray>();
+		for (int i = 0; i < SharedMemoryPool.MAX_FREE_SEGMENTS; i ++)
+			segments.add(pool.acquire(MIN));
+		for (SharedMemoryArray segment : segments)
+			pool.release(segment);
+		assertEquals(0, pool.getDiscardedCount());
+		pool.acquire(2 * MIN);
+		assertEquals(1, pool.getDiscardedCount());
+		assertEquals((SharedMemoryPool.MAX_FREE_SEGMENTS - 1) * MIN + 2 * MIN, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testDiscard() {
+		SharedMemoryArray segment = pool.acquire(10);
+		pool.discard(segment);
+		assertEquals(1, pool.getDiscardedCount());
+		assertEquals(0, pool.getPooledBytes());
+		// the discarded segment is not given back to the pool
+		pool.release(segment);
+		assertEquals(0, pool.getPooledBytes());
+		assertNotSame(segment, pool.acquire(10));
+		assertEquals(2, pool.getCreatedCount());
+		pool.discard(null);
+		pool.release(null);
+		assertEquals(1, pool.getDiscardedCount());
+	}
+
+	@Test
+	public void testAttachScript() {
+		SharedMemoryArray discarded = pool.acquire(10);
+		pool.discard(discarded);
+		SharedMemoryArray segment = pool.acquire(10);
+		String attach = "shm = attach_pooled_shm('" + segment.getNameForPython() + "', " + segment.getSize();
+		assertEquals(attach + ", released=['" + discarded.getNameForPython() + "', ])" + System.lineSeparator(),
+				pool.attachScript(segment, "shm"));
+		// the discarded segments are only detached once
+		assertEquals(attach + ", released=[])" + System.lineSeparator(), pool.attachScript(segment, "shm"));
+	}
+
+	@Test
+	public void testClose() {
+		SharedMemoryArray free = pool.acquire(10);
+		pool.acquire(10);
+		pool.release(free);
+		pool.close();
+		assertEquals(2, pool.getDiscardedCount());
+		assertEquals(0, pool.getPooledBytes());
+		try {
+			pool.acquire(10);
+			fail("A closed pool cannot give segments.");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
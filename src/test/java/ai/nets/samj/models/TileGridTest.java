@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+/**
+ * Checks the layout of the tiles of {@link TileGrid} and which tile is chosen for each area of the image.
+ *
+ * @author Carlos Garcia
+ */
+public class TileGridTest {
+
+	@Test
+	public void testImageSmallerThanTheTile() {
+		TileGrid grid = new TileGrid(300, 200, 512, 64);
+		assertEquals(1, grid.size());
+		assertEquals(new Rectangle(0, 0, 300, 200), grid.getTile(0));
+	}
+
+	@Test
+	public void testLastTilesEndAtTheBorder() {
+		// stride of 448 pixels, 3 columns and 2 rows of tiles
+		TileGrid grid = new TileGrid(1000, 600, 512, 64);
+		assertEquals(6, grid.size());
+		assertEquals(new Rectangle(0, 0, 512, 512), grid.getTile(0));
+		assertEquals(new Rectangle(448, 0, 512, 512), grid.getTile(1));
+		assertEquals(new Rectangle(488, 0, 512, 512), grid.getTile(2));
+		assertEquals(new Rectangle(0, 88, 512, 512), grid.getTile(3));
+		assertEquals(new Rectangle(448, 88, 512, 512), grid.getTile(4));
+		assertEquals(new Rectangle(488, 88, 512, 512), grid.getTile(5));
+	}
+
+	@Test
+	public void testImageOfExactlyOneStride() {
+		TileGrid grid = new TileGrid(960, 512, 512, 64);
+		assertEquals(2, grid.size());
+		assertEquals(new Rectangle(448, 0, 512, 512), grid.getTile(1));
+	}
+
+	@Test
+	public void testAreasSmallerThanTheOverlapAreCovered() {
+		long width = 300, height = 250, side = 100, overlap = 20;
+		TileGrid grid = new TileGrid(width, height, side, overlap);
+		for (int y = 0; y <= height - overlap; y ++) {
+			for (int x = 0; x <= width - overlap; x ++) {
+				Rectangle area = new Rectangle(x, y, (int) overlap, (int) overlap);
+				assertTrue("Area not covered: " + area, grid.covers(grid.findCoveringTile(area), area));
+			}
+		}
+	}
+
+	@Test
+	public void testClosestCoveringTileIsChosen() {
+		TileGrid grid = new TileGrid(1000, 600, 512, 64);
+		// contained in the tiles 0 and 3, closer to the center of the tile 3
+		Rectangle area = new Rectangle(200, 400, 50, 50);
+		assertTrue(grid.covers(0, area));
+		assertEquals(3, grid.findCoveringTile(area));
+		assertEquals(2, grid.findCoveringTile(new Rectangle(950, 10, 10, 10)));
+	}
+
+	@Test
+	public void testAreaNotCoveredByAnyTile() {
+		TileGrid grid = new TileGrid(1000, 600, 512, 64);
+		Rectangle area = new Rectangle(420, 0, 560, 100);
+		assertFalse(grid.covers(grid.findCoveringTile(area), area));
+		// the tile with the biggest intersection with the area, 512 x 100 pixels against 492 x 100 of the last one
+		assertEquals(1, grid.findCoveringTile(area));
+	}
+
+	@Test
+	public void testNextTileToEncode() {
+		TileGrid grid = new TileGrid(1000, 600, 512, 64);
+		assertEquals(0, grid.nextTileToEncode(null));
+		assertEquals(5, grid.nextTileToEncode(new int[] {990, 590}));
+		grid.setEncoded(5, true);
+		assertTrue(grid.isEncoded(5));
+		assertEquals(4, grid.nextTileToEncode(new int[] {990, 590}));
+		grid.setEncoded(0, true);
+		assertEquals(1, grid.nextTileToEncode(null));
+		for (int n = 0; n < grid.size(); n ++)
+			grid.setEncoded(n, true);
+		assertEquals(-1, grid.nextTileToEncode(null));
+		assertEquals(-1, grid.nextTileToEncode(new int[] {0, 0}));
+		// the encodings of a tile were deleted
+		grid.setEncoded(2, false);
+		assertFalse(grid.isEncoded(2));
+		assertEquals(2, grid.nextTileToEncode(new int[] {0, 0}));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverlapAsBigAsTheTile() {
+		new TileGrid(1000, 1000, 64, 64);
+	}
+}